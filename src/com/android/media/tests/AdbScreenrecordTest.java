@@ -16,6 +16,7 @@
 package com.android.media.tests;
 
 import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IFileEntry;
@@ -30,14 +31,15 @@ import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.RunUtil;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -46,9 +48,13 @@ import java.util.regex.Pattern;
  * Tests adb command "screenrecord", i.e. "adb screenrecord [--size] [--bit-rate] [--time-limit]"
  *
  * <p>The test use the above command to record a video of DUT's screen. It then tries to verify that
- * a video was actually recorded and that the video is a valid video file. It currently uses
- * 'avprobe' to do the video analysis along with extracting parameters from the adb command's
- * output.
+ * a video was actually recorded and that the video is a valid video file. It reads the duration,
+ * bitrate and frames of the video from its MP4 boxes, along with extracting parameters from the
+ * adb command's output.
+ *
+ * <p>With "stream-to-host", the video is instead streamed as raw H.264 to a host file through "adb
+ * exec-out", and its frames and bitrate are measured from the stream while recording, so there is
+ * no device file to wait for and pull.
  */
 public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
 
@@ -67,6 +73,15 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
     @Option(name = "bit-rate", description = "Video bit rate in megabits per second, e.g. 4000000")
     private long mBitRate = -1;
 
+    @Option(name = "max-frame-interval-ms", description = "Fail if two recorded frames are further "
+            + "apart, in ms; only for a constantly changing screen, as frames are only recorded "
+            + "when the screen changes; not checked when streaming to the host")
+    private long mMaxFrameIntervalMs = -1;
+
+    @Option(name = "stream-to-host", description = "Stream the recording to the host as raw H.264 "
+            + "and verify it while recording, instead of recording to a device file")
+    private boolean mStreamToHost = false;
+
     //===================================================================
     // CLASS VARIABLES
     //===================================================================
@@ -79,28 +94,23 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
     private static final long TEST_TIMEOUT_MS = 5 * 60 * 1000; // 5 min
     private static final long DEVICE_SYNC_MS = 5 * 60 * 1000; // 5 min
     private static final long POLLING_INTERVAL_MS = 5 * 1000; // 5 sec
-    private static final long CMD_TIMEOUT_MS = 5 * 1000; // 5 sec
     private static final String ERR_OPTION_MALFORMED = "Test option %1$s is not correct [%2$s]";
     private static final String OPTION_TIME_LIMIT = "--time-limit";
     private static final String OPTION_SIZE = "--size";
     private static final String OPTION_BITRATE = "--bit-rate";
+    private static final String OPTION_OUTPUT_FORMAT_H264 = "--output-format=h264";
+    private static final String OUTPUT_STDOUT = "-";
+    private static final long BITRATE_WINDOW_MS = 1000; // 1 sec
     private static final String RESULT_KEY_RECORDED_FRAMES = "recorded_frames";
     private static final String RESULT_KEY_RECORDED_LENGTH = "recorded_length";
     private static final String RESULT_KEY_VERIFIED_DURATION = "verified_duration";
     private static final String RESULT_KEY_VERIFIED_BITRATE = "verified_bitrate";
+    private static final String RESULT_KEY_VERIFIED_FRAMES = "verified_frames";
+    private static final String RESULT_KEY_FRAME_SIZE = "frame_size";
+    private static final String RESULT_KEY_FRAME_INTERVAL = "frame_interval";
+    private static final String RESULT_KEY_KEY_FRAMES = "key_frames";
+    private static final String RESULT_KEY_BITRATE = "bitrate";
     private static final String TEST_FILE = "/sdcard/screenrecord_test.mp4";
-    private static final String AVPROBE_NOT_INSTALLED =
-            "Program 'avprobe' is not installed on host '%1$s'";
-    private static final String REGEX_IS_VIDEO_OK =
-            "Duration: (\\d\\d:\\d\\d:\\d\\d.\\d\\d).+bitrate: (\\d+ .b\\/s)";
-    private static final String AVPROBE_STR = "avprobe";
-
-    //===================================================================
-    // ENUMS
-    //===================================================================
-    enum HOST_SOFTWARE {
-        AVPROBE
-    }
 
     @Override
     public void setDevice(ITestDevice device) {
@@ -117,9 +127,6 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         initializeTest(listener);
 
-        CLog.i("Verify required software is installed on host");
-        verifyRequiredSoftwareIsInstalled(HOST_SOFTWARE.AVPROBE);
-
         mTestRunHelper.startTest(1);
 
         Map<String, String> resultsDictionary = new HashMap<String, String>();
@@ -151,7 +158,7 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
      *   <li>2. Wait until there is a video file; fail if none appears
      *   <li>3. Analyze adb output and extract recorded number of frames and video length
      *   <li>4. Pull recorded video file off device
-     *   <li>5. Using avprobe, analyze video file and extract duration and bitrate
+     *   <li>5. Parse the boxes of the video file and extract duration, bitrate and frames
      *   <li>6. Return extracted results
      * </ul>
      *
@@ -160,8 +167,11 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
      */
     private Map<String, String> runTest(Map<String, String> results, final long timeout)
             throws DeviceNotAvailableException, TestFailureException {
+        if (mStreamToHost) {
+            return runStreamingTest(results, timeout);
+        }
         final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-        final String cmd = generateAdbScreenRecordCommand();
+        final String cmd = generateAdbScreenRecordCommand(false);
         final String deviceFileName = getAbsoluteFilename();
 
         CLog.i("START Execute device shell command: '" + cmd + "'");
@@ -178,52 +188,83 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
         CLog.i("Get number of recorded frames and recorded length from adb output");
         extractVideoDataFromAdbOutput(adbOutput, results);
 
-        CLog.i("Get duration and bitrate info from video file using '" + AVPROBE_STR + "'");
-        try {
-            extractDurationAndBitrateFromVideoFileUsingAvprobe(deviceFileName, results);
-        } catch (ParseException e) {
-            throw new RuntimeException(e);
-        }
+        CLog.i("Get duration, bitrate and frames info from video file");
+        extractVideoDataFromVideoFile(deviceFileName, results);
         deleteFileFromDevice(deviceFileName);
         return results;
     }
 
-    /** Convert a string on form HH:mm:ss.SS to nearest number of seconds */
-    private long convertBitrateToKilobits(String bitrate) {
-        Matcher m = Pattern.compile("(\\d+) (.)b\\/s").matcher(bitrate);
-        if (!m.matches()) {
-            return -1;
-        }
-
-        final String unit = m.group(2).toUpperCase();
-        long factor = 1;
-        switch (unit) {
-            case "K":
-                factor = 1;
-                break;
-            case "M":
-                factor = 1000;
-                break;
-            case "G":
-                factor = 1000000;
-                break;
-        }
-
-        long rate = Long.parseLong(m.group(1));
-
-        return rate * factor;
-    }
-
     /**
-     * Convert a string on form HH:mm:ss.SS to nearest number of seconds
+     * Test code that streams "adb exec-out screenrecord" to the host and checks the stream
+     *
+     * <p>
      *
-     * @throws ParseException
+     * <ul>
+     *   <li>1. Run adb screenrecord command, writing raw H.264 to its output
+     *   <li>2. Write the output to a host file, counting frames and bytes as it arrives
+     *   <li>3. Fail if no frames were streamed
+     *   <li>4. Return number of frames, length and bitrate over time of the stream, from its
+     *       first byte to its last one, without the teardown of adb
+     * </ul>
+     *
+     * @throws TestFailureException
      */
-    private long convertDurationToMilliseconds(String duration) throws ParseException {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SS");
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        Date convertedDate = sdf.parse("1970-01-01 " + duration);
-        return convertedDate.getTime();
+    private Map<String, String> runStreamingTest(Map<String, String> results, final long timeout)
+            throws TestFailureException {
+        final String cmd = generateAdbScreenRecordCommand(true);
+        File videoFile = null;
+        try {
+            videoFile = FileUtil.createTempFile("screenrecord_test", ".h264");
+            H264StreamParser parser =
+                    new H264StreamParser(
+                            new BufferedOutputStream(new FileOutputStream(videoFile)),
+                            BITRATE_WINDOW_MS);
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            CommandResult result;
+
+            CLog.i("START Stream screen recording to host: '" + cmd + "'");
+            try {
+                result =
+                        RunUtil.getDefault()
+                                .runTimedCmd(
+                                        timeout,
+                                        parser,
+                                        stderr,
+                                        GlobalConfiguration.getDeviceManagerInstance()
+                                                .getAdbPath(),
+                                        "-s",
+                                        getDevice().getSerialNumber(),
+                                        "exec-out",
+                                        cmd);
+            } finally {
+                parser.close();
+            }
+            CLog.i("END Stream screen recording to host");
+            if (result.getStatus() != CommandStatus.SUCCESS) {
+                CLog.w("Streaming ended with %s: %s", result.getStatus(), stderr);
+            }
+
+            CLog.i("Recorded frames: " + parser.getFrameCount());
+            CLog.i("Recorded length: " + parser.getDurationMs() + " ms");
+            CLog.i("Bitrate over time:\n" + parser.getBitrateTimeline());
+            if (parser.getFrameCount() <= 0) {
+                mTestRunHelper.reportFailure("No recorded frames detected");
+            }
+
+            results.put(RESULT_KEY_RECORDED_FRAMES, Long.toString(parser.getFrameCount()));
+            results.put(
+                    RESULT_KEY_RECORDED_LENGTH, Long.toString(parser.getDurationMs() / 1000));
+            results.put(RESULT_KEY_VERIFIED_FRAMES, Long.toString(parser.getFrameCount()));
+            results.put(RESULT_KEY_KEY_FRAMES, Long.toString(parser.getKeyFrameCount()));
+            results.put(RESULT_KEY_VERIFIED_BITRATE, Long.toString(parser.getBitrateKbps()));
+            addFrameMetrics(results, RESULT_KEY_BITRATE, "_kbps", parser.getWindowBitratesKbps());
+        } catch (IOException e) {
+            CLog.e(e);
+            mTestRunHelper.reportFailure("Failed to write the streamed recording to the host");
+        } finally {
+            FileUtil.deleteFile(videoFile);
+        }
+        return results;
     }
 
     /**
@@ -242,15 +283,13 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
     }
 
     /**
-     * Extracts duration and bitrate data from a video file
+     * Extracts duration, bitrate and frames data from a video file
      *
      * @throws DeviceNotAvailableException
-     * @throws ParseException
      * @throws TestFailureException
      */
-    private void extractDurationAndBitrateFromVideoFileUsingAvprobe(
-            String deviceFileName, Map<String, String> results)
-            throws DeviceNotAvailableException, ParseException, TestFailureException {
+    private void extractVideoDataFromVideoFile(String deviceFileName, Map<String, String> results)
+            throws DeviceNotAvailableException, TestFailureException {
         CLog.i("Check if the recorded file has some data in it: " + deviceFileName);
         IFileEntry video = getDevice().getFileEntry(deviceFileName);
         if (video == null || video.getFileEntry().getSizeValue() < 1) {
@@ -258,44 +297,71 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
         }
 
         final File recordedVideo = getDevice().pullFile(deviceFileName);
+        if (recordedVideo == null) {
+            mTestRunHelper.reportFailure("Failed to pull recorded video file");
+        }
         CLog.i("Recorded video file: " + recordedVideo.getAbsolutePath());
 
-        CommandResult result =
-                RunUtil.getDefault()
-                        .runTimedCmd(
-                                CMD_TIMEOUT_MS,
-                                AVPROBE_STR,
-                                "-loglevel",
-                                "info",
-                                recordedVideo.getAbsolutePath());
+        Mp4BoxParser parser = null;
+        try {
+            parser = Mp4BoxParser.parse(recordedVideo);
+        } catch (IOException e) {
+            CLog.e(e);
+        } finally {
+            // Remove file from host machine
+            FileUtil.deleteFile(recordedVideo);
+        }
+        if (parser == null) {
+            mTestRunHelper.reportFailure("Video verification failed; the video file is not valid");
+        }
+        if (parser.getFrameCount() == 0) {
+            mTestRunHelper.reportFailure("Video verification failed; no frames in the video file");
+        }
 
-        // Remove file from host machine
-        FileUtil.deleteFile(recordedVideo);
+        results.put(RESULT_KEY_VERIFIED_DURATION, Long.toString(parser.getDurationMs() / 1000));
+        results.put(RESULT_KEY_VERIFIED_BITRATE, Long.toString(parser.getBitrateKbps()));
+        results.put(RESULT_KEY_VERIFIED_FRAMES, Integer.toString(parser.getFrameCount()));
 
-        if (result.getStatus() != CommandStatus.SUCCESS) {
-            mTestRunHelper.reportFailure(AVPROBE_STR + " command failed");
+        int[] frameSizes = parser.getFrameSizes();
+        double[] sizes = new double[frameSizes.length];
+        for (int i = 0; i < frameSizes.length; i++) {
+            sizes[i] = frameSizes[i];
         }
+        addFrameMetrics(results, RESULT_KEY_FRAME_SIZE, "", sizes);
+        double[] intervals = parser.getFrameIntervalsMs();
+        addFrameMetrics(results, RESULT_KEY_FRAME_INTERVAL, "_ms", intervals);
+        verifyFramePacing(intervals);
+    }
 
-        String data = result.getStderr();
-        CLog.i("data: " + data);
-        if (data == null || data.isEmpty()) {
-            mTestRunHelper.reportFailure(AVPROBE_STR + " output data is empty");
+    /** Adds the p50, p90 and max of per-frame values to the results */
+    private static void addFrameMetrics(
+            Map<String, String> results, String key, String unit, double[] values) {
+        if (values.length == 0) {
+            return;
         }
-
-        Matcher m = Pattern.compile(REGEX_IS_VIDEO_OK).matcher(data);
-        if (!m.find()) {
-            final String errMsg =
-                    "Video verification failed; no matching verification pattern found";
-            mTestRunHelper.reportFailure(errMsg);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (int percentile : new int[] {50, 90}) {
+            double value = LatencyDistributions.getPercentile(sorted, percentile);
+            results.put(String.format("%s_p%d%s", key, percentile, unit), String.valueOf(value));
         }
+        results.put(key + "_max" + unit, String.valueOf(sorted[sorted.length - 1]));
+    }
 
-        String duration = m.group(1);
-        long durationInMilliseconds = convertDurationToMilliseconds(duration);
-        String bitrate = m.group(2);
-        long bitrateInKilobits = convertBitrateToKilobits(bitrate);
-
-        results.put(RESULT_KEY_VERIFIED_DURATION, Long.toString(durationInMilliseconds / 1000));
-        results.put(RESULT_KEY_VERIFIED_BITRATE, Long.toString(bitrateInKilobits));
+    /** Fails the test if two frames are further apart than the max frame interval, if set */
+    private void verifyFramePacing(double[] intervalsMs) throws TestFailureException {
+        if (mMaxFrameIntervalMs == -1) {
+            return;
+        }
+        for (int i = 0; i < intervalsMs.length; i++) {
+            if (intervalsMs[i] > mMaxFrameIntervalMs) {
+                mTestRunHelper.reportFailure(
+                        String.format(
+                                "Frame %d was recorded %.1f ms after the previous one, "
+                                        + "more than %d ms",
+                                i + 1, intervalsMs[i], mMaxFrameIntervalMs));
+            }
+        }
     }
 
     /** Extracts recorded number of frames and recorded video length from adb output
@@ -323,11 +389,20 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
         return true;
     }
 
-    /** Generates an adb command from passed in test options */
-    private String generateAdbScreenRecordCommand() {
+    /**
+     * Generates an adb command from passed in test options
+     *
+     * @param streaming whether to write raw H.264 to the output, instead of the device file
+     */
+    private String generateAdbScreenRecordCommand(boolean streaming) {
         final String SPACE = " ";
         StringBuilder sb = new StringBuilder(128);
-        sb.append("screenrecord --verbose ").append(getAbsoluteFilename());
+        if (streaming) {
+            // verbose messages would be mixed with the video
+            sb.append("screenrecord ").append(OPTION_OUTPUT_FORMAT_H264);
+        } else {
+            sb.append("screenrecord --verbose ").append(getAbsoluteFilename());
+        }
 
         // Add test options if they have been passed in to the test
         if (mRecordTimeInSeconds != -1) {
@@ -343,6 +418,10 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
             sb.append(SPACE).append(OPTION_BITRATE).append(SPACE).append(mBitRate);
         }
 
+        if (streaming) {
+            sb.append(SPACE).append(OUTPUT_STDOUT);
+        }
+
         return sb.toString();
     }
 
@@ -366,28 +445,6 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
         getDevice().setDate(new Date());
     }
 
-    /** Verifies that required software is installed on host machine */
-    private void verifyRequiredSoftwareIsInstalled(HOST_SOFTWARE software) {
-        String swName = "";
-        switch (software) {
-            case AVPROBE:
-                swName = AVPROBE_STR;
-                CommandResult result =
-                        RunUtil.getDefault().runTimedCmd(CMD_TIMEOUT_MS, swName, "-version");
-                String output = result.getStdout();
-                if (result.getStatus() == CommandStatus.SUCCESS && output.startsWith(swName)) {
-                    return;
-                }
-                break;
-        }
-
-        CLog.i("Program '" + swName + "' not found, report test failure");
-        String hostname = RunUtil.getDefault().runTimedCmd(CMD_TIMEOUT_MS, "hostname").getStdout();
-
-        String err = String.format(AVPROBE_NOT_INSTALLED, (hostname == null) ? "" : hostname);
-        throw new RuntimeException(err);
-    }
-
     /** Verifies that passed in test parameters are legitimate
      * @throws TestFailureException */
     private boolean verifyTestParameters() throws TestFailureException {
@@ -414,6 +471,14 @@ public class AdbScreenrecordTest implements IDeviceTest, IRemoteTest {
             return false;
         }
 
+        if (mMaxFrameIntervalMs != -1 && mMaxFrameIntervalMs < 1) {
+            final String error =
+                    String.format(
+                            ERR_OPTION_MALFORMED, "--max-frame-interval-ms", mMaxFrameIntervalMs);
+            mTestRunHelper.reportFailure(error);
+            return false;
+        }
+
         return true;
     }
 
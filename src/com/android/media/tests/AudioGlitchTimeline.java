@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.QuantileSketch;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Time-indexed analysis of the glitch and late buffer callback logs of an AudioLoopback buffer
+ * test.
+ *
+ * <p>The log files are read line by line and merged on their timestamps into a single event
+ * series, so arbitrarily long captures are processed in constant memory. From the series it
+ * computes:
+ *
+ * <ul>
+ *   <li>Glitch rate per fixed size window (median, p90 and max, in glitches per minute).
+ *   <li>Bursts: runs of at least "min burst size" glitches less than "burst gap" apart.
+ *   <li>The longest glitch-free interval, including the start and the end of the test.
+ * </ul>
+ *
+ * Optionally, the per-window counts are written as CSV, to be lined up with other time series of
+ * the device like thermal or GC events.
+ */
+public class AudioGlitchTimeline {
+
+    private static final String KEY_GLITCH_RATE_MEDIAN = "glitch_rate_median_per_min";
+    private static final String KEY_GLITCH_RATE_P90 = "glitch_rate_p90_per_min";
+    private static final String KEY_GLITCH_RATE_MAX = "glitch_rate_max_per_min";
+    private static final String KEY_GLITCH_BURSTS = "glitch_bursts";
+    private static final String KEY_GLITCH_LARGEST_BURST = "glitch_largest_burst";
+    private static final String KEY_GLITCH_LONGEST_BURST_MS = "glitch_longest_burst_ms";
+    private static final String KEY_GLITCH_FREE_MAX_MS = "glitch_free_max_ms";
+    private static final String KEY_LATE_PLAYER_CALLBACKS = "late_player_callbacks_total";
+    private static final String KEY_LATE_RECORDER_CALLBACKS = "late_recorder_callbacks_total";
+
+    private static final long MS_PER_MINUTE = 60 * 1000;
+
+    /** Kind of event in the series, in the order of the CSV columns. */
+    enum EventType {
+        GLITCH,
+        LATE_PLAYER_CALLBACK,
+        LATE_RECORDER_CALLBACK
+    }
+
+    private final long mWindowMs;
+    private final long mBurstGapMs;
+    private final int mMinBurstSize;
+    private final PrintWriter mSeriesWriter;
+
+    // Current window
+    private long mWindowStart = 0;
+    private long mLastEvent = 0;
+    private final int[] mWindowCounts = new int[EventType.values().length];
+    private final long[] mTotalCounts = new long[EventType.values().length];
+    private final QuantileSketch mGlitchRate = new QuantileSketch();
+
+    // Bursts and glitch-free intervals
+    private long mLastGlitch = -1;
+    private long mBurstStart = -1;
+    private int mBurstSize = 0;
+    private int mNrOfBursts = 0;
+    private int mLargestBurst = 0;
+    private long mLongestBurstMs = 0;
+    private long mLongestGlitchFreeMs = 0;
+
+    private boolean mFinished = false;
+
+    /**
+     * @param windowMs size of the windows glitch rates are computed over
+     * @param burstGapMs max time between two glitches of the same burst
+     * @param minBurstSize min number of glitches in a burst
+     * @param seriesWriter if not null, per-window counts are written to it as CSV
+     */
+    public AudioGlitchTimeline(
+            long windowMs, long burstGapMs, int minBurstSize, PrintWriter seriesWriter) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("Window size must be > 0");
+        }
+        mWindowMs = windowMs;
+        mBurstGapMs = burstGapMs;
+        mMinBurstSize = minBurstSize;
+        mSeriesWriter = seriesWriter;
+        if (mSeriesWriter != null) {
+            mSeriesWriter.println(
+                    "Window Start (ms),Glitches,Late Player Callbacks,Late Recorder Callbacks");
+        }
+    }
+
+    /**
+     * Streams the glitch and buffer period logs, merged on time, into the timeline and closes it.
+     * Any of the files may be null.
+     *
+     * @param glitchMillis file with one glitch time in ms per line
+     * @param playerBufferPeriodTimes file with one late player callback per line, time in ms first
+     * @param recorderBufferPeriodTimes file with one late recorder callback per line, time in ms
+     *     first
+     * @param testDurationMs duration of the test, to close the last glitch-free interval
+     */
+    public void process(
+            File glitchMillis,
+            File playerBufferPeriodTimes,
+            File recorderBufferPeriodTimes,
+            long testDurationMs)
+            throws IOException {
+        final EventReader[] readers = new EventReader[EventType.values().length];
+        try {
+            readers[EventType.GLITCH.ordinal()] = EventReader.open(glitchMillis);
+            readers[EventType.LATE_PLAYER_CALLBACK.ordinal()] =
+                    EventReader.open(playerBufferPeriodTimes);
+            readers[EventType.LATE_RECORDER_CALLBACK.ordinal()] =
+                    EventReader.open(recorderBufferPeriodTimes);
+
+            // K-way merge; each reader only holds its next event
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < readers.length; i++) {
+                    if (readers[i] != null
+                            && readers[i].hasNext()
+                            && (next < 0 || readers[i].peek() < readers[next].peek())) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                addEvent(EventType.values()[next], readers[next].next());
+            }
+        } finally {
+            for (final EventReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+        finish(testDurationMs);
+    }
+
+    /** Adds one event. Events must be added in time order. */
+    public void addEvent(EventType type, long timeMs) {
+        if (mFinished) {
+            throw new IllegalStateException("Timeline is already finished");
+        }
+        advanceWindow(timeMs);
+        mLastEvent = Math.max(mLastEvent, timeMs);
+        mWindowCounts[type.ordinal()]++;
+        mTotalCounts[type.ordinal()]++;
+
+        if (type != EventType.GLITCH) {
+            return;
+        }
+
+        final long gap = timeMs - Math.max(0, mLastGlitch);
+        mLongestGlitchFreeMs = Math.max(mLongestGlitchFreeMs, gap);
+        if (mLastGlitch >= 0 && gap <= mBurstGapMs) {
+            mBurstSize++;
+        } else {
+            endBurst();
+            mBurstStart = timeMs;
+            mBurstSize = 1;
+        }
+        mLastGlitch = timeMs;
+    }
+
+    /** Closes the last window, burst and glitch-free interval. */
+    public void finish(long testDurationMs) {
+        if (mFinished) {
+            return;
+        }
+        // Events logged after the expected end of the test extend it
+        final long end = Math.max(testDurationMs, mLastEvent + 1);
+        // Close all windows up to the end of the test, including the partial last one
+        advanceWindow(end);
+        if (end > mWindowStart) {
+            closeWindow(end - mWindowStart);
+        }
+        endBurst();
+        mLongestGlitchFreeMs = Math.max(mLongestGlitchFreeMs, end - Math.max(0, mLastGlitch));
+        if (mSeriesWriter != null) {
+            mSeriesWriter.flush();
+        }
+        mFinished = true;
+    }
+
+    public long getTotalCount(EventType type) {
+        return mTotalCounts[type.ordinal()];
+    }
+
+    public int getNrOfBursts() {
+        return mNrOfBursts;
+    }
+
+    public int getLargestBurst() {
+        return mLargestBurst;
+    }
+
+    public long getLongestBurstMs() {
+        return mLongestBurstMs;
+    }
+
+    public long getLongestGlitchFreeMs() {
+        return mLongestGlitchFreeMs;
+    }
+
+    /** Returns glitch rate in glitches per minute, at quantile q over all windows */
+    public double getGlitchRate(double q) {
+        return mGlitchRate.getCount() == 0 ? 0 : mGlitchRate.getQuantile(q);
+    }
+
+    /** Returns the timeline metrics, keys prefixed with keyPrefix */
+    public Map<String, String> getMetrics(String keyPrefix) {
+        final Map<String, String> metrics = new HashMap<String, String>();
+        metrics.put(keyPrefix + KEY_GLITCH_RATE_MEDIAN, Double.toString(getGlitchRate(0.5)));
+        metrics.put(keyPrefix + KEY_GLITCH_RATE_P90, Double.toString(getGlitchRate(0.9)));
+        metrics.put(keyPrefix + KEY_GLITCH_RATE_MAX, Double.toString(getGlitchRate(1)));
+        metrics.put(keyPrefix + KEY_GLITCH_BURSTS, Integer.toString(mNrOfBursts));
+        metrics.put(keyPrefix + KEY_GLITCH_LARGEST_BURST, Integer.toString(mLargestBurst));
+        metrics.put(keyPrefix + KEY_GLITCH_LONGEST_BURST_MS, Long.toString(mLongestBurstMs));
+        metrics.put(keyPrefix + KEY_GLITCH_FREE_MAX_MS, Long.toString(mLongestGlitchFreeMs));
+        metrics.put(
+                keyPrefix + KEY_LATE_PLAYER_CALLBACKS,
+                Long.toString(getTotalCount(EventType.LATE_PLAYER_CALLBACK)));
+        metrics.put(
+                keyPrefix + KEY_LATE_RECORDER_CALLBACKS,
+                Long.toString(getTotalCount(EventType.LATE_RECORDER_CALLBACK)));
+        return metrics;
+    }
+
+    private void advanceWindow(long timeMs) {
+        while (timeMs >= mWindowStart + mWindowMs) {
+            closeWindow(mWindowMs);
+        }
+    }
+
+    private void closeWindow(long durationMs) {
+        final int glitches = mWindowCounts[EventType.GLITCH.ordinal()];
+        mGlitchRate.add(glitches * (double) MS_PER_MINUTE / durationMs);
+        if (mSeriesWriter != null) {
+            mSeriesWriter.print(mWindowStart);
+            for (final int count : mWindowCounts) {
+                mSeriesWriter.print(',');
+                mSeriesWriter.print(count);
+            }
+            mSeriesWriter.println();
+        }
+        for (int i = 0; i < mWindowCounts.length; i++) {
+            mWindowCounts[i] = 0;
+        }
+        mWindowStart += mWindowMs;
+    }
+
+    private void endBurst() {
+        if (mBurstSize >= mMinBurstSize && mBurstSize > 1) {
+            mNrOfBursts++;
+            mLargestBurst = Math.max(mLargestBurst, mBurstSize);
+            mLongestBurstMs = Math.max(mLongestBurstMs, mLastGlitch - mBurstStart);
+        }
+        mBurstSize = 0;
+    }
+
+    /** Reads event times, the first number on each line, one line ahead. */
+    private static class EventReader implements Closeable {
+        private final BufferedReader mReader;
+        private long mNext = -1;
+
+        private EventReader(BufferedReader reader) throws IOException {
+            mReader = reader;
+            readNext();
+        }
+
+        /** Returns a reader for the file, or null if there is no file */
+        static EventReader open(File f) throws IOException {
+            if (f == null || !f.exists()) {
+                return null;
+            }
+            return new EventReader(Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8));
+        }
+
+        boolean hasNext() {
+            return mNext >= 0;
+        }
+
+        long peek() {
+            return mNext;
+        }
+
+        long next() throws IOException {
+            final long next = mNext;
+            readNext();
+            return next;
+        }
+
+        private void readNext() throws IOException {
+            mNext = -1;
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                final long time = parseTime(line);
+                if (time >= 0) {
+                    mNext = time;
+                    return;
+                }
+            }
+        }
+
+        /** Returns the leading number of the line, or -1 for headers and empty lines */
+        private static long parseTime(String line) {
+            final String trimmed = line.trim();
+            int end = 0;
+            while (end < trimmed.length()
+                    && (Character.isDigit(trimmed.charAt(end)) || trimmed.charAt(end) == '.')) {
+                end++;
+            }
+            if (end == 0) {
+                return -1;
+            }
+            try {
+                return (long) Double.parseDouble(trimmed.substring(0, end));
+            } catch (final NumberFormatException e) {
+                CLog.w("Skipping line '%s'", line);
+                return -1;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+}
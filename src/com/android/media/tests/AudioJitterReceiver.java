@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.QuantileSketch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the AudioJitter tool output in a single streaming pass, as it is produced.
+ *
+ * <p>Summary lines ("key value") are mapped through a metrics key map. Per-callback lines hold a
+ * callback timestamp; the deltas between consecutive callbacks are fed into a {@link
+ * QuantileSketch} for histogram and percentiles, and into an online autocorrelation over the last
+ * {@link #MAX_AUTOCORRELATION_LAG} deltas to find spikes that repeat with a fixed period. Only
+ * constant state is kept, whatever the number of callbacks.
+ */
+public class AudioJitterReceiver extends MultiLineReceiver {
+
+    // Autocorrelation is computed for lags 1..MAX_AUTOCORRELATION_LAG callbacks
+    static final int MAX_AUTOCORRELATION_LAG = 256;
+    // A callback delta above this multiple of the running mean delta is a spike
+    private static final double SPIKE_FACTOR = 2.0;
+    // Autocorrelation above this at some lag means the spikes are periodic
+    private static final double PERIODIC_THRESHOLD = 0.3;
+    // Lags with at least this ratio of the highest autocorrelation are period candidates
+    private static final double FUNDAMENTAL_PERIOD_RATIO = 0.9;
+
+    private static final String KEY_CALLBACKS = "callback_count";
+    private static final String KEY_DELTA_MEAN = "callback_delta_mean_ms";
+    private static final String KEY_DELTA_STDDEV = "callback_delta_stddev_ms";
+    private static final String KEY_DELTA_MIN = "callback_delta_min_ms";
+    private static final String KEY_DELTA_MAX = "callback_delta_max_ms";
+    private static final String KEY_SPIKES = "callback_spike_count";
+    private static final String KEY_PERIODIC_SPIKES = "callback_periodic_spikes";
+    private static final String KEY_SPIKE_PERIOD_CALLBACKS = "callback_spike_period_callbacks";
+    private static final String KEY_SPIKE_PERIOD_MS = "callback_spike_period_ms";
+    private static final String KEY_SPIKE_AUTOCORRELATION = "callback_spike_autocorrelation";
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+    private static final String[] PERCENTILE_KEYS = {
+        "callback_delta_p50_ms", "callback_delta_p95_ms", "callback_delta_p99_ms"
+    };
+
+    private final Map<String, String> mMetricsKeyMap;
+    private final Pattern mCallbackPattern;
+    private final double mTimestampScale;
+    private final Map<String, String> mSummary = new HashMap<String, String>();
+    private boolean mHasOutput = false;
+
+    // Callback deltas
+    private final QuantileSketch mDeltas = new QuantileSketch();
+    private double mLastTimestamp = Double.NaN;
+    private long mNrOfSpikes = 0;
+
+    // Online autocorrelation: ring buffer of the last deltas and sum of lagged products
+    private final double[] mHistory = new double[MAX_AUTOCORRELATION_LAG];
+    private final double[] mLaggedProducts = new double[MAX_AUTOCORRELATION_LAG + 1];
+    private long mNrOfDeltas = 0;
+
+    /**
+     * @param metricsKeyMap summary keys printed by the tool, mapped to the reported metric keys
+     * @param callbackPattern pattern matching a per-callback line, group 1 being the timestamp
+     * @param timestampScale factor converting timestamps to ms, e.g. 1e-6 for ns timestamps
+     */
+    public AudioJitterReceiver(
+            Map<String, String> metricsKeyMap, Pattern callbackPattern, double timestampScale) {
+        mMetricsKeyMap = metricsKeyMap;
+        mCallbackPattern = callbackPattern;
+        mTimestampScale = timestampScale;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void processNewLines(String[] lines) {
+        for (String line : lines) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            mHasOutput = true;
+
+            final Matcher m = mCallbackPattern.matcher(line);
+            if (m.matches()) {
+                try {
+                    addCallback(Double.parseDouble(m.group(1)) * mTimestampScale);
+                } catch (final NumberFormatException e) {
+                    CLog.w("Skipping callback line '%s'", line);
+                }
+                continue;
+            }
+
+            line = line.trim().replaceAll(" +", " ");
+            final String[] tokens = line.split(" ");
+            if (tokens.length >= 2) {
+                final String metricName = tokens[0];
+                final String metricValue = tokens[1];
+                if (mMetricsKeyMap.containsKey(metricName)) {
+                    CLog.i(String.format("%s: %s", metricName, metricValue));
+                    mSummary.put(mMetricsKeyMap.get(metricName), metricValue);
+                }
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /** Returns true if the tool printed anything */
+    public boolean hasOutput() {
+        return mHasOutput;
+    }
+
+    /** Adds a callback timestamp, in ms. Timestamps must be in increasing order. */
+    void addCallback(double timestampMs) {
+        if (!Double.isNaN(mLastTimestamp)) {
+            addDelta(timestampMs - mLastTimestamp);
+        }
+        mLastTimestamp = timestampMs;
+    }
+
+    private void addDelta(double delta) {
+        // Compare with the mean before this delta, so a spike doesn't raise its own threshold
+        if (mDeltas.getCount() > 0 && delta > mDeltas.getMean() * SPIKE_FACTOR) {
+            mNrOfSpikes++;
+        }
+        mDeltas.add(delta);
+
+        mLaggedProducts[0] += delta * delta;
+        final int lags = (int) Math.min(mNrOfDeltas, MAX_AUTOCORRELATION_LAG);
+        for (int lag = 1; lag <= lags; lag++) {
+            final int i = (int) ((mNrOfDeltas - lag) % MAX_AUTOCORRELATION_LAG);
+            mLaggedProducts[lag] += delta * mHistory[i];
+        }
+        mHistory[(int) (mNrOfDeltas % MAX_AUTOCORRELATION_LAG)] = delta;
+        mNrOfDeltas++;
+    }
+
+    /**
+     * Returns the normalized autocorrelation of the deltas at lag, between -1 and 1, or 0 if there
+     * is not enough data.
+     */
+    double getAutocorrelation(int lag) {
+        final long n = mNrOfDeltas;
+        if (lag < 0 || lag > MAX_AUTOCORRELATION_LAG || n <= lag + 1) {
+            return 0;
+        }
+        final double mean = mDeltas.getMean();
+        final double variance = mLaggedProducts[0] / n - mean * mean;
+        if (variance <= 0) {
+            return 0;
+        }
+        return (mLaggedProducts[lag] / (n - lag) - mean * mean) / variance;
+    }
+
+    /**
+     * Returns the period, in callbacks, of repeating spikes, or -1 if there is none. A periodic
+     * signal also correlates at multiples of its period, so this is the smallest lag that comes
+     * close to the highest autocorrelation. Lag 1 is skipped, as two consecutive deltas are
+     * always correlated when a late callback is followed by an early one.
+     */
+    int getSpikePeriod() {
+        double bestValue = PERIODIC_THRESHOLD;
+        for (int lag = 2; lag <= MAX_AUTOCORRELATION_LAG; lag++) {
+            bestValue = Math.max(bestValue, getAutocorrelation(lag));
+        }
+        if (bestValue <= PERIODIC_THRESHOLD) {
+            return -1;
+        }
+        for (int lag = 2; lag <= MAX_AUTOCORRELATION_LAG; lag++) {
+            if (getAutocorrelation(lag) >= bestValue * FUNDAMENTAL_PERIOD_RATIO) {
+                return lag;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns summary metrics printed by the tool, plus callback jitter metrics */
+    public Map<String, String> getMetrics() {
+        final Map<String, String> metrics = new HashMap<String, String>(mSummary);
+        if (mDeltas.getCount() == 0) {
+            return metrics;
+        }
+
+        metrics.put(KEY_CALLBACKS, Long.toString(mDeltas.getCount() + 1));
+        metrics.put(KEY_DELTA_MEAN, Double.toString(mDeltas.getMean()));
+        metrics.put(KEY_DELTA_STDDEV, Double.toString(mDeltas.getStdDev()));
+        metrics.put(KEY_DELTA_MIN, Double.toString(mDeltas.getMin()));
+        metrics.put(KEY_DELTA_MAX, Double.toString(mDeltas.getMax()));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            metrics.put(PERCENTILE_KEYS[i], Double.toString(mDeltas.getQuantile(PERCENTILES[i])));
+        }
+        metrics.put(KEY_SPIKES, Long.toString(mNrOfSpikes));
+
+        final int period = getSpikePeriod();
+        metrics.put(KEY_PERIODIC_SPIKES, period > 0 ? "1" : "0");
+        if (period > 0) {
+            metrics.put(KEY_SPIKE_PERIOD_CALLBACKS, Integer.toString(period));
+            metrics.put(KEY_SPIKE_PERIOD_MS, Double.toString(period * mDeltas.getMean()));
+            metrics.put(KEY_SPIKE_AUTOCORRELATION, Double.toString(getAutocorrelation(period)));
+        }
+        return metrics;
+    }
+
+    /** Logs the histogram of callback deltas */
+    public void logHistogram() {
+        CLog.i("== Callback delta histogram ==");
+        for (final Map.Entry<Double, Long> bucket : mDeltas.getHistogram().entrySet()) {
+            CLog.i(String.format("%1$.3f ms => %2$d", bucket.getKey(), bucket.getValue()));
+        }
+    }
+}
@@ -16,8 +16,9 @@
 
 package com.android.media.tests;
 
-import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -30,6 +31,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * A harness that launches AudioJitter tool and reports result.
@@ -38,8 +40,30 @@ public class AudioJitterTest implements IDeviceTest, IRemoteTest {
 
     private static final String RUN_KEY = "audiojitter";
     private static final long TIMEOUT_MS = 5 * 60 * 1000; // 5 min
-    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_RETRIES = 3;
     private static final Map<String, String> METRICS_KEY_MAP = createMetricsKeyMap();
+    // A per-callback line: the callback index, then its timestamp
+    static final String DEFAULT_CALLBACK_TIMESTAMP_PATTERN = "^\\s*\\d+\\s+(\\d+(?:\\.\\d+)?)\\s*$";
+
+    @Option(
+        name = "jitter-args",
+        description = "Arguments for the jitter tool, e.g. to print per-callback timestamps"
+    )
+    private String mJitterArgs = "";
+
+    @Option(
+        name = "callback-timestamp-pattern",
+        description =
+                "Pattern of a per-callback line in the jitter tool output; group 1 is the"
+                        + " callback timestamp"
+    )
+    private String mCallbackTimestampPattern = DEFAULT_CALLBACK_TIMESTAMP_PATTERN;
+
+    @Option(
+        name = "callback-timestamp-scale",
+        description = "Factor converting callback timestamps to ms, e.g. 0.000001 for ns"
+    )
+    private double mCallbackTimestampScale = 1.0;
 
     private ITestDevice mDevice;
 
@@ -99,21 +123,34 @@ public class AudioJitterTest implements IDeviceTest, IRemoteTest {
         Map<String, String> metrics = new HashMap<String, String>();
         String errMsg = null;
 
-        // start jitter and wait for process to complete
-        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-        device.executeShellCommand(JITTER_BINARY_DEVICE_PATH, receiver,
-                TIMEOUT_MS, TimeUnit.MILLISECONDS, MAX_ATTEMPTS);
-        String resultStr = receiver.getOutput();
-
-        if (resultStr != null) {
-            // parse result
-            CLog.i("== Jitter result ==");
-            Map<String, String> jitterResult = parseResult(resultStr);
-            if (jitterResult == null) {
-                errMsg = "Failed to parse Jitter result.";
-            } else {
-                metrics = jitterResult;
+        // start jitter and parse the result while the process runs
+        CLog.i("== Jitter result ==");
+        String cmd = JITTER_BINARY_DEVICE_PATH;
+        if (mJitterArgs != null && !mJitterArgs.isEmpty()) {
+            cmd += " " + mJitterArgs;
+        }
+        AudioJitterReceiver receiver;
+        for (int retry = 0; ; retry++) {
+            // A new receiver for each attempt, as the callback timestamps restart with the tool
+            receiver =
+                    new AudioJitterReceiver(
+                            METRICS_KEY_MAP,
+                            Pattern.compile(mCallbackTimestampPattern),
+                            mCallbackTimestampScale);
+            try {
+                device.executeShellCommand(cmd, receiver, TIMEOUT_MS, TimeUnit.MILLISECONDS, 0);
+                break;
+            } catch (DeviceUnresponsiveException e) {
+                if (retry == MAX_RETRIES) {
+                    throw e;
+                }
+                CLog.w("Jitter attempt %d failed, retrying: %s", retry + 1, e.getMessage());
             }
+        }
+
+        if (receiver.hasOutput()) {
+            metrics = receiver.getMetrics();
+            receiver.logHistogram();
         } else {
             errMsg = "Jitter result not found.";
         }
@@ -129,28 +166,4 @@ public class AudioJitterTest implements IDeviceTest, IRemoteTest {
             listener.testRunEnded(durationMs, TfMetricProtoUtil.upgradeConvert(metrics));
         }
     }
-
-    /**
-     * Parse Jitter result.
-     *
-     * @param result Jitter result output
-     * @return a {@link HashMap} that contains metrics keys and results
-     */
-    private Map<String, String> parseResult(String result) {
-        Map<String, String> resultMap = new HashMap<String, String>();
-        String lines[] = result.split("\\r?\\n");
-        for (String line: lines) {
-            line = line.trim().replaceAll(" +", " ");
-            String[] tokens = line.split(" ");
-            if (tokens.length >= 2) {
-                String metricName = tokens[0];
-                String metricValue = tokens[1];
-                if (METRICS_KEY_MAP.containsKey(metricName)) {
-                    CLog.i(String.format("%s: %s", metricName, metricValue));
-                    resultMap.put(METRICS_KEY_MAP.get(metricName), metricValue);
-                }
-            }
-        }
-        return resultMap;
-    }
 }
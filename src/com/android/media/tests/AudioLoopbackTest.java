@@ -21,6 +21,7 @@ import com.android.ddmlib.NullOutputReceiver;
 import com.android.media.tests.AudioLoopbackImageAnalyzer.Result;
 import com.android.media.tests.AudioLoopbackTestHelper.LogFileType;
 import com.android.media.tests.AudioLoopbackTestHelper.ResultData;
+import com.android.media.tests.AudioLoopbackWaveAnalyzer.WaveResult;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
@@ -33,17 +34,28 @@ import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.Pair;
 import com.android.tradefed.util.RunUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -101,6 +113,49 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
     @Option(name = "baseline_latency", description = "")
     private float mBaselineLatency = 0f;
 
+    @Option(
+        name = "use-wave-analyzer",
+        description =
+                "Verify the waveform by analyzing the recorded wave file instead of the"
+                        + " screenshot of the graph"
+    )
+    private boolean mUseWaveAnalyzer = false;
+
+    @Option(
+        name = "pipelined-iterations",
+        description =
+                "Pull, parse and analyze the files of an iteration on background workers while"
+                        + " the next iteration runs on the device"
+    )
+    private boolean mPipelinedIterations = false;
+
+    @Option(
+        name = "pipeline-depth",
+        description = "Max number of iterations waiting for host side processing"
+    )
+    private int mPipelineDepth = 2;
+
+    @Option(
+        name = "pipeline-workers",
+        description = "Number of threads processing iterations on the host"
+    )
+    private int mPipelineWorkers = 2;
+
+    @Option(
+        name = "glitch-window-sec",
+        description = "Size of the windows glitch rates are computed over, in seconds"
+    )
+    private int mGlitchWindowSec = 60;
+
+    @Option(
+        name = "glitch-burst-gap-ms",
+        description = "Max time between two glitches of the same burst, in ms"
+    )
+    private long mGlitchBurstGapMs = 1000;
+
+    @Option(name = "glitch-burst-min-size", description = "Min number of glitches in a burst")
+    private int mGlitchBurstMinSize = 3;
+
     //===================================================================
     // CLASS VARIABLES
     //===================================================================
@@ -156,6 +211,12 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
     private static final String KEY_RESULT_SAMPLING_FREQUENCY_CONFIDENCE = "sampling_frequency";
     private static final String KEY_RESULT_PERIOD_CONFIDENCE = "period_confidence";
     private static final String KEY_RESULT_SAMPLING_BLOCK_SIZE = "block_size";
+    private static final String KEY_RESULT_WAVE_LATENCY_MS = "wave_latency_ms";
+    private static final String KEY_RESULT_WAVE_CONFIDENCE = "wave_latency_confidence";
+    private static final String KEY_RESULT_WAVE_PEAK_AMPLITUDE = "wave_peak_amplitude";
+    private static final String KEY_RESULT_WAVE_RMS = "wave_rms";
+    private static final String KEY_RESULT_WAVE_DURATION_MS = "wave_duration_ms";
+    private static final String KEY_RESULT_WAVE_DECAY_RATIO = "wave_decay_ratio";
 
     private static final String REDUCED_GLITCHES_TEST_DURATION = "600"; // 10 min
 
@@ -187,6 +248,9 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         LogFileType.LOGCAT
     };
 
+    /** Logs of the glitch test generated on the host, which are never on the device. */
+    private static final LogFileType[] GLITCH_TEST_HOST_LOGS = {LogFileType.GLITCH_TIMELINE};
+
     /**
      * The Audio Latency and Audio Glitch test deals with many various types of log files. To be
      * able to generate log files in a generic manner, this map is provided to get access to log
@@ -241,6 +305,10 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         l = new LogFileData("_heatMap.png", "heat_map", LogDataType.PNG);
         result.put(LogFileType.HEAT_MAP, l);
 
+        // Generated on the host from the glitch and buffer period logs
+        l = new LogFileData("_glitchTimeline.csv", "glitch_timeline", LogDataType.TEXT);
+        result.put(LogFileType.GLITCH_TIMELINE, l);
+
         l = new LogFileData(".txt", "logcat", LogDataType.TEXT);
         result.put(LogFileType.LOGCAT, l);
 
@@ -362,6 +430,11 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
 
     private void runLatencyTest(AudioLoopbackTestHelper loopbackTestHelper, int iterations)
             throws DeviceNotAvailableException, TestFailureException {
+        if (mPipelinedIterations && iterations > 1) {
+            runPipelinedLatencyTest(loopbackTestHelper, iterations);
+            return;
+        }
+
         for (int i = 0; i < iterations; i++) {
             CLog.i("---- Iteration " + i + " of " + (iterations - 1) + " -----");
 
@@ -370,7 +443,142 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
             Map<String, String> resultsDictionary = null;
             resultsDictionary = runTest(d, getSingleTestTimeoutValue());
             loopbackTestHelper.addTestData(d, resultsDictionary, true);
+            populateWaveResults(d, resultsDictionary);
+        }
+    }
+
+    /**
+     * Pipelined version of the latency test. Only starting the test and waiting for the result
+     * file is done on the calling thread; pulling, parsing and analyzing the files of iteration N
+     * is done on worker threads while iteration N+1 runs on the device.
+     *
+     * <p>At most "pipeline-depth" iterations wait for host side processing at the same time. The
+     * processed iterations are handed to the loopback helper in iteration order, so the collected
+     * results are the same as for the sequential test.
+     */
+    private void runPipelinedLatencyTest(
+            final AudioLoopbackTestHelper loopbackTestHelper, int iterations)
+            throws DeviceNotAvailableException, TestFailureException {
+        final int depth = Math.max(1, mPipelineDepth);
+        final int workers = Math.max(1, mPipelineWorkers);
+        final ExecutorService executor =
+                new ThreadPoolExecutor(
+                        workers,
+                        workers,
+                        0L,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(depth));
+        final Deque<Pair<ResultData, Future<Pair<Map<String, String>, String>>>> pending =
+                new ArrayDeque<>(depth);
+
+        try {
+            for (int i = 0; i < iterations; i++) {
+                CLog.i("---- Iteration " + i + " of " + (iterations - 1) + " (pipelined) -----");
+
+                final ResultData d = new ResultData();
+                d.setIteration(i);
+                startLoopback(d);
+                waitForResult(d, getSingleTestTimeoutValue(), false);
+
+                // Make room in the pipeline, oldest iteration first
+                while (pending.size() >= depth) {
+                    addPipelinedTestData(loopbackTestHelper, pending.removeFirst());
+                }
+
+                final Future<Pair<Map<String, String>, String>> future =
+                        executor.submit(
+                                new Callable<Pair<Map<String, String>, String>>() {
+                                    @Override
+                                    public Pair<Map<String, String>, String> call()
+                                            throws DeviceNotAvailableException {
+                                        return processPipelinedIteration(d, loopbackTestHelper);
+                                    }
+                                });
+                pending.addLast(new Pair<>(d, future));
+            }
+
+            while (!pending.isEmpty()) {
+                addPipelinedTestData(loopbackTestHelper, pending.removeFirst());
+            }
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                CLog.e(e);
+            }
+            // Iterations that never made it to the helper won't be cleaned up with it
+            for (final Pair<ResultData, Future<Pair<Map<String, String>, String>>> p : pending) {
+                deleteTempFiles(p.first);
+            }
+        }
+    }
+
+    /** Host side part of an iteration, run on a pipeline worker. */
+    private Pair<Map<String, String>, String> processPipelinedIteration(
+            ResultData data, AudioLoopbackTestHelper loopbackTestHelper)
+            throws DeviceNotAvailableException {
+        if (data.isTimedOut()) {
+            return new Pair<Map<String, String>, String>(null, null);
+        }
+
+        storeDeviceFilesOnHost(data);
+        final Pair<Map<String, String>, String> result = parseResult(data);
+        if (result.second == null) {
+            loopbackTestHelper.analyzeTestData(data);
+        }
+        return result;
+    }
+
+    private void addPipelinedTestData(
+            AudioLoopbackTestHelper loopbackTestHelper,
+            Pair<ResultData, Future<Pair<Map<String, String>, String>>> iteration)
+            throws DeviceNotAvailableException, TestFailureException {
+        final ResultData d = iteration.first;
+        final Pair<Map<String, String>, String> result;
+        try {
+            result = iteration.second.get();
+        } catch (final InterruptedException e) {
+            CLog.e(e);
+            deleteTempFiles(d);
+            mTestRunHelper.reportFailure(
+                    "Interrupted while processing iteration " + d.getIteration());
+            return;
+        } catch (final ExecutionException e) {
+            deleteTempFiles(d);
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            }
+            CLog.e(e);
+            mTestRunHelper.reportFailure("Error while processing iteration " + d.getIteration());
+            return;
+        }
+
+        loopbackTestHelper.addTestData(d, result.first, false);
+        if (result.second != null) {
+            mTestRunHelper.reportFailure(result.second);
+        }
+        populateWaveResults(d, result.first);
+    }
+
+    private void populateWaveResults(ResultData data, Map<String, String> results) {
+        if (results == null || !data.hasWaveResult()) {
+            return;
         }
+
+        final WaveResult wave = data.getWaveResult();
+        results.put(getMetricsKey(KEY_RESULT_WAVE_LATENCY_MS), Float.toString(wave.getLatency()));
+        results.put(
+                getMetricsKey(KEY_RESULT_WAVE_CONFIDENCE), Float.toString(wave.getConfidence()));
+        results.put(
+                getMetricsKey(KEY_RESULT_WAVE_PEAK_AMPLITUDE),
+                Float.toString(wave.getPeakAmplitude()));
+        results.put(getMetricsKey(KEY_RESULT_WAVE_RMS), Float.toString(wave.getRMS()));
+        results.put(
+                getMetricsKey(KEY_RESULT_WAVE_DURATION_MS),
+                Float.toString(wave.getEnvelopeDuration()));
+        results.put(
+                getMetricsKey(KEY_RESULT_WAVE_DECAY_RATIO), Float.toString(wave.getDecayRatio()));
     }
 
     /**
@@ -406,7 +614,7 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         mTestType = TESTTYPE_LATENCY_STR;
         do {
             nrOfSuccessfulTests = 0;
-            tempTestHelper = new AudioLoopbackTestHelper(LOOPBACK_ITERATIONS);
+            tempTestHelper = createLoopbackTestHelper(LOOPBACK_ITERATIONS);
             runLatencyTest(tempTestHelper, LOOPBACK_ITERATIONS);
             nrOfSuccessfulTests = tempTestHelper.processTestData();
             counter++;
@@ -441,7 +649,7 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         counter = 0;
         int glitches = -1;
         do {
-            tempTestHelper = new AudioLoopbackTestHelper(1);
+            tempTestHelper = createLoopbackTestHelper(1);
             runLatencyTest(tempTestHelper, 1);
             Map<String, String> resultsDictionary =
                     tempTestHelper.getResultDictionaryForIteration(0);
@@ -486,6 +694,46 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         }
 
         loopbackTestHelper.addTestData(d, resultsDictionary, false);
+        analyzeGlitchTimeline(d, resultsDictionary);
+    }
+
+    /**
+     * Streams the glitch and buffer period logs of a buffer test into a time-indexed series, adds
+     * windowed glitch rate, burst and glitch-free interval metrics to results, and keeps the
+     * per-window series as a log file.
+     */
+    private void analyzeGlitchTimeline(ResultData data, Map<String, String> results) {
+        if (results == null) {
+            return;
+        }
+
+        File series = null;
+        try {
+            series = FileUtil.createTempFile("glitch_timeline_", ".csv");
+            try (PrintWriter writer = new PrintWriter(series, StandardCharsets.UTF_8.name())) {
+                final AudioGlitchTimeline timeline =
+                        new AudioGlitchTimeline(
+                                TimeUnit.SECONDS.toMillis(mGlitchWindowSec),
+                                mGlitchBurstGapMs,
+                                mGlitchBurstMinSize,
+                                writer);
+                timeline.process(
+                        getHostFile(data, LogFileType.GLITCHES_MILLIS),
+                        getHostFile(data, LogFileType.PLAYER_BUFFER_PERIOD_TIMES),
+                        getHostFile(data, LogFileType.RECORDER_BUFFER_PERIOD_TIMES),
+                        TimeUnit.SECONDS.toMillis(Long.parseLong(mBufferTestDuration)));
+                results.putAll(timeline.getMetrics(mKeyPrefix));
+            }
+            data.setLogFile(LogFileType.GLITCH_TIMELINE, series.getAbsolutePath());
+        } catch (final IOException e) {
+            CLog.e(e);
+            FileUtil.deleteFile(series);
+        }
+    }
+
+    private File getHostFile(ResultData data, LogFileType log) {
+        final String filename = data.getLogFile(log);
+        return filename == null || filename.isEmpty() ? null : new File(filename);
     }
 
     private void initializeTest(ITestInvocationListener listener)
@@ -496,7 +744,7 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
 
         // Allocate helpers
         mTestRunHelper = new TestRunHelper(listener, testId);
-        mLoopbackTestHelper = new AudioLoopbackTestHelper(mIterations);
+        mLoopbackTestHelper = createLoopbackTestHelper(mIterations);
 
         getDevice().disableKeyguard();
         getDevice().waitForDeviceAvailable(DEVICE_SYNC_MS);
@@ -505,10 +753,33 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         CLog.i("syncing device time to host time");
     }
 
+    private AudioLoopbackTestHelper createLoopbackTestHelper(int iterations) {
+        return new AudioLoopbackTestHelper(
+                iterations, mUseWaveAnalyzer, Integer.parseInt(mSamplingFreq));
+    }
+
     private Map<String, String> runTest(ResultData data, final long timeout)
             throws DeviceNotAvailableException, TestFailureException {
+        startLoopback(data);
+        waitForResult(data, timeout, true);
+
+        // Check if test timed out. If so, don't fail the test, but return to upper logic.
+        // We accept certain number of individual test timeouts.
+        if (data.isTimedOut()) {
+            // No device result files retrieved, so no need to parse
+            return null;
+        }
+
+        final Pair<Map<String, String>, String> result = parseResult(data);
+        if (result.second != null) {
+            mTestRunHelper.reportFailure(result.second);
+        }
+        return result.first;
+    }
 
-        // start measurement and wait for result file
+    /** Starts the loopback app for the iteration held by data. */
+    private void startLoopback(ResultData data) throws DeviceNotAvailableException {
+        // start measurement
         final NullOutputReceiver receiver = new NullOutputReceiver();
 
         final String loopbackCmd = getTestCommand(data.getIteration());
@@ -524,22 +795,36 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
                 .executeShellCommand(
                         loopbackCmd, receiver, TIMEOUT_MS, TimeUnit.MILLISECONDS, MAX_ATTEMPTS);
 
-        final long loopbackStartTime = System.currentTimeMillis();
-        File loopbackReport = null;
-
         data.setDeviceTestStartTime(deviceTestStartTime);
+    }
+
+    /**
+     * Waits for the result file of the iteration held by data, then saves logcat for the
+     * iteration.
+     *
+     * @param data iteration to wait for
+     * @param timeout max time to wait for the result file
+     * @param pullFiles if true, the device files are pulled as soon as the result file shows up.
+     *     Otherwise they are left on the device for {@link #storeDeviceFilesOnHost(ResultData)}.
+     */
+    private void waitForResult(ResultData data, final long timeout, boolean pullFiles)
+            throws DeviceNotAvailableException {
+        final long loopbackStartTime = System.currentTimeMillis();
 
         // Try to retrieve result file from device.
         final String resultFilename = getDeviceFilename(LogFileType.RESULT, data.getIteration());
         do {
             RunUtil.getDefault().sleep(POLLING_INTERVAL_MS);
-            if (getDevice().doesFileExist(resultFilename)) {
+            if (!pullFiles) {
+                if (isDeviceFileNonEmpty(resultFilename)) {
+                    break;
+                }
+            } else if (getDevice().doesFileExist(resultFilename)) {
                 // Store device log files in tmp directory on Host and add to ResultData object
                 storeDeviceFilesOnHost(data);
                 final String reportFilename = data.getLogFile(LogFileType.RESULT);
                 if (reportFilename != null && !reportFilename.isEmpty()) {
-                    loopbackReport = new File(reportFilename);
-                    if (loopbackReport.length() > 0) {
+                    if (new File(reportFilename).length() > 0) {
                         break;
                     }
                 }
@@ -549,19 +834,35 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         } while (!data.hasLogFile(LogFileType.RESULT) && !data.isTimedOut());
 
         // Grab logcat for iteration
-        try (final InputStreamSource lc = getDevice().getLogcatSince(deviceTestStartTime)) {
+        try (final InputStreamSource lc =
+                getDevice().getLogcatSince(data.getDeviceTestStartTime())) {
             saveLogcatForIteration(data, lc, data.getIteration());
         }
+    }
 
-        // Check if test timed out. If so, don't fail the test, but return to upper logic.
-        // We accept certain number of individual test timeouts.
-        if (data.isTimedOut()) {
-            // No device result files retrieved, so no need to parse
-            return null;
-        }
+    private boolean isDeviceFileNonEmpty(String deviceFileName)
+            throws DeviceNotAvailableException {
+        final String output =
+                getDevice().executeShellCommand("[ -s " + deviceFileName + " ] && echo 1");
+        return output != null && "1".equals(output.trim());
+    }
 
-        // parse result
+    /**
+     * Parses the result file of an iteration and populates data with the results.
+     *
+     * @return results dictionary, and failure message if parsing or verification failed
+     */
+    private Pair<Map<String, String>, String> parseResult(ResultData data)
+            throws DeviceNotAvailableException {
         Map<String, String> loopbackResult = null;
+        String errMsg = null;
+
+        final String reportFilename = data.getLogFile(LogFileType.RESULT);
+        if (reportFilename == null || reportFilename.isEmpty()) {
+            errMsg = "Loopback result file not found.";
+            return new Pair<Map<String, String>, String>(null, errMsg);
+        }
+        final File loopbackReport = new File(reportFilename);
 
         try {
             loopbackResult =
@@ -573,21 +874,20 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
             final int adbAudioLevel =
                     AudioLevelUtility.extractDeviceHeadsetLevelFromAdbShell(getDevice());
             if (adbAudioLevel > -1 && data.getAudioLevel() != adbAudioLevel) {
-                final String errMsg =
+                errMsg =
                         String.format(
                                 "App Audio Level (%1$d) differs from ADB level (%2$d)",
                                 data.getAudioLevel(), adbAudioLevel);
-                mTestRunHelper.reportFailure(errMsg);
             }
         } catch (final IOException ioe) {
             CLog.e(ioe);
-            mTestRunHelper.reportFailure("I/O error while parsing Loopback result.");
+            errMsg = "I/O error while parsing Loopback result.";
         } catch (final NumberFormatException ne) {
             CLog.e(ne);
-            mTestRunHelper.reportFailure("Number format error parsing Loopback result.");
+            errMsg = "Number format error parsing Loopback result.";
         }
 
-        return loopbackResult;
+        return new Pair<Map<String, String>, String>(loopbackResult, errMsg);
     }
 
     private String getMetricsKey(final String key) {
@@ -655,6 +955,12 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
             for (final LogFileType logType : logFileTypes) {
                 uploadLog(listener, logType, d);
             }
+            // Only generated when the iteration produced results
+            for (final LogFileType logType : getHostLogFileTypesForCurrentTest()) {
+                if (d.getLogFile(logType) != null) {
+                    uploadLog(listener, logType, d);
+                }
+            }
         }
 
         return resultDictionary;
@@ -772,14 +1078,24 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
 
     private void deleteAllTempFiles() {
         for (final ResultData d : mLoopbackTestHelper.getAllTestData()) {
-            final LogFileType[] logFileTypes = getLogFileTypesForCurrentTest();
-            for (final LogFileType logType : logFileTypes) {
-                final String logFilename = d.getLogFile(logType);
-                if (logFilename == null || logFilename.isEmpty()) {
-                    CLog.e("Logfile not found for LogFileType=" + logType.name());
-                } else {
-                    FileUtil.deleteFile(new File(logFilename));
-                }
+            deleteTempFiles(d);
+        }
+    }
+
+    private void deleteTempFiles(ResultData d) {
+        final LogFileType[] logFileTypes = getLogFileTypesForCurrentTest();
+        for (final LogFileType logType : logFileTypes) {
+            final String logFilename = d.getLogFile(logType);
+            if (logFilename == null || logFilename.isEmpty()) {
+                CLog.e("Logfile not found for LogFileType=" + logType.name());
+            } else {
+                FileUtil.deleteFile(new File(logFilename));
+            }
+        }
+        for (final LogFileType logType : getHostLogFileTypesForCurrentTest()) {
+            final String logFilename = d.getLogFile(logType);
+            if (logFilename != null) {
+                FileUtil.deleteFile(new File(logFilename));
             }
         }
     }
@@ -800,6 +1116,13 @@ public class AudioLoopbackTest implements IDeviceTest, IRemoteTest {
         }
     }
 
+    private final LogFileType[] getHostLogFileTypesForCurrentTest() {
+        if (getTestType() == TestType.GLITCH) {
+            return GLITCH_TEST_HOST_LOGS;
+        }
+        return new LogFileType[0];
+    }
+
     private String getKeyPrefixForIteration(int iteration) {
         if (mIterations == 1) {
             // If only one run, skip the iteration number
@@ -16,10 +16,12 @@
 package com.android.media.tests;
 
 import com.android.media.tests.AudioLoopbackImageAnalyzer.Result;
+import com.android.media.tests.AudioLoopbackWaveAnalyzer.WaveResult;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.Pair;
+import com.android.tradefed.util.QuantileSketch;
 
 import com.google.common.io.Files;
 
@@ -44,14 +46,24 @@ public class AudioLoopbackTestHelper {
 
     private StatisticsData mLatencyStats = null;
     private StatisticsData mConfidenceStats = null;
+    // Distribution of good results, fed as results are added
+    private QuantileSketch mLatencySketch = new QuantileSketch();
+    private QuantileSketch mConfidenceSketch = new QuantileSketch();
     private ArrayList<ResultData> mAllResults;
     private ArrayList<ResultData> mGoodResults = new ArrayList<ResultData>();
     private ArrayList<ResultData> mBadResults = new ArrayList<ResultData>();
     private ArrayList<Map<String, String>> mResultDictionaries =
             new ArrayList<Map<String, String>>();
+    private boolean mUseWaveAnalyzer = false;
+    private int mSampleRate = DEFAULT_SAMPLE_RATE;
 
     // Controls acceptable tolerance in ms around median latency
     private static final double TOLERANCE = 2.0;
+    // Used by the wave analyzer for recordings without a wave header
+    private static final int DEFAULT_SAMPLE_RATE = 48000;
+    // Percentiles reported for stress tests, and their metric key suffix
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99_9"};
 
     //===================================================================
     // ENUMS
@@ -68,22 +80,48 @@ public class AudioLoopbackTestHelper {
         RECORDER_BUFFER_PERIOD_TIMES,
         GLITCHES_MILLIS,
         HEAT_MAP,
+        GLITCH_TIMELINE,
         LOGCAT
     }
 
     //===================================================================
     // INNER CLASSES
     //===================================================================
+    /**
+     * Min, max, mean, median and percentiles of a series of values. The min, max and mean are
+     * exact, while the median and percentiles are read from a {@link QuantileSketch}: they are
+     * approximations, within the relative accuracy of the sketch (0.5%) of the exact values.
+     */
     private class StatisticsData {
         double mMin = 0;
         double mMax = 0;
         double mMean = 0;
         double mMedian = 0;
+        double[] mPercentiles = new double[PERCENTILES.length];
+
+        StatisticsData() {}
+
+        StatisticsData(QuantileSketch sketch) {
+            mMin = sketch.getMin();
+            mMax = sketch.getMax();
+            mMean = sketch.getMean();
+            mMedian = sketch.getQuantile(0.5);
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                mPercentiles[i] = sketch.getQuantile(PERCENTILES[i]);
+            }
+        }
 
         @Override
         public String toString() {
-            return String.format(
-                    "min = %1$f, max = %2$f, median=%3$f, mean = %4$f", mMin, mMax, mMedian, mMean);
+            final StringBuilder sb = new StringBuilder(128);
+            sb.append(
+                    String.format(
+                            "min = %1$f, max = %2$f, median=%3$f, mean = %4$f",
+                            mMin, mMax, mMedian, mMean));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sb.append(String.format(", %1$s = %2$f", PERCENTILE_NAMES[i], mPercentiles[i]));
+            }
+            return sb.toString();
         }
     }
 
@@ -97,6 +135,7 @@ public class AudioLoopbackTestHelper {
         private boolean mIsTimedOut = false;
         private HashMap<LogFileType, String> mLogs = new HashMap<LogFileType, String>();
         private Result mImageAnalyzerResult = Result.UNKNOWN;
+        private WaveResult mWaveResult = null;
         private String mFailureReason = null;
 
         // Optional
@@ -213,6 +252,18 @@ public class AudioLoopbackTestHelper {
             this.mImageAnalyzerResult = imageAnalyzerResult;
         }
 
+        public WaveResult getWaveResult() {
+            return mWaveResult;
+        }
+
+        public void setWaveResult(WaveResult waveResult) {
+            this.mWaveResult = waveResult;
+        }
+
+        public boolean hasWaveResult() {
+            return mWaveResult != null;
+        }
+
         public String getFailureReason() {
             return mFailureReason;
         }
@@ -260,22 +311,6 @@ public class AudioLoopbackTestHelper {
             return !hasConfidence() && !hasLatency();
         }
 
-        public static Comparator<ResultData> latencyComparator =
-                new Comparator<ResultData>() {
-                    @Override
-                    public int compare(ResultData o1, ResultData o2) {
-                        return o1.mLatencyMs.compareTo(o2.mLatencyMs);
-                    }
-                };
-
-        public static Comparator<ResultData> confidenceComparator =
-                new Comparator<ResultData>() {
-                    @Override
-                    public int compare(ResultData o1, ResultData o2) {
-                        return o1.mLatencyConfidence.compareTo(o2.mLatencyConfidence);
-                    }
-                };
-
         public static Comparator<ResultData> iteratorComparator =
                 new Comparator<ResultData>() {
                     @Override
@@ -298,6 +333,7 @@ public class AudioLoopbackTestHelper {
             sb.append("deviceTestStartTime=").append(mDeviceTestStartTime).append(NL);
             sb.append("rms=").append(mRms).append(NL);
             sb.append("rmsAverage=").append(mRmsAverage).append(NL);
+            sb.append("waveResult=").append(mWaveResult).append(NL);
             sb.append("}").append(NL);
             return sb.toString();
         }
@@ -307,6 +343,18 @@ public class AudioLoopbackTestHelper {
         mAllResults = new ArrayList<ResultData>(iterations);
     }
 
+    /**
+     * @param iterations expected number of iterations
+     * @param useWaveAnalyzer verify the waveform from the recorded wave file instead of the
+     *     screenshot
+     * @param sampleRate sample rate of recordings that have no wave header
+     */
+    public AudioLoopbackTestHelper(int iterations, boolean useWaveAnalyzer, int sampleRate) {
+        this(iterations);
+        mUseWaveAnalyzer = useWaveAnalyzer;
+        mSampleRate = sampleRate;
+    }
+
     public void addTestData(ResultData data,
             Map<String,
             String> resultDictionary,
@@ -314,7 +362,30 @@ public class AudioLoopbackTestHelper {
         mResultDictionaries.add(data.getIteration(), resultDictionary);
         mAllResults.add(data);
 
-        if (useImageAnalyzer && data.hasLogFile(LogFileType.GRAPH)) {
+        if (useImageAnalyzer) {
+            analyzeTestData(data);
+        }
+
+        if (!data.hasBadResults()) {
+            mLatencySketch.add(data.getLatency());
+            mConfidenceSketch.add(data.getConfidence());
+        }
+    }
+
+    /**
+     * Verifies the waveform of a test run, from the recorded wave file or the screenshot of the
+     * graph. Only touches data, so it can be called from a worker thread before handing data to
+     * {@link #addTestData(ResultData, Map, boolean)}.
+     */
+    public void analyzeTestData(ResultData data) {
+        if (mUseWaveAnalyzer && data.hasLogFile(LogFileType.WAVE)) {
+            // Analyze recorded samples to see if wave form is within reason
+            final String wave = data.getLogFile(LogFileType.WAVE);
+            final WaveResult result = AudioLoopbackWaveAnalyzer.analyze(wave, mSampleRate);
+            data.setWaveResult(result);
+            data.setImageAnalyzerResult(result.getResult());
+            data.setFailureReason(result.getFailureReason());
+        } else if (data.hasLogFile(LogFileType.GRAPH)) {
             // Analyze captured screenshot to see if wave form is within reason
             final String screenshot = data.getLogFile(LogFileType.GRAPH);
             final Pair<Result, String> result = AudioLoopbackImageAnalyzer.analyzeImage(screenshot);
@@ -414,8 +485,6 @@ public class AudioLoopbackTestHelper {
 
         // Collect statistics about the test run
         int nrOfValidResults = 0;
-        double sumLatency = 0;
-        double sumConfidence = 0;
 
         final int totalNrOfTests = mAllResults.size();
         mLatencyStats = new StatisticsData();
@@ -429,11 +498,7 @@ public class AudioLoopbackTestHelper {
         for (final ResultData data : mAllResults) {
             if (data.hasBadResults()) {
                 mBadResults.add(data);
-                continue;
             }
-            // Get mean values
-            sumLatency += data.getLatency();
-            sumConfidence += data.getConfidence();
         }
 
         if (!mBadResults.isEmpty()) {
@@ -450,39 +515,10 @@ public class AudioLoopbackTestHelper {
 
         nrOfValidResults = mGoodResults.size();
 
-        // ---- LATENCY: Get Median, Min and Max values ----
-        Collections.sort(mGoodResults, ResultData.latencyComparator);
-
-        mLatencyStats.mMin = mGoodResults.get(0).mLatencyMs;
-        mLatencyStats.mMax = mGoodResults.get(nrOfValidResults - 1).mLatencyMs;
-        mLatencyStats.mMean = sumLatency / nrOfValidResults;
-        // Is array even or odd numbered
-        if (nrOfValidResults % 2 == 0) {
-            final int middle = nrOfValidResults / 2;
-            final float middleLeft = mGoodResults.get(middle - 1).mLatencyMs;
-            final float middleRight = mGoodResults.get(middle).mLatencyMs;
-            mLatencyStats.mMedian = (middleLeft + middleRight) / 2.0f;
-        } else {
-            // It's and odd numbered array, just grab the middle value
-            mLatencyStats.mMedian = mGoodResults.get(nrOfValidResults / 2).mLatencyMs;
-        }
-
-        // ---- CONFIDENCE: Get Median, Min and Max values ----
-        Collections.sort(mGoodResults, ResultData.confidenceComparator);
-
-        mConfidenceStats.mMin = mGoodResults.get(0).mLatencyConfidence;
-        mConfidenceStats.mMax = mGoodResults.get(nrOfValidResults - 1).mLatencyConfidence;
-        mConfidenceStats.mMean = sumConfidence / nrOfValidResults;
-        // Is array even or odd numbered
-        if (nrOfValidResults % 2 == 0) {
-            final int middle = nrOfValidResults / 2;
-            final float middleLeft = mGoodResults.get(middle - 1).mLatencyConfidence;
-            final float middleRight = mGoodResults.get(middle).mLatencyConfidence;
-            mConfidenceStats.mMedian = (middleLeft + middleRight) / 2.0f;
-        } else {
-            // It's and odd numbered array, just grab the middle value
-            mConfidenceStats.mMedian = mGoodResults.get(nrOfValidResults / 2).mLatencyConfidence;
-        }
+        // ---- LATENCY and CONFIDENCE: Get Median, Min, Max and percentiles ----
+        // The sketches were fed with the good results as they were added
+        mLatencyStats = new StatisticsData(mLatencySketch);
+        mConfidenceStats = new StatisticsData(mConfidenceSketch);
 
         for (final ResultData data : mGoodResults) {
             // Check if within Latency Tolerance
@@ -494,25 +530,14 @@ public class AudioLoopbackTestHelper {
             }
         }
 
-        // Create histogram
-        // Strategy: Create buckets based on whole ints, like 16 ms, 17 ms, 18 ms etc. Count how
-        // many tests fall into each bucket. Just cast the float to an int, no rounding up/down
-        // required.
-        final int[] histogram = new int[(int) mLatencyStats.mMax + 1];
-        for (final ResultData rd : mGoodResults) {
-            // Increase value in bucket
-            histogram[(int) (rd.mLatencyMs.floatValue())]++;
-        }
-
         CLog.i("========== VALID RESULTS ============================================");
         CLog.i(String.format("Valid tests: %1$d of %2$d", nrOfValidResults, totalNrOfTests));
         CLog.i("Latency: " + mLatencyStats.toString());
         CLog.i("Confidence: " + mConfidenceStats.toString());
         CLog.i("========== HISTOGRAM ================================================");
-        for (int i = 0; i < histogram.length; i++) {
-            if (histogram[i] > 0) {
-                CLog.i(String.format("%1$01d ms => %2$d", i, histogram[i]));
-            }
+        // Buckets are sized relative to the latency, so resolution is well below 1 ms
+        for (final Map.Entry<Double, Long> bucket : mLatencySketch.getHistogram().entrySet()) {
+            CLog.i(String.format("%1$.2f ms => %2$d", bucket.getKey(), bucket.getValue()));
         }
 
         // VERIFY the good results by running image analysis on the
@@ -540,7 +565,8 @@ public class AudioLoopbackTestHelper {
         writer.println(
                 "Device Time,Device Type,Build Id,Serial Number,Iteration,Latency,"
                         + "Confidence,Period Confidence,Block Size,Audio Level,RMS,RMS Average,"
-                        + "Image Analysis,Failure Reason");
+                        + "Image Analysis,Failure Reason,Wave Latency,Wave Confidence,"
+                        + "Wave Peak Amplitude,Wave Decay Ratio");
         for (final ResultData data : mAllResults) {
             final Instant instant = Instant.ofEpochSecond(data.mDeviceTestStartTime);
 
@@ -557,7 +583,12 @@ public class AudioLoopbackTestHelper {
             sb.append(data.hasRMS() ? data.getRMS() : "").append(SEPARATOR);
             sb.append(data.hasRMSAverage() ? data.getRMSAverage() : "").append(SEPARATOR);
             sb.append(data.getImageAnalyzerResult().name()).append(SEPARATOR);
-            sb.append(data.getFailureReason());
+            sb.append(data.getFailureReason()).append(SEPARATOR);
+            final WaveResult wave = data.getWaveResult();
+            sb.append(wave != null ? wave.getLatency() : "").append(SEPARATOR);
+            sb.append(wave != null ? wave.getConfidence() : "").append(SEPARATOR);
+            sb.append(wave != null ? wave.getPeakAmplitude() : "").append(SEPARATOR);
+            sb.append(wave != null ? wave.getDecayRatio() : "");
 
             writer.println(sb.toString());
 
@@ -629,5 +660,13 @@ public class AudioLoopbackTestHelper {
         metrics.put(resultKeyPrefix + "confidence_mean", Double.toString(mConfidenceStats.mMean));
         metrics.put(
                 resultKeyPrefix + "confidence_median", Double.toString(mConfidenceStats.mMedian));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            metrics.put(
+                    resultKeyPrefix + "latency_" + PERCENTILE_NAMES[i],
+                    Double.toString(mLatencyStats.mPercentiles[i]));
+            metrics.put(
+                    resultKeyPrefix + "confidence_" + PERCENTILE_NAMES[i],
+                    Double.toString(mConfidenceStats.mPercentiles[i]));
+        }
     }
 }
@@ -0,0 +1,638 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import com.android.media.tests.AudioLoopbackImageAnalyzer.Result;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that analyzes the wave file recorded by the AudioLoopback app. Instead of looking at a
+ * screenshot of the waveform (see {@link AudioLoopbackImageAnalyzer}), it works directly on the
+ * recorded samples:
+ *
+ * <ul>
+ *   <li>Latency is the lag of the strongest non-zero peak of the autocorrelation of the recording,
+ *       computed by FFT. The loopback app feeds the recorded signal back to the output, so the
+ *       pulse repeats once per round trip.
+ *   <li>The amplitude envelope (peak and RMS per window) and the decay of the pulse train are
+ *       computed in fixed size windows over a memory-mapped view of the file, so long buffer test
+ *       captures are never loaded into heap.
+ * </ul>
+ */
+public class AudioLoopbackWaveAnalyzer {
+
+    // Wave file format
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final int RIFF_HEADER_SIZE = 12;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int FMT_CHUNK_MIN_SIZE = 16;
+
+    // Files are mapped in regions of this size to stay below the 2GB mapping limit
+    private static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+
+    // Correlation is done on at most this many samples from the start of the recording
+    private static final int MAX_CORRELATION_SAMPLES = 1 << 16;
+    // Latency above this is not considered a valid round trip
+    private static final float MAX_LATENCY_MS = 1000.0f;
+
+    // Envelope window size
+    private static final float ENVELOPE_WINDOW_MS = 1.0f;
+    // Windows with a peak below this fraction of the overall peak are considered silence
+    private static final float ENVELOPE_SILENCE_THRESHOLD = 0.05f;
+
+    // Amplitude, in fraction of full scale. Audio level should make the wave hit 60% to 80%.
+    private static final float AMPLITUDE_MIN_VALUE = 0.3f;
+    private static final float AMPLITUDE_MAX_VALUE = 0.98f;
+
+    // Decay; same rules as the amplitude columns of the image analyzer
+    private static final int MIN_NUMBER_OF_PULSES = 4;
+    private static final int MAX_NUMBER_OF_PULSES = 32;
+    private static final float MAX_ALLOWED_PULSE_DECREASE = 0.42f;
+    private static final int MIN_NUMBER_OF_DECREASING_PULSES = 8;
+
+    // Correlation peak must be at least this high to be a valid latency measurement
+    private static final float MIN_CORRELATION_CONFIDENCE = 0.1f;
+
+    /** Holds the values computed from a wave file. */
+    public static class WaveResult {
+        private int mSampleRate;
+        private long mNrOfSamples;
+        private float mLatencyMs = -1;
+        private float mConfidence = 0;
+        private float mPeakAmplitude = 0;
+        private float mRms = 0;
+        private float mEnvelopeDurationMs = 0;
+        private int mNrOfPulses = 0;
+        private float mDecayRatio = 0;
+        private Result mResult = Result.UNKNOWN;
+        private String mFailureReason = "";
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        public long getNrOfSamples() {
+            return mNrOfSamples;
+        }
+
+        /** Returns latency in ms, or -1 if no latency could be computed */
+        public float getLatency() {
+            return mLatencyMs;
+        }
+
+        /** Returns normalized height of the autocorrelation peak, between 0 and 1 */
+        public float getConfidence() {
+            return mConfidence;
+        }
+
+        /** Returns peak amplitude in fraction of full scale */
+        public float getPeakAmplitude() {
+            return mPeakAmplitude;
+        }
+
+        /** Returns RMS of the whole recording in fraction of full scale */
+        public float getRMS() {
+            return mRms;
+        }
+
+        /** Returns time between the first and the last non-silent envelope window */
+        public float getEnvelopeDuration() {
+            return mEnvelopeDurationMs;
+        }
+
+        public int getNrOfPulses() {
+            return mNrOfPulses;
+        }
+
+        /** Returns average ratio between the peaks of two consecutive pulses */
+        public float getDecayRatio() {
+            return mDecayRatio;
+        }
+
+        public Result getResult() {
+            return mResult;
+        }
+
+        public String getFailureReason() {
+            return mFailureReason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "latency=%1$f, confidence=%2$f, peak=%3$f, rms=%4$f, duration=%5$f, "
+                            + "pulses=%6$d, decay=%7$f, result=%8$s",
+                    mLatencyMs,
+                    mConfidence,
+                    mPeakAmplitude,
+                    mRms,
+                    mEnvelopeDurationMs,
+                    mNrOfPulses,
+                    mDecayRatio,
+                    mResult.name());
+        }
+    }
+
+    /**
+     * Analyzes a wave file and returns all computed values.
+     *
+     * @param waveFile path to a WAV file, or a raw 16 bit mono little endian PCM file
+     * @param defaultSampleRate sample rate to use when the file has no WAV header
+     * @return computed values, with result status and failure reason
+     */
+    public static WaveResult analyze(String waveFile, int defaultSampleRate) {
+        final String FN_TAG = "AudioLoopbackWaveAnalyzer.analyze";
+        final WaveResult result = new WaveResult();
+
+        try (MappedSamples samples = MappedSamples.open(new File(waveFile), defaultSampleRate)) {
+            result.mSampleRate = samples.getSampleRate();
+            result.mNrOfSamples = samples.size();
+            CLog.i(
+                    "wave sampleRate=" + result.mSampleRate + ", samples=" + result.mNrOfSamples);
+
+            if (samples.size() == 0) {
+                return fail(result, String.format("%1$s: No samples found", FN_TAG));
+            }
+
+            computeEnvelope(samples, result);
+            if (result.mPeakAmplitude < AMPLITUDE_MIN_VALUE
+                    || result.mPeakAmplitude > AMPLITUDE_MAX_VALUE) {
+                final String fmt = "%1$s: Amplitude outside range, value=%2$f, range=(%3$f,%4$f)";
+                return fail(
+                        result,
+                        String.format(
+                                fmt,
+                                FN_TAG,
+                                result.mPeakAmplitude,
+                                AMPLITUDE_MIN_VALUE,
+                                AMPLITUDE_MAX_VALUE));
+            }
+
+            final int lag = computeLatency(samples, result);
+            if (lag <= 0 || result.mConfidence < MIN_CORRELATION_CONFIDENCE) {
+                final String fmt = "%1$s: No correlation peak found, confidence=%2$f";
+                return fail(result, String.format(fmt, FN_TAG, result.mConfidence));
+            }
+
+            final String decayError = computeDecay(samples, lag, result);
+            if (decayError != null) {
+                return fail(result, String.format("%1$s: %2$s", FN_TAG, decayError));
+            }
+        } catch (final IOException e) {
+            CLog.e(e);
+            return fail(result, String.format("%1$s: Error reading '%2$s'", FN_TAG, waveFile));
+        }
+
+        result.mResult = Result.PASS;
+        CLog.i("AudioLoopbackWaveAnalyzer: " + result.toString());
+        return result;
+    }
+
+    private static WaveResult fail(WaveResult result, String err) {
+        CLog.w(err);
+        result.mResult = Result.FAIL;
+        result.mFailureReason = err;
+        return result;
+    }
+
+    /**
+     * Streams over all samples in windows of ENVELOPE_WINDOW_MS and computes overall peak, RMS and
+     * the time between the first and the last window that is not silent.
+     */
+    private static void computeEnvelope(MappedSamples samples, WaveResult result) {
+        final int windowSize =
+                Math.max(1, (int) (samples.getSampleRate() * ENVELOPE_WINDOW_MS / 1000));
+        final long size = samples.size();
+
+        // First pass: peak and RMS
+        double sumOfSquares = 0;
+        float peak = 0;
+        for (long i = 0; i < size; i++) {
+            final float v = samples.get(i);
+            sumOfSquares += v * v;
+            final float abs = Math.abs(v);
+            if (abs > peak) {
+                peak = abs;
+            }
+        }
+        result.mPeakAmplitude = peak;
+        result.mRms = (float) Math.sqrt(sumOfSquares / size);
+
+        // Second pass: envelope windows above the silence threshold
+        final float threshold = peak * ENVELOPE_SILENCE_THRESHOLD;
+        long firstWindow = -1;
+        long lastWindow = -1;
+        long window = 0;
+        for (long start = 0; start < size; start += windowSize, window++) {
+            final float windowPeak = samples.peak(start, Math.min(size, start + windowSize));
+            if (windowPeak > threshold) {
+                if (firstWindow < 0) {
+                    firstWindow = window;
+                }
+                lastWindow = window;
+            }
+        }
+        if (firstWindow >= 0) {
+            result.mEnvelopeDurationMs = (lastWindow - firstWindow + 1) * ENVELOPE_WINDOW_MS;
+        }
+    }
+
+    /**
+     * Computes the autocorrelation of the start of the recording by FFT and returns the lag, in
+     * samples, of its highest peak outside the zero lag lobe. Latency and confidence are stored in
+     * result.
+     */
+    private static int computeLatency(MappedSamples samples, WaveResult result) {
+        final int n = (int) Math.min(samples.size(), MAX_CORRELATION_SAMPLES);
+        // Zero pad to at least 2n to get a linear, not circular, correlation
+        int fftSize = 1;
+        while (fftSize < 2 * n) {
+            fftSize <<= 1;
+        }
+
+        final double[] re = new double[fftSize];
+        final double[] im = new double[fftSize];
+        for (int i = 0; i < n; i++) {
+            re[i] = samples.get(i);
+        }
+
+        fft(re, im, false);
+        for (int i = 0; i < fftSize; i++) {
+            re[i] = re[i] * re[i] + im[i] * im[i];
+            im[i] = 0;
+        }
+        fft(re, im, true);
+
+        final double energy = re[0];
+        if (energy <= 0) {
+            return -1;
+        }
+
+        // Skip the zero lag lobe: everything up to the first lag where correlation goes negative
+        int start = 1;
+        while (start < n && re[start] > 0) {
+            start++;
+        }
+
+        final int maxLag =
+                Math.min(n - 1, (int) (samples.getSampleRate() * MAX_LATENCY_MS / 1000));
+        int bestLag = -1;
+        double best = 0;
+        for (int lag = start; lag <= maxLag; lag++) {
+            // Unbiased estimate, so peaks at larger lags aren't penalized by the shorter overlap
+            final double value = re[lag] * n / (n - lag);
+            if (value > best) {
+                best = value;
+                bestLag = lag;
+            }
+        }
+
+        if (bestLag > 0) {
+            result.mLatencyMs = bestLag * 1000.0f / samples.getSampleRate();
+            result.mConfidence = (float) Math.min(1.0, best / energy);
+        }
+        return bestLag;
+    }
+
+    /**
+     * Looks at the peak of each pulse in the recorded pulse train, one round trip (lag) apart, and
+     * verifies that the pulses decay nicely. Returns an error message, or null if the decay is
+     * fine.
+     */
+    private static String computeDecay(MappedSamples samples, int lag, WaveResult result) {
+        final long size = samples.size();
+        final float threshold = result.mPeakAmplitude * ENVELOPE_SILENCE_THRESHOLD;
+
+        // Locate the first pulse
+        long first = -1;
+        for (long i = 0; i < size; i++) {
+            if (Math.abs(samples.get(i)) > threshold) {
+                first = i;
+                break;
+            }
+        }
+        if (first < 0) {
+            return "No pulse found";
+        }
+
+        // Peak of each pulse, searched in a window of one lag starting at the pulse
+        final float[] pulses = new float[MAX_NUMBER_OF_PULSES];
+        int nrOfPulses = 0;
+        for (long start = first; start < size && nrOfPulses < MAX_NUMBER_OF_PULSES; start += lag) {
+            final float peak = samples.peak(start, Math.min(size, start + lag));
+            if (peak <= threshold) {
+                break;
+            }
+            pulses[nrOfPulses++] = peak;
+        }
+        result.mNrOfPulses = nrOfPulses;
+
+        if (nrOfPulses < MIN_NUMBER_OF_PULSES) {
+            return String.format("Not enough pulses, value=%1$d", nrOfPulses);
+        }
+
+        double sumOfRatios = 0;
+        for (int i = 1; i < nrOfPulses; i++) {
+            final float previous = pulses[i - 1];
+            final float current = pulses[i];
+            sumOfRatios += current / previous;
+            if (i >= MIN_NUMBER_OF_DECREASING_PULSES) {
+                continue;
+            }
+            if (current < previous * MAX_ALLOWED_PULSE_DECREASE) {
+                return String.format(
+                        "Pulse peaks declined too much, old=%1$f, new=%2$f, pulse=%3$d",
+                        previous, current, i);
+            }
+            if (current >= previous) {
+                return String.format(
+                        "Pulse peaks don't decline, old=%1$f, new=%2$f, pulse=%3$d",
+                        previous, current, i);
+            }
+        }
+        result.mDecayRatio = (float) (sumOfRatios / (nrOfPulses - 1));
+        return null;
+    }
+
+    /**
+     * In-place iterative radix-2 FFT. Length of re and im must be the same power of two. The
+     * inverse transform is scaled by 1/n.
+     */
+    static void fft(double[] re, double[] im, boolean inverse) {
+        final int n = re.length;
+
+        // Bit reversal permutation
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        for (int len = 2; len <= n; len <<= 1) {
+            final double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+            final double wRe = Math.cos(angle);
+            final double wIm = Math.sin(angle);
+            final int half = len / 2;
+            for (int i = 0; i < n; i += len) {
+                double curRe = 1;
+                double curIm = 0;
+                for (int k = 0; k < half; k++) {
+                    final int a = i + k;
+                    final int b = a + half;
+                    final double tRe = re[b] * curRe - im[b] * curIm;
+                    final double tIm = re[b] * curIm + im[b] * curRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    final double nextRe = curRe * wRe - curIm * wIm;
+                    curIm = curRe * wIm + curIm * wRe;
+                    curRe = nextRe;
+                }
+            }
+        }
+
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+
+    /**
+     * Read-only view of the first channel of a wave file, mapped into memory one region at a time.
+     * Samples are returned as floats in the range [-1, 1].
+     */
+    static class MappedSamples implements AutoCloseable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final long mDataOffset;
+        private final long mNrOfSamples;
+        private final int mSampleRate;
+        private final int mFrameSize;
+        private final int mBytesPerSample;
+        private final boolean mIsFloat;
+        private final long mRegionSize;
+
+        private MappedByteBuffer mRegion = null;
+        private long mRegionStart = -1;
+
+        private MappedSamples(
+                RandomAccessFile file,
+                long dataOffset,
+                long dataSize,
+                int sampleRate,
+                int channels,
+                int bytesPerSample,
+                boolean isFloat) {
+            mFile = file;
+            mChannel = file.getChannel();
+            mDataOffset = dataOffset;
+            mSampleRate = sampleRate;
+            mBytesPerSample = bytesPerSample;
+            mFrameSize = channels * bytesPerSample;
+            mNrOfSamples = dataSize / mFrameSize;
+            mIsFloat = isFloat;
+            // Keep regions aligned on frames so a sample never straddles two regions
+            mRegionSize = MAPPED_REGION_SIZE - (MAPPED_REGION_SIZE % mFrameSize);
+        }
+
+        /** Opens a WAV file, or a raw 16 bit mono PCM file if there is no RIFF header. */
+        static MappedSamples open(File f, int defaultSampleRate) throws IOException {
+            final RandomAccessFile file = new RandomAccessFile(f, "r");
+            try {
+                final long length = file.length();
+                final byte[] header = new byte[RIFF_HEADER_SIZE];
+                if (length < RIFF_HEADER_SIZE
+                        || file.read(header) != RIFF_HEADER_SIZE
+                        || !"RIFF".equals(new String(header, 0, 4, StandardCharsets.US_ASCII))
+                        || !"WAVE".equals(new String(header, 8, 4, StandardCharsets.US_ASCII))) {
+                    checkFormat(WAVE_FORMAT_PCM, 1, defaultSampleRate, 16);
+                    return new MappedSamples(file, 0, length, defaultSampleRate, 1, 2, false);
+                }
+
+                int format = -1;
+                int channels = 1;
+                int sampleRate = defaultSampleRate;
+                int bitsPerSample = 16;
+                long offset = RIFF_HEADER_SIZE;
+                final byte[] chunkHeader = new byte[CHUNK_HEADER_SIZE];
+                while (offset + CHUNK_HEADER_SIZE <= length) {
+                    file.seek(offset);
+                    file.readFully(chunkHeader);
+                    final String id = new String(chunkHeader, 0, 4, StandardCharsets.US_ASCII);
+                    final long chunkSize = readIntLE(chunkHeader, 4) & 0xFFFFFFFFL;
+                    final long chunkData = offset + CHUNK_HEADER_SIZE;
+                    if ("fmt ".equals(id)) {
+                        if (chunkSize < FMT_CHUNK_MIN_SIZE) {
+                            throw new IOException("Truncated fmt chunk in " + f.getName());
+                        }
+                        final byte[] fmt = new byte[FMT_CHUNK_MIN_SIZE];
+                        file.readFully(fmt);
+                        format = readShortLE(fmt, 0);
+                        channels = readShortLE(fmt, 2);
+                        sampleRate = readIntLE(fmt, 4);
+                        bitsPerSample = readShortLE(fmt, 14);
+                    } else if ("data".equals(id)) {
+                        if (format == WAVE_FORMAT_EXTENSIBLE) {
+                            // Sub format is not parsed; 32 bit extensible files are float
+                            format = bitsPerSample == 32 ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM;
+                        }
+                        checkFormat(format, channels, sampleRate, bitsPerSample);
+                        final long dataSize = Math.min(chunkSize, length - chunkData);
+                        return new MappedSamples(
+                                file,
+                                chunkData,
+                                dataSize,
+                                sampleRate,
+                                channels,
+                                bitsPerSample / 8,
+                                format == WAVE_FORMAT_IEEE_FLOAT);
+                    }
+                    // Chunks are word aligned
+                    offset = chunkData + chunkSize + (chunkSize & 1);
+                }
+                throw new IOException("No data chunk found in " + f.getName());
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        /** Rejects the headers the samples can't be read with, like a corrupt fmt chunk. */
+        private static void checkFormat(int format, int channels, int sampleRate, int bitsPerSample)
+                throws IOException {
+            if (format != WAVE_FORMAT_PCM && format != WAVE_FORMAT_IEEE_FLOAT) {
+                throw new IOException("Unsupported wave format " + format);
+            }
+            if (channels <= 0 || sampleRate <= 0) {
+                throw new IOException(
+                        String.format(
+                                "Invalid wave header, channels=%d, sampleRate=%d",
+                                channels, sampleRate));
+            }
+            final boolean supported =
+                    format == WAVE_FORMAT_IEEE_FLOAT
+                            ? bitsPerSample == 32
+                            : bitsPerSample % 8 == 0 && bitsPerSample >= 8 && bitsPerSample <= 32;
+            if (!supported) {
+                throw new IOException(
+                        String.format(
+                                "Unsupported sample size, format=%d, bitsPerSample=%d",
+                                format, bitsPerSample));
+            }
+        }
+
+        int getSampleRate() {
+            return mSampleRate;
+        }
+
+        long size() {
+            return mNrOfSamples;
+        }
+
+        /** Returns sample at index, first channel only. */
+        float get(long index) {
+            final long position = index * mFrameSize;
+            if (mRegion == null
+                    || position < mRegionStart
+                    || position >= mRegionStart + mRegion.capacity()) {
+                map(position - (position % mRegionSize));
+            }
+            final int i = (int) (position - mRegionStart);
+            switch (mBytesPerSample) {
+                case 1:
+                    // 8 bit wave data is unsigned
+                    return ((mRegion.get(i) & 0xFF) - 128) / 128.0f;
+                case 2:
+                    return mRegion.getShort(i) / 32768.0f;
+                case 3:
+                    final int v24 =
+                            (mRegion.get(i) & 0xFF)
+                                    | (mRegion.get(i + 1) & 0xFF) << 8
+                                    | mRegion.get(i + 2) << 16;
+                    return v24 / 8388608.0f;
+                case 4:
+                    return mIsFloat ? mRegion.getFloat(i) : mRegion.getInt(i) / 2147483648.0f;
+                default:
+                    throw new IllegalStateException("Unsupported sample size " + mBytesPerSample);
+            }
+        }
+
+        /** Returns max absolute sample value in [from, to). */
+        float peak(long from, long to) {
+            float peak = 0;
+            for (long i = from; i < to; i++) {
+                final float abs = Math.abs(get(i));
+                if (abs > peak) {
+                    peak = abs;
+                }
+            }
+            return peak;
+        }
+
+        private void map(long regionStart) {
+            final long dataSize = mNrOfSamples * mFrameSize;
+            final long regionSize = Math.min(mRegionSize, dataSize - regionStart);
+            try {
+                mRegion = mChannel.map(MapMode.READ_ONLY, mDataOffset + regionStart, regionSize);
+            } catch (final IOException e) {
+                throw new RuntimeException("Error mapping wave data", e);
+            }
+            mRegion.order(ByteOrder.LITTLE_ENDIAN);
+            mRegionStart = regionStart;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mRegion = null;
+            mFile.close();
+        }
+
+        private static int readShortLE(byte[] b, int offset) {
+            return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8;
+        }
+
+        private static int readIntLE(byte[] b, int offset) {
+            return (b[offset] & 0xFF)
+                    | (b[offset + 1] & 0xFF) << 8
+                    | (b[offset + 2] & 0xFF) << 16
+                    | (b[offset + 3] & 0xFF) << 24;
+        }
+    }
+}
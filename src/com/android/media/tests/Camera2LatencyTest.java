@@ -84,6 +84,7 @@ public class Camera2LatencyTest extends CameraTestBase {
                 if (matcher.matches()) {
                     String keyName = String.format("%s_%s", testName, metric.getKey());
                     parsed.put(keyName, matcher.group("latency"));
+                    addIterationValues(keyName, matcher.group("values"));
                 } else {
                     CLog.w(String.format("Stats not in correct format: %s", metric.getValue()));
                 }
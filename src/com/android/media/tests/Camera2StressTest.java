@@ -28,10 +28,10 @@ import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -49,6 +49,11 @@ public class Camera2StressTest extends CameraTestBase {
     private static final String FAILURE_SCREENSHOT_DIR = "/sdcard/camera-screenshot/";
     private static final String KEY_NUM_ATTEMPTS = "numAttempts";
     private static final String KEY_ITERATION = "iteration";
+    private static final PatternLineProcessor RESULT_PATTERNS = new PatternLineProcessor();
+
+    static {
+        RESULT_PATTERNS.put("keyValuePairs", "[^=]+=.*");
+    }
 
     public Camera2StressTest() {
         setTestPackage("com.google.android.camera");
@@ -142,33 +147,31 @@ public class Camera2StressTest extends CameraTestBase {
 
         // Return null if failed to parse the result file or the test didn't even start.
         private void parseLog(String testName, Map<String, String> testMetrics) {
+            File outputFile = null;
             try {
-                File outputFile = FileUtil.createTempFile("stress", ".txt");
-                getDevice().pullFile(RESULT_FILE, outputFile);
-                if (outputFile == null) {
+                outputFile = FileUtil.createTempFile("stress", ".txt");
+                if (!getDevice().pullFile(RESULT_FILE, outputFile)) {
                     throw new DeviceNotAvailableException(String.format("Failed to pull the result"
                             + "file: %s", RESULT_FILE), getDevice().getSerialNumber());
                 }
-                BufferedReader reader = new BufferedReader(new FileReader(outputFile));
-                String line;
                 Map<String, String> resultMap = new HashMap<>();
 
                 // Parse results from log file that contain the key-value pairs.
                 // eg. "numAttempts=10|iteration=9"
-                try {
-                    while ((line = reader.readLine()) != null) {
-                        String[] pairs = line.split("\\|");
-                        for (String pair : pairs) {
-                            String[] keyValue = pair.split("=");
+                try (InputStream dataStream = new FileInputStream(outputFile)) {
+                    RESULT_PATTERNS.process(dataStream, (key, captures, line) -> {
+                        for (String pair : line.split("\\|")) {
                             // Each should be a pair of key and value.
-                            String key = keyValue[0].trim();
-                            String value = keyValue[1].trim();
-                            resultMap.put(key, value);
-                            CLog.v("%s: %s", key, value);
+                            int separator = pair.indexOf('=');
+                            if (separator < 0) {
+                                continue;
+                            }
+                            String name = pair.substring(0, separator).trim();
+                            String value = pair.substring(separator + 1).trim();
+                            resultMap.put(name, value);
+                            CLog.v("%s: %s", name, value);
                         }
-                    }
-                } finally {
-                    reader.close();
+                    });
                 }
 
                 // Fail if a stress test doesn't start.
@@ -187,6 +190,8 @@ public class Camera2StressTest extends CameraTestBase {
             } catch (NumberFormatException e) {
                 CLog.w("Could not find the key in file: %s, error:", KEY_NUM_ATTEMPTS);
                 CLog.e(e);
+            } finally {
+                FileUtil.deleteFile(outputFile);
             }
         }
     }
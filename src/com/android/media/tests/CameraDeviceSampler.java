@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the memory of the camera processes and the threads of the camera app while a camera test
+ * runs.
+ *
+ * <p>Each tick runs a single shell script on the device which reads the uptime and whichever probes
+ * are due, so all series share the same uptime timestamp. The pid of the camera app is cached
+ * between ticks, and only looked up again by the script when the process restarted. Each series is
+ * appended to a CSV by a {@link TimeSeriesWriter}, which also summarizes it.
+ */
+public class CameraDeviceSampler {
+
+    private static final long SHELL_TIMEOUT_MS = 60 * 1000; // 1 min
+    private static final int SHELL_MAX_ATTEMPTS = 3;
+    // A tick runs the shell command once, plus once per retry
+    private static final long TICK_TIMEOUT_MS = SHELL_TIMEOUT_MS * (SHELL_MAX_ATTEMPTS + 1);
+
+    private static final String TIME_COLUMN = "uptime";
+    private static final String[] MEMINFO_COLUMNS = {
+        "pssCameraDaemon", "pssCameraApp", "ramTotal", "ramFree", "ramUsed"
+    };
+    private static final String[] THREADS_COLUMNS = {"cameraPid", "threads"};
+
+    // Markers of the sections in the output of the script
+    private static final String SECTION_UPTIME = "@@uptime";
+    private static final String SECTION_MEMINFO = "@@meminfo";
+    private static final String SECTION_PID = "@@pid";
+    private static final String SECTION_THREADS = "@@threads";
+
+    /** The probes read at one tick. */
+    static class Sample {
+        /** Uptime, in seconds as printed by /proc/uptime */
+        String mUptime = null;
+        String mPssCameraDaemon = null;
+        String mPssCameraApp = null;
+        String mRamTotal = null;
+        String mRamFree = null;
+        String mRamUsed = null;
+        String mCameraPid = null;
+        /** Output of ps -t for the camera app, {@code null} if it is not running */
+        String mThreads = null;
+
+        /** Returns the uptime in ms, or {@code null} if it is missing. */
+        Long getUptimeMs() {
+            try {
+                return mUptime == null ? null : (long) (Double.parseDouble(mUptime) * 1000);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /** Returns the number of threads of the camera app, or {@code null} if not running. */
+        Long getThreadCount() {
+            if (mThreads == null) {
+                return null;
+            }
+            // One line per thread, after the header
+            return (long) mThreads.split("\n").length - 1;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final long mMeminfoIntervalMs;
+    private final long mThreadsIntervalMs;
+    private final long mPeriodMs;
+
+    private ScheduledExecutorService mExecutor = null;
+    private TimeSeriesWriter mMeminfoSeries = null;
+    private TimeSeriesWriter mThreadsSeries = null;
+    // PSS trends in KB per hour of uptime, updated as samples arrive
+    private TheilSenEstimator mPssCameraDaemonTrend = null;
+    private TheilSenEstimator mPssCameraAppTrend = null;
+    private String mCameraPid = null;
+    private long mLastMeminfoMs = 0;
+    private long mLastThreadsMs = 0;
+
+    /**
+     * @param device the device to sample
+     * @param meminfoIntervalMs interval between two meminfo samples, or 0 to disable them
+     * @param threadsIntervalMs interval between two thread samples, or 0 to disable them
+     */
+    public CameraDeviceSampler(ITestDevice device, long meminfoIntervalMs, long threadsIntervalMs) {
+        mDevice = device;
+        mMeminfoIntervalMs = meminfoIntervalMs;
+        mThreadsIntervalMs = threadsIntervalMs;
+        if (meminfoIntervalMs > 0 && threadsIntervalMs > 0) {
+            mPeriodMs = Math.min(meminfoIntervalMs, threadsIntervalMs);
+        } else {
+            mPeriodMs = Math.max(meminfoIntervalMs, threadsIntervalMs);
+        }
+    }
+
+    /**
+     * Start sampling for a test, stopping the previous one if needed. The series of the previous
+     * test are replaced, the caller is responsible for their files.
+     */
+    public synchronized void start(String testName) {
+        stop();
+        mMeminfoSeries = null;
+        mThreadsSeries = null;
+        mPssCameraDaemonTrend = new TheilSenEstimator();
+        mPssCameraAppTrend = new TheilSenEstimator();
+        try {
+            if (mMeminfoIntervalMs > 0) {
+                mMeminfoSeries =
+                        new TimeSeriesWriter(
+                                FileUtil.createTempFile(
+                                        String.format("meminfo_%s", testName), ".csv"),
+                                TIME_COLUMN,
+                                MEMINFO_COLUMNS);
+            }
+            if (mThreadsIntervalMs > 0) {
+                mThreadsSeries =
+                        new TimeSeriesWriter(
+                                FileUtil.createTempFile(String.format("ps_%s", testName), ".csv"),
+                                TIME_COLUMN,
+                                THREADS_COLUMNS);
+            }
+        } catch (IOException e) {
+            CLog.w("Stop sampling camera processes since the log files can't be created");
+            CLog.e(e);
+            closeSeries();
+            return;
+        }
+        mLastMeminfoMs = 0;
+        mLastThreadsMs = 0;
+        mExecutor =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "CameraDeviceSampler");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        mExecutor.scheduleAtFixedRate(this::tick, 0, mPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop sampling, waiting for the current tick to finish, and close the series. */
+    public synchronized void stop() {
+        if (mExecutor == null) {
+            return;
+        }
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(TICK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                mExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            mExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        mExecutor = null;
+        closeSeries();
+    }
+
+    /** Returns the meminfo CSV of the last test, or {@code null} if meminfo is not sampled. */
+    public File getMeminfoFile() {
+        return mMeminfoSeries == null ? null : mMeminfoSeries.getFile();
+    }
+
+    /** Returns the thread count CSV of the last test, or {@code null} if not sampled. */
+    public File getThreadsFile() {
+        return mThreadsSeries == null ? null : mThreadsSeries.getFile();
+    }
+
+    /**
+     * Returns the min, max and slope per minute of the series of the last test, as {@code
+     * meminfo_<column>_<stat>} and {@code ps_<column>_<stat>}.
+     */
+    public Map<String, String> getSummary() {
+        Map<String, String> summary = new LinkedHashMap<>();
+        if (mMeminfoSeries != null) {
+            summary.putAll(mMeminfoSeries.getSummary("meminfo"));
+        }
+        if (mThreadsSeries != null) {
+            summary.putAll(mThreadsSeries.getSummary("ps"));
+        }
+        return summary;
+    }
+
+    /**
+     * Returns the trend of the PSS of each camera process during the last test, in KB per hour of
+     * uptime, keyed on the meminfo column of the process.
+     */
+    public Map<String, TheilSenEstimator> getPssTrends() {
+        Map<String, TheilSenEstimator> trends = new LinkedHashMap<>();
+        if (mMeminfoSeries != null) {
+            trends.put(MEMINFO_COLUMNS[0], mPssCameraDaemonTrend);
+            trends.put(MEMINFO_COLUMNS[1], mPssCameraAppTrend);
+        }
+        return trends;
+    }
+
+    private void closeSeries() {
+        StreamUtil.close(mMeminfoSeries);
+        StreamUtil.close(mThreadsSeries);
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        // Half a period of slack, so that a probe isn't pushed to the next tick by jitter
+        long slack = mPeriodMs / 2;
+        boolean meminfo =
+                mMeminfoIntervalMs > 0 && now - mLastMeminfoMs >= mMeminfoIntervalMs - slack;
+        boolean threads =
+                mThreadsIntervalMs > 0 && now - mLastThreadsMs >= mThreadsIntervalMs - slack;
+        if (!meminfo && !threads) {
+            return;
+        }
+        try {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            mDevice.executeShellCommand(
+                    buildScript(meminfo, threads, mCameraPid),
+                    receiver,
+                    SHELL_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS,
+                    SHELL_MAX_ATTEMPTS);
+            Sample sample = parse(receiver.getOutput());
+            if (meminfo) {
+                mLastMeminfoMs = now;
+                writeMeminfo(sample);
+            }
+            if (threads) {
+                mLastThreadsMs = now;
+                mCameraPid = sample.mCameraPid;
+                writeThreads(sample);
+            }
+        } catch (DeviceNotAvailableException | RuntimeException e) {
+            // Any exception escaping a tick would cancel all the next ones
+            CLog.w("Failed to sample camera processes:");
+            CLog.e(e);
+        }
+    }
+
+    private void writeMeminfo(Sample sample) {
+        Long uptimeMs = sample.getUptimeMs();
+        if (uptimeMs == null) {
+            CLog.w("Dropping meminfo sample without uptime");
+            return;
+        }
+        Long pssCameraDaemon = parseLong(sample.mPssCameraDaemon);
+        Long pssCameraApp = parseLong(sample.mPssCameraApp);
+        double uptimeHours = uptimeMs / (double) TimeUnit.HOURS.toMillis(1);
+        if (pssCameraDaemon != null) {
+            mPssCameraDaemonTrend.add(uptimeHours, pssCameraDaemon);
+        }
+        if (pssCameraApp != null) {
+            mPssCameraAppTrend.add(uptimeHours, pssCameraApp);
+        }
+        try {
+            mMeminfoSeries.append(
+                    uptimeMs,
+                    pssCameraDaemon,
+                    pssCameraApp,
+                    parseLong(sample.mRamTotal),
+                    parseLong(sample.mRamFree),
+                    parseLong(sample.mRamUsed));
+        } catch (IOException e) {
+            CLog.w("Failed to print meminfo to %s:", mMeminfoSeries.getFile().getAbsolutePath());
+            CLog.e(e);
+        }
+    }
+
+    private void writeThreads(Sample sample) {
+        Long uptimeMs = sample.getUptimeMs();
+        if (uptimeMs == null) {
+            CLog.w("Dropping thread count sample without uptime");
+            return;
+        }
+        try {
+            mThreadsSeries.append(uptimeMs, parseLong(sample.mCameraPid), sample.getThreadCount());
+        } catch (IOException e) {
+            CLog.w("Failed to dump thread count:");
+            CLog.e(e);
+        }
+    }
+
+    private static Long parseLong(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Build the script run at each tick.
+     *
+     * @param meminfo whether to dump the compact meminfo of the camera processes
+     * @param threads whether to list the threads of the camera app
+     * @param cameraPid the pid of the camera app at the previous tick, or {@code null}
+     */
+    static String buildScript(boolean meminfo, boolean threads, String cameraPid) {
+        StringBuilder script = new StringBuilder();
+        script.append(String.format("echo %s; cat /proc/uptime", SECTION_UPTIME));
+        if (meminfo) {
+            // Format of the lines is described in parse()
+            script.append(String.format("; echo %s; ", SECTION_MEMINFO));
+            script.append("dumpsys meminfo -c | grep -w -e ^ram -e ^time");
+            script.append(" -e ").append(CameraTestBase.PROCESS_CAMERA_DAEMON);
+            script.append(" -e ").append(CameraTestBase.PROCESS_CAMERA_APP);
+            script.append(" -e ").append(CameraTestBase.PROCESS_MEDIASERVER);
+        }
+        if (threads) {
+            // Only look the pid up again if the cached one is not the camera app anymore
+            script.append(
+                    String.format(
+                            "; p=%s; [ -n \"$p\" ] && grep -q %s /proc/$p/cmdline 2>/dev/null"
+                                    + " || { set -- $(pgrep %s); p=$1; }",
+                            cameraPid == null ? "" : cameraPid,
+                            CameraTestBase.PROCESS_CAMERA_APP,
+                            CameraTestBase.PROCESS_CAMERA_APP));
+            script.append(String.format("; echo %s; echo $p", SECTION_PID));
+            // FIXME: Resolve the error "sh: syntax error: '|' unexpected" to count the threads
+            // by name on the device, with ps -t -p $p | tr -s ' ' | cut -d' ' -f13- | sort | uniq
+            script.append(
+                    String.format(
+                            "; [ -n \"$p\" ] && echo %s && /system/bin/ps -t -p $p",
+                            SECTION_THREADS));
+        }
+        return script.toString();
+    }
+
+    /** Parse the output of the script built by {@link #buildScript}. */
+    static Sample parse(String output) {
+        // The meminfo section has lines with these formats:
+        //   time,<uptime>,<realtime>
+        //   proc,<oom_label>,<process_name>,<pid>,<pss>,<hasActivities>
+        //   ram,<total>,<free>,<used>
+        final String delimiter = ",";
+        Sample sample = new Sample();
+        StringBuilder threads = null;
+        String section = null;
+        for (String line : output.split("\r?\n")) {
+            if (line.startsWith("@@")) {
+                section = line.trim();
+                if (SECTION_THREADS.equals(section)) {
+                    threads = new StringBuilder();
+                }
+                continue;
+            }
+            if (SECTION_UPTIME.equals(section)) {
+                // Typically "5278.73 1866.80", the first one is wall-time
+                sample.mUptime = line.trim().split(" ")[0];
+            } else if (SECTION_MEMINFO.equals(section)) {
+                if (line.startsWith("ram")) {
+                    String[] ram = line.split(delimiter);
+                    if (ram.length >= 4) {
+                        sample.mRamTotal = ram[1];
+                        sample.mRamFree = ram[2];
+                        sample.mRamUsed = ram[3];
+                    }
+                } else if (line.contains(CameraTestBase.PROCESS_CAMERA_DAEMON)) {
+                    sample.mPssCameraDaemon = getField(line.split(delimiter), 4);
+                } else if (line.contains(CameraTestBase.PROCESS_CAMERA_APP)) {
+                    sample.mPssCameraApp = getField(line.split(delimiter), 4);
+                }
+            } else if (SECTION_PID.equals(section)) {
+                String pid = line.trim();
+                sample.mCameraPid = pid.isEmpty() ? null : pid;
+            } else if (SECTION_THREADS.equals(section)) {
+                threads.append(line).append('\n');
+            }
+        }
+        if (threads != null) {
+            sample.mThreads = threads.toString().trim();
+        }
+        return sample;
+    }
+
+    private static String getField(String[] fields, int index) {
+        return fields.length > index ? fields[index] : null;
+    }
+}
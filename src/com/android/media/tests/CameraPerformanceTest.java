@@ -24,8 +24,9 @@ import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -34,9 +35,13 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -58,8 +63,9 @@ public class CameraPerformanceTest extends CameraTestBase {
     private static final String TEST_REPROCESSING_THROUGHPUT = "testReprocessingThroughput";
 
     // KPIs to be reported. The key is test methods and the value is KPIs in the method.
-    private final ImmutableMultimap<String, String> mReportingKpis =
-            new ImmutableMultimap.Builder<String, String>()
+    // A set multimap, so that looking up a KPI of a method is a hash lookup.
+    private final ImmutableSetMultimap<String, String> mReportingKpis =
+            new ImmutableSetMultimap.Builder<String, String>()
                     .put(TEST_CAMERA_LAUNCH, "Camera launch time")
                     .put(TEST_CAMERA_LAUNCH, "Camera start preview time")
                     .put(TEST_SINGLE_CAPTURE, "Camera capture result latency")
@@ -68,26 +74,29 @@ public class CameraPerformanceTest extends CameraTestBase {
                     .put(TEST_REPROCESSING_THROUGHPUT, "YUV reprocessing capture latency")
                     .put(TEST_REPROCESSING_THROUGHPUT, "opaque reprocessing capture latency")
                     .build();
+    // Distinct lengths of the KPIs, the only message suffixes worth looking up
+    private final ImmutableSortedSet<Integer> mReportingKpiLengths =
+            getLengths(mReportingKpis.values());
 
     // JSON format keymap, key is test method name and the value is stream name in Json file
-    private static final ImmutableMap<String, String> METHOD_JSON_KEY_MAP =
-            new ImmutableMap.Builder<String, String>()
+    private static final ImmutableBiMap<String, String> METHOD_JSON_KEY_MAP =
+            new ImmutableBiMap.Builder<String, String>()
                     .put(TEST_CAMERA_LAUNCH, "test_camera_launch")
                     .put(TEST_SINGLE_CAPTURE, "test_single_capture")
                     .put(TEST_REPROCESSING_LATENCY, "test_reprocessing_latency")
                     .put(TEST_REPROCESSING_THROUGHPUT, "test_reprocessing_throughput")
                     .build();
 
-    private <E extends Number> double getAverage(List<E> list) {
-        double sum = 0;
-        int size = list.size();
-        for (E num : list) {
-            sum += num.doubleValue();
+    private static ImmutableSortedSet<Integer> getLengths(Iterable<String> values) {
+        ImmutableSortedSet.Builder<Integer> lengths = ImmutableSortedSet.naturalOrder();
+        for (String value : values) {
+            lengths.add(value.length());
         }
-        if (size == 0) {
-            return 0.0;
-        }
-        return (sum / size);
+        return lengths.build();
+    }
+
+    private static String formatAverage(double sum, int count) {
+        return String.format("%.1f", count == 0 ? 0.0 : sum / count);
     }
 
     public CameraPerformanceTest() {
@@ -282,16 +291,32 @@ public class CameraPerformanceTest extends CameraTestBase {
         protected Map<String, String> filter(List<CtsMetric> metrics, String testMethod) {
             Map<String, String> filtered = new HashMap<String, String>();
             for (CtsMetric metric : metrics) {
-                for (String kpiName : mReportingKpis.get(testMethod)) {
-                    // Post the data only when it matches with the given methods and KPI names.
-                    if (metric.matches(testMethod, kpiName)) {
-                        filtered.put(metric.schemaKey, metric.value);
-                    }
+                // Post the data only when it matches with the given methods and KPI names.
+                if (metric.testMethod.equals(testMethod)
+                        && findReportingKpi(testMethod, metric.message) != null) {
+                    filtered.put(metric.schemaKey, metric.value);
                 }
             }
             return filtered;
         }
 
+        /**
+         * Returns the KPI of a test method the message ends with, like {@link CtsMetric#matches},
+         * by looking up the suffix of the message of each KPI length rather than scanning the KPIs.
+         */
+        protected String findReportingKpi(String testMethod, String message) {
+            for (int length : mReportingKpiLengths) {
+                if (length > message.length()) {
+                    break;
+                }
+                String suffix = message.substring(message.length() - length);
+                if (mReportingKpis.containsEntry(testMethod, suffix)) {
+                    return suffix;
+                }
+            }
+            return null;
+        }
+
         protected void setSummary(CtsMetric summary) {
             mSummary = summary;
         }
@@ -340,7 +365,6 @@ public class CameraPerformanceTest extends CameraTestBase {
 
         @Override
         public Map<String, String> parse(String result, String testMethod) {
-            parseToCtsMetrics(result, testMethod);
             parseToCtsMetrics(result, testMethod);
             return filter(getDetails(), testMethod);
         }
@@ -377,11 +401,13 @@ public class CameraPerformanceTest extends CameraTestBase {
                 Matcher detailMatcher = mDetailRegex.matcher(detail.trim());
                 if (detailMatcher.matches()) {
                     // get average of kpi values
-                    List<Double> values = new ArrayList<>();
+                    double sum = 0;
+                    int count = 0;
                     for (String value : detailMatcher.group("values").split("\\s+")) {
-                        values.add(Double.parseDouble(value));
+                        sum += Double.parseDouble(value);
+                        count++;
                     }
-                    String kpiValue = String.format("%.1f", getAverage(values));
+                    String kpiValue = formatAverage(sum, count);
                     addDetail(
                             new CtsMetric(
                                     testMethod,
@@ -422,7 +448,6 @@ public class CameraPerformanceTest extends CameraTestBase {
      * See also com.android.compatibility.common.util.ReportLog for the format detail.
      */
     public class CtsXmlResultParser extends CtsResultParserBase {
-        private static final String ENCODING = "UTF-8";
         // XML constants
         private static final String DETAIL_TAG = "Detail";
         private static final String METRIC_TAG = "Metric";
@@ -440,7 +465,7 @@ public class CameraPerformanceTest extends CameraTestBase {
                 mTestMethod = testMethod;
                 XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
                 XmlPullParser parser = factory.newPullParser();
-                parser.setInput(new ByteArrayInputStream(result.getBytes(ENCODING)), ENCODING);
+                parser.setInput(new StringReader(result));
                 parser.nextTag();
                 parse(parser);
                 return filter(getDetails(), testMethod);
@@ -478,13 +503,15 @@ public class CameraPerformanceTest extends CameraTestBase {
             String message = parser.getAttributeValue(null, MESSAGE_ATTR);
             String type = parser.getAttributeValue(null, SCORETYPE_ATTR);
             String unit = parser.getAttributeValue(null, SCOREUNIT_ATTR);
-            List<Double> values = new ArrayList<>();
+            double sum = 0;
+            int count = 0;
             while (parser.nextTag() == XmlPullParser.START_TAG) {
                 parser.require(XmlPullParser.START_TAG, null, VALUE_TAG);
-                values.add(Double.parseDouble(parser.nextText()));
+                sum += Double.parseDouble(parser.nextText());
+                count++;
                 parser.require(XmlPullParser.END_TAG, null, VALUE_TAG);
             }
-            String kpiValue = String.format("%.1f", getAverage(values));
+            String kpiValue = formatAverage(sum, count);
             parser.require(XmlPullParser.END_TAG, null, METRIC_TAG);
             return new CtsMetric(mTestMethod, source, message, type, unit, kpiValue);
         }
@@ -514,159 +541,131 @@ public class CameraPerformanceTest extends CameraTestBase {
         private static final String LATENCY_KEY = "latency";
 
         public Map<String, String> parse() {
-
-            Map<String, String> metrics = new HashMap<>();
-
-            String jsonString = getFormatedJsonReportFromFile();
-            if (null == jsonString) {
-                throw new RuntimeException("Get null json report string.");
+            File outputFile = null;
+            try {
+                // pull the json report file from device
+                outputFile = FileUtil.createTempFile("json", ".txt");
+                if (!getDevice().pullFile(JSON_RESULT_FILE, outputFile)) {
+                    throw new RuntimeException("Failed to pull the json report file.");
+                }
+                return parse(
+                        new InputStreamReader(
+                                new FileInputStream(outputFile), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't parse the output json log file.", e);
+            } catch (DeviceNotAvailableException e) {
+                throw new RuntimeException(
+                        String.format("Could not pull file: %s", JSON_RESULT_FILE), e);
+            } finally {
+                FileUtil.deleteFile(outputFile);
             }
+        }
 
-            Map<String, List<Double>> metricsData = new HashMap<>();
-
+        /**
+         * Read the json report one stream at a time, and average the values of each KPI. A report
+         * malformed or truncated in the middle of a stream, like the one of a crashed test, is read
+         * up to the last complete stream.
+         */
+        Map<String, String> parse(Reader json) {
+            // Sum and count of the values of each KPI
+            Map<String, double[]> metricsData = new HashMap<>();
+            JsonMemberReader reader = new JsonMemberReader(json);
             try {
-                JSONObject jsonObject = new JSONObject(jsonString);
-
-                for (String testMethod : METHOD_JSON_KEY_MAP.keySet()) {
-
-                    JSONArray jsonArray =
-                            (JSONArray) jsonObject.get(METHOD_JSON_KEY_MAP.get(testMethod));
-
-                    switch (testMethod) {
-                        case TEST_REPROCESSING_THROUGHPUT:
-                        case TEST_REPROCESSING_LATENCY:
-                            for (int i = 0; i < jsonArray.length(); i++) {
-                                JSONObject element = jsonArray.getJSONObject(i);
-
-                                // create a kpiKey from camera id,
-                                // reprocess type and capture message
-                                String cameraId = element.getString(CAMERA_ID_KEY);
-                                String reprocessType = element.getString(REPROCESS_TYPE_KEY);
-                                String captureMessage = element.getString(CAPTURE_MESSAGE_KEY);
-                                String kpiKey =
-                                        String.format(
-                                                "%s_Camera %s %s %s",
-                                                testMethod,
-                                                cameraId,
-                                                reprocessType,
-                                                captureMessage);
-
-                                // read the data array from json object
-                                JSONArray jsonDataArray = element.getJSONArray(LATENCY_KEY);
-                                if (!metricsData.containsKey(kpiKey)) {
-                                    List<Double> list = new ArrayList<>();
-                                    metricsData.put(kpiKey, list);
-                                }
-                                for (int j = 0; j < jsonDataArray.length(); j++) {
-                                    metricsData.get(kpiKey).add(jsonDataArray.getDouble(j));
-                                }
-                            }
-                            break;
-                        case TEST_SINGLE_CAPTURE:
-                        case TEST_CAMERA_LAUNCH:
-                            for (int i = 0; i < jsonArray.length(); i++) {
-                                JSONObject element = jsonArray.getJSONObject(i);
-
-                                String cameraid = element.getString(CAMERA_ID_KEY);
-                                for (String kpiName : mReportingKpis.get(testMethod)) {
-
-                                    // the json key is all lower case
-                                    String jsonKey = kpiName.toLowerCase().replace(" ", "_");
-                                    String kpiKey =
-                                            String.format("Camera %s %s", cameraid, kpiName);
-                                    if (!metricsData.containsKey(kpiKey)) {
-                                        List<Double> list = new ArrayList<>();
-                                        metricsData.put(kpiKey, list);
-                                    }
-                                    JSONArray jsonDataArray = element.getJSONArray(jsonKey);
-                                    for (int j = 0; j < jsonDataArray.length(); j++) {
-                                        metricsData.get(kpiKey).add(jsonDataArray.getDouble(j));
-                                    }
-                                }
-                            }
-                            break;
-                        default:
-                            break;
+                while (reader.next()) {
+                    // The same stream name appears once per stream reported
+                    String testMethod = METHOD_JSON_KEY_MAP.inverse().get(reader.getName());
+                    if (testMethod == null) {
+                        continue;
+                    }
+                    try {
+                        addStreams(testMethod, reader.getValue(), metricsData);
+                    } catch (JSONException e) {
+                        CLog.w("JSONException: %s in stream %s", e.getMessage(),
+                                reader.getValue());
                     }
                 }
-            } catch (JSONException e) {
-                CLog.w("JSONException: %s in string %s", e.getMessage(), jsonString);
+            } catch (IOException e) {
+                CLog.e("Couldn't read the json report past the last complete stream: %s",
+                        e.getMessage());
+            } finally {
+                reader.close();
             }
 
             // take the average of all data for reporting
-            for (String kpiKey : metricsData.keySet()) {
-                String kpiValue = String.format("%.1f", getAverage(metricsData.get(kpiKey)));
-                metrics.put(kpiKey, kpiValue);
+            Map<String, String> metrics = new HashMap<>();
+            for (Map.Entry<String, double[]> kpi : metricsData.entrySet()) {
+                double[] sumAndCount = kpi.getValue();
+                metrics.put(kpi.getKey(), formatAverage(sumAndCount[0], (int) sumAndCount[1]));
             }
             return metrics;
         }
 
-        public boolean isJsonFileExist() {
-            try {
-                return getDevice().doesFileExist(JSON_RESULT_FILE);
-            } catch (DeviceNotAvailableException e) {
-                throw new RuntimeException("Failed to check json report file on device.", e);
+        /** Add the values of a stream, or of an array of streams, to the sums of each KPI. */
+        private void addStreams(String testMethod, String json, Map<String, double[]> metricsData)
+                throws JSONException {
+            if (json.startsWith("[")) {
+                JSONArray jsonArray = new JSONArray(json);
+                for (int i = 0; i < jsonArray.length(); i++) {
+                    addMetrics(testMethod, jsonArray.getJSONObject(i), metricsData);
+                }
+            } else {
+                addMetrics(testMethod, new JSONObject(json), metricsData);
             }
         }
 
-        /*
-         * read json report file on the device
-         */
-        private String getFormatedJsonReportFromFile() {
-            String jsonString = null;
-            try {
-                // pull the json report file from device
-                File outputFile = FileUtil.createTempFile("json", ".txt");
-                getDevice().pullFile(JSON_RESULT_FILE, outputFile);
-                jsonString = reformatJsonString(FileUtil.readStringFromFile(outputFile));
-            } catch (IOException e) {
-                CLog.w("Couldn't parse the output json log file: ", e);
-            } catch (DeviceNotAvailableException e) {
-                CLog.w("Could not pull file: %s, error: %s", JSON_RESULT_FILE, e);
+        private void addMetrics(
+                String testMethod, JSONObject element, Map<String, double[]> metricsData)
+                throws JSONException {
+            switch (testMethod) {
+                case TEST_REPROCESSING_THROUGHPUT:
+                case TEST_REPROCESSING_LATENCY:
+                    // create a kpiKey from camera id, reprocess type and capture message
+                    String kpiKey =
+                            String.format(
+                                    "%s_Camera %s %s %s",
+                                    testMethod,
+                                    element.getString(CAMERA_ID_KEY),
+                                    element.getString(REPROCESS_TYPE_KEY),
+                                    element.getString(CAPTURE_MESSAGE_KEY));
+                    addValues(kpiKey, element.getJSONArray(LATENCY_KEY), metricsData);
+                    break;
+                case TEST_SINGLE_CAPTURE:
+                case TEST_CAMERA_LAUNCH:
+                    String cameraId = element.getString(CAMERA_ID_KEY);
+                    for (String kpiName : mReportingKpis.get(testMethod)) {
+                        // the json key is all lower case
+                        String jsonKey = kpiName.toLowerCase().replace(" ", "_");
+                        addValues(
+                                String.format("Camera %s %s", cameraId, kpiName),
+                                element.getJSONArray(jsonKey),
+                                metricsData);
+                    }
+                    break;
+                default:
+                    break;
             }
-            return jsonString;
         }
 
-        // Reformat the json file to remove duplicate keys
-        private String reformatJsonString(String jsonString) {
-
-            final String TEST_METRICS_PATTERN = "\\\"([a-z0-9_]*)\\\":(\\{[^{}]*\\})";
-            StringBuilder newJsonBuilder = new StringBuilder();
-            // Create map of stream names and json objects.
-            HashMap<String, List<String>> jsonMap = new HashMap<>();
-            Pattern p = Pattern.compile(TEST_METRICS_PATTERN);
-            Matcher m = p.matcher(jsonString);
-            while (m.find()) {
-                String key = m.group(1);
-                String value = m.group(2);
-                if (!jsonMap.containsKey(key)) {
-                    jsonMap.put(key, new ArrayList<String>());
-                }
-                jsonMap.get(key).add(value);
+        private void addValues(
+                String kpiKey, JSONArray jsonDataArray, Map<String, double[]> metricsData)
+                throws JSONException {
+            double[] sumAndCount = metricsData.get(kpiKey);
+            if (sumAndCount == null) {
+                sumAndCount = new double[2];
+                metricsData.put(kpiKey, sumAndCount);
             }
-            // Rewrite json string as arrays.
-            newJsonBuilder.append("{");
-            boolean firstLine = true;
-            for (String key : jsonMap.keySet()) {
-                if (!firstLine) {
-                    newJsonBuilder.append(",");
-                } else {
-                    firstLine = false;
-                }
-                newJsonBuilder.append("\"").append(key).append("\":[");
-                boolean firstValue = true;
-                for (String stream : jsonMap.get(key)) {
-                    if (!firstValue) {
-                        newJsonBuilder.append(",");
-                    } else {
-                        firstValue = false;
-                    }
-                    newJsonBuilder.append(stream);
-                }
-                newJsonBuilder.append("]");
+            for (int j = 0; j < jsonDataArray.length(); j++) {
+                sumAndCount[0] += jsonDataArray.getDouble(j);
+                sumAndCount[1]++;
+            }
+        }
+
+        public boolean isJsonFileExist() {
+            try {
+                return getDevice().doesFileExist(JSON_RESULT_FILE);
+            } catch (DeviceNotAvailableException e) {
+                throw new RuntimeException("Failed to check json report file on device.", e);
             }
-            newJsonBuilder.append("}");
-            return newJsonBuilder.toString();
         }
     }
 }
@@ -82,6 +82,7 @@ public class CameraShotLatencyTest extends CameraTestBase {
                     // Key name consists of a pair of test name and metric name.
                     String keyName = String.format("%s_%s", testName, metric.getKey());
                     parsed.put(keyName, matcher.group("average"));
+                    addIterationValues(keyName, matcher.group("values"));
                 } else {
                     CLog.w(String.format("Stats not in correct format: %s", metric.getValue()));
                 }
@@ -65,6 +65,8 @@ public class CameraStartupTest extends CameraTestBase {
 
     private MultiMap<String, String> mMultipleRunMetrics = new MultiMap<String, String>();
     private Map<String, String> mAverageMultipleRunMetrics = new HashMap<String, String>();
+    // Every cold and warm startup of all test runs
+    private LatencyDistributions mMultipleRunValues = new LatencyDistributions();
     private long mTestRunsDurationMs = 0;
 
     public CameraStartupTest() {
@@ -117,8 +119,9 @@ public class CameraStartupTest extends CameraTestBase {
     }
 
     private void postMultipleRunMetrics(ITestInvocationListener listener) {
-        listener.testRunEnded(mTestRunsDurationMs,
-                TfMetricProtoUtil.upgradeConvert(getAverageMultipleRunMetrics()));
+        Map<String, String> metrics = getAverageMultipleRunMetrics();
+        metrics.putAll(mMultipleRunValues.getMetrics(getLatencyOutlierIqrFactor()));
+        listener.testRunEnded(mTestRunsDurationMs, TfMetricProtoUtil.upgradeConvert(metrics));
     }
 
     private void postSetupTestRun() throws DeviceNotAvailableException {
@@ -203,6 +206,7 @@ public class CameraStartupTest extends CameraTestBase {
             // Do not post aggregated metrics from a single run to a dashboard. Instead, it needs
             // to collect all metrics from multiple test runs.
             mMultipleRunMetrics.putAll(getAggregatedMetrics());
+            mMultipleRunValues.addAll(getIterationValues());
         }
 
         public Map<String, String> parseResults(Map<String, String> testMetrics) {
@@ -228,6 +232,12 @@ public class CameraStartupTest extends CameraTestBase {
                 if (matcher.matches()) {
                     coldStartupValue = matcher.group("coldStartup");
                     warmStartupValue = matcher.group("warmStartup");
+                    // The first of all startups is the cold one
+                    addIterationValues(PREFIX_COLD_STARTUP + keyName, coldStartupValue);
+                    String[] startups = matcher.group("values").trim().split("\\s+", 2);
+                    if (startups.length > 1) {
+                        addIterationValues(keyName, startups[1]);
+                    }
                 }
                 parsed.put(PREFIX_COLD_STARTUP + keyName, coldStartupValue);
                 parsed.put(keyName, warmStartupValue);
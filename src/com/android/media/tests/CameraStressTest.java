@@ -31,7 +31,6 @@ import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.FileUtil;
-import com.android.tradefed.util.RegexTrie;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
@@ -45,10 +44,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -92,7 +89,7 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
         public String mClassName = null;
         public String mTestMetricsName = null;
         public Map<String, String> mInstrumentationArgs = new HashMap<>();
-        public RegexTrie<String> mPatternMap = new RegexTrie<>();
+        public PatternLineProcessor mPatternMap = new PatternLineProcessor();
 
         @Override
         public String toString() {
@@ -106,8 +103,8 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
      * <p/>
      * Exposed for unit meta-testing
      */
-    static RegexTrie<String> getPatternMap() {
-        RegexTrie<String> patMap = new RegexTrie<>();
+    static PatternLineProcessor getPatternMap() {
+        PatternLineProcessor patMap = new PatternLineProcessor();
         patMap.put("SwitchPreview", "^Camera Switch Mode:");
 
         // For versions of the on-device test that don't differentiate between front and back camera
@@ -131,7 +128,7 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
      * Set up the configurations for the test cases we want to run
      */
     private void testInfoSetup() {
-        RegexTrie<String> patMap = getPatternMap();
+        PatternLineProcessor patMap = getPatternMap();
         TestInfo t = new TestInfo();
 
         if (mGcam) {
@@ -249,7 +246,9 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
                     outputSource);
 
             // Parse the output file to upload aggregated metrics
-            parseOutputFile(test, new FileInputStream(outputFile), listener);
+            try (InputStream dataStream = new FileInputStream(outputFile)) {
+                parseOutputFile(test, dataStream, listener);
+            }
         } catch (IOException e) {
             Log.e(LOG_TAG, String.format("IOException while reading or parsing output file: %s", e));
         } finally {
@@ -264,71 +263,66 @@ public class CameraStressTest implements IDeviceTest, IRemoteTest {
     private void parseOutputFile(TestInfo test, InputStream dataStream,
             ITestInvocationListener listener) {
         Map<String, String> runMetrics = new HashMap<>();
-
-        String contents;
+        LoopCountHandler handler = new LoopCountHandler(test, runMetrics);
         try {
-            contents = StreamUtil.getStringFromStream(dataStream);
+            test.mPatternMap.process(dataStream, handler);
         } catch (IOException e) {
             Log.e(LOG_TAG, String.format("Got IOException during %s test processing: %s",
                     test.mTestName, e));
             return;
         }
+        // commit the final key, if there was one
+        handler.commit();
 
-        String key = null;
-        Integer countExpected = null;
-        Integer countActual = null;
-
-        List<String> lines = Arrays.asList(contents.split("\n"));
-        ListIterator<String> lineIter = lines.listIterator();
-        String line;
-        while (lineIter.hasNext()) {
-            line = lineIter.next();
-            List<List<String>> capture = new ArrayList<>(1);
-            String pattern = test.mPatternMap.retrieve(capture, line);
-            if (pattern != null) {
-                if ("loopCount".equals(pattern)) {
-                    // First capture in first (only) string
-                    countExpected = Integer.parseInt(capture.get(0).get(0));
-                } else if ("iters".equals(pattern)) {
-                    // First capture in first (only) string
-                    countActual = Integer.parseInt(capture.get(0).get(0));
-
-                    if (countActual != null) {
-                        // countActual starts counting at 0
-                        countActual += 1;
-                    }
-                } else {
-                    // Assume that the pattern is the name of a key
-
-                    // commit, if there was a previous key
-                    if (key != null) {
-                        int value = coalesceLoopCounts(countActual, countExpected);
-                        runMetrics.put(key, Integer.toString(value));
-                    }
-
-                    key = pattern;
-                    countExpected = null;
-                    countActual = null;
-                }
+        reportMetrics(listener, test, runMetrics);
+    }
+
+    /**
+     * Collects the loop counts of each stanza of the output file. A stanza starts with a line
+     * matching a key, and its counts are committed when the next stanza starts.
+     */
+    private class LoopCountHandler implements PatternLineProcessor.LineHandler {
+        private final TestInfo mTest;
+        private final Map<String, String> mRunMetrics;
+        private String mKey = null;
+        private Integer mCountExpected = null;
+        private Integer mCountActual = null;
+
+        LoopCountHandler(TestInfo test, Map<String, String> runMetrics) {
+            mTest = test;
+            mRunMetrics = runMetrics;
+        }
 
-                Log.d(LOG_TAG, String.format("Got %s key '%s' and captures '%s'",
-                        test.mTestName, key, capture.toString()));
-            } else if (line.isEmpty()) {
-                // ignore
-                continue;
+        @Override
+        public void onMatch(String pattern, List<String> captures, String line) {
+            if ("loopCount".equals(pattern)) {
+                mCountExpected = Integer.parseInt(captures.get(0));
+            } else if ("iters".equals(pattern)) {
+                // countActual starts counting at 0
+                mCountActual = Integer.parseInt(captures.get(0)) + 1;
             } else {
-                Log.e(LOG_TAG, String.format("Got unmatched line: %s", line));
-                continue;
+                // Assume that the pattern is the name of a key
+                commit();
+                mKey = pattern;
+                mCountExpected = null;
+                mCountActual = null;
             }
+            Log.d(LOG_TAG, String.format("Got %s key '%s' and captures '%s'",
+                    mTest.mTestName, mKey, captures));
+        }
 
-            // commit the final key, if there was one
-            if (key != null) {
-                int value = coalesceLoopCounts(countActual, countExpected);
-                runMetrics.put(key, Integer.toString(value));
-            }
+        @Override
+        public void onUnmatched(String line) {
+            Log.e(LOG_TAG, String.format("Got unmatched line: %s", line));
         }
 
-        reportMetrics(listener, test, runMetrics);
+        /** Commit the counts of the current key, if there is one. */
+        void commit() {
+            if (mKey != null) {
+                int value = coalesceLoopCounts(mCountActual, mCountExpected);
+                mRunMetrics.put(mKey, Integer.toString(value));
+            }
+        }
     }
 
     /**
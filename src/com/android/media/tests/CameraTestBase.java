@@ -16,7 +16,6 @@
 
 package com.android.media.tests;
 
-import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IConfigurationReceiver;
 import com.android.tradefed.config.Option;
@@ -42,18 +41,11 @@ import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
 import org.junit.Assert;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -64,8 +56,6 @@ import java.util.concurrent.TimeUnit;
  */
 public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationReceiver {
 
-    private static final long SHELL_TIMEOUT_MS = 60 * 1000;  // 1 min
-    private static final int SHELL_MAX_ATTEMPTS = 3;
     protected static final String PROCESS_CAMERA_DAEMON = "mm-qcamera-daemon";
     protected static final String PROCESS_MEDIASERVER = "mediaserver";
     protected static final String PROCESS_CAMERA_APP = "com.google.android.GoogleCamera";
@@ -131,6 +121,25 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
             description="Interval of calling ps to count the number of threads in milliseconds.")
     private int mThreadCountIntervalMs = 5 * 60 * 1000; // 5 minutes
 
+    @Option(name = "upload-sampled-series", description =
+            "upload the sampled meminfo and thread count series of every test. By default they "
+            + "are only uploaded for failed tests, and summarized in the test metrics.")
+    private boolean mUploadSampledSeries = false;
+
+    @Option(name = "leak-threshold-kb-per-1k-iterations", description =
+            "PSS growth of a camera process per 1000 iterations above which a memory leak is "
+            + "suspected. Only checked when meminfo is dumped and iterations is more than 1.")
+    private double mLeakThresholdKbPer1kIterations = 1024;
+
+    @Option(name = "fail-on-memory-leak", description =
+            "fail the test when a memory leak is suspected, instead of only reporting it.")
+    private boolean mFailOnMemoryLeak = false;
+
+    @Option(name = "latency-outlier-iqr-factor", description =
+            "per-iteration values further than this many interquartile ranges from the quartiles "
+            + "are left out of the reported percentiles, and counted as outliers. 0 keeps all.")
+    private double mLatencyOutlierIqrFactor = LatencyDistributions.DEFAULT_OUTLIER_IQR_FACTOR;
+
     @Option(name="iterations", description="The number of iterations to run. Default to 1. "
             + "This takes effect only when Camera2InstrumentationTestRunner is used to execute "
             + "framework stress tests.")
@@ -144,8 +153,7 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
 
     private long mStartTimeMs = 0;
 
-    private MeminfoTimer mMeminfoTimer = null;
-    private ThreadTrackerTimer mThreadTrackerTimer = null;
+    private CameraDeviceSampler mSampler = null;
 
     protected IConfiguration mConfiguration;
 
@@ -208,13 +216,13 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
             instr.addInstrumentationArg(entry.getKey(), entry.getValue());
         }
 
-        // Check if dumpheap needs to be taken for native processes before test runs.
-        if (shouldDumpMeminfo()) {
-            mMeminfoTimer = new MeminfoTimer(0, mMeminfoIntervalMs);
-        }
-        if (shouldDumpThreadCount()) {
-            long delayMs = mThreadCountIntervalMs / 2;  // Not to run all dump at the same interval.
-            mThreadTrackerTimer = new ThreadTrackerTimer(delayMs, mThreadCountIntervalMs);
+        // Check if meminfo and threads need to be sampled while tests run.
+        if (shouldDumpMeminfo() || shouldDumpThreadCount()) {
+            mSampler =
+                    new CameraDeviceSampler(
+                            getDevice(),
+                            shouldDumpMeminfo() ? mMeminfoIntervalMs : 0,
+                            shouldDumpThreadCount() ? mThreadCountIntervalMs : 0);
         }
 
         // Run tests.
@@ -241,6 +249,14 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
         private ITestInvocationListener mListener = null;
         private Map<String, String> mMetrics = new HashMap<>();
         private Map<String, String> mFatalErrors = new HashMap<>();
+        // Every value of each KPI, when the test reports them per iteration
+        private LatencyDistributions mIterationValues = new LatencyDistributions();
+        // Summary of the series sampled during the last test
+        private Map<String, String> mSampledMetrics = new HashMap<>();
+        private boolean mCurrentTestFailed = false;
+        private long mCurrentTestStartMs = 0;
+        // Description of the memory leaks suspected during the last test, if any
+        private String mSuspectedLeaks = null;
 
         private static final String INCOMPLETE_TEST_ERR_MSG_PREFIX =
                 "Test failed to run to completion. Reason: 'Instrumentation run failed";
@@ -288,15 +304,26 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
         @Override
         public void testEnded(
                 TestDescription test, long endTime, HashMap<String, Metric> testMetrics) {
+            // Stop first, so that the summary of the sampled series is part of the test metrics
+            stopDumping(test);
+            for (Map.Entry<String, String> entry : mSampledMetrics.entrySet()) {
+                testMetrics.put(
+                        String.format("%s_%s", test.getTestName(), entry.getKey()),
+                        TfMetricProtoUtil.stringToMetric(entry.getValue()));
+            }
+            if (mSuspectedLeaks != null && mFailOnMemoryLeak) {
+                testFailed(test, mSuspectedLeaks);
+            }
             super.testEnded(test, endTime, testMetrics);
             handleMetricsOnTestEnded(test, TfMetricProtoUtil.compatibleConvert(testMetrics));
-            stopDumping(test);
             mListener.testEnded(test, endTime, testMetrics);
         }
 
         @Override
         public void testStarted(TestDescription test, long startTime) {
             super.testStarted(test, startTime);
+            mCurrentTestFailed = false;
+            mCurrentTestStartMs = System.currentTimeMillis();
             startDumping(test);
             mListener.testStarted(test, startTime);
         }
@@ -304,6 +331,7 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
         @Override
         public void testFailed(TestDescription test, String trace) {
             super.testFailed(test, trace);
+            mCurrentTestFailed = true;
             // If the test failed to run to complete, this is an exceptional case.
             // Let this test run fail so that it can rerun.
             if (trace.startsWith(INCOMPLETE_TEST_ERR_MSG_PREFIX)) {
@@ -347,39 +375,92 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
         }
 
         protected void startDumping(TestDescription test) {
-            if (shouldDumpMeminfo()) {
-                mMeminfoTimer.start(test);
-            }
-            if (shouldDumpThreadCount()) {
-                mThreadTrackerTimer.start(test);
+            if (mSampler != null) {
+                mSampler.start(test.getTestName());
             }
         }
 
         protected void stopDumping(TestDescription test) {
-            InputStreamSource outputSource = null;
-            File outputFile = null;
+            mSampledMetrics.clear();
+            mSuspectedLeaks = null;
+            if (mSampler == null) {
+                return;
+            }
+            mSampler.stop();
+            mSampledMetrics.putAll(mSampler.getSummary());
+            checkMemoryTrends(test);
+            // The summary is enough unless the test failed, or the raw series are asked for
+            boolean upload = mUploadSampledSeries || mCurrentTestFailed || mSuspectedLeaks != null;
             if (shouldDumpMeminfo()) {
-                mMeminfoTimer.stop();
-                // Grab a snapshot of meminfo file and post it to dashboard.
-                try {
-                    outputFile = mMeminfoTimer.getOutputFile();
-                    outputSource = new FileInputStreamSource(outputFile, true /* delete */);
-                    String logName = String.format("meminfo_%s", test.getTestName());
-                    mListener.testLog(logName, LogDataType.TEXT, outputSource);
-                } finally {
-                    StreamUtil.cancel(outputSource);
-                }
+                logSampledSeries(
+                        String.format("meminfo_%s", test.getTestName()),
+                        mSampler.getMeminfoFile(),
+                        upload);
             }
             if (shouldDumpThreadCount()) {
-                mThreadTrackerTimer.stop();
-                try {
-                    outputFile = mThreadTrackerTimer.getOutputFile();
-                    outputSource = new FileInputStreamSource(outputFile, true /* delete */);
-                    String logName = String.format("ps_%s", test.getTestName());
-                    mListener.testLog(logName, LogDataType.TEXT, outputSource);
-                } finally {
-                    StreamUtil.cancel(outputSource);
+                logSampledSeries(
+                        String.format("ps_%s", test.getTestName()),
+                        mSampler.getThreadsFile(),
+                        upload);
+            }
+        }
+
+        /**
+         * Report the PSS trend of each camera process during a test, and suspect a leak when it
+         * grows faster than the threshold per 1000 iterations, with 95% confidence that it grows.
+         * Iterations are assumed to run at a steady rate during the test.
+         */
+        private void checkMemoryTrends(TestDescription test) {
+            double testHours =
+                    (System.currentTimeMillis() - mCurrentTestStartMs)
+                            / (double) TimeUnit.HOURS.toMillis(1);
+            StringBuilder leaks = new StringBuilder();
+            for (Map.Entry<String, TheilSenEstimator> trend : mSampler.getPssTrends().entrySet()) {
+                TheilSenEstimator estimator = trend.getValue();
+                if (estimator.getPointCount() < 3) {
+                    continue;
+                }
+                String key = String.format("meminfo_%s_trend", trend.getKey());
+                double slope = estimator.getSlope();
+                double[] interval = estimator.getSlopeInterval(TheilSenEstimator.Z_95);
+                mSampledMetrics.put(key + "_kb_per_hour", String.format("%.1f", slope));
+                mSampledMetrics.put(key + "_kb_per_hour_lower", String.format("%.1f", interval[0]));
+                mSampledMetrics.put(key + "_kb_per_hour_upper", String.format("%.1f", interval[1]));
+                if (getIterationCount() <= 1) {
+                    continue;
                 }
+                double growth = slope * testHours / getIterationCount() * 1000;
+                boolean leak = growth > mLeakThresholdKbPer1kIterations && interval[0] > 0;
+                mSampledMetrics.put(key + "_kb_per_1k_iterations", String.format("%.1f", growth));
+                mSampledMetrics.put(key + "_leak", leak ? "1" : "0");
+                if (leak) {
+                    leaks.append(
+                            String.format(
+                                    "Suspected memory leak in %s: PSS grows by %.1f KB per 1000 "
+                                            + "iterations (%.1f to %.1f KB per hour)\n",
+                                    trend.getKey(), growth, interval[0], interval[1]));
+                }
+            }
+            if (leaks.length() > 0) {
+                mSuspectedLeaks = leaks.toString();
+                CLog.w("%s: %s", test.getTestName(), mSuspectedLeaks);
+            }
+        }
+
+        private void logSampledSeries(String logName, File outputFile, boolean upload) {
+            if (outputFile == null) {
+                return;
+            }
+            if (!upload) {
+                FileUtil.deleteFile(outputFile);
+                return;
+            }
+            InputStreamSource outputSource = null;
+            try {
+                outputSource = new FileInputStreamSource(outputFile, true /* delete */);
+                mListener.testLog(logName, LogDataType.TEXT, outputSource);
+            } finally {
+                StreamUtil.cancel(outputSource);
             }
         }
 
@@ -387,6 +468,29 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
             return mMetrics;
         }
 
+        /**
+         * Keep the per-iteration values of a KPI, so that its distribution is reported rather
+         * than only its average.
+         *
+         * @param kpi the name of the KPI
+         * @param values the whitespace separated values of each iteration
+         */
+        protected void addIterationValues(String kpi, String values) {
+            mIterationValues.addAll(kpi, values);
+        }
+
+        public LatencyDistributions getIterationValues() {
+            return mIterationValues;
+        }
+
+        /**
+         * Returns the percentiles, min, max and standard deviation of each KPI added with
+         * {@link #addIterationValues}.
+         */
+        public Map<String, String> getIterationMetrics() {
+            return mIterationValues.getMetrics(getLatencyOutlierIqrFactor());
+        }
+
         public ITestInvocationListener getListeners() {
             return mListener;
         }
@@ -434,283 +538,11 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
         public void handleTestRunEnded(ITestInvocationListener listener, long elapsedTime,
                 Map<String, String> runMetrics) {
             // Post aggregated metrics at the end of test run.
+            getAggregatedMetrics().putAll(getIterationMetrics());
             listener.testRunEnded(getTestDurationMs(), TfMetricProtoUtil.upgradeConvert(getAggregatedMetrics()));
         }
     }
 
-    // TODO: Leverage AUPT to collect system logs (meminfo, ION allocations and processes/threads)
-    private class MeminfoTimer {
-
-        private static final String LOG_HEADER =
-                "uptime,pssCameraDaemon,pssCameraApp,ramTotal,ramFree,ramUsed";
-        private static final String DUMPSYS_MEMINFO_COMMAND =
-                "dumpsys meminfo -c | grep -w -e " + "^ram -e ^time";
-        private String[] mDumpsysMemInfoProc = {
-            PROCESS_CAMERA_DAEMON, PROCESS_CAMERA_APP, PROCESS_MEDIASERVER
-        };
-        private static final int STATE_STOPPED = 0;
-        private static final int STATE_SCHEDULED = 1;
-        private static final int STATE_RUNNING = 2;
-
-        private int mState = STATE_STOPPED;
-        private Timer mTimer = new Timer(true); // run as a daemon thread
-        private long mDelayMs = 0;
-        private long mPeriodMs = 60 * 1000;  // 60 sec
-        private File mOutputFile = null;
-        private String mCommand;
-
-        public MeminfoTimer(long delayMs, long periodMs) {
-            mDelayMs = delayMs;
-            mPeriodMs = periodMs;
-            mCommand = DUMPSYS_MEMINFO_COMMAND;
-            for (String process : mDumpsysMemInfoProc) {
-                mCommand += " -e " + process;
-            }
-        }
-
-        synchronized void start(TestDescription test) {
-            if (isRunning()) {
-                stop();
-            }
-            // Create an output file.
-            if (createOutputFile(test) == null) {
-                CLog.w("Stop collecting meminfo since meminfo log file not found.");
-                mState = STATE_STOPPED;
-                return; // No-op
-            }
-            mTimer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    mState = STATE_RUNNING;
-                    dumpMeminfo(mCommand, mOutputFile);
-                }
-            }, mDelayMs, mPeriodMs);
-            mState = STATE_SCHEDULED;
-        }
-
-        synchronized void stop() {
-            mState = STATE_STOPPED;
-            mTimer.cancel();
-        }
-
-        synchronized boolean isRunning() {
-            return (mState == STATE_RUNNING);
-        }
-
-        public File getOutputFile() {
-            return mOutputFile;
-        }
-
-        private File createOutputFile(TestDescription test) {
-            try {
-                mOutputFile = FileUtil.createTempFile(
-                        String.format("meminfo_%s", test.getTestName()), "csv");
-                BufferedWriter writer = new BufferedWriter(new FileWriter(mOutputFile, false));
-                writer.write(LOG_HEADER);
-                writer.newLine();
-                writer.flush();
-                writer.close();
-            } catch (IOException e) {
-                CLog.w("Failed to create meminfo log file %s:", mOutputFile.getAbsolutePath());
-                CLog.e(e);
-                return null;
-            }
-            return mOutputFile;
-        }
-    }
-
-    void dumpMeminfo(String command, File outputFile) {
-        try {
-            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-            // Dump meminfo in a compact form.
-            getDevice().executeShellCommand(command, receiver,
-                    SHELL_TIMEOUT_MS, TimeUnit.MILLISECONDS, SHELL_MAX_ATTEMPTS);
-            printMeminfo(outputFile, receiver.getOutput());
-        } catch (DeviceNotAvailableException e) {
-            CLog.w("Failed to dump meminfo:");
-            CLog.e(e);
-        }
-    }
-
-    void printMeminfo(File outputFile, String meminfo) {
-        // Parse meminfo and print each iteration in a line in a .csv format. The meminfo output
-        // are separated into three different formats:
-        //
-        // Format: time,<uptime>,<realtime>
-        // eg. "time,59459911,63354673"
-        //
-        // Format: proc,<oom_label>,<process_name>,<pid>,<pss>,<hasActivities>
-        // eg. "proc,native,mm-qcamera-daemon,522,12881,e"
-        //     "proc,fore,com.google.android.GoogleCamera,26560,70880,a"
-        //
-        // Format: ram,<total>,<free>,<used>
-        // eg. "ram,1857364,810189,541516"
-        BufferedWriter writer = null;
-        BufferedReader reader = null;
-        try {
-            final String DELIMITER = ",";
-            writer = new BufferedWriter(new FileWriter(outputFile, true));
-            reader = new BufferedReader(new StringReader(meminfo));
-            String line;
-            String uptime = null;
-            String pssCameraNative = null;
-            String pssCameraApp = null;
-            String ramTotal = null;
-            String ramFree = null;
-            String ramUsed = null;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("time")) {
-                    uptime = line.split(DELIMITER)[1];
-                } else if (line.startsWith("ram")) {
-                    String[] ram = line.split(DELIMITER);
-                    ramTotal = ram[1];
-                    ramFree = ram[2];
-                    ramUsed = ram[3];
-                } else if (line.contains(PROCESS_CAMERA_DAEMON)) {
-                    pssCameraNative = line.split(DELIMITER)[4];
-                } else if (line.contains(PROCESS_CAMERA_APP)) {
-                    pssCameraApp = line.split(DELIMITER)[4];
-                }
-            }
-            String printMsg = String.format(
-                    "%s,%s,%s,%s,%s,%s", uptime, pssCameraNative, pssCameraApp,
-                    ramTotal, ramFree, ramUsed);
-            writer.write(printMsg);
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            CLog.w("Failed to print meminfo to %s:", outputFile.getAbsolutePath());
-            CLog.e(e);
-        } finally {
-            StreamUtil.close(writer);
-        }
-    }
-
-    // TODO: Leverage AUPT to collect system logs (meminfo, ION allocations and processes/threads)
-    private class ThreadTrackerTimer {
-
-        // list all threads in a given process, remove the first header line, squeeze whitespaces,
-        // select thread name (in 14th column), then sort and group by its name.
-        // Examples:
-        //    3 SoundPoolThread
-        //    3 SoundPool
-        //    2 Camera Job Disp
-        //    1 pool-7-thread-1
-        //    1 pool-6-thread-1
-        // FIXME: Resolve the error "sh: syntax error: '|' unexpected" using the command below
-        // $ /system/bin/ps -t -p %s | tr -s ' ' | cut -d' ' -f13- | sort | uniq -c | sort -nr"
-        private static final String PS_COMMAND_FORMAT = "/system/bin/ps -t -p %s";
-        private static final String PGREP_COMMAND_FORMAT = "pgrep %s";
-        private static final int STATE_STOPPED = 0;
-        private static final int STATE_SCHEDULED = 1;
-        private static final int STATE_RUNNING = 2;
-
-        private int mState = STATE_STOPPED;
-        private Timer mTimer = new Timer(true); // run as a daemon thread
-        private long mDelayMs = 0;
-        private long mPeriodMs = 60 * 1000;  // 60 sec
-        private File mOutputFile = null;
-
-        public ThreadTrackerTimer(long delayMs, long periodMs) {
-            mDelayMs = delayMs;
-            mPeriodMs = periodMs;
-        }
-
-        synchronized void start(TestDescription test) {
-            if (isRunning()) {
-                stop();
-            }
-            // Create an output file.
-            if (createOutputFile(test) == null) {
-                CLog.w("Stop collecting thread counts since log file not found.");
-                mState = STATE_STOPPED;
-                return; // No-op
-            }
-            mTimer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    mState = STATE_RUNNING;
-                    dumpThreadCount(PS_COMMAND_FORMAT, getPid(PROCESS_CAMERA_APP), mOutputFile);
-                }
-            }, mDelayMs, mPeriodMs);
-            mState = STATE_SCHEDULED;
-        }
-
-        synchronized void stop() {
-            mState = STATE_STOPPED;
-            mTimer.cancel();
-        }
-
-        synchronized boolean isRunning() {
-            return (mState == STATE_RUNNING);
-        }
-
-        public File getOutputFile() {
-            return mOutputFile;
-        }
-
-        File createOutputFile(TestDescription test) {
-            try {
-                mOutputFile = FileUtil.createTempFile(
-                        String.format("ps_%s", test.getTestName()), "txt");
-                new BufferedWriter(new FileWriter(mOutputFile, false)).close();
-            } catch (IOException e) {
-                CLog.w("Failed to create processes and threads file %s:",
-                        mOutputFile.getAbsolutePath());
-                CLog.e(e);
-                return null;
-            }
-            return mOutputFile;
-        }
-
-        String getPid(String processName) {
-            String result = null;
-            try {
-                result = getDevice().executeShellCommand(String.format(PGREP_COMMAND_FORMAT,
-                        processName));
-            } catch (DeviceNotAvailableException e) {
-                CLog.w("Failed to get pid %s:", processName);
-                CLog.e(e);
-            }
-            return result;
-        }
-
-        String getUptime() {
-            String uptime = null;
-            try {
-                // uptime will typically have a format like "5278.73 1866.80".  Use the first one
-                // (which is wall-time)
-                uptime = getDevice().executeShellCommand("cat /proc/uptime").split(" ")[0];
-                Float.parseFloat(uptime);
-            } catch (NumberFormatException e) {
-                CLog.w("Failed to get valid uptime %s: %s", uptime, e);
-            } catch (DeviceNotAvailableException e) {
-                CLog.w("Failed to get valid uptime: %s", e);
-            }
-            return uptime;
-        }
-
-        void dumpThreadCount(String commandFormat, String pid, File outputFile) {
-            try {
-                if ("".equals(pid)) {
-                    return;
-                }
-                String result = getDevice().executeShellCommand(String.format(commandFormat, pid));
-                String header = String.format("UPTIME: %s", getUptime());
-                BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile, true));
-                writer.write(header);
-                writer.newLine();
-                writer.write(result);
-                writer.newLine();
-                writer.flush();
-                writer.close();
-            } catch (DeviceNotAvailableException | IOException e) {
-                CLog.w("Failed to dump thread count:");
-                CLog.e(e);
-            }
-        }
-    }
-
     // TODO: Leverage AUPT to collect system logs (meminfo, ION allocations and
     // processes/threads)
     protected void dumpIonHeaps(ITestInvocationListener listener, String testClass) {
@@ -844,5 +676,9 @@ public class CameraTestBase implements IDeviceTest, IRemoteTest, IConfigurationR
         return mIterations;
     }
 
+    public double getLatencyOutlierIqrFactor() {
+        return mLatencyOutlierIqrFactor;
+    }
+
     public Map<String, String> getInstrumentationArgMap() { return mInstrArgMap; }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Counts the frames and measures the bitrate of a raw H.264 stream, as it is written.
+ *
+ * <p>The stream is expected in Annex B format, NAL units separated by start codes, like the output
+ * of "screenrecord --output-format=h264". Each byte is scanned once for start codes, and a frame
+ * is counted for each slice starting at the first macroblock of a picture, without decoding it.
+ * The bytes received in consecutive windows of time give the bitrate over time. The stream can
+ * optionally be copied to another stream.
+ */
+public class H264StreamParser extends OutputStream {
+
+    private static final int NAL_TYPE_MASK = 0x1f;
+    private static final int NAL_TYPE_SLICE = 1;
+    private static final int NAL_TYPE_IDR_SLICE = 5;
+    // first_mb_in_slice is 0, the first bit of the slice header, for the first slice of a frame
+    private static final int FIRST_SLICE_MASK = 0x80;
+
+    private final OutputStream mCopy;
+    private final long mWindowMs;
+    private boolean mClosed = false;
+
+    // Start code scanning: the zero bytes in a row, and the header bytes to read next
+    private int mZeros = 0;
+    private boolean mNalHeaderNext = false;
+    private boolean mSliceHeaderNext = false;
+    private boolean mIdrSlice = false;
+
+    private long mBytes = 0;
+    private long mFrames = 0;
+    private long mKeyFrames = 0;
+
+    // Bitrate of each window of time from the first byte to the last one
+    private long mStartMs = -1;
+    private long mEndMs = -1;
+    private long mWindowIndex = 0;
+    private long mWindowBytes = 0;
+    private long mWindowFrames = 0;
+    private double[] mWindowBitrates = new double[64];
+    private int mWindowCount = 0;
+    private final StringBuilder mBitrateTimeline = new StringBuilder();
+
+    /**
+     * @param copy a stream to copy the H.264 stream to, or {@code null}
+     * @param windowMs the length of the windows of time to measure the bitrate over
+     */
+    public H264StreamParser(OutputStream copy, long windowMs) {
+        mCopy = copy;
+        mWindowMs = windowMs;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCopy != null) {
+            mCopy.write(b);
+        }
+        onReceived(1);
+        parse(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mCopy != null) {
+            mCopy.write(b, off, len);
+        }
+        onReceived(len);
+        for (int i = off; i < off + len; i++) {
+            parse(b[i]);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mCopy != null) {
+            mCopy.flush();
+        }
+    }
+
+    /**
+     * End the last window of time at the last byte, so the teardown of the stream isn't measured,
+     * and close the copy.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mStartMs != -1) {
+            long windowStartMs = mStartMs + mWindowIndex * mWindowMs;
+            endWindow(Math.max(mEndMs - windowStartMs, 1));
+        }
+        if (mCopy != null) {
+            mCopy.close();
+        }
+    }
+
+    /** Returns the current time, in ms. Exposed for testing. */
+    long getTimeMs() {
+        return System.currentTimeMillis();
+    }
+
+    private void onReceived(int len) {
+        if (len <= 0) {
+            return;
+        }
+        long now = getTimeMs();
+        if (mStartMs == -1) {
+            mStartMs = now;
+        }
+        // Windows without any data, when the stream stalled, are ended with a bitrate of 0
+        long index = (now - mStartMs) / mWindowMs;
+        while (mWindowIndex < index) {
+            endWindow(mWindowMs);
+            mWindowIndex++;
+        }
+        mEndMs = now;
+        mBytes += len;
+        mWindowBytes += len;
+    }
+
+    private void parse(int b) {
+        int value = b & 0xff;
+        if (mSliceHeaderNext) {
+            mSliceHeaderNext = false;
+            if ((value & FIRST_SLICE_MASK) != 0) {
+                mFrames++;
+                mWindowFrames++;
+                if (mIdrSlice) {
+                    mKeyFrames++;
+                }
+            }
+        } else if (mNalHeaderNext) {
+            mNalHeaderNext = false;
+            int type = value & NAL_TYPE_MASK;
+            if (type == NAL_TYPE_SLICE || type == NAL_TYPE_IDR_SLICE) {
+                mSliceHeaderNext = true;
+                mIdrSlice = type == NAL_TYPE_IDR_SLICE;
+            }
+        }
+        // A start code is 0x000001, or 0x00000001
+        if (value == 0) {
+            mZeros++;
+        } else {
+            mNalHeaderNext = value == 1 && mZeros >= 2;
+            mZeros = 0;
+        }
+    }
+
+    private void endWindow(long durationMs) {
+        double kbps = mWindowBytes * 8.0 / durationMs;
+        mBitrateTimeline.append(String.format("%d,%d,%.1f\n",
+                mWindowIndex * mWindowMs, mWindowFrames, kbps));
+        if (mWindowCount == mWindowBitrates.length) {
+            mWindowBitrates = Arrays.copyOf(mWindowBitrates, mWindowCount * 2);
+        }
+        mWindowBitrates[mWindowCount++] = kbps;
+        mWindowBytes = 0;
+        mWindowFrames = 0;
+    }
+
+    /** Returns the number of bytes of the stream. */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Returns the number of frames of the stream. */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /** Returns the number of key frames, IDR frames, of the stream. */
+    public long getKeyFrameCount() {
+        return mKeyFrames;
+    }
+
+    /** Returns the time from the first byte of the stream to the last one, in ms. */
+    public long getDurationMs() {
+        return mStartMs == -1 ? 0 : mEndMs - mStartMs;
+    }
+
+    /** Returns the average bitrate of the stream, in kilobits per second. */
+    public long getBitrateKbps() {
+        long durationMs = getDurationMs();
+        return durationMs > 0 ? mBytes * 8 / durationMs : 0;
+    }
+
+    /** Returns the bitrate of each window of time, in kilobits per second, once closed. */
+    public double[] getWindowBitratesKbps() {
+        return Arrays.copyOf(mWindowBitrates, mWindowCount);
+    }
+
+    /**
+     * Returns the bitrate over time, as CSV lines of the window start in ms, its number of frames
+     * and its bitrate in kilobits per second.
+     */
+    public String getBitrateTimeline() {
+        return "start_ms,frames,kbps\n" + mBitrateTimeline;
+    }
+}
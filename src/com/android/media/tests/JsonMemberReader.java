@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the members of a top-level JSON object one at a time, from a stream.
+ *
+ * <p>Only the member being read is held in memory, as its name and the raw JSON text of its
+ * value, which can then be parsed on its own. Members with the same name are all returned, like
+ * the streams of a CTS report log, which are appended to the file under the same name.
+ */
+public class JsonMemberReader implements Closeable {
+
+    private final Reader mReader;
+    private final StringBuilder mValue = new StringBuilder();
+    private String mName = null;
+    private boolean mStarted = false;
+    private boolean mEnded = false;
+    // The next char, already read ahead, or -1 if none
+    private int mPeeked = -1;
+
+    public JsonMemberReader(Reader reader) {
+        mReader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+    }
+
+    /**
+     * Read the next member.
+     *
+     * @return {@code false} at the end of the object, or at the end of a stream truncated after
+     *     a member, like the log of a crashed test
+     * @throws IOException if the stream can't be read or is not a JSON object
+     */
+    public boolean next() throws IOException {
+        if (mEnded) {
+            return false;
+        }
+        if (!mStarted) {
+            mStarted = true;
+            expect('{');
+        }
+        int c = readNonWhitespace();
+        if (c == ',' && mName != null) {
+            c = readNonWhitespace();
+        }
+        if (c == '}' || c == -1) {
+            if (c == -1) {
+                CLog.w("JSON object not closed, ending it at the end of the stream");
+            }
+            mEnded = true;
+            mName = null;
+            return false;
+        }
+        if (c != '"') {
+            throw malformed(c);
+        }
+        mValue.setLength(0);
+        readString();
+        mName = decodeString(mValue);
+        expect(':');
+        mValue.setLength(0);
+        readValue();
+        return true;
+    }
+
+    /** Returns the name of the current member. */
+    public String getName() {
+        return mName;
+    }
+
+    /** Returns the raw JSON text of the value of the current member. */
+    public String getValue() {
+        return mValue.toString();
+    }
+
+    @Override
+    public void close() {
+        StreamUtil.close(mReader);
+    }
+
+    private void readValue() throws IOException {
+        int c = readNonWhitespace();
+        if (c == '"') {
+            readString();
+            return;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (true) {
+                if (c == -1) {
+                    throw malformed(c);
+                }
+                if (c == '"') {
+                    readString();
+                } else {
+                    mValue.append((char) c);
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                        if (depth == 0) {
+                            return;
+                        }
+                    }
+                }
+                c = read();
+            }
+        }
+        // A number or a literal, which ends where the member does
+        while (c != -1 && c != ',' && c != '}' && !Character.isWhitespace(c)) {
+            mValue.append((char) c);
+            c = read();
+        }
+        if (mValue.length() == 0) {
+            throw malformed(c);
+        }
+        mPeeked = c;
+    }
+
+    /** Append a string, quotes and escapes included, its opening quote being already read. */
+    private void readString() throws IOException {
+        mValue.append('"');
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw malformed(c);
+            }
+            mValue.append((char) c);
+            if (c == '\\') {
+                int escaped = read();
+                if (escaped == -1) {
+                    throw malformed(escaped);
+                }
+                mValue.append((char) escaped);
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    /** Returns the content of a quoted string, with its escapes decoded. */
+    private static String decodeString(CharSequence quoted) throws IOException {
+        StringBuilder sb = new StringBuilder(quoted.length());
+        for (int i = 1; i < quoted.length() - 1; i++) {
+            char c = quoted.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char escaped = quoted.charAt(++i);
+            switch (escaped) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= quoted.length()) {
+                        throw new IOException("Malformed JSON: invalid unicode escape");
+                    }
+                    try {
+                        String hex = quoted.subSequence(i + 1, i + 5).toString();
+                        sb.append((char) Integer.parseInt(hex, 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed JSON: invalid unicode escape");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    sb.append(escaped);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = readNonWhitespace();
+        if (c != expected) {
+            throw malformed(c);
+        }
+    }
+
+    private int readNonWhitespace() throws IOException {
+        int c = read();
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (mPeeked != -1) {
+            int c = mPeeked;
+            mPeeked = -1;
+            return c;
+        }
+        return mReader.read();
+    }
+
+    private static IOException malformed(int c) {
+        return new IOException(
+                c == -1
+                        ? "Malformed JSON: unexpected end of stream"
+                        : String.format("Malformed JSON: unexpected '%c'", (char) c));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps every per-iteration value of a set of KPIs, and reports their distribution.
+ *
+ * <p>An average hides the slow iterations, so each KPI is reported as its min, p50, p90, p99, max
+ * and standard deviation instead. Values far outside the interquartile range, like a launch timed
+ * across a GC storm or a clock glitch, are dropped before the statistics are computed, and their
+ * number is reported so that they are not hidden either.
+ */
+public class LatencyDistributions {
+
+    /** Tukey's fence for "far out" values */
+    public static final double DEFAULT_OUTLIER_IQR_FACTOR = 3.0;
+    // Fewer values don't give a meaningful interquartile range
+    private static final int MIN_VALUES_FOR_OUTLIERS = 4;
+
+    /** The values of one KPI, in the order they were added. */
+    private static class Series {
+        double[] mValues = new double[16];
+        int mCount = 0;
+
+        void add(double value) {
+            if (mCount == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+            }
+            mValues[mCount++] = value;
+        }
+    }
+
+    private final Map<String, Series> mSeries = new LinkedHashMap<>();
+
+    /** Add one value of a KPI. */
+    public synchronized void add(String kpi, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        Series series = mSeries.get(kpi);
+        if (series == null) {
+            series = new Series();
+            mSeries.put(kpi, series);
+        }
+        series.add(value);
+    }
+
+    /**
+     * Add the values of a KPI given as a whitespace separated list, like the raw data the camera
+     * instrumentation reports after its average.
+     *
+     * @return the number of values added
+     */
+    public int addAll(String kpi, String values) {
+        int added = 0;
+        for (String value : values.trim().split("\\s+")) {
+            if (value.isEmpty()) {
+                continue;
+            }
+            try {
+                add(kpi, Double.parseDouble(value));
+                added++;
+            } catch (NumberFormatException e) {
+                CLog.w("Ignoring invalid value of %s: %s", kpi, value);
+            }
+        }
+        return added;
+    }
+
+    /** Add all the values of another set of distributions. */
+    public void addAll(LatencyDistributions other) {
+        Map<String, double[]> values = new LinkedHashMap<>();
+        synchronized (other) {
+            for (Map.Entry<String, Series> entry : other.mSeries.entrySet()) {
+                Series series = entry.getValue();
+                values.put(entry.getKey(), Arrays.copyOf(series.mValues, series.mCount));
+            }
+        }
+        for (Map.Entry<String, double[]> entry : values.entrySet()) {
+            for (double value : entry.getValue()) {
+                add(entry.getKey(), value);
+            }
+        }
+    }
+
+    /** Returns {@code true} if no value was added. */
+    public synchronized boolean isEmpty() {
+        return mSeries.isEmpty();
+    }
+
+    /**
+     * Returns the distribution of each KPI, as {@code <kpi>_min}, {@code _p50}, {@code _p90},
+     * {@code _p99}, {@code _max}, {@code _stddev} and {@code _outliers}.
+     *
+     * @param outlierIqrFactor values further than this many interquartile ranges from the first
+     *     or third quartile are dropped. Zero or less keeps all values.
+     */
+    public synchronized Map<String, String> getMetrics(double outlierIqrFactor) {
+        Map<String, String> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, Series> entry : mSeries.entrySet()) {
+            Series series = entry.getValue();
+            double[] sorted = Arrays.copyOf(series.mValues, series.mCount);
+            Arrays.sort(sorted);
+            double[] kept = rejectOutliers(sorted, outlierIqrFactor);
+            String kpi = entry.getKey();
+            metrics.put(kpi + "_min", format(kept[0]));
+            metrics.put(kpi + "_p50", format(getPercentile(kept, 50)));
+            metrics.put(kpi + "_p90", format(getPercentile(kept, 90)));
+            metrics.put(kpi + "_p99", format(getPercentile(kept, 99)));
+            metrics.put(kpi + "_max", format(kept[kept.length - 1]));
+            metrics.put(kpi + "_stddev", format(getStandardDeviation(kept)));
+            metrics.put(kpi + "_outliers", Integer.toString(sorted.length - kept.length));
+        }
+        return metrics;
+    }
+
+    /** Returns the values within the fences of a sorted array, never dropping all of them. */
+    static double[] rejectOutliers(double[] sorted, double iqrFactor) {
+        if (iqrFactor <= 0 || sorted.length < MIN_VALUES_FOR_OUTLIERS) {
+            return sorted;
+        }
+        double q1 = getPercentile(sorted, 25);
+        double q3 = getPercentile(sorted, 75);
+        double lower = q1 - iqrFactor * (q3 - q1);
+        double upper = q3 + iqrFactor * (q3 - q1);
+        int from = 0;
+        while (from < sorted.length && sorted[from] < lower) {
+            from++;
+        }
+        int to = sorted.length;
+        while (to > from && sorted[to - 1] > upper) {
+            to--;
+        }
+        return Arrays.copyOfRange(sorted, from, to);
+    }
+
+    /** Returns the percentile of a sorted array, interpolated between the closest ranks. */
+    static double getPercentile(double[] sorted, double percentile) {
+        double rank = percentile / 100 * (sorted.length - 1);
+        int below = (int) Math.floor(rank);
+        int above = (int) Math.ceil(rank);
+        return sorted[below] + (rank - below) * (sorted[above] - sorted[below]);
+    }
+
+    /** Returns the sample standard deviation, or zero for a single value. */
+    static double getStandardDeviation(double[] values) {
+        if (values.length < 2) {
+            return 0;
+        }
+        double mean = 0;
+        for (double value : values) {
+            mean += value;
+        }
+        mean /= values.length;
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(squares / (values.length - 1));
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+}
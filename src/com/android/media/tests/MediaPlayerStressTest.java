@@ -35,7 +35,6 @@ import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.FileUtil;
-import com.android.tradefed.util.RegexTrie;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
@@ -45,11 +44,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -80,7 +76,7 @@ public class MediaPlayerStressTest implements IDeviceTest, IRemoteTest {
     private static final String TEST_PACKAGE_NAME = "com.android.mediaframeworktest";
     private static final String TEST_RUNNER_NAME = ".MediaPlayerStressTestRunner";
 
-    public RegexTrie<String> mPatternMap = new RegexTrie<>();
+    public PatternLineProcessor mPatternMap = new PatternLineProcessor();
 
     public MediaPlayerStressTest() {
         mPatternMap.put("PlaybackPass", "^Total Complete: (\\d+)");
@@ -141,7 +137,9 @@ public class MediaPlayerStressTest implements IDeviceTest, IRemoteTest {
             outputSource = new FileInputStreamSource(outputFile);
             listener.testLog(mOutputPath, LogDataType.TEXT, outputSource);
             // Parse the output file to upload aggregated metrics
-            parseOutputFile(new FileInputStream(outputFile), listener);
+            try (InputStream dataStream = new FileInputStream(outputFile)) {
+                parseOutputFile(dataStream, listener);
+            }
         } catch (IOException e) {
             Log.e(LOG_TAG, String.format(
                 "IOException while reading or parsing output file: %s", e));
@@ -159,34 +157,24 @@ public class MediaPlayerStressTest implements IDeviceTest, IRemoteTest {
         Map<String, String> runMetrics = new HashMap<>();
 
         // try to parse it
-        String contents;
         try {
-            contents = StreamUtil.getStringFromStream(dataStream);
+            mPatternMap.process(dataStream, new PatternLineProcessor.LineHandler() {
+                @Override
+                public void onMatch(String key, List<String> captures, String line) {
+                    Log.d(LOG_TAG, String.format("Got '%s' and captures '%s'", key, captures));
+                    runMetrics.put(key, captures.get(0));
+                }
+
+                @Override
+                public void onUnmatched(String line) {
+                    Log.d(LOG_TAG, String.format("Got unmatched line: %s", line));
+                }
+            });
         } catch (IOException e) {
             Log.e(LOG_TAG, String.format(
                     "Got IOException during test processing: %s", e));
             return;
         }
-
-        List<String> lines = Arrays.asList(contents.split("\n"));
-        ListIterator<String> lineIter = lines.listIterator();
-        String line;
-        while (lineIter.hasNext()) {
-            line = lineIter.next();
-            List<List<String>> capture = new ArrayList<>(1);
-            String key = mPatternMap.retrieve(capture, line);
-            if (key != null) {
-                Log.d(LOG_TAG, String.format("Got '%s' and captures '%s'",
-                        key, capture.toString()));
-            } else if (line.isEmpty()) {
-                // ignore
-                continue;
-            } else {
-                Log.d(LOG_TAG, String.format("Got unmatched line: %s", line));
-                continue;
-            }
-            runMetrics.put(key, capture.get(0).get(0));
-        }
         reportMetrics(listener, runMetrics);
     }
 
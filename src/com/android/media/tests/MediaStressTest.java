@@ -38,14 +38,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Runs the Media stress testcases.
@@ -68,11 +64,20 @@ public class MediaStressTest implements IDeviceTest, IRemoteTest {
     private static final String TEST_RUNNER_NAME = ".MediaRecorderStressTestRunner";
 
     // Constants for parsing the output file
-    private static final Pattern EXPECTED_LOOP_COUNT_PATTERN =
-            Pattern.compile("Total number of loops:\\s*(\\d+)");
-    private static final Pattern ACTUAL_LOOP_COUNT_PATTERN =
-            Pattern.compile("No of loop:.*,\\s*(\\d+)\\s*");
     private static final String OUTPUT_PATH = "mediaStressOutput.txt";
+    private static final String EXPECTED_LOOP_COUNT = "expected";
+    private static final String ACTUAL_LOOP_COUNT = "actual";
+    private static final PatternLineProcessor OUTPUT_PATTERNS = new PatternLineProcessor();
+
+    static {
+        // Each stanza starts with the name of the test method, followed by its loop counts
+        OUTPUT_PATTERNS.put("VideoRecordPlayback1080P", "testStressRecordVideoAndPlayback1080P");
+        OUTPUT_PATTERNS.put("VideoRecordPlayback720P", "testStressRecordVideoAndPlayback720P");
+        OUTPUT_PATTERNS.put("VideoRecordPlayback480P", "testStressRecordVideoAndPlayback480P");
+        OUTPUT_PATTERNS.put("TimeLapseRecord", "testStressTimeLapse");
+        OUTPUT_PATTERNS.put(EXPECTED_LOOP_COUNT, "Total number of loops:\\s*(\\d+)");
+        OUTPUT_PATTERNS.put(ACTUAL_LOOP_COUNT, "No of loop:.*,\\s*(\\d+)\\s*");
+    }
 
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
@@ -128,42 +133,17 @@ public class MediaStressTest implements IDeviceTest, IRemoteTest {
      */
     private void parseOutputFile(File outputFile, ITestInvocationListener listener) {
         Map<String, String> runMetrics = new HashMap<>();
-        Map<String, String> stanzaKeyMap = new HashMap<>();
-        stanzaKeyMap.put("testStressRecordVideoAndPlayback1080P", "VideoRecordPlayback1080P");
-        stanzaKeyMap.put("testStressRecordVideoAndPlayback720P", "VideoRecordPlayback720P");
-        stanzaKeyMap.put("testStressRecordVideoAndPlayback480P", "VideoRecordPlayback480P");
-        stanzaKeyMap.put("testStressTimeLapse", "TimeLapseRecord");
+        LoopCountHandler handler = new LoopCountHandler(runMetrics);
 
         // try to parse it
-        String contents;
-        try {
-            InputStream dataStream = new FileInputStream(outputFile);
-            contents = StreamUtil.getStringFromStream(dataStream);
+        try (InputStream dataStream = new FileInputStream(outputFile)) {
+            OUTPUT_PATTERNS.process(dataStream, handler);
         } catch (IOException e) {
             CLog.e("IOException while parsing the output file:");
             CLog.e(e);
             return;
         }
-
-        List<String> lines = Arrays.asList(contents.split("\n"));
-        ListIterator<String> lineIter = lines.listIterator();
-        String line;
-        while (lineIter.hasNext()) {
-            line = lineIter.next();
-            String key = null;
-
-            if (stanzaKeyMap.containsKey(line)) {
-                key = stanzaKeyMap.get(line);
-            } else {
-                CLog.d("Got unexpected line: %s", line);
-                continue;
-            }
-
-            Integer countExpected = getIntFromOutput(lineIter, EXPECTED_LOOP_COUNT_PATTERN);
-            Integer countActual = getIntFromOutput(lineIter, ACTUAL_LOOP_COUNT_PATTERN);
-            int value = coalesceLoopCounts(countActual, countExpected);
-            runMetrics.put(key, Integer.toString(value));
-        }
+        handler.commit();
 
         reportMetrics(listener, runMetrics);
     }
@@ -181,24 +161,45 @@ public class MediaStressTest implements IDeviceTest, IRemoteTest {
     }
 
     /**
-     * Use the provided {@link Pattern} to parse a number out of the output file
+     * Collects the loop counts of each stanza of the output file, and commits them when the next
+     * stanza starts.
      */
-    private Integer getIntFromOutput(ListIterator<String> lineIter, Pattern numPattern) {
-        Integer retval = null;
-        String line = null;
-        if (lineIter.hasNext()) {
-            line = lineIter.next();
-            Matcher m = numPattern.matcher(line);
-            if (m.matches()) {
-                retval = Integer.parseInt(m.group(1));
+    private class LoopCountHandler implements PatternLineProcessor.LineHandler {
+        private final Map<String, String> mRunMetrics;
+        private String mKey = null;
+        private Integer mCountExpected = null;
+        private Integer mCountActual = null;
+
+        LoopCountHandler(Map<String, String> runMetrics) {
+            mRunMetrics = runMetrics;
+        }
+
+        @Override
+        public void onMatch(String key, List<String> captures, String line) {
+            if (EXPECTED_LOOP_COUNT.equals(key)) {
+                mCountExpected = Integer.parseInt(captures.get(0));
+            } else if (ACTUAL_LOOP_COUNT.equals(key)) {
+                mCountActual = Integer.parseInt(captures.get(0));
             } else {
-                CLog.e("Couldn't match pattern %s against line '%s'", numPattern, line);
+                commit();
+                mKey = key;
+                mCountExpected = null;
+                mCountActual = null;
             }
-        } else {
-            CLog.e("Encounted EOF while trying to match pattern %s", numPattern);
         }
 
-        return retval;
+        @Override
+        public void onUnmatched(String line) {
+            CLog.d("Got unexpected line: %s", line);
+        }
+
+        /** Commit the counts of the current stanza, if there is one. */
+        void commit() {
+            if (mKey != null) {
+                int value = coalesceLoopCounts(mCountActual, mCountExpected);
+                mRunMetrics.put(mKey, Integer.toString(value));
+            }
+        }
     }
 
     /**
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the duration, bitrate and frames of an MP4 (ISO base media) file from its boxes, without
+ * decoding the video.
+ *
+ * <p>The file is memory mapped and only the boxes describing the movie are read: mvhd for the
+ * duration, and for the first video track, stsz for the size of each frame and stts for the time
+ * between frames. The media data itself is never touched.
+ */
+public class Mp4BoxParser {
+
+    private static final String HANDLER_VIDEO = "vide";
+
+    private final ByteBuffer mBuffer;
+    private long mTimescale = 0;
+    private long mDuration = 0;
+    private boolean mMovieFound = false;
+
+    // The track being read, and the first video track
+    private Track mTrack = null;
+    private Track mVideoTrack = null;
+
+    /** The boxes of a track needed for its frames. */
+    private static class Track {
+        String mHandler = null;
+        long mTimescale = 0;
+        int[] mSampleSizes = null;
+        long[] mSampleDeltas = null;
+    }
+
+    /**
+     * Parse an MP4 file.
+     *
+     * @param file the file to parse
+     * @return the parsed file
+     * @throws IOException if the file can't be read or is not a valid MP4 file
+     */
+    public static Mp4BoxParser parse(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be mapped: " + file);
+            }
+            return new Mp4BoxParser(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @param buffer the content of an MP4 file
+     * @throws IOException if the content is not a valid MP4 file
+     */
+    Mp4BoxParser(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        parseBoxes(0, buffer.limit());
+        if (!mMovieFound || mTimescale <= 0) {
+            throw new IOException("No movie header found");
+        }
+        if (mVideoTrack == null
+                || mVideoTrack.mSampleSizes == null
+                || mVideoTrack.mSampleDeltas == null) {
+            throw new IOException("No video track found");
+        }
+        if (mVideoTrack.mTimescale <= 0) {
+            throw new IOException("No media header found for the video track");
+        }
+    }
+
+    /** Returns the duration of the movie, in ms. */
+    public long getDurationMs() {
+        return mDuration * 1000 / mTimescale;
+    }
+
+    /** Returns the size of the file, in bytes. */
+    public long getFileSize() {
+        return mBuffer.limit();
+    }
+
+    /** Returns the bitrate of the whole file, in kilobits per second. */
+    public long getBitrateKbps() {
+        long durationMs = getDurationMs();
+        return durationMs > 0 ? getFileSize() * 8 / durationMs : 0;
+    }
+
+    /** Returns the number of frames of the video track. */
+    public int getFrameCount() {
+        return mVideoTrack.mSampleSizes.length;
+    }
+
+    /** Returns the size of each frame of the video track, in bytes. */
+    public int[] getFrameSizes() {
+        return mVideoTrack.mSampleSizes.clone();
+    }
+
+    /**
+     * Returns the time between each frame of the video track and the next one, in ms. The last
+     * frame has no next one, so there is one interval less than frames.
+     */
+    public double[] getFrameIntervalsMs() {
+        long[] deltas = mVideoTrack.mSampleDeltas;
+        int count = Math.min(deltas.length, getFrameCount()) - 1;
+        double[] intervals = new double[Math.max(count, 0)];
+        for (int i = 0; i < intervals.length; i++) {
+            intervals[i] = deltas[i] * 1000.0 / mVideoTrack.mTimescale;
+        }
+        return intervals;
+    }
+
+    /** Walk the boxes in [start, end) of the buffer. */
+    private void parseBoxes(int start, int end) throws IOException {
+        int pos = start;
+        while (pos + 8 <= end) {
+            long size = getUnsignedInt(pos);
+            String type = getFourCc(pos + 4);
+            int headerSize = 8;
+            if (size == 1) {
+                // 64-bit size following the type
+                checkRange(pos + 16, end, type);
+                size = mBuffer.getLong(pos + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                // the box extends to the end of its parent
+                size = end - pos;
+            }
+            if (size < headerSize || size > end - pos) {
+                throw new IOException(String.format("Malformed box '%s' at %d", type, pos));
+            }
+            int content = pos + headerSize;
+            int boxEnd = (int) (pos + size);
+            switch (type) {
+                case "moov":
+                case "mdia":
+                case "minf":
+                case "stbl":
+                    parseBoxes(content, boxEnd);
+                    break;
+                case "trak":
+                    mTrack = new Track();
+                    parseBoxes(content, boxEnd);
+                    if (mVideoTrack == null && HANDLER_VIDEO.equals(mTrack.mHandler)) {
+                        mVideoTrack = mTrack;
+                    }
+                    mTrack = null;
+                    break;
+                case "mvhd":
+                    parseMovieHeader(content, boxEnd);
+                    break;
+                case "mdhd":
+                    parseMediaHeader(content, boxEnd);
+                    break;
+                case "hdlr":
+                    if (mTrack != null) {
+                        checkRange(content + 12, boxEnd, type);
+                        mTrack.mHandler = getFourCc(content + 8);
+                    }
+                    break;
+                case "stsz":
+                    parseSampleSizes(content, boxEnd);
+                    break;
+                case "stts":
+                    parseTimeToSample(content, boxEnd);
+                    break;
+                default:
+                    // media data and other boxes are skipped
+                    break;
+            }
+            pos = boxEnd;
+        }
+    }
+
+    private void parseMovieHeader(int content, int end) throws IOException {
+        // version 1 has 64-bit creation time, modification time and duration
+        if (mBuffer.get(content) == 1) {
+            checkRange(content + 32, end, "mvhd");
+            mTimescale = getUnsignedInt(content + 20);
+            mDuration = mBuffer.getLong(content + 24);
+        } else {
+            checkRange(content + 20, end, "mvhd");
+            mTimescale = getUnsignedInt(content + 12);
+            mDuration = getUnsignedInt(content + 16);
+        }
+        mMovieFound = true;
+    }
+
+    private void parseMediaHeader(int content, int end) throws IOException {
+        if (mTrack == null) {
+            return;
+        }
+        int timescaleOffset = mBuffer.get(content) == 1 ? 20 : 12;
+        checkRange(content + timescaleOffset + 4, end, "mdhd");
+        mTrack.mTimescale = getUnsignedInt(content + timescaleOffset);
+        if (mTrack.mTimescale <= 0) {
+            throw new IOException("Invalid media timescale");
+        }
+    }
+
+    private void parseSampleSizes(int content, int end) throws IOException {
+        if (mTrack == null) {
+            return;
+        }
+        // format: version and flags, size of all samples (or 0), number of samples, sizes
+        checkRange(content + 12, end, "stsz");
+        int sampleSize = mBuffer.getInt(content + 4);
+        int count = getSampleCount(getUnsignedInt(content + 8), "stsz");
+        if (sampleSize == 0) {
+            checkRange(content + 12 + 4L * count, end, "stsz");
+        }
+        int[] sizes = new int[count];
+        if (sampleSize != 0) {
+            Arrays.fill(sizes, sampleSize);
+        } else {
+            for (int i = 0; i < count; i++) {
+                sizes[i] = mBuffer.getInt(content + 12 + 4 * i);
+            }
+        }
+        mTrack.mSampleSizes = sizes;
+    }
+
+    private void parseTimeToSample(int content, int end) throws IOException {
+        if (mTrack == null) {
+            return;
+        }
+        // format: version and flags, number of entries, (sample count, sample delta) entries
+        checkRange(content + 8, end, "stts");
+        int entries = getCount(content + 4);
+        checkRange(content + 8 + 8L * entries, end, "stts");
+        long total = 0;
+        for (int i = 0; i < entries; i++) {
+            total += getUnsignedInt(content + 8 + 8 * i);
+        }
+        long[] deltas = new long[getSampleCount(total, "stts")];
+        int index = 0;
+        for (int i = 0; i < entries; i++) {
+            int count = (int) getUnsignedInt(content + 8 + 8 * i);
+            long delta = getUnsignedInt(content + 12 + 8 * i);
+            Arrays.fill(deltas, index, index + count, delta);
+            index += count;
+        }
+        mTrack.mSampleDeltas = deltas;
+    }
+
+    private int getCount(int offset) throws IOException {
+        long count = getUnsignedInt(offset);
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Invalid count at " + offset);
+        }
+        return (int) count;
+    }
+
+    /** Returns a number of samples, which can't be more than the bytes of the file. */
+    private int getSampleCount(long count, String type) throws IOException {
+        if (count > mBuffer.limit()) {
+            throw new IOException(String.format("Too many samples in '%s': %d", type, count));
+        }
+        return (int) count;
+    }
+
+    private long getUnsignedInt(int offset) {
+        return mBuffer.getInt(offset) & 0xffffffffL;
+    }
+
+    private String getFourCc(int offset) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static void checkRange(long needed, int end, String type) throws IOException {
+        if (needed > end) {
+            throw new IOException(String.format("Truncated box '%s'", type));
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the data of the video multimeter in a single pass, as the multimeter tool writes it.
+ *
+ * <p>The output of the tool is written to this stream, which splits it into lines and updates the
+ * smoothness, freezing and lipsync statistics of each line as it arrives, optionally copying the
+ * raw output to another stream. Frame durations and lipsync offsets are kept in primitive arrays
+ * for their percentiles.
+ *
+ * <p>The frame pacing is measured in the same pass: each frame is classified by how many vsync
+ * periods of the display its duration is off from the expected one, into a histogram, and the
+ * smoothness score is also computed over consecutive windows of playback time, so that a short
+ * stutter is not averaged away over the whole video.
+ */
+public class MultimeterDataParser extends OutputStream {
+
+    private static final Pattern VIDEO_FRAME_DATA_PATTERN =
+            Pattern.compile(VideoMultimeterTest.VIDEO_FRAME_DATA_PATTERN);
+    private static final Pattern LIPSYNC_DATA_PATTERN =
+            Pattern.compile(VideoMultimeterTest.LIPSYNC_DATA_PATTERN);
+    private static final int MISSING_FRAME_CEILING = 5; //5+ frames missing count the same
+    private static final double[] MISSING_FRAME_WEIGHT = {0.0, 1.0, 2.5, 5.0, 6.25, 8.0};
+    static final float DEFAULT_REFRESH_RATE = 60.0f;
+    static final long DEFAULT_SMOOTHNESS_WINDOW_MS = 1000;
+    // Vsync offsets beyond these bounds are counted in the first or last bucket
+    private static final int PACING_HISTOGRAM_MIN = -2;
+    private static final int PACING_HISTOGRAM_MAX = 5;
+    private static final int LATE_VSYNC_CEILING = 3; // 3+ vsyncs late count the same
+
+    private final long mFrameCaptured;
+    private final double mExpectedFrameDurationUs;
+    private final boolean mLipsync;
+    private final OutputStream mCopy;
+    private final Matcher mFrameMatcher = VIDEO_FRAME_DATA_PATTERN.matcher("");
+    private final Matcher mLipsyncMatcher = LIPSYNC_DATA_PATTERN.matcher("");
+
+    // The bytes of the line being written
+    private byte[] mLine = new byte[128];
+    private int mLineLength = 0;
+    private boolean mClosed = false;
+
+    // Frame data, until the trailing frames
+    private boolean mFramesTrimmed = false;
+    private String mTotalDropFrame = "-1";
+    private String mLastDropFrame = "0";
+    private long mFrameCount = 0;
+    private long mConsecutiveDropFrame = 0;
+    private double mFreezingPenalty = 0.0;
+    private double mOffByOne = 0;
+    private double mOffByMultiple = 0;
+    private double[] mFrameDurationsUs = new double[1024];
+    private int mFrameDurationCount = 0;
+    private long mMaxConsecutiveDropFrame = 0;
+
+    // Frame pacing, in vsync periods off from the expected frame duration
+    private double mVsyncPeriodUs = 1000000.0 / DEFAULT_REFRESH_RATE;
+    private long mWindowUs = DEFAULT_SMOOTHNESS_WINDOW_MS * 1000;
+    private final long[] mPacingHistogram =
+            new long[PACING_HISTOGRAM_MAX - PACING_HISTOGRAM_MIN + 1];
+    private long mEarlyFrames = 0;
+    private long mOnTimeFrames = 0;
+    private final long[] mLateFrames = new long[LATE_VSYNC_CEILING + 1];
+    private long mLongestFrameUs = 0;
+
+    // Smoothness of the current window of playback time, and of the windows so far
+    private long mElapsedUs = 0;
+    private long mWindowStartUs = 0;
+    private int mWindowFrames = 0;
+    private int mWindowOffByOne = 0;
+    private int mWindowOffByMultiple = 0;
+    private int mWindowCount = 0;
+    private double mWindowSmoothnessSum = 0.0;
+    private double mWindowSmoothnessMin = Double.MAX_VALUE;
+    private final StringBuilder mSmoothnessTimeline = new StringBuilder();
+
+    // Lipsync data
+    private int mLipsyncLastTime = -1;
+    private long mLipsyncSum = 0;
+    private double[] mLipsyncValues = new double[64];
+    private int mLipsyncCount = 0;
+    private final StringBuilder mLipsyncValuesStr = new StringBuilder("[");
+
+    /**
+     * @param frameCaptured the number of data points collected by the multimeter
+     * @param fps the frame rate of the video
+     * @param lipsync whether to parse the lipsync data
+     * @param copy a stream to copy the raw output to, or {@code null}
+     */
+    public MultimeterDataParser(long frameCaptured, float fps, boolean lipsync, OutputStream copy) {
+        mFrameCaptured = frameCaptured;
+        mExpectedFrameDurationUs = 1000000.0 / fps;
+        mLipsync = lipsync;
+        mCopy = copy;
+    }
+
+    /**
+     * Set how the frame pacing is measured, before any data is written.
+     *
+     * @param refreshRate the refresh rate of the display, in Hz
+     * @param windowMs the length of the windows of playback time of the smoothness timeline
+     */
+    public void setFramePacing(float refreshRate, long windowMs) {
+        mVsyncPeriodUs = 1000000.0 / refreshRate;
+        mWindowUs = windowMs * 1000;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCopy != null) {
+            mCopy.write(b);
+        }
+        append((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mCopy != null) {
+            mCopy.write(b, off, len);
+        }
+        for (int i = off; i < off + len; i++) {
+            append(b[i]);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mCopy != null) {
+            mCopy.flush();
+        }
+    }
+
+    /** Parse the last line, if it is not terminated, and close the copy. */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mLineLength > 0) {
+            endLine();
+        }
+        if (mCopy != null) {
+            mCopy.close();
+        }
+    }
+
+    private void append(byte b) {
+        if (b == '\n') {
+            endLine();
+            return;
+        }
+        if (mLineLength == mLine.length) {
+            mLine = Arrays.copyOf(mLine, mLineLength * 2);
+        }
+        mLine[mLineLength++] = b;
+    }
+
+    private void endLine() {
+        String line = new String(mLine, 0, mLineLength, StandardCharsets.US_ASCII).trim();
+        mLineLength = 0;
+        parseLine(line);
+    }
+
+    /** Update the statistics with one line of the multimeter output. */
+    void parseLine(String line) {
+        // format: "OK (time); (frame duration); (marker color); (total dropped frames)"
+        if (!mFramesTrimmed && mFrameMatcher.reset(line).matches()) {
+            parseFrame(Long.parseLong(mFrameMatcher.group(1)), mFrameMatcher.group(2));
+        }
+        // format: "OK (time); (frame duration); (marker color); (total dropped frames); (lipsync)"
+        if (mLipsync && mLipsyncMatcher.reset(line).matches()) {
+            parseLipsync(
+                    Integer.parseInt(mLipsyncMatcher.group(1)),
+                    Integer.parseInt(mLipsyncMatcher.group(2)));
+        }
+    }
+
+    private void parseFrame(long frameDuration, String totalDropFrame) {
+        // frameDuration = -1 indicates dropped frame
+        if (frameDuration > 0) {
+            mFrameCount++;
+        }
+        mTotalDropFrame = totalDropFrame;
+        // trim the last few data points if needed
+        if (mFrameCount >= mFrameCaptured - VideoMultimeterTest.TRAILING_FRAMES_MAX - 1
+                && frameDuration > VideoMultimeterTest.FRAME_DURATION_THRESHOLD_US) {
+            mFramesTrimmed = true;
+            return;
+        }
+        if (frameDuration > 0) {
+            if (mFrameDurationCount == mFrameDurationsUs.length) {
+                mFrameDurationsUs = Arrays.copyOf(mFrameDurationsUs, mFrameDurationCount * 2);
+            }
+            mFrameDurationsUs[mFrameDurationCount++] = frameDuration;
+        }
+        if (mLastDropFrame.equals(totalDropFrame)) {
+            if (mConsecutiveDropFrame > 0) {
+                mFreezingPenalty +=
+                        MISSING_FRAME_WEIGHT[(int) Math.min(mConsecutiveDropFrame,
+                                MISSING_FRAME_CEILING)] * mConsecutiveDropFrame;
+                mMaxConsecutiveDropFrame =
+                        Math.max(mMaxConsecutiveDropFrame, mConsecutiveDropFrame);
+                mConsecutiveDropFrame = 0;
+            }
+        } else {
+            mConsecutiveDropFrame++;
+        }
+        mLastDropFrame = totalDropFrame;
+
+        boolean offByOne = false;
+        boolean offByMultiple = false;
+        if (frameDuration < mExpectedFrameDurationUs * 0.5) {
+            offByOne = true;
+        } else if (frameDuration > mExpectedFrameDurationUs * 1.5) {
+            if (frameDuration < mExpectedFrameDurationUs * 2.5) {
+                offByOne = true;
+            } else {
+                offByMultiple = true;
+            }
+        }
+        if (offByOne) {
+            mOffByOne++;
+        } else if (offByMultiple) {
+            mOffByMultiple++;
+        }
+        if (frameDuration > 0) {
+            parseFramePacing(frameDuration, offByOne, offByMultiple);
+        }
+    }
+
+    private void parseFramePacing(long frameDuration, boolean offByOne, boolean offByMultiple) {
+        long vsyncOffset = Math.round((frameDuration - mExpectedFrameDurationUs) / mVsyncPeriodUs);
+        int bucket = (int) Math.max(PACING_HISTOGRAM_MIN, Math.min(vsyncOffset,
+                PACING_HISTOGRAM_MAX));
+        mPacingHistogram[bucket - PACING_HISTOGRAM_MIN]++;
+        if (vsyncOffset < 0) {
+            mEarlyFrames++;
+        } else if (vsyncOffset == 0) {
+            mOnTimeFrames++;
+        } else {
+            mLateFrames[(int) Math.min(vsyncOffset, LATE_VSYNC_CEILING)]++;
+        }
+        mLongestFrameUs = Math.max(mLongestFrameUs, frameDuration);
+
+        // A frame counts in the window it is displayed at first
+        long frameStartUs = mElapsedUs;
+        mElapsedUs += frameDuration;
+        if (frameStartUs >= mWindowStartUs + mWindowUs) {
+            endWindow();
+            // Windows entirely covered by a frozen frame are skipped
+            mWindowStartUs = frameStartUs - frameStartUs % mWindowUs;
+        }
+        mWindowFrames++;
+        if (offByOne) {
+            mWindowOffByOne++;
+        } else if (offByMultiple) {
+            mWindowOffByMultiple++;
+        }
+    }
+
+    private void endWindow() {
+        if (mWindowFrames == 0) {
+            return;
+        }
+        double smoothness = 100.0 - (100.0 * mWindowOffByOne) / mWindowFrames
+                - (300.0 * mWindowOffByMultiple) / mWindowFrames;
+        mSmoothnessTimeline.append(String.format("%d,%d,%.2f\n",
+                mWindowStartUs / 1000, mWindowFrames, smoothness));
+        mWindowCount++;
+        mWindowSmoothnessSum += smoothness;
+        mWindowSmoothnessMin = Math.min(mWindowSmoothnessMin, smoothness);
+        mWindowFrames = 0;
+        mWindowOffByOne = 0;
+        mWindowOffByMultiple = 0;
+    }
+
+    private void parseLipsync(int lipSyncTime, int lipSyncVal) {
+        if (mLipsyncLastTime != -1
+                && (lipSyncTime - mLipsyncLastTime) < VideoMultimeterTest.LIPSYNC_SIGNAL_MIN) {
+            return; // ignore the early/spurious one
+        }
+        mLipsyncLastTime = lipSyncTime;
+        if (mLipsyncCount == mLipsyncValues.length) {
+            mLipsyncValues = Arrays.copyOf(mLipsyncValues, mLipsyncCount * 2);
+        }
+        mLipsyncValues[mLipsyncCount++] = lipSyncVal;
+        mLipsyncValuesStr.append(lipSyncVal);
+        mLipsyncValuesStr.append(", ");
+        mLipsyncSum += lipSyncVal;
+    }
+
+    /**
+     * Add the metrics of the data parsed so far.
+     *
+     * @param metrics the metrics to add to
+     * @param keyprefix the prefix of the metric keys
+     */
+    public void addMetrics(Map<String, String> metrics, String keyprefix) {
+        if (mFramesTrimmed) {
+            metrics.put(keyprefix + "frame_captured", String.valueOf(mFrameCount));
+        }
+        if (mTotalDropFrame.equals("-1")) {
+            // no matching result found
+            CLog.w("No result found for " + keyprefix);
+            return;
+        } else {
+            metrics.put(keyprefix + "frame_drop", mTotalDropFrame);
+            CLog.i("Dropped frames: " + mTotalDropFrame);
+        }
+        double smoothnessScore = 100.0 - (mOffByOne / mFrameCaptured) * 100.0 -
+                (mOffByMultiple / mFrameCaptured) * 300.0;
+        metrics.put(keyprefix + "smoothness", String.valueOf(smoothnessScore));
+        CLog.i("Off by one frame: " + mOffByOne);
+        CLog.i("Off by multiple frames: " + mOffByMultiple);
+        CLog.i("Smoothness score: " + smoothnessScore);
+
+        double freezingScore = 100.0 - 100.0 * mFreezingPenalty / mFrameCaptured;
+        metrics.put(keyprefix + "freezing", String.valueOf(freezingScore));
+        CLog.i("Freezing score: " + freezingScore);
+
+        if (mFrameDurationCount > 0) {
+            double[] durations = Arrays.copyOf(mFrameDurationsUs, mFrameDurationCount);
+            Arrays.sort(durations);
+            addPercentiles(metrics, keyprefix + "frame_duration", "_us", durations);
+            addFramePacingMetrics(metrics, keyprefix);
+        }
+
+        if (!mLipsync) {
+            return;
+        }
+        if (mLipsyncCount > 0) {
+            mLipsyncValuesStr.append("]");
+            CLog.i("Lipsync values: " + mLipsyncValuesStr);
+            double[] lipsyncVals = Arrays.copyOf(mLipsyncValues, mLipsyncCount);
+            Arrays.sort(lipsyncVals);
+            int minLipsync = (int) lipsyncVals[0];
+            int maxLipsync = (int) lipsyncVals[mLipsyncCount - 1];
+            metrics.put(keyprefix + "lipsync_count", String.valueOf(mLipsyncCount));
+            CLog.i("Lipsync Count: " + mLipsyncCount);
+            metrics.put(keyprefix + "lipsync_min", String.valueOf(minLipsync));
+            CLog.i("Lipsync Min: " + minLipsync);
+            metrics.put(keyprefix + "lipsync_max", String.valueOf(maxLipsync));
+            CLog.i("Lipsync Max: " + maxLipsync);
+            double meanLipSync = (double) mLipsyncSum / mLipsyncCount;
+            metrics.put(keyprefix + "lipsync_mean", String.valueOf(meanLipSync));
+            CLog.i("Lipsync Mean: " + meanLipSync);
+            addPercentiles(metrics, keyprefix + "lipsync", "", lipsyncVals);
+        } else {
+            CLog.w("Lipsync value not found in result.");
+        }
+    }
+
+    private void addFramePacingMetrics(Map<String, String> metrics, String keyprefix) {
+        metrics.put(keyprefix + "frame_pacing_early", String.valueOf(mEarlyFrames));
+        metrics.put(keyprefix + "frame_pacing_on_time", String.valueOf(mOnTimeFrames));
+        for (int vsyncs = 1; vsyncs <= LATE_VSYNC_CEILING; vsyncs++) {
+            String key = String.format("%sframe_pacing_late_%d%s_vsync", keyprefix, vsyncs,
+                    vsyncs == LATE_VSYNC_CEILING ? "plus" : "");
+            metrics.put(key, String.valueOf(mLateFrames[vsyncs]));
+        }
+        // format: "(vsync offset):(frames),...", the first and last buckets being open ended
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < mPacingHistogram.length; i++) {
+            if (i > 0) {
+                histogram.append(',');
+            }
+            histogram.append(i + PACING_HISTOGRAM_MIN).append(':').append(mPacingHistogram[i]);
+        }
+        metrics.put(keyprefix + "frame_pacing_histogram", histogram.toString());
+        CLog.i("Frame pacing histogram: " + histogram);
+
+        metrics.put(keyprefix + "longest_freeze_ms", String.valueOf(mLongestFrameUs / 1000.0));
+        long maxConsecutiveDropFrame = Math.max(mMaxConsecutiveDropFrame, mConsecutiveDropFrame);
+        metrics.put(keyprefix + "max_consecutive_drop_frames",
+                String.valueOf(maxConsecutiveDropFrame));
+        CLog.i("Longest freeze: %d us, max consecutive dropped frames: %d", mLongestFrameUs,
+                maxConsecutiveDropFrame);
+
+        endWindow();
+        if (mWindowCount > 0) {
+            double mean = mWindowSmoothnessSum / mWindowCount;
+            metrics.put(keyprefix + "smoothness_window_min", String.valueOf(mWindowSmoothnessMin));
+            metrics.put(keyprefix + "smoothness_window_mean", String.valueOf(mean));
+            CLog.i("Windowed smoothness min/mean: %s/%s", mWindowSmoothnessMin, mean);
+        }
+    }
+
+    /**
+     * Returns the smoothness score of each window of playback time, as CSV lines of the window
+     * start in ms, its number of frames and its score, complete once the metrics are added.
+     */
+    public String getSmoothnessTimeline() {
+        return "start_ms,frames,smoothness\n" + mSmoothnessTimeline;
+    }
+
+    private static void addPercentiles(
+            Map<String, String> metrics, String key, String unit, double[] sorted) {
+        for (int percentile : new int[] {50, 90, 99}) {
+            double value = LatencyDistributions.getPercentile(sorted, percentile);
+            metrics.put(String.format("%s_p%d%s", key, percentile, unit), String.valueOf(value));
+        }
+        CLog.i("%s p50/p90/p99: %s/%s/%s", key, metrics.get(key + "_p50" + unit),
+                metrics.get(key + "_p90" + unit), metrics.get(key + "_p99" + unit));
+    }
+}
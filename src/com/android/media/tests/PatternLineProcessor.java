@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches the lines of a test output against a set of keyed patterns, one line at a time.
+ *
+ * <p>Lines are read from a {@link BufferedReader}, so the output is never held in memory as a
+ * whole. Like a single level {@link com.android.tradefed.util.RegexTrie}, a line matches a pattern
+ * if the whole line matches, and the first matching pattern wins. The literal text a pattern
+ * starts with is checked with {@link String#startsWith} before the regex runs, so most lines are
+ * rejected without touching the regex engine. The matchers and the list of captures are reused
+ * from line to line.
+ */
+public class PatternLineProcessor {
+
+    private static final String REGEX_META_CHARS = "\\^$.|?*+()[]{}";
+
+    /** Receives the lines of the output. */
+    public interface LineHandler {
+        /**
+         * Called for a line matching a pattern.
+         *
+         * @param key the key of the pattern
+         * @param captures the captured groups. The list is reused for the next line, so it must
+         *     not be kept.
+         * @param line the line
+         */
+        void onMatch(String key, List<String> captures, String line);
+
+        /** Called for a non-empty line matching no pattern. */
+        default void onUnmatched(String line) {}
+    }
+
+    private static class Entry {
+        final String mKey;
+        final Pattern mPattern;
+        final String mPrefix;
+
+        Entry(String key, String regex) {
+            mKey = key;
+            mPattern = Pattern.compile(regex);
+            mPrefix = getLiteralPrefix(regex);
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * Add a pattern. Patterns are tried in the order they were added.
+     *
+     * @param key the key reported for lines matching the pattern
+     * @param regex the pattern a whole line must match
+     */
+    public void put(String key, String regex) {
+        mEntries.add(new Entry(key, regex));
+    }
+
+    /** Process the lines of a UTF-8 stream. The stream is not closed. */
+    public void process(InputStream stream, LineHandler handler) throws IOException {
+        process(new InputStreamReader(stream, StandardCharsets.UTF_8), handler);
+    }
+
+    /** Process the lines read from a reader. The reader is not closed. */
+    public void process(Reader reader, LineHandler handler) throws IOException {
+        BufferedReader lines =
+                reader instanceof BufferedReader
+                        ? (BufferedReader) reader
+                        : new BufferedReader(reader);
+        // Per call rather than per processor, so that one processor can be shared
+        Matcher[] matchers = new Matcher[mEntries.size()];
+        for (int i = 0; i < matchers.length; i++) {
+            matchers[i] = mEntries.get(i).mPattern.matcher("");
+        }
+        List<String> captures = new ArrayList<>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            Entry match = null;
+            for (int i = 0; i < matchers.length; i++) {
+                Entry entry = mEntries.get(i);
+                if (!line.startsWith(entry.mPrefix)) {
+                    continue;
+                }
+                Matcher matcher = matchers[i].reset(line);
+                if (matcher.matches()) {
+                    captures.clear();
+                    for (int group = 1; group <= matcher.groupCount(); group++) {
+                        captures.add(matcher.group(group));
+                    }
+                    match = entry;
+                    break;
+                }
+            }
+            if (match != null) {
+                handler.onMatch(match.mKey, captures, line);
+            } else {
+                handler.onUnmatched(line);
+            }
+        }
+    }
+
+    /**
+     * Returns the literal text every line matching the regex starts with, or an empty string if
+     * there is none that can be told safely.
+     */
+    static String getLiteralPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            // An alternation can start anywhere
+            return "";
+        }
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = start;
+        while (end < regex.length() && REGEX_META_CHARS.indexOf(regex.charAt(end)) < 0) {
+            end++;
+        }
+        // A quantifier applies to the last literal char, which may then be absent
+        if (end < regex.length() && end > start && "?*{".indexOf(regex.charAt(end)) >= 0) {
+            end--;
+        }
+        return regex.substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Entry entry : mEntries) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(entry.mKey).append('=').append(entry.mPattern.pattern());
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Robust linear trend of a series, fed one point at a time.
+ *
+ * <p>The Theil-Sen slope is the median of the slopes between all pairs of points, so a few
+ * outliers, like a process restarting or a one-off allocation, don't move it. Each new point adds
+ * its slopes to all previous points. Past a maximum number of slopes, a uniform random sample of
+ * them is kept instead, which estimates the same median in bounded memory.
+ *
+ * <p>The confidence interval of the slope uses the ranks given by the normal approximation of
+ * Kendall's tau (Sen, 1968).
+ */
+public class TheilSenEstimator {
+
+    private static final int DEFAULT_MAX_SLOPES = 100000;
+    /** Two-sided 95% quantile of the normal distribution */
+    public static final double Z_95 = 1.96;
+
+    private final int mMaxSlopes;
+    private final Random mRandom = new Random(0);
+    private double[] mX = new double[16];
+    private double[] mY = new double[16];
+    private int mPointCount = 0;
+    private double[] mSlopes = new double[256];
+    private int mSlopeCount = 0;
+    private long mPairCount = 0;
+
+    public TheilSenEstimator() {
+        this(DEFAULT_MAX_SLOPES);
+    }
+
+    /** @param maxSlopes the maximum number of pairwise slopes to keep */
+    public TheilSenEstimator(int maxSlopes) {
+        mMaxSlopes = maxSlopes;
+    }
+
+    /** Add a point to the series. */
+    public synchronized void add(double x, double y) {
+        for (int i = 0; i < mPointCount; i++) {
+            if (mX[i] != x) {
+                offer((y - mY[i]) / (x - mX[i]));
+            }
+        }
+        if (mPointCount == mX.length) {
+            mX = Arrays.copyOf(mX, mPointCount * 2);
+            mY = Arrays.copyOf(mY, mPointCount * 2);
+        }
+        mX[mPointCount] = x;
+        mY[mPointCount] = y;
+        mPointCount++;
+    }
+
+    /** Reservoir sampling, so every pairwise slope is kept with the same probability. */
+    private void offer(double slope) {
+        mPairCount++;
+        if (mSlopeCount < mMaxSlopes) {
+            if (mSlopeCount == mSlopes.length) {
+                mSlopes = Arrays.copyOf(mSlopes, Math.min(mMaxSlopes, mSlopeCount * 2));
+            }
+            mSlopes[mSlopeCount++] = slope;
+            return;
+        }
+        long index = (long) (mRandom.nextDouble() * mPairCount);
+        if (index < mMaxSlopes) {
+            mSlopes[(int) index] = slope;
+        }
+    }
+
+    /** Returns the number of points added. */
+    public synchronized int getPointCount() {
+        return mPointCount;
+    }
+
+    /** Returns the median of the pairwise slopes, or NaN if there are fewer than two points. */
+    public synchronized double getSlope() {
+        if (mSlopeCount == 0) {
+            return Double.NaN;
+        }
+        double[] sorted = getSortedSlopes();
+        int middle = sorted.length / 2;
+        if (sorted.length % 2 == 1) {
+            return sorted[middle];
+        }
+        return (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    /**
+     * Returns the confidence interval of the slope.
+     *
+     * @param z the two-sided quantile of the normal distribution for the confidence level, like
+     *     {@link #Z_95}
+     * @return the lower and upper bounds, or NaNs if there are fewer than three points
+     */
+    public synchronized double[] getSlopeInterval(double z) {
+        if (mPointCount < 3 || mSlopeCount == 0) {
+            return new double[] {Double.NaN, Double.NaN};
+        }
+        double n = mPointCount;
+        double c = z * Math.sqrt(n * (n - 1) * (2 * n + 5) / 18);
+        // The bounds are the slopes of rank (N - c) / 2 and (N + c) / 2 + 1 among all N pairwise
+        // slopes, scaled to the slopes kept
+        double scale = (double) mSlopeCount / mPairCount;
+        double[] sorted = getSortedSlopes();
+        int lower = (int) Math.floor((mPairCount - c) / 2 * scale) - 1;
+        int upper = (int) Math.ceil((mPairCount + c) / 2 * scale);
+        return new double[] {
+            sorted[clamp(lower, sorted.length)], sorted[clamp(upper, sorted.length)]
+        };
+    }
+
+    private double[] getSortedSlopes() {
+        double[] sorted = Arrays.copyOf(mSlopes, mSlopeCount);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static int clamp(int index, int length) {
+        return Math.max(0, Math.min(length - 1, index));
+    }
+}
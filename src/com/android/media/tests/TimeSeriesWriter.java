@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.tests;
+
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Appends samples of a time series to a CSV file, and keeps a summary of each column.
+ *
+ * <p>The file is kept open and buffered for the lifetime of the writer, and flushed at most once
+ * per flush interval, so a sample costs no file system call most of the time. The min, max and
+ * least squares slope of each column are updated as samples are appended, so the summary needs
+ * no second pass over the file.
+ */
+public class TimeSeriesWriter implements Closeable {
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 60 * 1000;
+    private static final double MS_PER_MINUTE = 60 * 1000;
+
+    /** Running summary of one column. */
+    private static class ColumnStats {
+        long mCount = 0;
+        double mMin = Double.NaN;
+        double mMax = Double.NaN;
+        // Sums for the least squares fit, with x in minutes relative to the first sample
+        double mSumX = 0;
+        double mSumY = 0;
+        double mSumXX = 0;
+        double mSumXY = 0;
+
+        void add(double x, double y) {
+            mCount++;
+            mMin = mCount == 1 ? y : Math.min(mMin, y);
+            mMax = mCount == 1 ? y : Math.max(mMax, y);
+            mSumX += x;
+            mSumY += y;
+            mSumXX += x * x;
+            mSumXY += x * y;
+        }
+
+        /** Returns the slope of the least squares fit, per minute, or NaN if undefined. */
+        double getSlope() {
+            double denominator = mCount * mSumXX - mSumX * mSumX;
+            if (mCount < 2 || denominator == 0) {
+                return Double.NaN;
+            }
+            return (mCount * mSumXY - mSumX * mSumY) / denominator;
+        }
+    }
+
+    private final File mFile;
+    private final String[] mColumns;
+    private final ColumnStats[] mStats;
+    private final long mFlushIntervalMs;
+    private BufferedWriter mWriter;
+    private long mLastFlushMs;
+    private Long mFirstTimeMs = null;
+
+    /**
+     * Create a writer, truncating the file and writing the header.
+     *
+     * @param file the file to write to
+     * @param timeColumn the name of the time column
+     * @param columns the names of the value columns
+     */
+    public TimeSeriesWriter(File file, String timeColumn, String... columns) throws IOException {
+        this(file, DEFAULT_FLUSH_INTERVAL_MS, timeColumn, columns);
+    }
+
+    TimeSeriesWriter(File file, long flushIntervalMs, String timeColumn, String... columns)
+            throws IOException {
+        mFile = file;
+        mColumns = columns;
+        mStats = new ColumnStats[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            mStats[i] = new ColumnStats();
+        }
+        mFlushIntervalMs = flushIntervalMs;
+        mWriter = new BufferedWriter(new FileWriter(file, false));
+        mWriter.write(timeColumn);
+        for (String column : columns) {
+            mWriter.write(',');
+            mWriter.write(column);
+        }
+        mWriter.newLine();
+        mLastFlushMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Append a sample. Does nothing once closed, as a sample may still be taken while stopping.
+     *
+     * @param timeMs the time of the sample, in ms
+     * @param values one value per column, {@code null} if missing
+     */
+    public synchronized void append(long timeMs, Long... values) throws IOException {
+        if (values.length != mColumns.length) {
+            throw new IllegalArgumentException(
+                    String.format("Expected %d values, got %d", mColumns.length, values.length));
+        }
+        if (mWriter == null) {
+            return;
+        }
+        if (mFirstTimeMs == null) {
+            mFirstTimeMs = timeMs;
+        }
+        double x = (timeMs - mFirstTimeMs) / MS_PER_MINUTE;
+        mWriter.write(Long.toString(timeMs));
+        for (int i = 0; i < values.length; i++) {
+            mWriter.write(',');
+            if (values[i] != null) {
+                mWriter.write(Long.toString(values[i]));
+                mStats[i].add(x, values[i]);
+            }
+        }
+        mWriter.newLine();
+        long now = System.currentTimeMillis();
+        if (now - mLastFlushMs >= mFlushIntervalMs) {
+            mWriter.flush();
+            mLastFlushMs = now;
+        }
+    }
+
+    /** Returns the file written to. */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the min, max and slope per minute of each column with at least one value, as
+     * {@code <prefix>_<column>_min}, {@code _max} and {@code _slope}.
+     */
+    public synchronized Map<String, String> getSummary(String prefix) {
+        Map<String, String> summary = new LinkedHashMap<>();
+        for (int i = 0; i < mColumns.length; i++) {
+            ColumnStats stats = mStats[i];
+            if (stats.mCount == 0) {
+                continue;
+            }
+            String key = String.format("%s_%s", prefix, mColumns[i]);
+            summary.put(key + "_min", String.format("%.0f", stats.mMin));
+            summary.put(key + "_max", String.format("%.0f", stats.mMax));
+            double slope = stats.getSlope();
+            if (!Double.isNaN(slope)) {
+                summary.put(key + "_slope", String.format("%.3f", slope));
+            }
+        }
+        return summary;
+    }
+
+    /** Flush and close the file. The summary is still available after closing. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mWriter != null) {
+            try {
+                mWriter.flush();
+            } finally {
+                StreamUtil.close(mWriter);
+                mWriter = null;
+            }
+        }
+    }
+}
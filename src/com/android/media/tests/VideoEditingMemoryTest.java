@@ -43,13 +43,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -84,6 +80,11 @@ public class VideoEditingMemoryTest implements IDeviceTest, IRemoteTest {
      */
     public static final Pattern TOTAL_MEM_DIFF_PATTERN =
             Pattern.compile("(.+?)\\s.*diff.*\\s(-?\\d+)");
+    private static final PatternLineProcessor OUTPUT_PATTERNS = new PatternLineProcessor();
+
+    static {
+        OUTPUT_PATTERNS.put("totalMemDiff", TOTAL_MEM_DIFF_PATTERN.pattern());
+    }
 
     public Map<String, String> mRunMetrics = new HashMap<>();
     public Map<String, String> mKeyMap = new HashMap<>();
@@ -195,7 +196,9 @@ public class VideoEditingMemoryTest implements IDeviceTest, IRemoteTest {
                 listener.testLog(resultFile, LogDataType.TEXT, outputSource);
 
                 // Parse the output file to upload aggregated metrics
-                parseOutputFile(new FileInputStream(outputFile), listener, resultFile);
+                try (InputStream dataStream = new FileInputStream(outputFile)) {
+                    parseOutputFile(dataStream, listener, resultFile);
+                }
             } catch (IOException e) {
                 Log.e(
                         LOG_TAG,
@@ -214,35 +217,16 @@ public class VideoEditingMemoryTest implements IDeviceTest, IRemoteTest {
             ITestInvocationListener listener, String outputFile) {
 
         // try to parse it
-        String contents;
         try {
-            contents = StreamUtil.getStringFromStream(dataStream);
+            OUTPUT_PATTERNS.process(dataStream, (key, captures, line) -> {
+                // First group match with the test key name, second with the test result.
+                mRunMetrics.put(captures.get(0), captures.get(1));
+            });
         } catch (IOException e) {
             Log.e(LOG_TAG, String.format(
                     "Got IOException during test processing: %s", e));
             return;
         }
-
-        List<String> lines = Arrays.asList(contents.split("\n"));
-        ListIterator<String> lineIter = lines.listIterator();
-
-        String line;
-        String key;
-        String memOut;
-
-        while (lineIter.hasNext()){
-            line = lineIter.next();
-
-            // Look for the total diff
-            Matcher m = TOTAL_MEM_DIFF_PATTERN.matcher(line);
-            if (m.matches()){
-                //First group match with the test key name.
-                key = m.group(1);
-                //Second group match witht the test result.
-                memOut = m.group(2);
-                mRunMetrics.put(key, memOut);
-            }
-        }
         reportMetrics(listener, outputFile);
     }
 
@@ -23,21 +23,30 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
 import org.junit.Assert;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -80,6 +89,14 @@ public class VideoMultimeterTest implements IDeviceTest, IRemoteTest {
         "filename of calibration video")
     private String mCaliVideoDevicePath = "video_cali.mp4";
 
+    @Option(name = "display-refresh-rate",
+            description = "refresh rate of the display in Hz, to measure frame pacing in vsyncs")
+    private float mDisplayRefreshRate = MultimeterDataParser.DEFAULT_REFRESH_RATE;
+
+    @Option(name = "smoothness-window-ms",
+            description = "length of the windows of playback time of the smoothness timeline")
+    private long mSmoothnessWindowMs = MultimeterDataParser.DEFAULT_SMOOTHNESS_WINDOW_MS;
+
     @Option(
         name = "debug-without-hardware",
         description = "Use option to debug test without having specialized hardware",
@@ -291,14 +308,42 @@ public class VideoMultimeterTest implements IDeviceTest, IRemoteTest {
 
         CLog.i("Captured frames: " + nrOfDataPointsStr);
 
-        // get all results from multimeter and write to output file
-        cr = getRunUtil().runTimedCmd(GETDATA_TIMEOUT_MS, mMeterUtilPath, CMD_GET_ALL_DATA);
-        String allData = cr.getStdout();
-        listener.testLog(
-                keyprefix, LogDataType.TEXT, new ByteArrayInputStreamSource(allData.getBytes()));
-
-        // parse results
-        return parseResult(metrics, nrOfDataPoints, allData, keyprefix, fps, lipsync);
+        // get all results from multimeter, parsing them as they are written to the output file
+        File dataFile = null;
+        InputStreamSource dataSource = null;
+        try {
+            dataFile = FileUtil.createTempFile(keyprefix, ".txt");
+            MultimeterDataParser parser =
+                    new MultimeterDataParser(
+                            nrOfDataPoints,
+                            fps,
+                            lipsync,
+                            new BufferedOutputStream(new FileOutputStream(dataFile)));
+            parser.setFramePacing(mDisplayRefreshRate, mSmoothnessWindowMs);
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            try {
+                cr = getRunUtil().runTimedCmd(
+                        GETDATA_TIMEOUT_MS, parser, stderr, mMeterUtilPath, CMD_GET_ALL_DATA);
+            } finally {
+                parser.close();
+            }
+            if (!CommandStatus.SUCCESS.equals(cr.getStatus())) {
+                CLog.w("Getting multimeter data ended with %s: %s", cr.getStatus(), stderr);
+            }
+            dataSource = new FileInputStreamSource(dataFile);
+            listener.testLog(keyprefix, LogDataType.TEXT, dataSource);
+            parser.addMetrics(metrics, keyprefix);
+            listener.testLog(keyprefix + "smoothness_timeline", LogDataType.TEXT,
+                    new ByteArrayInputStreamSource(parser.getSmoothnessTimeline().getBytes()));
+        } catch (IOException e) {
+            CLog.e("Failed to write the multimeter data for %s", keyprefix);
+            CLog.e(e);
+        } finally {
+            StreamUtil.cancel(dataSource);
+            FileUtil.deleteFile(dataFile);
+        }
+        CLog.i("== End ==", keyprefix);
+        return metrics;
     }
 
     private String extractNumberOfCollectedDataPoints(String numFrames) {
@@ -352,139 +397,6 @@ public class VideoMultimeterTest implements IDeviceTest, IRemoteTest {
         listener.testRunEnded(durationMs, TfMetricProtoUtil.upgradeConvert(metrics));
     }
 
-    /**
-     * Parse Multimeter result.
-     *
-     * @param result
-     * @return a {@link HashMap} that contains metrics keys and results
-     */
-    private Map<String, String> parseResult(Map<String, String> metrics,
-            long frameCaptured, String result, String keyprefix, float fps,
-            boolean lipsync) {
-        final int MISSING_FRAME_CEILING = 5; //5+ frames missing count the same
-        final double[] MISSING_FRAME_WEIGHT = {0.0, 1.0, 2.5, 5.0, 6.25, 8.0};
-
-        // Get total captured frames and calculate smoothness and freezing score
-        // format: "OK (time); (frame duration); (marker color); (total dropped frames)"
-        Pattern p = Pattern.compile(VIDEO_FRAME_DATA_PATTERN);
-        Matcher m = null;
-        String[] lines = result.split(System.getProperty("line.separator"));
-        String totalDropFrame = "-1";
-        String lastDropFrame = "0";
-        long frameCount = 0;
-        long consecutiveDropFrame = 0;
-        double freezingPenalty = 0.0;
-        long frameDuration = 0;
-        double offByOne = 0;
-        double offByMultiple = 0;
-        double expectedFrameDurationInUs = 1000000.0 / fps;
-        for (int i = 0; i < lines.length; i++) {
-            m = p.matcher(lines[i].trim());
-            if (m.matches()) {
-                frameDuration = Long.parseLong(m.group(1));
-                // frameDuration = -1 indicates dropped frame
-                if (frameDuration > 0) {
-                    frameCount++;
-                }
-                totalDropFrame = m.group(2);
-                // trim the last few data points if needed
-                if (frameCount >= frameCaptured - TRAILING_FRAMES_MAX - 1 &&
-                        frameDuration > FRAME_DURATION_THRESHOLD_US) {
-                    metrics.put(keyprefix + "frame_captured", String.valueOf(frameCount));
-                    break;
-                }
-                if (lastDropFrame.equals(totalDropFrame)) {
-                    if (consecutiveDropFrame > 0) {
-                      freezingPenalty += MISSING_FRAME_WEIGHT[(int) (Math.min(consecutiveDropFrame,
-                              MISSING_FRAME_CEILING))] * consecutiveDropFrame;
-                      consecutiveDropFrame = 0;
-                    }
-                } else {
-                    consecutiveDropFrame++;
-                }
-                lastDropFrame = totalDropFrame;
-
-                if (frameDuration < expectedFrameDurationInUs * 0.5) {
-                    offByOne++;
-                } else if (frameDuration > expectedFrameDurationInUs * 1.5) {
-                    if (frameDuration < expectedFrameDurationInUs * 2.5) {
-                        offByOne++;
-                    } else {
-                        offByMultiple++;
-                    }
-                }
-            }
-        }
-        if (totalDropFrame.equals("-1")) {
-            // no matching result found
-            CLog.w("No result found for " + keyprefix);
-            return metrics;
-        } else {
-            metrics.put(keyprefix + "frame_drop", totalDropFrame);
-            CLog.i("Dropped frames: " + totalDropFrame);
-        }
-        double smoothnessScore = 100.0 - (offByOne / frameCaptured) * 100.0 -
-                (offByMultiple / frameCaptured) * 300.0;
-        metrics.put(keyprefix + "smoothness", String.valueOf(smoothnessScore));
-        CLog.i("Off by one frame: " + offByOne);
-        CLog.i("Off by multiple frames: " + offByMultiple);
-        CLog.i("Smoothness score: " + smoothnessScore);
-
-        double freezingScore = 100.0 - 100.0 * freezingPenalty / frameCaptured;
-        metrics.put(keyprefix + "freezing", String.valueOf(freezingScore));
-        CLog.i("Freezing score: " + freezingScore);
-
-        // parse lipsync results (the audio and video synchronization offset)
-        // format: "OK (time); (frame duration); (marker color); (total dropped frames); (lipsync)"
-        if (lipsync) {
-            ArrayList<Integer> lipsyncVals = new ArrayList<>();
-            StringBuilder lipsyncValsStr = new StringBuilder("[");
-            long lipsyncSum = 0;
-            int lipSyncLastTime = -1;
-
-            Pattern pLip = Pattern.compile(LIPSYNC_DATA_PATTERN);
-            for (int i = 0; i < lines.length; i++) {
-                m = pLip.matcher(lines[i].trim());
-                if (m.matches()) {
-                    int lipSyncTime = Integer.parseInt(m.group(1));
-                    int lipSyncVal = Integer.parseInt(m.group(2));
-                    if (lipSyncLastTime != -1) {
-                        if ((lipSyncTime - lipSyncLastTime) < LIPSYNC_SIGNAL_MIN) {
-                            continue; // ignore the early/spurious one
-                        }
-                    }
-                    lipSyncLastTime = lipSyncTime;
-
-                    lipsyncVals.add(lipSyncVal);
-                    lipsyncValsStr.append(lipSyncVal);
-                    lipsyncValsStr.append(", ");
-                    lipsyncSum += lipSyncVal;
-                }
-            }
-            if (lipsyncVals.size() > 0) {
-                lipsyncValsStr.append("]");
-                CLog.i("Lipsync values: " + lipsyncValsStr);
-                Collections.sort(lipsyncVals);
-                int lipsyncCount = lipsyncVals.size();
-                int minLipsync = lipsyncVals.get(0);
-                int maxLipsync = lipsyncVals.get(lipsyncCount - 1);
-                metrics.put(keyprefix + "lipsync_count", String.valueOf(lipsyncCount));
-                CLog.i("Lipsync Count: " + lipsyncCount);
-                metrics.put(keyprefix + "lipsync_min", String.valueOf(lipsyncVals.get(0)));
-                CLog.i("Lipsync Min: " + minLipsync);
-                metrics.put(keyprefix + "lipsync_max", String.valueOf(maxLipsync));
-                CLog.i("Lipsync Max: " + maxLipsync);
-                double meanLipSync = (double) lipsyncSum / lipsyncCount;
-                metrics.put(keyprefix + "lipsync_mean", String.valueOf(meanLipSync));
-                CLog.i("Lipsync Mean: " + meanLipSync);
-            } else {
-                CLog.w("Lipsync value not found in result.");
-            }
-        }
-        CLog.i("== End ==", keyprefix);
-        return metrics;
-    }
-
     protected IRunUtil getRunUtil() {
         return RunUtil.getDefault();
     }
@@ -16,31 +16,58 @@
 
 package com.android.monkey;
 
+import com.android.loganalysis.item.AnrItem;
+import com.android.loganalysis.item.BugreportItem;
+import com.android.loganalysis.item.IItem;
+import com.android.loganalysis.item.MiscLogcatItem;
+import com.android.loganalysis.item.MonkeyLogItem;
 import com.android.tradefed.log.ITestLogger;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.util.CommandResult;
-import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
-import com.android.tradefed.util.RunUtil;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * A utility class that encapsulates details of calling post-processing scripts to generate monkey
- * ANR reports.
+ * A utility class that generates monkey ANR reports.
+ *
+ * <p>The HTML report is built in process from the already parsed monkey log and bugreport, and
+ * streamed to the report file: the ANR details, the CPU usage at the time of the ANR, the main
+ * thread stack with the locks it waits on and their holders, and the logcat events around the ANR.
  */
 public class AnrReportGenerator {
 
-    private static final long REPORT_GENERATION_TIMEOUT = 30 * 1000; // 30s
+    /** Logcat events this close to the ANR are shown in the report. */
+    private static final long EVENT_WINDOW_MS = 60 * 1000;
+    /** Max number of per process CPU usage lines shown in the report. */
+    private static final int MAX_CPU_USAGE_LINES = 15;
 
-    private File mCachedMonkeyLog = null;
-    private File mCachedBugreport = null;
+    /** Matches a per process line of the ANR CPU usage, e.g. "  25% 1234/com.foo: 20% user" */
+    private static final Pattern CPU_USAGE_LINE =
+            Pattern.compile("^\\s*\\+?[\\d.]+% (\\d+/\\S+|TOTAL):.*");
+    /**
+     * Matches a lock the main thread waits on, e.g. "- waiting to lock <0x0a1b2c3d> (a
+     * java.lang.Object) held by thread 23" or "... held by tid=23 (Binder:123_4)"
+     */
+    private static final Pattern WAITING_TO_LOCK =
+            Pattern.compile(
+                    "-\\s+waiting to lock <(0x[0-9a-f]+)> \\(a ([^)]+)\\)"
+                            + "\\s+held by (?:thread (\\d+)|tid=(\\d+)(?: \\(([^)]*)\\))?)");
+    /** Matches the header of a thread in a traces dump, e.g. "\"Binder:123_4\" prio=5 tid=23" */
+    private static final Pattern THREAD_HEADER =
+            Pattern.compile("^\"(.*)\".*\\btid=(\\d+)\\b.*");
 
-    private final String mReportScriptPath;
     private final String mReportBasePath;
     private final String mReportUrlPrefix;
     private final String mReportPath;
@@ -49,19 +76,21 @@ public class AnrReportGenerator {
     private String mBuildId = null;
     private String mBuildFlavor = null;
 
+    private MonkeyLogItem mMonkeyLog = null;
+    private BugreportItem mBugreport = null;
+    private String mTraces = null;
+
     /**
-     * Constructs the instance with details of report script and output location information. See
-     * matching options on {@link MonkeyBase} for more info.
+     * Constructs the instance with output location information. See matching options on {@link
+     * MonkeyBase} for more info.
      */
     public AnrReportGenerator(
-            String reportScriptPath,
             String reportBasePath,
             String reportUrlPrefix,
             String reportPath,
             String buildId,
             String buildFlavor,
             String deviceSerial) {
-        mReportScriptPath = reportScriptPath;
         mReportBasePath = reportBasePath;
         mReportUrlPrefix = reportUrlPrefix;
         mReportPath = reportPath;
@@ -69,10 +98,7 @@ public class AnrReportGenerator {
         mBuildFlavor = buildFlavor;
         mDeviceSerial = deviceSerial;
 
-        if (mReportBasePath == null
-                || mReportPath == null
-                || mReportScriptPath == null
-                || mReportUrlPrefix == null) {
+        if (mReportBasePath == null || mReportPath == null || mReportUrlPrefix == null) {
             throw new IllegalArgumentException(
                     "ANR post-processing enabled but missing " + "required parameters!");
         }
@@ -93,40 +119,48 @@ public class AnrReportGenerator {
     }
 
     /**
-     * Sets bugreport information for ANR post-processing script
+     * Sets the parsed bugreport for the ANR report
      *
-     * @param bugreportStream
+     * @param bugreport
      */
-    public void setBugReportInfo(InputStreamSource bugreportStream) throws IOException {
-        if (mCachedBugreport != null) {
-            CLog.w(
-                    "A bugreport for this invocation already existed at %s, overriding anyways",
-                    mCachedBugreport.getAbsolutePath());
+    public void setBugReport(BugreportItem bugreport) {
+        if (mBugreport != null) {
+            CLog.w("A bugreport for this invocation already existed, overriding anyways");
         }
-        mCachedBugreport = FileUtil.createTempFile("monkey-anr-report-bugreport", ".txt");
-        FileUtil.writeToFile(bugreportStream.createInputStream(), mCachedBugreport);
+        mBugreport = bugreport;
     }
 
     /**
-     * Sets monkey log information for ANR post-processing script
+     * Sets the parsed monkey log for the ANR report
      *
-     * @param monkeyLogStream
+     * @param monkeyLog
      */
-    public void setMonkeyLogInfo(InputStreamSource monkeyLogStream) throws IOException {
-        if (mCachedMonkeyLog != null) {
-            CLog.w(
-                    "A monkey log for this invocation already existed at %s, overriding anyways",
-                    mCachedMonkeyLog.getAbsolutePath());
+    public void setMonkeyLog(MonkeyLogItem monkeyLog) {
+        if (mMonkeyLog != null) {
+            CLog.w("A monkey log for this invocation already existed, overriding anyways");
         }
-        mCachedMonkeyLog = FileUtil.createTempFile("monkey-anr-report-monkey-log", ".txt");
-        FileUtil.writeToFile(monkeyLogStream.createInputStream(), mCachedMonkeyLog);
+        mMonkeyLog = monkeyLog;
+    }
+
+    /**
+     * Sets the traces of the ANR'd process, all of its threads, to find the names of the threads
+     * holding the locks the main thread waits on. See {@link MonkeyOutputReceiver#getAnrTraces()}.
+     *
+     * @param traces
+     */
+    public void setTraces(String traces) {
+        mTraces = traces;
     }
 
     public boolean genereateAnrReport(ITestLogger logger) {
-        if (mCachedMonkeyLog == null || mCachedBugreport == null) {
+        if (mMonkeyLog == null || mBugreport == null) {
             CLog.w("Cannot generate report: bugreport or monkey log not populated yet.");
             return false;
         }
+        if (!(mMonkeyLog.getCrash() instanceof AnrItem)) {
+            CLog.w("Cannot generate report: monkey log has no ANR.");
+            return false;
+        }
         // generate monkey report and log it
         File reportPath =
                 new File(
@@ -163,34 +197,234 @@ public class AnrReportGenerator {
             CLog.e(ioe);
             return false;
         }
-        // now ready to call the script
-        String htmlReportPath = htmlReport.getAbsolutePath();
-        String command[] = {
-            mReportScriptPath,
-            "--monkey",
-            mCachedMonkeyLog.getAbsolutePath(),
-            "--html",
-            htmlReportPath,
-            mCachedBugreport.getAbsolutePath()
-        };
-        CommandResult cr =
-                RunUtil.getDefault().runTimedCmdSilently(REPORT_GENERATION_TIMEOUT, command);
-        if (cr.getStatus() == CommandStatus.SUCCESS) {
-            // Test log the generated HTML report
-            try (InputStreamSource source = new FileInputStreamSource(htmlReport)) {
-                logger.testLog("monkey-anr-report", LogDataType.HTML, source);
-            }
-            // Clean up and declare success!
+        try (Writer writer = new BufferedWriter(new FileWriter(htmlReport))) {
+            writeReport(writer, (AnrItem) mMonkeyLog.getCrash());
+        } catch (IOException e) {
+            CLog.e("Error writing HTML report %s", htmlReport.getAbsolutePath());
+            CLog.e(e);
             FileUtil.deleteFile(htmlReport);
-            return true;
-        } else {
-            CLog.w(cr.getStderr());
             return false;
         }
+        // Test log the generated HTML report
+        try (InputStreamSource source = new FileInputStreamSource(htmlReport)) {
+            logger.testLog("monkey-anr-report", LogDataType.HTML, source);
+        }
+        // Clean up and declare success!
+        FileUtil.deleteFile(htmlReport);
+        return true;
+    }
+
+    /** Drops the parsed monkey log, bugreport and traces, before the next run sets its own. */
+    public void clear() {
+        mBugreport = null;
+        mMonkeyLog = null;
+        mTraces = null;
+    }
+
+    /** Write the HTML report of an ANR. Exposed for unit testing. */
+    void writeReport(Writer writer, AnrItem anr) throws IOException {
+        String title = String.format("Monkey ANR in %s", anr.getApp());
+        writer.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">");
+        writer.write(String.format("<title>%s</title>", escape(title)));
+        writer.write("<style>pre{background:#f4f4f4;padding:8px}td{padding:0 12px 0 0}</style>");
+        writer.write(String.format("</head><body>\n<h1>%s</h1>\n", escape(title)));
+
+        writeSummary(writer, anr);
+        writeCpuUsage(writer, anr);
+        String mainStack = getMainThreadStack(anr);
+        writeMainThread(writer, mainStack);
+        writeLocks(writer, mainStack, getTraces(anr));
+        writeEvents(writer, anr);
+        writer.write("</body></html>\n");
+    }
+
+    private void writeSummary(Writer writer, AnrItem anr) throws IOException {
+        writer.write("<h2>Summary</h2>\n<table>\n");
+        writeRow(writer, "Device", mDeviceSerial);
+        writeRow(writer, "Build", String.format("%s %s", mBuildId, mBuildFlavor));
+        writeRow(writer, "Package", anr.getApp());
+        writeRow(writer, "Pid", anr.getPid());
+        writeRow(writer, "Activity", anr.getActivity());
+        writeRow(writer, "Reason", anr.getReason());
+        writeRow(writer, "Time", anr.getEventTime());
+        writeRow(writer, "Bugreport time", mBugreport.getTime());
+        writer.write("</table>\n");
+    }
+
+    private void writeCpuUsage(Writer writer, AnrItem anr) throws IOException {
+        writer.write("<h2>CPU usage</h2>\n<table>\n");
+        for (AnrItem.CpuUsageCategory category : AnrItem.CpuUsageCategory.values()) {
+            Double usage = anr.getCpuUsage(category);
+            writeRow(writer, category.toString(), usage == null ? null : usage + "%");
+        }
+        for (AnrItem.LoadCategory category : AnrItem.LoadCategory.values()) {
+            writeRow(writer, category.toString(), anr.getLoad(category));
+        }
+        writer.write("</table>\n");
+
+        List<String> lines = new ArrayList<>();
+        if (anr.getStack() != null) {
+            for (String line : anr.getStack().split("\n")) {
+                if (CPU_USAGE_LINE.matcher(line).matches() && lines.size() < MAX_CPU_USAGE_LINES) {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        if (!lines.isEmpty()) {
+            writer.write("<pre>");
+            for (String line : lines) {
+                writer.write(escape(line));
+                writer.write("\n");
+            }
+            writer.write("</pre>\n");
+        }
+    }
+
+    /** Returns the main thread stack from the monkey log, or from the bugreport ANR traces. */
+    private String getMainThreadStack(AnrItem anr) {
+        if (anr.getTrace() != null) {
+            return anr.getTrace();
+        }
+        if (mBugreport.getAnrTrace() != null) {
+            return mBugreport.getAnrTrace().getStack();
+        }
+        return null;
+    }
+
+    /** Returns the traces of all threads of the ANR'd process, or {@code null} if unknown. */
+    private String getTraces(AnrItem anr) {
+        // The traces are of the first ANR of the run, which may not be the reported one
+        if (mTraces == null
+                || anr.getPid() == null
+                || !mTraces.startsWith(String.format("----- pid %d ", anr.getPid()))) {
+            return null;
+        }
+        return mTraces;
+    }
+
+    private void writeMainThread(Writer writer, String mainStack) throws IOException {
+        writer.write("<h2>Main thread</h2>\n");
+        if (mainStack == null) {
+            writer.write("<p>No main thread stack found.</p>\n");
+            return;
+        }
+        writer.write("<pre>");
+        writer.write(escape(mainStack));
+        writer.write("</pre>\n");
+    }
+
+    private void writeLocks(Writer writer, String mainStack, String traces) throws IOException {
+        if (mainStack == null) {
+            return;
+        }
+        // The holder's name is looked up by its thread header in the traces of the whole process,
+        // the main thread stack alone rarely has it
+        List<String[]> locks = new ArrayList<>();
+        for (String line : mainStack.split("\n")) {
+            Matcher m = WAITING_TO_LOCK.matcher(line);
+            if (m.find()) {
+                String tid = m.group(3) != null ? m.group(3) : m.group(4);
+                String name = m.group(5);
+                if (name == null && traces != null) {
+                    name = findThreadName(traces, tid);
+                }
+                if (name == null) {
+                    name = findThreadName(mainStack, tid);
+                }
+                locks.add(new String[] {m.group(1), m.group(2), tid, name});
+            }
+        }
+        writer.write("<h2>Lock holders</h2>\n");
+        if (locks.isEmpty()) {
+            writer.write("<p>The main thread is not waiting on a lock.</p>\n");
+            return;
+        }
+        writer.write("<table>\n<tr><th>Lock</th><th>Class</th><th>Holder tid</th>");
+        writer.write("<th>Holder thread</th></tr>\n");
+        for (String[] lock : locks) {
+            writer.write("<tr>");
+            for (String cell : lock) {
+                writer.write(String.format("<td>%s</td>", escape(cell)));
+            }
+            writer.write("</tr>\n");
+        }
+        writer.write("</table>\n");
     }
 
-    public void cleanTempFiles() {
-        FileUtil.deleteFile(mCachedBugreport);
-        FileUtil.deleteFile(mCachedMonkeyLog);
+    private static String findThreadName(String stack, String tid) {
+        for (String line : stack.split("\n")) {
+            Matcher m = THREAD_HEADER.matcher(line);
+            if (m.matches() && m.group(2).equals(tid)) {
+                return m.group(1);
+            }
+        }
+        return null;
+    }
+
+    /** Write the logcat events of the bugreport within {@link #EVENT_WINDOW_MS} of the ANR. */
+    private void writeEvents(Writer writer, AnrItem anr) throws IOException {
+        writer.write("<h2>Events around the ANR</h2>\n");
+        Date anrTime = anr.getEventTime();
+        if (anrTime == null || mBugreport.getSystemLog() == null) {
+            writer.write("<p>No ANR time or system log.</p>\n");
+            return;
+        }
+        writer.write("<table>\n<tr><th>Time</th><th>Offset (s)</th><th>Event</th>");
+        writer.write("<th>Package</th><th>Pid</th></tr>\n");
+        for (IItem item : mBugreport.getSystemLog().getEvents()) {
+            if (!(item instanceof MiscLogcatItem)) {
+                continue;
+            }
+            MiscLogcatItem event = (MiscLogcatItem) item;
+            if (event.getEventTime() == null) {
+                continue;
+            }
+            long offset = event.getEventTime().getTime() - anrTime.getTime();
+            if (Math.abs(offset) > EVENT_WINDOW_MS) {
+                continue;
+            }
+            writer.write(
+                    String.format(
+                            "<tr><td>%s</td><td>%+.1f</td><td>%s</td><td>%s</td><td>%s</td></tr>\n",
+                            escape(event.getEventTime()),
+                            offset / 1000.0,
+                            escape(event.getCategory()),
+                            escape(event.getApp()),
+                            escape(event.getPid())));
+        }
+        writer.write("</table>\n");
+    }
+
+    private static void writeRow(Writer writer, String name, Object value) throws IOException {
+        writer.write(String.format("<tr><td>%s</td><td>%s</td></tr>\n", name, escape(value)));
+    }
+
+    /** Returns the HTML escaped string value of an object, or an empty string for null. */
+    static String escape(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String text = value.toString();
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.CircularAtraceUtil;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.RunUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Dumps the circular atrace buffer started by {@link CircularAtraceUtil} without stopping it, and
+ * trims the dump to a window around an event.
+ */
+public class AtraceSnapshot {
+
+    private static final String DEVICE_FILE = "/data/local/tmp/atrace-snapshot.txt";
+    private static final String DUMP_CMD = "atrace --async_dump -o %s";
+
+    /** Matches the timestamp of a trace line, e.g. "  foo-123 [001] ...1  4567.890123: ..." */
+    private static final Pattern TIMESTAMP = Pattern.compile("\\s(\\d+\\.\\d+):\\s");
+
+    private AtraceSnapshot() {}
+
+    /**
+     * Capture the trace around an event.
+     *
+     * <p>Waits until the end of the window, dumps the circular buffer, and trims it to the window.
+     * The event time on the device is estimated from the device uptime at the time of the dump,
+     * minus the host time elapsed since the event.
+     *
+     * @param device the device running the circular atrace
+     * @param eventTimeMs host time of the event, in ms since the epoch
+     * @param windowBeforeMs how much trace to keep before the event
+     * @param windowAfterMs how much trace to keep after the event
+     * @return the trimmed trace, or {@code null} if it could not be captured
+     */
+    public static File capture(
+            ITestDevice device, long eventTimeMs, long windowBeforeMs, long windowAfterMs)
+            throws DeviceNotAvailableException {
+        long wait = eventTimeMs + windowAfterMs - System.currentTimeMillis();
+        if (wait > 0) {
+            RunUtil.getDefault().sleep(wait);
+        }
+
+        long dumpTimeMs = System.currentTimeMillis();
+        String uptime = device.executeShellCommand("cat /proc/uptime").split(" ")[0];
+        double eventUptime;
+        try {
+            eventUptime = Double.parseDouble(uptime) - (dumpTimeMs - eventTimeMs) / 1000.0;
+        } catch (NumberFormatException e) {
+            CLog.w("Could not get uptime for atrace snapshot, got '%s'", uptime);
+            return null;
+        }
+
+        File dump = null;
+        File trace = null;
+        try {
+            device.executeShellCommand(String.format(DUMP_CMD, DEVICE_FILE));
+            dump = device.pullFile(DEVICE_FILE);
+            if (dump == null) {
+                CLog.w("Could not pull atrace snapshot from %s", device.getSerialNumber());
+                return null;
+            }
+            trace = FileUtil.createTempFile("atrace-snapshot", ".txt");
+            try (BufferedReader reader = new BufferedReader(new FileReader(dump));
+                    Writer writer = new BufferedWriter(new FileWriter(trace))) {
+                trim(
+                        reader,
+                        writer,
+                        eventUptime - windowBeforeMs / 1000.0,
+                        eventUptime + windowAfterMs / 1000.0);
+            }
+            return trace;
+        } catch (IOException e) {
+            CLog.e("Could not trim atrace snapshot");
+            CLog.e(e);
+            FileUtil.deleteFile(trace);
+            return null;
+        } finally {
+            FileUtil.deleteFile(dump);
+            device.executeShellCommand(String.format("rm -f %s", DEVICE_FILE));
+        }
+    }
+
+    /**
+     * Copy the trace lines with a timestamp between start and end, in seconds. Lines without a
+     * timestamp, like the trace header, are always copied.
+     *
+     * @return the number of trace lines copied, not counting lines without a timestamp
+     */
+    static int trim(BufferedReader reader, Writer writer, double start, double end)
+            throws IOException {
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher m = TIMESTAMP.matcher(line);
+            if (m.find()) {
+                double timestamp = Double.parseDouble(m.group(1));
+                if (timestamp < start || timestamp > end) {
+                    continue;
+                }
+                count++;
+            }
+            writer.write(line);
+            writer.write("\n");
+        }
+        return count;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Normalized signature of a crash, used to recognize the same crash across devices and runs.
+ *
+ * <p>The signature is made of the crash type, the package and the top frames of the stack, with
+ * everything that changes from one occurrence to the next (line numbers, addresses, pids, anonymous
+ * class indexes) stripped out.
+ */
+public class CrashSignature {
+
+    /** Number of top frames making up the signature */
+    static final int MAX_FRAMES = 5;
+
+    /** Matches "at com.android.Foo$1.bar(Foo.java:123)" */
+    private static final Pattern JAVA_FRAME = Pattern.compile("^\\s*at\\s+([^\\s(]+)");
+    /** Matches "#00 pc 000000000001d6e8  /system/lib64/libc.so (abort+124)" */
+    private static final Pattern NATIVE_FRAME =
+            Pattern.compile(
+                    "^\\s*#\\d+\\s+pc\\s+[0-9a-fA-F]+\\s+(\\S+)"
+                            + "(?:\\s+\\((.+?)(?:\\+\\d+)?\\))?");
+    /** Matches the exception class at the start of a Java stack */
+    private static final Pattern JAVA_EXCEPTION =
+            Pattern.compile("^\\s*([\\w$.]+(?:Exception|Error))");
+    private static final Pattern ANONYMOUS_INDEX = Pattern.compile("\\$\\d+");
+    private static final Pattern NUMBER = Pattern.compile("(0x)?[0-9a-fA-F]*\\d[0-9a-fA-F]*");
+
+    private final String mType;
+    private final String mApp;
+    private final String mFrames;
+    private final String mHash;
+
+    private CrashSignature(String type, String app, String frames) {
+        mType = type;
+        mApp = app;
+        mFrames = frames;
+        mHash = sha256(String.format("%s\n%s\n%s", type, app, frames));
+    }
+
+    /**
+     * Create the signature of a crash.
+     *
+     * @param type the type of crash, e.g. "anr" or "java_crash"
+     * @param app the crashed package, or {@code null} if unknown
+     * @param stack the crash stack, or {@code null} if unknown
+     */
+    public static CrashSignature create(String type, String app, String stack) {
+        return new CrashSignature(type, app == null ? "unknown" : app, normalize(stack));
+    }
+
+    /**
+     * Returns the top frames of a Java or native stack, one per line, without line numbers or
+     * addresses. If no frame is found, returns the first line of the stack with numbers masked.
+     */
+    static String normalize(String stack) {
+        if (stack == null) {
+            return "";
+        }
+        List<String> frames = new ArrayList<>();
+        String exception = null;
+        String firstLine = null;
+        for (String line : stack.split("\n")) {
+            if (frames.size() >= MAX_FRAMES) {
+                break;
+            }
+            Matcher m = JAVA_FRAME.matcher(line);
+            if (m.find()) {
+                frames.add(ANONYMOUS_INDEX.matcher(m.group(1)).replaceAll("\\$"));
+                continue;
+            }
+            m = NATIVE_FRAME.matcher(line);
+            if (m.find()) {
+                frames.add(m.group(2) == null ? m.group(1) : m.group(1) + " " + m.group(2));
+                continue;
+            }
+            if (firstLine == null && !line.trim().isEmpty()) {
+                firstLine = line.trim();
+                m = JAVA_EXCEPTION.matcher(firstLine);
+                if (m.find()) {
+                    exception = m.group(1);
+                }
+            }
+        }
+        if (frames.isEmpty()) {
+            return firstLine == null ? "" : NUMBER.matcher(firstLine).replaceAll("#");
+        }
+        if (exception != null) {
+            frames.add(0, exception);
+        }
+        return String.join("\n", frames);
+    }
+
+    private static String sha256(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM must support SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public String getApp() {
+        return mApp;
+    }
+
+    /** Returns the normalized top frames, one per line. */
+    public String getFrames() {
+        return mFrames;
+    }
+
+    /** Returns the hex SHA-256 hash of the type, package and normalized frames. */
+    public String getHash() {
+        return mHash;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CrashSignature && mHash.equals(((CrashSignature) other).mHash);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+        return mHash.hashCode();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("%s %s %s", mType, mApp, mHash.substring(0, 12));
+    }
+}
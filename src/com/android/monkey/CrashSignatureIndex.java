@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent index of the crashes seen across monkey runs, keyed on {@link CrashSignature}.
+ *
+ * <p>The index is an open addressing hash table stored in a file, with one fixed size slot per
+ * signature, so recording or looking up a crash reads and writes a few slots whatever the size of
+ * the index. The table doubles when it is 70% full: the new table is written after the current
+ * one before the header is switched to it, so an interrupted growth leaves the index as it was.
+ *
+ * <p>The file is locked for each operation, so several invocations on the same host can share an
+ * index. File locks are held by the whole JVM, so the instances of this process opening the same
+ * file also take a lock of their own for that file first.
+ */
+public class CrashSignatureIndex implements Closeable {
+
+    private static final int MAGIC = 0x4d4b4349; // "MKCI"
+    private static final int VERSION = 1;
+    // Header layout: magic, version, capacity, size, offset of the table
+    private static final int HEADER_SIZE = 24;
+    private static final long CAPACITY_POSITION = 8;
+    private static final long SIZE_POSITION = 12;
+    private static final long TABLE_POSITION = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    // Slot layout: hash, hit count, first seen, last seen, first build, last build
+    private static final int HASH_SIZE = 16;
+    private static final int BUILD_SIZE = 40;
+    private static final int SLOT_SIZE = HASH_SIZE + 3 * Long.BYTES + 2 * BUILD_SIZE;
+
+    // The in-process locks of the index files, by canonical path
+    private static final Map<String, Object> sPathLocks = new HashMap<>();
+
+    /** What the index knows about a crash signature. */
+    public static class Entry {
+        private final boolean mNew;
+        private final long mHitCount;
+        private final long mFirstSeen;
+        private final long mLastSeen;
+        private final String mFirstBuild;
+        private final String mLastBuild;
+
+        Entry(
+                boolean isNew,
+                long hitCount,
+                long firstSeen,
+                long lastSeen,
+                String firstBuild,
+                String lastBuild) {
+            mNew = isNew;
+            mHitCount = hitCount;
+            mFirstSeen = firstSeen;
+            mLastSeen = lastSeen;
+            mFirstBuild = firstBuild;
+            mLastBuild = lastBuild;
+        }
+
+        /** Returns the number of times the crash was recorded, including this one. */
+        public long getHitCount() {
+            return mHitCount;
+        }
+
+        /**
+         * Returns {@code true} if the crash was not recorded before this index was opened, so a
+         * crash seen several times in a run is new for all of them.
+         */
+        public boolean isNew() {
+            return mNew;
+        }
+
+        /** Returns the time the crash was first recorded, in ms since the epoch. */
+        public long getFirstSeen() {
+            return mFirstSeen;
+        }
+
+        /** Returns the time the crash was last recorded, in ms since the epoch. */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        public String getFirstBuild() {
+            return mFirstBuild;
+        }
+
+        public String getLastBuild() {
+            return mLastBuild;
+        }
+    }
+
+    private final Object mPathLock;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    // The hashes first recorded since this index was opened
+    private final Set<String> mNewHashes = new HashSet<>();
+
+    /**
+     * Open an index, creating it if the file doesn't exist.
+     *
+     * @throws IOException if the file can't be opened or is not a crash signature index
+     */
+    public CrashSignatureIndex(File file) throws IOException {
+        mPathLock = getPathLock(file);
+        synchronized (mPathLock) {
+            mFile = new RandomAccessFile(file, "rw");
+            mChannel = mFile.getChannel();
+            try (FileLock lock = lock()) {
+                if (mFile.length() == 0) {
+                    mFile.setLength(HEADER_SIZE + (long) INITIAL_CAPACITY * SLOT_SIZE);
+                    writeHeader(INITIAL_CAPACITY, 0, HEADER_SIZE);
+                } else if (mFile.length() < HEADER_SIZE
+                        || readInt(0) != MAGIC
+                        || readInt(4) != VERSION) {
+                    throw new IOException(
+                            String.format("%s is not a crash signature index", file.getPath()));
+                }
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+    }
+
+    private static Object getPathLock(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (sPathLocks) {
+            Object lock = sPathLocks.get(path);
+            if (lock == null) {
+                lock = new Object();
+                sPathLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    /** Lock the file, the in-process lock of its path being held. */
+    private FileLock lock() throws IOException {
+        try {
+            return mChannel.lock();
+        } catch (OverlappingFileLockException e) {
+            // Only if the file was opened some other way in this process
+            throw new IOException("Crash index is already locked in this process", e);
+        }
+    }
+
+    /**
+     * Record an occurrence of a crash.
+     *
+     * @param signature the crash signature
+     * @param buildId the build the crash was seen on
+     * @return the entry of the crash, including this occurrence
+     */
+    public Entry record(CrashSignature signature, String buildId) throws IOException {
+        byte[] hash = getHashBytes(signature);
+        synchronized (mPathLock) {
+            try (FileLock lock = lock()) {
+                int capacity = readInt(CAPACITY_POSITION);
+                int size = readInt(SIZE_POSITION);
+                long table = readLong(TABLE_POSITION);
+                if (size + 1 > capacity * MAX_LOAD) {
+                    table = grow(capacity, size, table);
+                    capacity *= 2;
+                }
+
+                long now = System.currentTimeMillis();
+                long slot = findSlot(hash, capacity, table);
+                ByteBuffer buffer = readSlot(table, slot);
+                Entry entry;
+                if (isEmpty(buffer)) {
+                    mNewHashes.add(signature.getHash());
+                    entry = new Entry(true, 1, now, now, buildId, buildId);
+                    writeHeader(capacity, size + 1, table);
+                } else {
+                    Entry old = toEntry(buffer, false);
+                    entry =
+                            new Entry(
+                                    false,
+                                    old.getHitCount() + 1,
+                                    old.getFirstSeen(),
+                                    now,
+                                    old.getFirstBuild(),
+                                    buildId);
+                }
+                // Return the entry as stored, with build ids truncated to fit the slot
+                return toEntry(
+                        writeSlot(table, slot, hash, entry),
+                        mNewHashes.contains(signature.getHash()));
+            }
+        }
+    }
+
+    /** Returns the entry of a crash, or {@code null} if it was never recorded. */
+    public Entry lookup(CrashSignature signature) throws IOException {
+        byte[] hash = getHashBytes(signature);
+        synchronized (mPathLock) {
+            try (FileLock lock = lock()) {
+                long table = readLong(TABLE_POSITION);
+                ByteBuffer buffer =
+                        readSlot(table, findSlot(hash, readInt(CAPACITY_POSITION), table));
+                return isEmpty(buffer)
+                        ? null
+                        : toEntry(buffer, mNewHashes.contains(signature.getHash()));
+            }
+        }
+    }
+
+    /** Returns the number of signatures in the index. */
+    public int size() throws IOException {
+        synchronized (mPathLock) {
+            try (FileLock lock = lock()) {
+                return readInt(SIZE_POSITION);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        // Closing a channel releases the locks of the process on the file, so not while in use
+        synchronized (mPathLock) {
+            mFile.close();
+        }
+    }
+
+    /** Returns the slot holding a hash, or the empty slot where it would be inserted. */
+    private long findSlot(byte[] hash, int capacity, long table) throws IOException {
+        long slot = getFirstSlot(hash, capacity);
+        while (true) {
+            ByteBuffer buffer = readSlot(table, slot);
+            if (isEmpty(buffer) || hashEquals(buffer, hash)) {
+                return slot;
+            }
+            slot = (slot + 1) % capacity;
+        }
+    }
+
+    private static long getFirstSlot(byte[] hash, int capacity) {
+        return Long.remainderUnsigned(ByteBuffer.wrap(hash).getLong(), capacity);
+    }
+
+    /**
+     * Doubles the capacity of the table, rehashing all entries into a new table written after the
+     * current one. The header is only switched to the new table once it is written, so the index
+     * is left as it was if this is interrupted.
+     *
+     * @return the offset of the new table
+     */
+    private long grow(int capacity, int size, long table) throws IOException {
+        byte[] oldTable = new byte[capacity * SLOT_SIZE];
+        mFile.seek(table);
+        mFile.readFully(oldTable);
+
+        int newCapacity = capacity * 2;
+        byte[] newTable = new byte[newCapacity * SLOT_SIZE];
+        for (int i = 0; i < capacity; i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(oldTable, i * SLOT_SIZE, SLOT_SIZE).slice();
+            if (isEmpty(buffer)) {
+                continue;
+            }
+            byte[] hash = new byte[HASH_SIZE];
+            buffer.get(hash);
+            long slot = getFirstSlot(hash, newCapacity);
+            while (!isEmpty(ByteBuffer.wrap(newTable, (int) slot * SLOT_SIZE, SLOT_SIZE).slice())) {
+                slot = (slot + 1) % newCapacity;
+            }
+            System.arraycopy(oldTable, i * SLOT_SIZE, newTable, (int) slot * SLOT_SIZE, SLOT_SIZE);
+        }
+
+        long newTablePosition = table + oldTable.length;
+        mFile.setLength(newTablePosition + newTable.length);
+        mFile.seek(newTablePosition);
+        mFile.write(newTable);
+        mChannel.force(false);
+        writeHeader(newCapacity, size, newTablePosition);
+        mChannel.force(false);
+        return newTablePosition;
+    }
+
+    private ByteBuffer readSlot(long table, long slot) throws IOException {
+        byte[] data = new byte[SLOT_SIZE];
+        mFile.seek(table + slot * SLOT_SIZE);
+        mFile.readFully(data);
+        return ByteBuffer.wrap(data);
+    }
+
+    private ByteBuffer writeSlot(long table, long slot, byte[] hash, Entry entry)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+        buffer.put(hash);
+        buffer.putLong(entry.getHitCount());
+        buffer.putLong(entry.getFirstSeen());
+        buffer.putLong(entry.getLastSeen());
+        putBuild(buffer, entry.getFirstBuild());
+        putBuild(buffer, entry.getLastBuild());
+        mFile.seek(table + slot * SLOT_SIZE);
+        mFile.write(buffer.array());
+        return buffer;
+    }
+
+    private static Entry toEntry(ByteBuffer buffer, boolean isNew) {
+        buffer.position(HASH_SIZE);
+        long hitCount = buffer.getLong();
+        long firstSeen = buffer.getLong();
+        long lastSeen = buffer.getLong();
+        String firstBuild = getBuild(buffer);
+        String lastBuild = getBuild(buffer);
+        return new Entry(isNew, hitCount, firstSeen, lastSeen, firstBuild, lastBuild);
+    }
+
+    private static void putBuild(ByteBuffer buffer, String buildId) {
+        byte[] data = new byte[BUILD_SIZE];
+        if (buildId != null) {
+            byte[] bytes = buildId.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, data, 0, Math.min(bytes.length, BUILD_SIZE));
+        }
+        buffer.put(data);
+    }
+
+    private static String getBuild(ByteBuffer buffer) {
+        byte[] data = new byte[BUILD_SIZE];
+        buffer.get(data);
+        int length = 0;
+        while (length < BUILD_SIZE && data[length] != 0) {
+            length++;
+        }
+        return length == 0 ? null : new String(data, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isEmpty(ByteBuffer buffer) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hashEquals(ByteBuffer buffer, byte[] hash) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (buffer.get(i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the first bytes of the signature hash. */
+    private static byte[] getHashBytes(CrashSignature signature) {
+        String hex = signature.getHash();
+        byte[] hash = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            hash[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        if (Arrays.equals(hash, new byte[HASH_SIZE])) {
+            // All zeros marks an empty slot
+            hash[HASH_SIZE - 1] = 1;
+        }
+        return hash;
+    }
+
+    private int readInt(long position) throws IOException {
+        mFile.seek(position);
+        return mFile.readInt();
+    }
+
+    private long readLong(long position) throws IOException {
+        mFile.seek(position);
+        return mFile.readLong();
+    }
+
+    /** Write the header in a single write, so it is switched to a new table at once. */
+    private void writeHeader(int capacity, int size, long table) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(capacity);
+        header.putInt(size);
+        header.putLong(table);
+        mFile.seek(0);
+        mFile.write(header.array());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.IRunUtil;
+
+import java.util.regex.Pattern;
+
+/**
+ * Waits for a device to become quiescent, instead of sleeping for a fixed time.
+ *
+ * <p>Each tick reads, in a single shell command, the CPU counters of /proc/stat and the number of
+ * broadcasts still being dispatched. The device is settled once the CPU usage since the previous
+ * tick is below a threshold and no broadcast is active, for a number of consecutive ticks.
+ *
+ * <p>"dumpsys activity broadcasts" lists each broadcast queue in turn, its active and pending
+ * broadcasts followed by its historical ones. Only the section headers and the broadcast records
+ * are read from the device, and the records are counted from an active or pending header of a queue
+ * to its historical header.
+ */
+public class DeviceSettleDetector {
+
+    private static final String SEPARATOR = "--";
+    private static final String BROADCAST_RECORD = "BroadcastRecord{";
+    static final String POLL_CMD =
+            "head -1 /proc/stat; echo "
+                    + SEPARATOR
+                    + "; dumpsys activity broadcasts"
+                    + " | grep -E '^ *(Active|Pending|Historical)[A-Za-z ]* \\["
+                    + "|BroadcastRecord\\{'";
+    // e.g. "Active ordered broadcasts [background]:" or "Pending broadcast [foreground]:"
+    private static final Pattern ACTIVE_HEADER =
+            Pattern.compile("^\\s*(Active|Pending)[A-Za-z ]* \\[");
+    // e.g. "Historical broadcasts [foreground]:" or "Historical broadcasts summary [foreground]:"
+    private static final Pattern HISTORICAL_HEADER =
+            Pattern.compile("^\\s*Historical[A-Za-z ]* \\[");
+
+    /** The state of the device at one tick. */
+    static class Sample {
+        final long mBusyTicks;
+        final long mTotalTicks;
+        final int mActiveBroadcasts;
+
+        Sample(long busyTicks, long totalTicks, int activeBroadcasts) {
+            mBusyTicks = busyTicks;
+            mTotalTicks = totalTicks;
+            mActiveBroadcasts = activeBroadcasts;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final IRunUtil mRunUtil;
+    private final int mCpuThresholdPercent;
+    private final long mPollIntervalMs;
+    private final int mQuietTicks;
+
+    /**
+     * @param device the device to watch
+     * @param runUtil the {@link IRunUtil} to sleep with
+     * @param cpuThresholdPercent the CPU usage below which the device is quiet
+     * @param pollIntervalMs the time between two ticks
+     * @param quietTicks the number of consecutive quiet ticks for the device to be settled
+     */
+    public DeviceSettleDetector(
+            ITestDevice device,
+            IRunUtil runUtil,
+            int cpuThresholdPercent,
+            long pollIntervalMs,
+            int quietTicks) {
+        mDevice = device;
+        mRunUtil = runUtil;
+        mCpuThresholdPercent = cpuThresholdPercent;
+        mPollIntervalMs = pollIntervalMs;
+        mQuietTicks = quietTicks;
+    }
+
+    /**
+     * Wait until the device is settled, or at most the given time.
+     *
+     * @return the time waited, in ms
+     */
+    public long waitForSettle(long maxWaitMs) throws DeviceNotAvailableException {
+        long start = System.currentTimeMillis();
+        Sample previous = poll();
+        int quiet = 0;
+        while (quiet < mQuietTicks) {
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed + mPollIntervalMs > maxWaitMs) {
+                mRunUtil.sleep(Math.max(0, maxWaitMs - elapsed));
+                CLog.i("Device did not settle in %d ms, giving up", maxWaitMs);
+                return System.currentTimeMillis() - start;
+            }
+            mRunUtil.sleep(mPollIntervalMs);
+            Sample sample = poll();
+            if (previous == null || sample == null) {
+                // Can't tell without two readings
+                quiet = 0;
+            } else if (isQuiet(previous, sample)) {
+                quiet++;
+            } else {
+                quiet = 0;
+            }
+            previous = sample;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        CLog.i("Device settled in %d ms", elapsed);
+        return elapsed;
+    }
+
+    private Sample poll() throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(POLL_CMD);
+        Sample sample = parse(output);
+        if (sample == null) {
+            CLog.w("Could not parse device load: %s", output);
+        }
+        return sample;
+    }
+
+    private boolean isQuiet(Sample previous, Sample sample) {
+        long total = sample.mTotalTicks - previous.mTotalTicks;
+        long busy = sample.mBusyTicks - previous.mBusyTicks;
+        int cpuPercent = total > 0 ? (int) (busy * 100 / total) : 100;
+        CLog.d("Device CPU usage %d%%, %d active broadcasts", cpuPercent, sample.mActiveBroadcasts);
+        return cpuPercent < mCpuThresholdPercent && sample.mActiveBroadcasts == 0;
+    }
+
+    /**
+     * Parse the output of {@link #POLL_CMD}, or of the same command with the full broadcasts
+     * dump.
+     *
+     * @return the sample, or {@code null} if the output is not as expected
+     */
+    static Sample parse(String output) {
+        if (output == null) {
+            return null;
+        }
+        String[] parts = output.split(SEPARATOR, 2);
+        if (parts.length != 2) {
+            return null;
+        }
+        // cpu user nice system idle iowait irq softirq steal [guest guest_nice]
+        String[] fields = parts[0].trim().split("\\s+");
+        if (fields.length < 8 || !"cpu".equals(fields[0])) {
+            return null;
+        }
+        try {
+            long total = 0;
+            // Guest time is already counted in user time
+            for (int i = 1; i <= Math.min(8, fields.length - 1); i++) {
+                total += Long.parseLong(fields[i]);
+            }
+            long idle = Long.parseLong(fields[4]) + Long.parseLong(fields[5]);
+            return new Sample(total - idle, total, countActiveBroadcasts(parts[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Count the active and pending broadcasts of all the queues of a broadcasts dump. */
+    private static int countActiveBroadcasts(String dump) {
+        int broadcasts = 0;
+        boolean counting = false;
+        for (String line : dump.split("\n")) {
+            if (HISTORICAL_HEADER.matcher(line).find()) {
+                counting = false;
+            } else if (ACTIVE_HEADER.matcher(line).find()) {
+                counting = true;
+            } else if (counting && line.contains(BROADCAST_RECORD)) {
+                broadcasts++;
+            }
+        }
+        return broadcasts;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import com.android.loganalysis.item.BugreportItem;
+import com.android.loganalysis.item.MonkeyLogItem;
+import com.android.loganalysis.parser.BugreportParser;
+import com.android.loganalysis.parser.MonkeyLogParser;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Shares the parsed bugreport, monkey log and monkey throughput between the consumers of the same
+ * {@link InputStreamSource}, like {@link MonkeyBase} and {@link MonkeyBrillopadForwarder}.
+ *
+ * <p>Entries are keyed on the identity of the source and reference counted. A source is only
+ * cached while some consumer holds it with {@link #register} or {@link #retain}; for any other
+ * source the getters parse without caching, like the consumers used to.
+ */
+public class MonkeyArtifactCache {
+
+    private static final Map<InputStreamSource, Entry> sEntries = new IdentityHashMap<>();
+
+    private static class Entry {
+        private int mRefCount = 0;
+        private File mFile = null;
+        private BugreportItem mBugreport = null;
+        private MonkeyLogItem mMonkeyLog = null;
+        private MonkeyThroughput mThroughput = null;
+    }
+
+    private MonkeyArtifactCache() {}
+
+    /**
+     * Retain a source whose content is already in a file. The cache takes ownership of the file,
+     * which is deleted once the source is released by all its consumers.
+     */
+    public static synchronized void register(InputStreamSource source, File file) {
+        Entry entry = getOrCreateEntry(source);
+        if (entry.mFile != null && !entry.mFile.equals(file)) {
+            FileUtil.deleteFile(entry.mFile);
+        }
+        entry.mFile = file;
+    }
+
+    /** Retain a source, so that its parsed content is cached. */
+    public static synchronized void retain(InputStreamSource source) {
+        getOrCreateEntry(source);
+    }
+
+    /**
+     * Release a source. Once released by all consumers, the cached items are dropped and its file
+     * is deleted.
+     */
+    public static synchronized void release(InputStreamSource source) {
+        Entry entry = sEntries.get(source);
+        if (entry == null) {
+            CLog.w("Releasing a monkey artifact which is not retained");
+            return;
+        }
+        entry.mRefCount--;
+        if (entry.mRefCount <= 0) {
+            sEntries.remove(source);
+            FileUtil.deleteFile(entry.mFile);
+        }
+    }
+
+    /** Returns the parsed bugreport of a source, parsing it on the first request only. */
+    public static BugreportItem getBugreport(InputStreamSource source) throws IOException {
+        Entry entry = getEntry(source);
+        if (entry == null) {
+            return parseBugreport(source, null);
+        }
+        synchronized (entry) {
+            if (entry.mBugreport == null) {
+                entry.mBugreport = parseBugreport(source, entry.mFile);
+            }
+            return entry.mBugreport;
+        }
+    }
+
+    /** Returns the parsed monkey log of a source, parsing it on the first request only. */
+    public static MonkeyLogItem getMonkeyLog(InputStreamSource source) throws IOException {
+        Entry entry = getEntry(source);
+        if (entry == null) {
+            return parseMonkeyLog(source, null);
+        }
+        synchronized (entry) {
+            if (entry.mMonkeyLog == null) {
+                entry.mMonkeyLog = parseMonkeyLog(source, entry.mFile);
+            }
+            return entry.mMonkeyLog;
+        }
+    }
+
+    /** Returns the throughput timeline of a monkey log, parsing it on the first request only. */
+    public static MonkeyThroughput getThroughput(InputStreamSource source) throws IOException {
+        Entry entry = getEntry(source);
+        if (entry == null) {
+            return parseThroughput(source, null);
+        }
+        synchronized (entry) {
+            if (entry.mThroughput == null) {
+                entry.mThroughput = parseThroughput(source, entry.mFile);
+            }
+            return entry.mThroughput;
+        }
+    }
+
+    private static Entry getOrCreateEntry(InputStreamSource source) {
+        Entry entry = sEntries.get(source);
+        if (entry == null) {
+            entry = new Entry();
+            sEntries.put(source, entry);
+        }
+        entry.mRefCount++;
+        return entry;
+    }
+
+    private static synchronized Entry getEntry(InputStreamSource source) {
+        return sEntries.get(source);
+    }
+
+    private static BugreportItem parseBugreport(InputStreamSource source, File file)
+            throws IOException {
+        try (BufferedReader reader = openReader(source, file)) {
+            return new BugreportParser().parse(reader);
+        }
+    }
+
+    private static MonkeyLogItem parseMonkeyLog(InputStreamSource source, File file)
+            throws IOException {
+        try (BufferedReader reader = openReader(source, file)) {
+            return new MonkeyLogParser().parse(reader);
+        }
+    }
+
+    private static MonkeyThroughput parseThroughput(InputStreamSource source, File file)
+            throws IOException {
+        try (BufferedReader reader = openReader(source, file)) {
+            return MonkeyThroughput.parse(reader);
+        }
+    }
+
+    private static BufferedReader openReader(InputStreamSource source, File file)
+            throws IOException {
+        if (file != null) {
+            return new BufferedReader(new FileReader(file));
+        }
+        return new BufferedReader(new InputStreamReader(source.createInputStream()));
+    }
+}
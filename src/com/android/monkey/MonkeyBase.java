@@ -16,22 +16,19 @@
 
 package com.android.monkey;
 
-import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.loganalysis.item.AnrItem;
 import com.android.loganalysis.item.BugreportItem;
 import com.android.loganalysis.item.MiscKernelLogItem;
 import com.android.loganalysis.item.MonkeyLogItem;
-import com.android.loganalysis.parser.BugreportParser;
 import com.android.loganalysis.parser.KernelLogParser;
-import com.android.loganalysis.parser.MonkeyLogParser;
+import com.android.monkey.MonkeyOutputReceiver.CrashType;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
-import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.DeviceFileReporter;
 import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -48,14 +45,12 @@ import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
 import org.junit.Assert;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -66,6 +61,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /** Runner for stress tests which use the monkey command. */
@@ -89,6 +88,12 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
 
     private static final String NULL_UPTIME = "0.00";
 
+    /** How long to wait for the bugreports and traces taken on crashes once the monkey finished. */
+    private static final long CRASH_TASKS_TIMEOUT_MS = 10 * 60 * 1000;
+
+    /** How long to let the device settle after launching each warmup component. */
+    private static final long WARMUP_SETTLE_MS = 5000;
+
     /**
      * Helper to run a monkey command with an absolute timeout.
      *
@@ -98,11 +103,13 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
      */
     private class CommandHelper {
         private DeviceNotAvailableException mException = null;
-        private String mOutput = null;
 
-        public void runCommand(final ITestDevice device, final String command, long timeout)
+        public void runCommand(
+                final ITestDevice device,
+                final String command,
+                long timeout,
+                final MonkeyOutputReceiver receiver)
                 throws DeviceNotAvailableException {
-            final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             Thread t =
                     new Thread() {
                         @Override
@@ -124,16 +131,41 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
                 CLog.e("Thread was interrupted while running %s", command);
             }
 
-            mOutput = receiver.getOutput();
             receiver.cancel();
 
             if (mException != null) {
                 throw mException;
             }
         }
+    }
+
+    /**
+     * Forwards the logs of the artifacts collected concurrently, by crash tasks during the run or
+     * after it, to the invocation listener, which is not thread safe, one at a time. Logs sent after
+     * {@link #close()} are dropped, so collectors which outlive their phase never race with the rest
+     * of the run.
+     */
+    private static class ArtifactUploader implements ITestInvocationListener {
+        private final ITestInvocationListener mListener;
+        private boolean mClosed = false;
 
-        public String getOutput() {
-            return mOutput;
+        ArtifactUploader(ITestInvocationListener listener) {
+            mListener = listener;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public synchronized void testLog(
+                String dataName, LogDataType dataType, InputStreamSource dataStream) {
+            if (mClosed) {
+                CLog.w("Monkey run ended, dropping %s", dataName);
+                return;
+            }
+            mListener.testLog(dataName, dataType, dataStream);
+        }
+
+        synchronized void close() {
+            mClosed = true;
         }
     }
 
@@ -202,6 +234,29 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
     @Option(name = "idle-time", description = "How long to sleep before running monkey, in secs")
     private int mIdleTimeSecs = 5 * 60;
 
+    @Option(
+            name = "settle-detection",
+            description =
+                    "Instead of sleeping for idle-time, and for 5 secs after each warmup "
+                            + "component, start as soon as the device is quiet. The sleeps become "
+                            + "the max wait.")
+    private boolean mSettleDetection = false;
+
+    @Option(
+            name = "settle-cpu-threshold",
+            description = "CPU usage below which the device is quiet, in percent.")
+    private int mSettleCpuThreshold = 20;
+
+    @Option(
+            name = "settle-poll-interval",
+            description = "Time between two checks of the device load, in ms.")
+    private long mSettlePollIntervalMs = 1000;
+
+    @Option(
+            name = "settle-quiet-polls",
+            description = "Number of consecutive quiet checks for the device to be settled.")
+    private int mSettleQuietPolls = 3;
+
     @Option(
             name = "monkey-arg",
             description =
@@ -256,13 +311,15 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
             description = "Enable a continuous circular buffer to collect atrace information")
     private boolean mAtraceEnabled = false;
 
-    // options for generating ANR report via post processing script
+    // options for generating ANR report via post processing
     @Option(name = "generate-anr-report", description = "Generate ANR report via post-processing")
     private boolean mGenerateAnrReport = false;
 
+    // FIXME: Remove this once configs no longer set it.
     @Option(
             name = "anr-report-script",
-            description = "Path to the script for monkey ANR " + "report generation.")
+            description =
+                    "Deprecated, ignored. The ANR report is now generated without a script.")
     private String mAnrReportScriptPath = null;
 
     @Option(
@@ -284,10 +341,44 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
                             + "location for generated monkey ANR reports.")
     private String mAnrReportPath = null;
 
+    @Option(
+            name = "anr-bugreport-count",
+            description =
+                    "Max number of bugreports to take as soon as the monkey reports an ANR, "
+                            + "while the device is still in the ANR state. 0 to disable.")
+    private int mAnrBugreportCount = 0;
+
+    @Option(
+            name = "atrace-snapshot-count",
+            description =
+                    "Max number of atrace snapshots to upload as soon as the monkey reports an "
+                            + "ANR or a native crash. Requires collect-atrace. 0 to disable.")
+    private int mAtraceSnapshotCount = 0;
+
+    @Option(
+            name = "atrace-snapshot-before",
+            description = "How much trace to keep before the crash in atrace snapshots, in secs.")
+    private int mAtraceSnapshotBeforeSecs = 10;
+
+    @Option(
+            name = "atrace-snapshot-after",
+            description = "How much trace to keep after the crash in atrace snapshots, in secs.")
+    private int mAtraceSnapshotAfterSecs = 2;
+
     private ITestDevice mTestDevice = null;
     private MonkeyLogItem mMonkeyLog = null;
     private BugreportItem mBugreport = null;
     private AnrReportGenerator mAnrGen = null;
+    private ExecutorService mCrashExecutor = null;
+    private final List<Bugreport> mAnrBugreports = new ArrayList<>();
+    private int mAnrBugreportsRequested = 0;
+    private ExecutorService mAtraceExecutor = null;
+    private int mAtraceSnapshotsRequested = 0;
+    // Uploads made by crash tasks while the monkey runs, closed once it finishes
+    private ArtifactUploader mCrashUploader = null;
+    // Time spent waiting for the device to settle before the run, and after warmup launches
+    private long mSettleTimeMs = 0;
+    private long mWarmupSettleTimeMs = 0;
 
     /** {@inheritDoc} */
     @Override
@@ -305,7 +396,8 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         } finally {
             listener.testEnded(id, new HashMap<String, Metric>());
             listener.testRunEnded(
-                    System.currentTimeMillis() - startTime, new HashMap<String, Metric>());
+                    System.currentTimeMillis() - startTime,
+                    TfMetricProtoUtil.upgradeConvert(getRunMetrics()));
         }
     }
 
@@ -331,17 +423,41 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
             CLog.v("Pre-run reboot disabled; skipping...");
         }
 
+        DeviceSettleDetector settleDetector = null;
+        if (mSettleDetection) {
+            settleDetector =
+                    new DeviceSettleDetector(
+                            device,
+                            getRunUtil(),
+                            mSettleCpuThreshold,
+                            mSettlePollIntervalMs,
+                            mSettleQuietPolls);
+        }
+
+        mSettleTimeMs = 0;
         if (mIdleTimeSecs > 0) {
-            CLog.i("Sleeping for %d seconds to allow device to settle...", mIdleTimeSecs);
-            getRunUtil().sleep(mIdleTimeSecs * 1000);
-            CLog.i("Done sleeping.");
+            if (settleDetector != null) {
+                CLog.i("Waiting up to %d seconds for device to settle...", mIdleTimeSecs);
+                mSettleTimeMs = settleDetector.waitForSettle(mIdleTimeSecs * 1000L);
+            } else {
+                CLog.i("Sleeping for %d seconds to allow device to settle...", mIdleTimeSecs);
+                getRunUtil().sleep(mIdleTimeSecs * 1000);
+                CLog.i("Done sleeping.");
+                mSettleTimeMs = mIdleTimeSecs * 1000L;
+            }
         }
 
         // launch the list of apps that needs warm-up
+        mWarmupSettleTimeMs = 0;
         for (String componentName : mLaunchComponents) {
             getDevice().executeShellCommand(String.format(getAppCmdWithExtras(), componentName));
             // give it some more time to settle down
-            getRunUtil().sleep(5000);
+            if (settleDetector != null) {
+                mWarmupSettleTimeMs += settleDetector.waitForSettle(WARMUP_SETTLE_MS);
+            } else {
+                getRunUtil().sleep(WARMUP_SETTLE_MS);
+                mWarmupSettleTimeMs += WARMUP_SETTLE_MS;
+            }
         }
 
         if (mUseWhitelistFile) {
@@ -354,7 +470,15 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         String command = buildMonkeyCommand();
         CLog.i("About to run monkey with at %d minute timeout: %s", mMonkeyTimeout, command);
 
-        StringBuilder outputBuilder = new StringBuilder();
+        File monkeyLogFile = null;
+        MonkeyOutputReceiver receiver = null;
+        try {
+            monkeyLogFile = FileUtil.createTempFile(MONKEY_LOG_NAME, ".txt");
+            receiver = new MonkeyOutputReceiver(monkeyLogFile, this::handleCrash);
+        } catch (IOException e) {
+            FileUtil.deleteFile(monkeyLogFile);
+            throw new RuntimeException("Could not create the monkey log file", e);
+        }
         CommandHelper commandHelper = new CommandHelper();
 
         long start = System.currentTimeMillis();
@@ -362,9 +486,11 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         Date dateAfter = null;
         String uptimeAfter = NULL_UPTIME;
         FileInputStreamSource atraceStream = null;
+        ArtifactUploader uploader = null;
+        ExecutorService collector = null;
 
         // Generate the monkey log prefix, which includes the device uptime
-        outputBuilder.append(
+        receiver.append(
                 String.format(
                         "# %s - device uptime = %s: Monkey command used "
                                 + "for this test:\nadb shell %s\n\n",
@@ -378,7 +504,6 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         if (mGenerateAnrReport) {
             mAnrGen =
                     new AnrReportGenerator(
-                            mAnrReportScriptPath,
                             mAnrReportBasePath,
                             mAnrReportUrlPrefix,
                             mAnrReportPath,
@@ -387,9 +512,18 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
                             mTestDevice.getSerialNumber());
         }
 
+        mAnrBugreports.clear();
+        mAnrBugreportsRequested = 0;
+        mAtraceSnapshotsRequested = 0;
+        mCrashExecutor = Executors.newSingleThreadExecutor();
+        // Separate from the crash executor, so snapshots aren't delayed past the end of the
+        // circular buffer by bugreports
+        mAtraceExecutor = Executors.newSingleThreadExecutor();
+        mCrashUploader = new ArtifactUploader(listener);
+
         try {
             onMonkeyStart();
-            commandHelper.runCommand(mTestDevice, command, getMonkeyTimeoutMs());
+            commandHelper.runCommand(mTestDevice, command, getMonkeyTimeoutMs(), receiver);
         } finally {
             // Wait for device to recover if it's not online.  If it hasn't recovered, ignore.
             try {
@@ -399,25 +533,61 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
                 dateAfter = new Date();
                 uptimeAfter = getUptime();
                 onMonkeyFinish();
-                takeScreenshot(listener, "screenshot");
+                finishCrashTasks(listener);
+
+                // Collect the artifacts concurrently, their uploads are serialized by the uploader
+                uploader = new ArtifactUploader(listener);
+                collector = Executors.newFixedThreadPool(3);
+                final ArtifactUploader artifactListener = uploader;
+                Future<?> screenshot =
+                        collector.submit(
+                                () -> {
+                                    takeScreenshot(artifactListener, "screenshot");
+                                    return null;
+                                });
+                Future<BugreportItem> bugreport =
+                        collector.submit(() -> takeBugreport(artifactListener, BUGREPORT_NAME));
+                // FIXME: Remove this once traces.txt is no longer needed.
+                Future<?> traces =
+                        collector.submit(
+                                () -> {
+                                    takeTraces(artifactListener);
+                                    return null;
+                                });
 
                 if (mAtraceEnabled) {
                     atraceStream = CircularAtraceUtil.endTrace(getDevice());
                 }
 
-                mBugreport = takeBugreport(listener, BUGREPORT_NAME);
-                // FIXME: Remove this once traces.txt is no longer needed.
-                takeTraces(listener);
+                mBugreport = awaitArtifact(bugreport, "bugreport");
+                awaitArtifact(traces, "traces");
+                // Last, as it is the only one which may throw
+                awaitArtifact(screenshot, "screenshot");
             } finally {
                 // @@@ DO NOT add anything that requires device interaction into this block     @@@
                 // @@@ logging that no longer requires device interaction MUST be in this block @@@
-                outputBuilder.append(commandHelper.getOutput());
+                // Collectors still running after a failure must not use the listener anymore
+                if (uploader != null) {
+                    uploader.close();
+                }
+                if (collector != null) {
+                    collector.shutdownNow();
+                }
+                mCrashUploader.close();
+                mCrashExecutor.shutdownNow();
+                mAtraceExecutor.shutdownNow();
+                synchronized (mAnrBugreports) {
+                    for (Bugreport bugreport : mAnrBugreports) {
+                        StreamUtil.close(bugreport);
+                    }
+                    mAnrBugreports.clear();
+                }
                 if (dateAfter == null) {
                     dateAfter = new Date();
                 }
 
                 // Generate the monkey log suffix, which includes the device uptime.
-                outputBuilder.append(
+                receiver.append(
                         String.format(
                                 "\n# %s - device uptime = %s: Monkey command "
                                         + "ran for: %d:%02d (mm:ss)\n",
@@ -425,7 +595,13 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
                                 uptimeAfter,
                                 duration / 1000 / 60,
                                 duration / 1000 % 60));
-                mMonkeyLog = createMonkeyLog(listener, MONKEY_LOG_NAME, outputBuilder.toString());
+                receiver.close();
+                CLog.i(
+                        "Monkey reported %d crashes, %d ANRs and %d native crashes",
+                        receiver.getJavaCrashCount(),
+                        receiver.getAnrCount(),
+                        receiver.getNativeCrashCount());
+                mMonkeyLog = createMonkeyLog(listener, MONKEY_LOG_NAME, monkeyLogFile);
 
                 boolean isAnr = mMonkeyLog.getCrash() instanceof AnrItem;
                 if (mAtraceEnabled && isAnr) {
@@ -433,16 +609,17 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
                     listener.testLog("circular-atrace", LogDataType.TEXT, atraceStream);
                 }
                 if (mAnrGen != null) {
+                    mAnrGen.setTraces(receiver.getAnrTraces());
                     if (isAnr) {
                         if (!mAnrGen.genereateAnrReport(listener)) {
                             CLog.w("Failed to post-process ANR.");
                         } else {
                             CLog.i("Successfully post-processed ANR.");
                         }
-                        mAnrGen.cleanTempFiles();
                     } else {
                         CLog.d("ANR post-processing enabled but no ANR detected.");
                     }
+                    mAnrGen.clear();
                 }
                 StreamUtil.cancel(atraceStream);
             }
@@ -484,6 +661,159 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         // empty
     }
 
+    /**
+     * A hook to allow subclasses to report run metrics. Called once when the run ends, even if the
+     * monkey failed.
+     */
+    protected Map<String, String> getRunMetrics() {
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("settle_time_ms", Long.toString(mSettleTimeMs));
+        metrics.put("warmup_settle_time_ms", Long.toString(mWarmupSettleTimeMs));
+        return metrics;
+    }
+
+    /**
+     * A hook to allow subclasses to perform actions as soon as the monkey reports a crash, while
+     * the monkey is still running.
+     *
+     * <p>This is called on the thread reading the monkey output, so it must return quickly. Use
+     * {@link #getCrashExecutor()} for anything that takes time, like device interaction.
+     *
+     * @param type the type of crash
+     * @param app the crashed package, or {@code null} for a native crash
+     * @param timestamp the host time the crash was seen at, in ms
+     */
+    protected void onMonkeyCrash(CrashType type, String app, long timestamp) {
+        // empty
+    }
+
+    /**
+     * Get the single thread executor which runs work triggered by crashes, in the order the
+     * crashes were reported. Tasks still pending once the monkey finished are cancelled.
+     */
+    protected ExecutorService getCrashExecutor() {
+        return mCrashExecutor;
+    }
+
+    /** Handle a crash reported by the monkey, called while the monkey is running. */
+    private void handleCrash(CrashType type, String app, long timestamp) {
+        onMonkeyCrash(type, app, timestamp);
+        if (mAtraceEnabled
+                && type != CrashType.JAVA_CRASH
+                && mAtraceSnapshotsRequested < mAtraceSnapshotCount) {
+            mAtraceSnapshotsRequested++;
+            final int index = mAtraceSnapshotsRequested;
+            mAtraceExecutor.submit(() -> uploadAtraceSnapshot(type, app, timestamp, index));
+        }
+        if (type != CrashType.ANR || mAnrBugreportsRequested >= mAnrBugreportCount) {
+            return;
+        }
+        mAnrBugreportsRequested++;
+        mCrashExecutor.submit(
+                () -> {
+                    CLog.i("Taking bugreport for ANR in %s", app);
+                    Bugreport bugreport = mTestDevice.takeBugreport();
+                    if (bugreport == null) {
+                        CLog.e("Could not take bugreport for ANR in %s", app);
+                        return;
+                    }
+                    synchronized (mAnrBugreports) {
+                        mAnrBugreports.add(bugreport);
+                    }
+                });
+    }
+
+    /**
+     * Capture the circular atrace around a crash and upload it, while the monkey is running. Runs
+     * on the atrace executor.
+     */
+    private void uploadAtraceSnapshot(CrashType type, String app, long timestamp, int index) {
+        CLog.i("Taking atrace snapshot for %s in %s", type, app);
+        File trace = null;
+        try {
+            trace =
+                    AtraceSnapshot.capture(
+                            mTestDevice,
+                            timestamp,
+                            mAtraceSnapshotBeforeSecs * 1000L,
+                            mAtraceSnapshotAfterSecs * 1000L);
+            if (trace == null) {
+                return;
+            }
+            // The listener is only free while the monkey runs, the uploader drops the snapshot
+            // once finishCrashTasks closed it
+            try (InputStreamSource source = new FileInputStreamSource(trace)) {
+                mCrashUploader.testLog(
+                        String.format("atrace_%s_%d", type.toString().toLowerCase(), index),
+                        LogDataType.TEXT,
+                        source);
+            }
+        } catch (DeviceNotAvailableException e) {
+            CLog.e("Device became unavailable while taking atrace snapshot");
+        } finally {
+            FileUtil.deleteFile(trace);
+        }
+    }
+
+    /**
+     * Wait for the tasks triggered by crashes, and send the bugreports taken on ANR to a listener.
+     * No crash task uses the listener once this returns.
+     */
+    private void finishCrashTasks(ITestInvocationListener listener) {
+        mCrashExecutor.shutdown();
+        mAtraceExecutor.shutdown();
+        try {
+            long deadline = System.currentTimeMillis() + CRASH_TASKS_TIMEOUT_MS;
+            if (!mAtraceExecutor.awaitTermination(
+                            deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)
+                    || !mCrashExecutor.awaitTermination(
+                            deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+                CLog.w("Timed out waiting for bugreports and traces taken on crashes");
+            }
+        } catch (InterruptedException e) {
+            CLog.e("Interrupted while waiting for bugreports and traces taken on crashes");
+        }
+        mCrashUploader.close();
+        synchronized (mAnrBugreports) {
+            for (int i = 0; i < mAnrBugreports.size(); i++) {
+                Bugreport bugreport = mAnrBugreports.get(i);
+                bugreport.log(String.format("anr_%s_%d", BUGREPORT_NAME, i + 1), listener);
+                StreamUtil.close(bugreport);
+            }
+            mAnrBugreports.clear();
+        }
+    }
+
+    /**
+     * Wait for an artifact collected after the run.
+     *
+     * @return the result of the collection, or {@code null} if it failed or was interrupted
+     * @throws DeviceNotAvailableException if the device became unavailable during the collection
+     */
+    private static <T> T awaitArtifact(Future<T> future, String name)
+            throws DeviceNotAvailableException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            CLog.e("Interrupted while collecting %s", name);
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            CLog.e("Could not collect %s", name);
+            CLog.e(e);
+            return null;
+        }
+    }
+
     /**
      * If enabled, capture a screenshot and send it to a listener.
      *
@@ -498,35 +828,58 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         }
     }
 
-    /** Capture a bugreport and send it to a listener. */
+    /**
+     * Capture a bugreport and send it to a listener.
+     *
+     * <p>The bugreport is parsed once through {@link MonkeyArtifactCache}, and the parsed item is
+     * shared with listeners and the {@link AnrReportGenerator} which consume the same source.
+     */
     protected BugreportItem takeBugreport(ITestInvocationListener listener, String bugreportName) {
         Bugreport bugreport = mTestDevice.takeBugreport();
         if (bugreport == null) {
             CLog.e("Could not take bugreport");
             return null;
         }
-        bugreport.log(bugreportName, listener);
         File main = null;
         InputStreamSource is = null;
+        boolean logged = false;
         try {
             main = bugreport.getMainFile();
             if (main == null) {
                 CLog.e("Bugreport has no main file");
+                bugreport.log(bugreportName, listener);
                 return null;
             }
+            is = new FileInputStreamSource(main);
+            MonkeyArtifactCache.register(is, main);
+            // Log the bugreport before parsing it, so it is uploaded even if it can't be parsed
+            if (bugreport.isZipped()) {
+                bugreport.log(bugreportName, listener);
+            } else {
+                // Log the cached source itself, so listeners reuse the parsed bugreport
+                listener.testLog(bugreportName, LogDataType.BUGREPORT, is);
+            }
+            logged = true;
+            BugreportItem item = MonkeyArtifactCache.getBugreport(is);
             if (mAnrGen != null) {
-                is = new FileInputStreamSource(main);
-                mAnrGen.setBugReportInfo(is);
+                mAnrGen.setBugReport(item);
             }
-            return new BugreportParser().parse(new BufferedReader(new FileReader(main)));
+            return item;
         } catch (IOException e) {
             CLog.e("Could not process bugreport");
             CLog.e(e);
+            if (!logged) {
+                bugreport.log(bugreportName, listener);
+            }
             return null;
         } finally {
             StreamUtil.close(bugreport);
             StreamUtil.cancel(is);
-            FileUtil.deleteFile(main);
+            if (is != null) {
+                MonkeyArtifactCache.release(is);
+            } else {
+                FileUtil.deleteFile(main);
+            }
         }
     }
 
@@ -543,20 +896,30 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         }
     }
 
-    /** Create the monkey log, parse it, and send it to a listener. */
+    /**
+     * Create the monkey log, parse it, and send it to a listener.
+     *
+     * <p>The log is parsed once through {@link MonkeyArtifactCache}, which takes ownership of the
+     * file and deletes it once all consumers are done with it.
+     */
     protected MonkeyLogItem createMonkeyLog(
-            ITestInvocationListener listener, String monkeyLogName, String log) {
-        try (InputStreamSource source = new ByteArrayInputStreamSource(log.getBytes())) {
+            ITestInvocationListener listener, String monkeyLogName, File log) {
+        InputStreamSource source = new FileInputStreamSource(log);
+        MonkeyArtifactCache.register(source, log);
+        try {
+            MonkeyLogItem item = MonkeyArtifactCache.getMonkeyLog(source);
             if (mAnrGen != null) {
-                mAnrGen.setMonkeyLogInfo(source);
+                mAnrGen.setMonkeyLog(item);
             }
             listener.testLog(monkeyLogName, LogDataType.MONKEY_LOG, source);
-            return new MonkeyLogParser()
-                    .parse(new BufferedReader(new InputStreamReader(source.createInputStream())));
+            return item;
         } catch (IOException e) {
             CLog.e("Could not process monkey log.");
             CLog.e(e);
             return null;
+        } finally {
+            StreamUtil.cancel(source);
+            MonkeyArtifactCache.release(source);
         }
     }
 
@@ -686,6 +1049,16 @@ public class MonkeyBase implements IDeviceTest, IRemoteTest, IRetriableTest {
         return output;
     }
 
+    /** Get the random seed of the monkey, or {@code null} if a random one is picked. */
+    protected Long getRandomSeed() {
+        return mRandomSeed;
+    }
+
+    /** Set the random seed of the monkey. */
+    void setRandomSeed(Long randomSeed) {
+        mRandomSeed = randomSeed;
+    }
+
     /** Get {@link IRunUtil} to use. Exposed for unit testing. */
     IRunUtil getRunUtil() {
         return RunUtil.getDefault();
@@ -23,9 +23,8 @@ import com.android.loganalysis.item.JavaCrashItem;
 import com.android.loganalysis.item.LogcatItem;
 import com.android.loganalysis.item.MonkeyLogItem;
 import com.android.loganalysis.item.NativeCrashItem;
-import com.android.loganalysis.parser.BugreportParser;
-import com.android.loganalysis.parser.MonkeyLogParser;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
@@ -36,9 +35,7 @@ import com.google.common.base.Throwables;
 
 import org.junit.Assert;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -75,35 +72,41 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
 
     private BugreportItem mBugreport = null;
     private MonkeyLogItem mMonkeyLog = null;
+    private MonkeyThroughput mThroughput = null;
     private final long mMonkeyTimeoutMs;
+    private CrashSignatureIndex mCrashIndex = null;
+    private String mBuildId = null;
 
     public MonkeyBrillopadForwarder(ITestInvocationListener listener, long monkeyTimeoutMs) {
         super(listener);
         mMonkeyTimeoutMs = monkeyTimeoutMs;
     }
 
+    /**
+     * Set the persistent index the reported crashes are recorded in, to tag them as new or known.
+     *
+     * @param crashIndex the crash index
+     * @param buildId the build the crashes are seen on
+     */
+    public void setCrashIndex(CrashSignatureIndex crashIndex, String buildId) {
+        mCrashIndex = crashIndex;
+        mBuildId = buildId;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
         try {
             // just parse the logs for now. Forwarding of results will happen on test completion
+            // Logs already parsed by the test are shared through the cache instead of re-parsed
             if (LogDataType.BUGREPORT.equals(dataType)) {
                 CLog.i("Parsing %s", dataName);
-                mBugreport =
-                        new BugreportParser()
-                                .parse(
-                                        new BufferedReader(
-                                                new InputStreamReader(
-                                                        dataStream.createInputStream())));
+                mBugreport = MonkeyArtifactCache.getBugreport(dataStream);
             }
             if (LogDataType.MONKEY_LOG.equals(dataType)) {
                 CLog.i("Parsing %s", dataName);
-                mMonkeyLog =
-                        new MonkeyLogParser()
-                                .parse(
-                                        new BufferedReader(
-                                                new InputStreamReader(
-                                                        dataStream.createInputStream())));
+                mMonkeyLog = MonkeyArtifactCache.getMonkeyLog(dataStream);
+                mThroughput = MonkeyArtifactCache.getThroughput(dataStream);
             }
         } catch (IOException e) {
             CLog.e("Could not parse file %s", dataName);
@@ -126,6 +129,7 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
             LogcatItem systemLog = mBugreport.getSystemLog();
 
             MonkeyStatus status = reportMonkeyStats(mMonkeyLog, monkeyMetrics);
+            logThroughput();
             StringBuilder crashTrace = new StringBuilder();
             reportAnrs(mMonkeyLog, monkeyMetrics, crashTrace);
             reportJavaCrashes(mMonkeyLog, monkeyMetrics, crashTrace);
@@ -162,9 +166,29 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
                 "uptime",
                 convertToString(
                         (monkeyLog.getStopUptimeDuration() - monkeyLog.getStartUptimeDuration())));
+        if (mThroughput != null) {
+            monkeyMetrics.putAll(mThroughput.getMetrics());
+        }
         return status;
     }
 
+    /** Log the events/sec timeline of the run, with the stalled intervals flagged. */
+    private void logThroughput() {
+        if (mThroughput == null || mThroughput.getTimeline().isEmpty()) {
+            CLog.w("No event timestamps in the monkey log, run the monkey with -v");
+            return;
+        }
+        for (MonkeyThroughput.Interval stall : mThroughput.getStalls()) {
+            CLog.i(
+                    "Monkey stalled from uptime %d ms to %d ms: %.2f events/s",
+                    stall.getStartUptimeMs(), stall.getEndUptimeMs(), stall.getRate());
+        }
+        try (InputStreamSource source =
+                new ByteArrayInputStreamSource(mThroughput.getTimelineCsv().getBytes())) {
+            super.testLog("monkey_throughput", LogDataType.TEXT, source);
+        }
+    }
+
     /**
      * A utility method that converts an {@link Integer} to a {@link String}, and that can handle
      * null.
@@ -188,6 +212,13 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
             JavaCrashItem jc = (JavaCrashItem) monkeyLog.getCrash();
             metrics.put("java_crash", "1");
             crashTrace.append("Detected java crash:\n");
+            CrashSignatureIndex.Entry entry =
+                    recordCrash(MonkeyCrashIndex.JAVA_CRASH, jc.getApp(), jc.getStack());
+            if (entry != null) {
+                metrics.put("java_crash_new", entry.isNew() ? "1" : "0");
+                metrics.put("java_crash_hits", Long.toString(entry.getHitCount()));
+                crashTrace.append(describeCrash(entry));
+            }
             crashTrace.append(jc.getStack());
             crashTrace.append("\n");
         }
@@ -198,15 +229,26 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
             LogcatItem systemLog, Map<String, String> metrics, StringBuilder crashTrace) {
         if (systemLog.getEvents().size() > 0) {
             int nativeCrashes = 0;
+            int newNativeCrashes = 0;
             for (IItem item : systemLog.getEvents()) {
                 if (item instanceof NativeCrashItem) {
+                    NativeCrashItem nc = (NativeCrashItem) item;
                     nativeCrashes++;
                     crashTrace.append("Detected native crash:\n");
-                    crashTrace.append(((NativeCrashItem) item).getStack());
+                    CrashSignatureIndex.Entry entry =
+                            recordCrash(MonkeyCrashIndex.NATIVE_CRASH, nc.getApp(), nc.getStack());
+                    if (entry != null) {
+                        newNativeCrashes += entry.isNew() ? 1 : 0;
+                        crashTrace.append(describeCrash(entry));
+                    }
+                    crashTrace.append(nc.getStack());
                     crashTrace.append("\n");
                 }
             }
             metrics.put("native_crash", Integer.toString(nativeCrashes));
+            if (mCrashIndex != null) {
+                metrics.put("native_crash_new", Integer.toString(newNativeCrashes));
+            }
         }
     }
 
@@ -217,11 +259,47 @@ public class MonkeyBrillopadForwarder extends ResultForwarder {
             AnrItem anr = (AnrItem) monkeyLog.getCrash();
             metrics.put("anr_crash", "1");
             crashTrace.append("Detected ANR:\n");
+            CrashSignatureIndex.Entry entry =
+                    recordCrash(MonkeyCrashIndex.ANR, anr.getApp(), anr.getStack());
+            if (entry != null) {
+                metrics.put("anr_crash_new", entry.isNew() ? "1" : "0");
+                metrics.put("anr_crash_hits", Long.toString(entry.getHitCount()));
+                crashTrace.append(describeCrash(entry));
+            }
             crashTrace.append(anr.getStack());
             crashTrace.append("\n");
         }
     }
 
+    /**
+     * Record a crash in the crash index, if set.
+     *
+     * @return the index entry of the crash, or {@code null} if there is no index or it failed
+     */
+    private CrashSignatureIndex.Entry recordCrash(String type, String app, String stack) {
+        if (mCrashIndex == null) {
+            return null;
+        }
+        try {
+            return mCrashIndex.record(CrashSignature.create(type, app, stack), mBuildId);
+        } catch (IOException e) {
+            CLog.e("Could not record crash in the crash index");
+            CLog.e(e);
+            return null;
+        }
+    }
+
+    /** Returns a line telling whether a crash is new or known. */
+    private static String describeCrash(CrashSignatureIndex.Entry entry) {
+        if (entry.isNew()) {
+            return String.format("New crash, first seen in this run, seen %d times.\n",
+                    entry.getHitCount());
+        }
+        return String.format(
+                "Known crash, first seen on build %s, seen %d times.\n",
+                entry.getFirstBuild(), entry.getHitCount());
+    }
+
     /** Return the {@link MonkeyStatus} based on how the monkey run ran. */
     private MonkeyStatus getStatus(MonkeyLogItem monkeyLog) {
         // Uptime
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import com.android.loganalysis.item.AnrItem;
+import com.android.loganalysis.item.BugreportItem;
+import com.android.loganalysis.item.JavaCrashItem;
+import com.android.loganalysis.item.LogcatItem;
+import com.android.loganalysis.item.MonkeyLogItem;
+import com.android.loganalysis.item.NativeCrashItem;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Thread safe index of the crashes found by monkey runs on several devices, deduplicated by {@link
+ * CrashSignature}.
+ *
+ * <p>The crashes of a device are read from the system logs of its bugreports, which have all the
+ * crashes of the run, including the ones the monkey ignored. The system logs of several bugreports
+ * overlap, so a crash already added from one of them, with the same process and time, is skipped.
+ * The monkey log only has the crash which ended the run, so it is used for the devices without a
+ * bugreport.
+ */
+public class MonkeyCrashIndex {
+
+    public static final String ANR = "anr";
+    public static final String JAVA_CRASH = "java_crash";
+    public static final String NATIVE_CRASH = "native_crash";
+
+    /** A unique crash, and where it was seen. */
+    public static class CrashRecord {
+        private final CrashSignature mSignature;
+        private final String mStack;
+        private final Set<String> mDevices = new LinkedHashSet<>();
+        private int mHitCount = 0;
+
+        CrashRecord(CrashSignature signature, String stack) {
+            mSignature = signature;
+            mStack = stack;
+        }
+
+        public CrashSignature getSignature() {
+            return mSignature;
+        }
+
+        /** Returns the full stack of the first occurrence. */
+        public String getStack() {
+            return mStack;
+        }
+
+        /** Returns the serials of the devices the crash was seen on, in order. */
+        public Set<String> getDevices() {
+            return mDevices;
+        }
+
+        public int getHitCount() {
+            return mHitCount;
+        }
+    }
+
+    private final Map<CrashSignature, CrashRecord> mCrashes = new LinkedHashMap<>();
+    private int mTotalCount = 0;
+    // The crashes added from system logs, by device, type, pid and time
+    private final Set<String> mSystemLogCrashes = new HashSet<>();
+    private final Set<String> mDevicesWithSystemLog = new HashSet<>();
+    // The crash of the monkey log of each device, as {type, app, stack}
+    private final Map<String, String[]> mMonkeyLogCrashes = new HashMap<>();
+
+    /**
+     * Add a crash seen on a device.
+     *
+     * @return {@code true} if this is the first occurrence of the crash
+     */
+    public synchronized boolean addCrash(String device, String type, String app, String stack) {
+        CrashSignature signature = CrashSignature.create(type, app, stack);
+        CrashRecord record = mCrashes.get(signature);
+        boolean isNew = record == null;
+        if (isNew) {
+            record = new CrashRecord(signature, stack);
+            mCrashes.put(signature, record);
+        }
+        record.mDevices.add(device);
+        record.mHitCount++;
+        mTotalCount++;
+        return isNew;
+    }
+
+    /**
+     * Set the crash of a parsed monkey log, if any, added by {@link #endDevice} if the device has
+     * no bugreport.
+     */
+    public synchronized void addMonkeyLog(String device, MonkeyLogItem monkeyLog) {
+        if (monkeyLog == null) {
+            return;
+        }
+        if (monkeyLog.getCrash() instanceof AnrItem) {
+            AnrItem anr = (AnrItem) monkeyLog.getCrash();
+            mMonkeyLogCrashes.put(device, new String[] {ANR, anr.getApp(), anr.getStack()});
+        } else if (monkeyLog.getCrash() instanceof JavaCrashItem) {
+            JavaCrashItem jc = (JavaCrashItem) monkeyLog.getCrash();
+            mMonkeyLogCrashes.put(device, new String[] {JAVA_CRASH, jc.getApp(), jc.getStack()});
+        }
+    }
+
+    /** Add the crashes found in the system log of a parsed bugreport, skipping the known ones. */
+    public synchronized void addBugreport(String device, BugreportItem bugreport) {
+        if (bugreport == null || bugreport.getSystemLog() == null) {
+            return;
+        }
+        mDevicesWithSystemLog.add(device);
+        LogcatItem systemLog = bugreport.getSystemLog();
+        for (JavaCrashItem jc : systemLog.getJavaCrashes()) {
+            if (isNewSystemLogCrash(device, JAVA_CRASH, jc.getPid(), jc.getEventTime())) {
+                addCrash(device, JAVA_CRASH, jc.getApp(), jc.getStack());
+            }
+        }
+        for (AnrItem anr : systemLog.getAnrs()) {
+            if (isNewSystemLogCrash(device, ANR, anr.getPid(), anr.getEventTime())) {
+                addCrash(device, ANR, anr.getApp(), anr.getStack());
+            }
+        }
+        for (NativeCrashItem nc : systemLog.getNativeCrashes()) {
+            if (isNewSystemLogCrash(device, NATIVE_CRASH, nc.getPid(), nc.getEventTime())) {
+                addCrash(device, NATIVE_CRASH, nc.getApp(), nc.getStack());
+            }
+        }
+    }
+
+    /**
+     * End the run of a device: the crash of its monkey log is added if none of its bugreports had
+     * a system log.
+     */
+    public synchronized void endDevice(String device) {
+        String[] crash = mMonkeyLogCrashes.remove(device);
+        if (crash != null && !mDevicesWithSystemLog.contains(device)) {
+            addCrash(device, crash[0], crash[1], crash[2]);
+        }
+    }
+
+    /** Returns {@code false} if the crash was already added from another system log. */
+    private boolean isNewSystemLogCrash(String device, String type, Integer pid, Date time) {
+        if (pid == null && time == null) {
+            // Nothing to tell it from another crash of the same type
+            return true;
+        }
+        Long timeMs = time == null ? null : time.getTime();
+        return mSystemLogCrashes.add(String.format("%s %s %s %s", device, type, pid, timeMs));
+    }
+
+    /** Returns the unique crashes, in the order they were first seen. */
+    public synchronized List<CrashRecord> getCrashes() {
+        return new ArrayList<>(mCrashes.values());
+    }
+
+    /** Returns the number of unique crashes per package. */
+    public synchronized Map<String, Integer> getUniqueCrashCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (CrashSignature signature : mCrashes.keySet()) {
+            Integer count = counts.get(signature.getApp());
+            counts.put(signature.getApp(), count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the crash metrics: total and unique crash counts, unique crashes per package, and
+     * the number of unique crashes reproduced on more than one device.
+     */
+    public synchronized Map<String, String> getMetrics() {
+        Map<String, String> metrics = new HashMap<>();
+        int reproduced = 0;
+        for (CrashRecord record : mCrashes.values()) {
+            if (record.getDevices().size() > 1) {
+                reproduced++;
+            }
+        }
+        metrics.put("total_crashes", Integer.toString(mTotalCount));
+        metrics.put("unique_crashes", Integer.toString(mCrashes.size()));
+        metrics.put("reproduced_crashes", Integer.toString(reproduced));
+        for (Map.Entry<String, Integer> entry : getUniqueCrashCounts().entrySet()) {
+            metrics.put(
+                    String.format("unique_crashes_%s", entry.getKey()),
+                    Integer.toString(entry.getValue()));
+        }
+        return metrics;
+    }
+
+    /** Returns a human readable report of the unique crashes, grouped by package. */
+    public synchronized String getReport() {
+        Map<String, List<CrashRecord>> byApp = new TreeMap<>();
+        for (CrashRecord record : mCrashes.values()) {
+            String app = record.getSignature().getApp();
+            if (!byApp.containsKey(app)) {
+                byApp.put(app, new ArrayList<CrashRecord>());
+            }
+            byApp.get(app).add(record);
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(
+                String.format(
+                        "%d unique crashes out of %d crashes\n\n", mCrashes.size(), mTotalCount));
+        for (Map.Entry<String, List<CrashRecord>> entry : byApp.entrySet()) {
+            report.append(
+                    String.format(
+                            "== %s: %d unique crashes ==\n",
+                            entry.getKey(), entry.getValue().size()));
+            for (CrashRecord record : entry.getValue()) {
+                report.append(
+                        String.format(
+                                "%s %s: %d hits on %d devices %s\n",
+                                record.getSignature().getType(),
+                                record.getSignature().getHash().substring(0, 12),
+                                record.getHitCount(),
+                                record.getDevices().size(),
+                                record.getDevices()));
+                if (record.getStack() != null) {
+                    report.append(record.getStack()).append("\n");
+                }
+                report.append("\n");
+            }
+        }
+        return report.toString();
+    }
+}
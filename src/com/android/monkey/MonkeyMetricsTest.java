@@ -16,8 +16,14 @@
 
 package com.android.monkey;
 
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * A {@link MonkeyBase} specialization that uses the brillopad parser to extract and report monkey
@@ -25,11 +31,32 @@ import com.android.tradefed.result.ITestInvocationListener;
  */
 public class MonkeyMetricsTest extends MonkeyBase {
 
+    @Option(
+            name = "crash-index",
+            description =
+                    "Path to a persistent crash signature index, created if missing. Crashes are "
+                            + "recorded in it and reported as new or known.")
+    private File mCrashIndexFile = null;
+
     /** {@inheritDoc} */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         MonkeyBrillopadForwarder brilloAnalyzer =
                 new MonkeyBrillopadForwarder(listener, getMonkeyTimeoutMs());
-        super.run(brilloAnalyzer);
+        CrashSignatureIndex crashIndex = null;
+        if (mCrashIndexFile != null) {
+            try {
+                crashIndex = new CrashSignatureIndex(mCrashIndexFile);
+                brilloAnalyzer.setCrashIndex(crashIndex, getDevice().getBuildId());
+            } catch (IOException e) {
+                CLog.e("Could not open crash index %s", mCrashIndexFile.getAbsolutePath());
+                CLog.e(e);
+            }
+        }
+        try {
+            super.run(brilloAnalyzer);
+        } finally {
+            StreamUtil.close(crashIndex);
+        }
     }
 }
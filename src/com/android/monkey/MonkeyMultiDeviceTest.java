@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionCopier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.testtype.IMultiDeviceTest;
+import com.android.tradefed.util.proto.TfMetricProtoUtil;
+
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the monkey on all the devices of the invocation at once, each with its own seed, and reports
+ * the crashes found on all devices deduplicated by {@link CrashSignature}.
+ *
+ * <p>Device i runs with seed {@code random-seed + i}, so no two devices replay the same event
+ * sequence. Each device's logs are uploaded as they are produced, prefixed with its serial, and its
+ * crashes are added to a shared {@link MonkeyCrashIndex}. Once all devices are done, one test per
+ * device and a "unique_crashes" test with the per-package crash counts are reported.
+ */
+public class MonkeyMultiDeviceTest extends MonkeyBase implements IMultiDeviceTest {
+
+    private static final String CRASH_REPORT_NAME = "unique_crashes";
+
+    @Option(
+            name = "max-parallel-devices",
+            description = "Max number of devices running the monkey at once. 0 for all devices.")
+    private int mMaxParallelDevices = 0;
+
+    private List<ITestDevice> mDevices = new ArrayList<>();
+    private MonkeyCrashIndex mCrashIndex = null;
+    // Set on the per-device copies of this test, which run the monkey on a single device
+    private boolean mIsDeviceRun = false;
+
+    /** Result of the monkey run on one device. */
+    private static class DeviceResult {
+        private final String mSerial;
+        private final long mSeed;
+        private final Map<String, String> mMetrics = new HashMap<>();
+        private final HashMap<String, Metric> mRunMetrics = new HashMap<>();
+        private String mFailure = null;
+        private DeviceNotAvailableException mException = null;
+
+        DeviceResult(String serial, long seed) {
+            mSerial = serial;
+            mSeed = seed;
+        }
+    }
+
+    /**
+     * Listener for the monkey run on one device. Test results and run metrics are reported by the
+     * coordinator once all devices are done; logs are indexed for crashes and forwarded right away.
+     */
+    private class DeviceListener implements ITestInvocationListener {
+        private final ITestInvocationListener mListener;
+        private final DeviceResult mResult;
+
+        DeviceListener(ITestInvocationListener listener, DeviceResult result) {
+            mListener = listener;
+            mResult = result;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+            try {
+                // Parsed items are shared through the cache with the device's MonkeyBase
+                if (LogDataType.MONKEY_LOG.equals(dataType)) {
+                    mCrashIndex.addMonkeyLog(
+                            mResult.mSerial, MonkeyArtifactCache.getMonkeyLog(dataStream));
+                } else if (LogDataType.BUGREPORT.equals(dataType)) {
+                    mCrashIndex.addBugreport(
+                            mResult.mSerial, MonkeyArtifactCache.getBugreport(dataStream));
+                }
+            } catch (IOException e) {
+                CLog.e("Could not parse %s from %s", dataName, mResult.mSerial);
+                CLog.e(e);
+            }
+            // The invocation listener is not thread safe
+            synchronized (MonkeyMultiDeviceTest.this) {
+                mListener.testLog(
+                        String.format("%s_%s", mResult.mSerial, dataName), dataType, dataStream);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void testRunEnded(long elapsedTime, HashMap<String, Metric> runMetrics) {
+            // Like the settle time of the device, reported with its test
+            mResult.mRunMetrics.putAll(runMetrics);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
+        if (mIsDeviceRun) {
+            super.run(listener);
+            return;
+        }
+
+        mCrashIndex = new MonkeyCrashIndex();
+        long baseSeed = getRandomSeed() != null ? getRandomSeed() : new Random().nextInt(1000);
+        int threads = mDevices.size();
+        if (mMaxParallelDevices > 0) {
+            threads = Math.min(threads, mMaxParallelDevices);
+        }
+        CLog.i("Running monkey on %d devices, base seed %d", mDevices.size(), baseSeed);
+
+        long startTime = System.currentTimeMillis();
+        listener.testRunStarted(getClass().getCanonicalName(), mDevices.size() + 1);
+
+        List<DeviceResult> results = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            for (int i = 0; i < mDevices.size(); i++) {
+                ITestDevice device = mDevices.get(i);
+                DeviceResult result = new DeviceResult(device.getSerialNumber(), baseSeed + i);
+                results.add(result);
+                MonkeyMultiDeviceTest deviceRun = createDeviceRun(device, result.mSeed);
+                DeviceListener deviceListener = new DeviceListener(listener, result);
+                futures.add(executor.submit(() -> runOnDevice(deviceRun, deviceListener, result)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    CLog.e(e);
+                } catch (InterruptedException e) {
+                    // The runs still in progress are interrupted by shutdownNow()
+                    CLog.e("Interrupted while waiting for the devices to finish");
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        DeviceNotAvailableException deviceException = null;
+        for (DeviceResult result : results) {
+            reportDeviceResult(listener, result);
+            if (deviceException == null) {
+                deviceException = result.mException;
+            }
+        }
+        reportCrashIndex(listener);
+        listener.testRunEnded(
+                System.currentTimeMillis() - startTime, new HashMap<String, Metric>());
+
+        if (deviceException != null) {
+            throw deviceException;
+        }
+    }
+
+    /** Create a copy of this test which runs the monkey on a single device with a given seed. */
+    private MonkeyMultiDeviceTest createDeviceRun(ITestDevice device, long seed) {
+        MonkeyMultiDeviceTest deviceRun = new MonkeyMultiDeviceTest();
+        OptionCopier.copyOptionsNoThrow(this, deviceRun);
+        deviceRun.mIsDeviceRun = true;
+        deviceRun.setDevice(device);
+        deviceRun.setRandomSeed(seed);
+        return deviceRun;
+    }
+
+    private void runOnDevice(
+            MonkeyMultiDeviceTest deviceRun, DeviceListener listener, DeviceResult result) {
+        CLog.i("Starting monkey on %s with seed %d", result.mSerial, result.mSeed);
+        try {
+            deviceRun.run(listener);
+        } catch (DeviceNotAvailableException e) {
+            result.mFailure = Throwables.getStackTraceAsString(e);
+            result.mException = e;
+        } catch (AssertionError | RuntimeException e) {
+            result.mFailure = Throwables.getStackTraceAsString(e);
+        } finally {
+            mCrashIndex.endDevice(result.mSerial);
+        }
+        CLog.i("Monkey finished on %s", result.mSerial);
+    }
+
+    private void reportDeviceResult(ITestInvocationListener listener, DeviceResult result) {
+        TestDescription id =
+                new TestDescription(getClass().getCanonicalName(), "monkey_" + result.mSerial);
+        result.mMetrics.put("seed", Long.toString(result.mSeed));
+        listener.testStarted(id);
+        if (result.mFailure != null) {
+            listener.testFailed(id, result.mFailure);
+        }
+        HashMap<String, Metric> metrics = TfMetricProtoUtil.upgradeConvert(result.mMetrics);
+        metrics.putAll(result.mRunMetrics);
+        listener.testEnded(id, metrics);
+    }
+
+    private void reportCrashIndex(ITestInvocationListener listener) {
+        TestDescription id = new TestDescription(getClass().getCanonicalName(), CRASH_REPORT_NAME);
+        listener.testStarted(id);
+        try (InputStreamSource report =
+                new ByteArrayInputStreamSource(mCrashIndex.getReport().getBytes())) {
+            listener.testLog(CRASH_REPORT_NAME, LogDataType.TEXT, report);
+        }
+        for (MonkeyCrashIndex.CrashRecord record : mCrashIndex.getCrashes()) {
+            CLog.i(
+                    "%s reproduced on %d devices: %s",
+                    record.getSignature(), record.getDevices().size(), record.getDevices());
+        }
+        listener.testEnded(id, TfMetricProtoUtil.upgradeConvert(mCrashIndex.getMetrics()));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setDeviceInfos(Map<ITestDevice, IBuildInfo> deviceInfos) {
+        mDevices = new ArrayList<>(new LinkedHashMap<>(deviceInfos).keySet());
+        if (!mDevices.isEmpty() && getDevice() == null) {
+            setDevice(mDevices.get(0));
+        }
+    }
+}
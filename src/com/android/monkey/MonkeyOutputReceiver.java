@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Receiver for the monkey output which spills each line to a log file as it arrives, and watches
+ * for crashes and ANRs while the monkey is still running.
+ *
+ * <p>Only the current line, and the traces of the process of the first ANR, are held in memory, so
+ * the size of the output doesn't matter. Events are raised on the thread running the shell
+ * command: listeners must return quickly and hand off any device interaction to another thread,
+ * otherwise the monkey output backs up.
+ */
+public class MonkeyOutputReceiver extends MultiLineReceiver implements Closeable {
+
+    /** Type of crash seen in the monkey output. */
+    public enum CrashType {
+        JAVA_CRASH,
+        ANR,
+        NATIVE_CRASH,
+    }
+
+    /** Listener notified of crashes as soon as the monkey reports them. */
+    public interface ICrashListener {
+        /**
+         * Called when the monkey reports a crash.
+         *
+         * @param type the type of crash
+         * @param app the crashed package, or {@code null} for a native crash
+         * @param timestamp the host time the crash was seen at, in ms
+         */
+        public void onCrash(CrashType type, String app, long timestamp);
+    }
+
+    /** Matches "// CRASH: com.android.package (pid 1234)" */
+    private static final Pattern CRASH =
+            Pattern.compile("^// CRASH: (\\S+) \\(pid \\d+\\)");
+    /** Matches "// NOT RESPONDING: com.android.package (pid 1234)" */
+    private static final Pattern ANR =
+            Pattern.compile("^// NOT RESPONDING: (\\S+) \\(pid (\\d+)\\)");
+    private static final String NATIVE_CRASH = "** New native crash detected.";
+    /** The traces dump the monkey prints after an ANR, up to its status line */
+    private static final String TRACES_START = "anr traces:";
+    private static final String TRACES_END = "// anr traces status was";
+    /** Matches the start of a process in the traces dump, e.g. "----- pid 1234 at 2018-..." */
+    private static final Pattern TRACES_PROCESS_START = Pattern.compile("^----- pid (\\d+) at ");
+    private static final String TRACES_PROCESS_END = "----- end ";
+
+    private final File mLogFile;
+    private final ICrashListener mListener;
+    private Writer mWriter;
+    private boolean mCancelled = false;
+    // The newline ending the last line is written with the next one, as flush() passes the rest
+    // of the output after the last newline, usually empty, as a line of its own
+    private boolean mNewlinePending = false;
+    private int mJavaCrashCount = 0;
+    private int mAnrCount = 0;
+    private int mNativeCrashCount = 0;
+    private String mAnrPid = null;
+    private boolean mInTraces = false;
+    private boolean mAnrTracesDone = false;
+    private StringBuilder mAnrTraces = null;
+
+    /**
+     * @param logFile the file to write the monkey output to, overwritten if it exists
+     * @param listener the listener to notify of crashes, or {@code null}
+     * @throws IOException if the log file can't be opened
+     */
+    public MonkeyOutputReceiver(File logFile, ICrashListener listener) throws IOException {
+        mLogFile = logFile;
+        mListener = listener;
+        mWriter = new BufferedWriter(new FileWriter(logFile));
+        // Keep the indentation of the monkey output, it is part of the log format
+        setTrimLine(false);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void processNewLines(String[] lines) {
+        for (String line : lines) {
+            if (mNewlinePending) {
+                write("\n");
+            }
+            write(line);
+            mNewlinePending = true;
+            checkForCrash(line);
+            collectAnrTraces(line);
+        }
+    }
+
+    /** Writes text which is not monkey output, like a header, to the log file. */
+    public synchronized void append(String text) {
+        write(text);
+    }
+
+    private void write(String text) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(text);
+        } catch (IOException e) {
+            CLog.e("Could not write to monkey log %s", mLogFile.getAbsolutePath());
+            CLog.e(e);
+            close();
+        }
+    }
+
+    private void checkForCrash(String line) {
+        if (!line.startsWith("//") && !line.startsWith("**")) {
+            return;
+        }
+        Matcher m = CRASH.matcher(line);
+        if (m.find()) {
+            mJavaCrashCount++;
+            notifyCrash(CrashType.JAVA_CRASH, m.group(1));
+            return;
+        }
+        m = ANR.matcher(line);
+        if (m.find()) {
+            mAnrCount++;
+            if (mAnrPid == null) {
+                mAnrPid = m.group(2);
+            }
+            notifyCrash(CrashType.ANR, m.group(1));
+            return;
+        }
+        if (line.startsWith(NATIVE_CRASH)) {
+            mNativeCrashCount++;
+            notifyCrash(CrashType.NATIVE_CRASH, null);
+        }
+    }
+
+    /** Keeps the traces of the process of the first ANR, from the dump following it. */
+    private void collectAnrTraces(String line) {
+        if (mAnrPid == null || mAnrTracesDone) {
+            return;
+        }
+        if (!mInTraces) {
+            mInTraces = line.trim().equals(TRACES_START);
+            return;
+        }
+        if (line.startsWith(TRACES_END)) {
+            mAnrTracesDone = true;
+            return;
+        }
+        if (mAnrTraces == null) {
+            Matcher m = TRACES_PROCESS_START.matcher(line);
+            if (!m.find() || !m.group(1).equals(mAnrPid)) {
+                return;
+            }
+            mAnrTraces = new StringBuilder();
+        }
+        mAnrTraces.append(line).append('\n');
+        if (line.startsWith(TRACES_PROCESS_END)) {
+            mAnrTracesDone = true;
+        }
+    }
+
+    private void notifyCrash(CrashType type, String app) {
+        CLog.i("Monkey reported %s%s", type, app == null ? "" : " in " + app);
+        if (mListener == null) {
+            return;
+        }
+        try {
+            mListener.onCrash(type, app, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            // Don't let a listener failure stop the monkey output from being logged
+            CLog.e(e);
+        }
+    }
+
+    /** Stops receiving output from the monkey command. */
+    public synchronized void cancel() {
+        mCancelled = true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** Flushes and closes the log file. Any output received after this is dropped. */
+    @Override
+    public synchronized void close() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            CLog.e("Could not close monkey log %s", mLogFile.getAbsolutePath());
+            CLog.e(e);
+        }
+        mWriter = null;
+    }
+
+    /** Returns the file the monkey output is written to. */
+    public File getLogFile() {
+        return mLogFile;
+    }
+
+    public synchronized int getJavaCrashCount() {
+        return mJavaCrashCount;
+    }
+
+    public synchronized int getAnrCount() {
+        return mAnrCount;
+    }
+
+    public synchronized int getNativeCrashCount() {
+        return mNativeCrashCount;
+    }
+
+    /**
+     * Returns the traces of the process of the first ANR, all of its threads, from the traces dump
+     * the monkey prints after it; or {@code null} if the monkey printed none.
+     */
+    public synchronized String getAnrTraces() {
+        return mAnrTraces == null ? null : mAnrTraces.toString();
+    }
+}
@@ -20,17 +20,14 @@ import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
-import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.testtype.IMultiDeviceTest;
 import com.android.tradefed.util.clockwork.ClockworkUtils;
 
 import java.util.ArrayList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /** Runner for paired stress tests which use the monkey command. */
 public class MonkeyPairedBase extends MonkeyBase implements IMultiDeviceTest {
@@ -42,12 +39,35 @@ public class MonkeyPairedBase extends MonkeyBase implements IMultiDeviceTest {
 
     @Option(
             name = "companion-recurring-interval",
-            description = "interval between recurring " + "command in seconds")
+            description =
+                    "interval between the starts of the recurring command in seconds, run at a "
+                            + "fixed rate")
     private int mCompanionRecurringInterval = 25;
 
+    @Option(
+            name = "companion-workload",
+            description =
+                    "recurring shell command on companion, as <interval in seconds>:<command>. "
+                            + "Each run starts one interval after the previous one ended, and "
+                            + "fails on a non-zero exit status. May be repeated.")
+    private List<String> mCompanionWorkloads = new ArrayList<>();
+
+    @Option(
+            name = "primary-workload",
+            description =
+                    "recurring shell command on the primary device, as "
+                            + "<interval in seconds>:<command>. Run like companion-workload. "
+                            + "May be repeated.")
+    private List<String> mPrimaryWorkloads = new ArrayList<>();
+
+    @Option(
+            name = "workload-threads",
+            description = "number of threads shared by all recurring commands")
+    private int mWorkloadThreads = 4;
+
     private ITestDevice mCompanion;
     private List<ITestDevice> mDeviceList = new ArrayList<>();
-    private ScheduledExecutorService mScheduler;
+    private WorkloadScheduler mScheduler;
 
     /**
      * Fetches the companion device allocated for the primary device
@@ -62,9 +82,7 @@ public class MonkeyPairedBase extends MonkeyBase implements IMultiDeviceTest {
     /** {@inheritDoc} */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
-        if (mCompanionRecurringCommand != null) {
-            scheduleRecurringCommand();
-        }
+        scheduleRecurringCommand();
         try {
             super.run(listener);
         } finally {
@@ -72,35 +90,71 @@ public class MonkeyPairedBase extends MonkeyBase implements IMultiDeviceTest {
         }
     }
 
+    /** Start the recurring commands on the companion and primary devices, if any. */
     protected void scheduleRecurringCommand() {
-        mScheduler = Executors.newScheduledThreadPool(1);
-        mScheduler.scheduleAtFixedRate(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            getCompanion().executeShellCommand(mCompanionRecurringCommand);
-                        } catch (DeviceNotAvailableException e) {
-                            CLog.e(
-                                    "Recurring command failed on %s (%s)",
-                                    getCompanion().getSerialNumber(), mCompanionRecurringCommand);
-                        }
-                    }
-                },
-                mCompanionRecurringInterval,
-                mCompanionRecurringInterval,
-                TimeUnit.SECONDS);
+        if (mWorkloadThreads <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid workload-threads %d, must be > 0", mWorkloadThreads));
+        }
+        mScheduler = new WorkloadScheduler(mWorkloadThreads);
+        if (mCompanionRecurringCommand != null) {
+            mScheduler.addLegacyCommand(
+                    "companion_recurring",
+                    getCompanion(),
+                    mCompanionRecurringCommand,
+                    TimeUnit.SECONDS.toMillis(mCompanionRecurringInterval));
+        }
+        addWorkloads("companion_workload", getCompanion(), mCompanionWorkloads);
+        addWorkloads("primary_workload", getDevice(), mPrimaryWorkloads);
+        mScheduler.start();
+    }
+
+    private void addWorkloads(String prefix, ITestDevice device, List<String> workloads) {
+        for (int i = 0; i < workloads.size(); i++) {
+            String[] workload = workloads.get(i).split(":", 2);
+            long intervalMs;
+            try {
+                intervalMs = TimeUnit.SECONDS.toMillis(Long.parseLong(workload[0].trim()));
+            } catch (NumberFormatException e) {
+                intervalMs = -1;
+            }
+            if (workload.length < 2 || intervalMs <= 0) {
+                throw new IllegalArgumentException(
+                        String.format(
+                                "Invalid workload '%s', expected <interval in seconds>:<command>",
+                                workloads.get(i)));
+            }
+            mScheduler.addCommand(
+                    String.format("%s_%d", prefix, i), device, workload[1], intervalMs);
+        }
     }
 
+    /** Stop the recurring commands. */
     protected void stopRecurringCommand() {
-        mScheduler.shutdownNow();
-        try {
-            mScheduler.awaitTermination(mCompanionRecurringInterval, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            CLog.e(
-                    "Could not terminate recurring command on %s (%s)",
-                    getCompanion().getSerialNumber(), mCompanionRecurringCommand);
+        if (mScheduler != null) {
+            mScheduler.stop();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The recurring commands run alongside the monkey, so they are stopped with it, before the
+     * artifacts are collected and the run metrics are reported.
+     */
+    @Override
+    protected void onMonkeyFinish() {
+        stopRecurringCommand();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected Map<String, String> getRunMetrics() {
+        Map<String, String> metrics = super.getRunMetrics();
+        if (mScheduler != null) {
+            metrics.putAll(mScheduler.getMetrics());
         }
+        return metrics;
     }
 
     /** {@inheritDoc} */
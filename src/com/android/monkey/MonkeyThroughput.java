@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Event injection timeline of a monkey run, and the stalls in it.
+ *
+ * <p>With -v, the monkey prints the device uptime every 100 events:
+ *
+ * <pre>
+ *     //[calendar_time:2018-05-04 10:11:12.345  system_uptime:123456]
+ *     // Sending event #100
+ * </pre>
+ *
+ * Each pair of checkpoints makes one interval of the timeline. Its rate is the number of events
+ * injected in between, counted from the ":Sending" lines, or from the event numbers if the log is
+ * not verbose enough to have them. An interval is stalled when its rate is below a fraction of
+ * the median rate of the run; consecutive stalled intervals make one stall.
+ */
+public class MonkeyThroughput {
+
+    /** Intervals slower than this fraction of the median rate are stalled */
+    static final double DEFAULT_STALL_FRACTION = 0.25;
+
+    private static final Pattern CHECKPOINT =
+            Pattern.compile("//\\[calendar_time:.*system_uptime:(\\d+)\\]");
+    private static final Pattern EVENT_NUMBER = Pattern.compile("// Sending event #(\\d+)");
+    private static final String SENDING = ":Sending ";
+
+    /** One interval between two checkpoints. */
+    public static class Interval {
+        private final long mStartUptimeMs;
+        private final long mEndUptimeMs;
+        private final long mEvents;
+
+        Interval(long startUptimeMs, long endUptimeMs, long events) {
+            mStartUptimeMs = startUptimeMs;
+            mEndUptimeMs = endUptimeMs;
+            mEvents = events;
+        }
+
+        public long getStartUptimeMs() {
+            return mStartUptimeMs;
+        }
+
+        public long getEndUptimeMs() {
+            return mEndUptimeMs;
+        }
+
+        public long getEvents() {
+            return mEvents;
+        }
+
+        /** Returns the events injected per second over the interval. */
+        public double getRate() {
+            long duration = mEndUptimeMs - mStartUptimeMs;
+            return duration > 0 ? mEvents * 1000.0 / duration : Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private final double mStallFraction;
+    private final List<Interval> mTimeline = new ArrayList<>();
+
+    // State since the last checkpoint
+    private long mLastUptimeMs = -1;
+    private long mPendingUptimeMs = -1;
+    private long mLastEventNumber = 0;
+    private long mSendingCount = 0;
+    private boolean mHasSendingLines = false;
+
+    public MonkeyThroughput() {
+        this(DEFAULT_STALL_FRACTION);
+    }
+
+    /** @param stallFraction intervals slower than this fraction of the median rate are stalled */
+    public MonkeyThroughput(double stallFraction) {
+        mStallFraction = stallFraction;
+    }
+
+    /** Parse the timeline of a monkey log. */
+    public static MonkeyThroughput parse(BufferedReader reader) throws IOException {
+        MonkeyThroughput throughput = new MonkeyThroughput();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            throughput.processLine(line);
+        }
+        return throughput;
+    }
+
+    /** Process the next line of the monkey log. */
+    public void processLine(String line) {
+        if (line.startsWith(SENDING)) {
+            mSendingCount++;
+            mHasSendingLines = true;
+            return;
+        }
+        Matcher m = CHECKPOINT.matcher(line);
+        if (m.find()) {
+            // The event number follows on the next line
+            mPendingUptimeMs = Long.parseLong(m.group(1));
+            return;
+        }
+        m = EVENT_NUMBER.matcher(line);
+        if (m.find() && mPendingUptimeMs >= 0) {
+            long eventNumber = Long.parseLong(m.group(1));
+            if (mLastUptimeMs >= 0 && mPendingUptimeMs >= mLastUptimeMs) {
+                long events =
+                        mHasSendingLines ? mSendingCount : eventNumber - mLastEventNumber;
+                mTimeline.add(new Interval(mLastUptimeMs, mPendingUptimeMs, events));
+            }
+            mLastUptimeMs = mPendingUptimeMs;
+            mLastEventNumber = eventNumber;
+            mSendingCount = 0;
+            mPendingUptimeMs = -1;
+        }
+    }
+
+    /** Returns the intervals of the timeline, in order. */
+    public List<Interval> getTimeline() {
+        return mTimeline;
+    }
+
+    /** Returns the median rate of the run, in events per second, or 0 if there is no timeline. */
+    public double getMedianRate() {
+        if (mTimeline.isEmpty()) {
+            return 0;
+        }
+        double[] rates = new double[mTimeline.size()];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = mTimeline.get(i).getRate();
+        }
+        Arrays.sort(rates);
+        return rates[rates.length / 2];
+    }
+
+    /** Returns the stalls of the run, each as an interval merging consecutive stalled ones. */
+    public List<Interval> getStalls() {
+        List<Interval> stalls = new ArrayList<>();
+        double threshold = getMedianRate() * mStallFraction;
+        Interval stall = null;
+        for (Interval interval : mTimeline) {
+            if (interval.getRate() >= threshold) {
+                stall = null;
+                continue;
+            }
+            if (stall == null) {
+                stall = interval;
+                stalls.add(stall);
+            } else {
+                stall =
+                        new Interval(
+                                stall.getStartUptimeMs(),
+                                interval.getEndUptimeMs(),
+                                stall.getEvents() + interval.getEvents());
+                stalls.set(stalls.size() - 1, stall);
+            }
+        }
+        return stalls;
+    }
+
+    /** Returns throughput and stall metrics. */
+    public Map<String, String> getMetrics() {
+        Map<String, String> metrics = new HashMap<>();
+        if (mTimeline.isEmpty()) {
+            return metrics;
+        }
+        double minRate = Double.POSITIVE_INFINITY;
+        for (Interval interval : mTimeline) {
+            minRate = Math.min(minRate, interval.getRate());
+        }
+        long totalStallMs = 0;
+        Interval worst = null;
+        List<Interval> stalls = getStalls();
+        for (Interval stall : stalls) {
+            long duration = stall.getEndUptimeMs() - stall.getStartUptimeMs();
+            totalStallMs += duration;
+            if (worst == null
+                    || duration > worst.getEndUptimeMs() - worst.getStartUptimeMs()) {
+                worst = stall;
+            }
+        }
+        metrics.put("events_per_sec_median", String.format("%.2f", getMedianRate()));
+        metrics.put("events_per_sec_min", String.format("%.2f", minRate));
+        metrics.put("stall_count", Integer.toString(stalls.size()));
+        metrics.put("stall_total_ms", Long.toString(totalStallMs));
+        if (worst != null) {
+            metrics.put(
+                    "stall_worst_ms",
+                    Long.toString(worst.getEndUptimeMs() - worst.getStartUptimeMs()));
+            metrics.put("stall_worst_start_uptime_ms", Long.toString(worst.getStartUptimeMs()));
+        }
+        return metrics;
+    }
+
+    /** Returns the timeline as CSV: start uptime, end uptime, events, rate, stalled. */
+    public String getTimelineCsv() {
+        double threshold = getMedianRate() * mStallFraction;
+        StringBuilder csv = new StringBuilder();
+        csv.append("start_uptime_ms,end_uptime_ms,events,rate,stalled\n");
+        for (Interval interval : mTimeline) {
+            csv.append(
+                    String.format(
+                            "%d,%d,%d,%.2f,%d\n",
+                            interval.getStartUptimeMs(),
+                            interval.getEndUptimeMs(),
+                            interval.getEvents(),
+                            interval.getRate(),
+                            interval.getRate() < threshold ? 1 : 0));
+        }
+        return csv.toString();
+    }
+}
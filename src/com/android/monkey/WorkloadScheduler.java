@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.monkey;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.QuantileSketch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs recurring shell commands on one or more devices while a test runs, and measures them.
+ *
+ * <p>All commands share one pool of threads. Each run of a command added with {@link #addCommand}
+ * starts one interval after the previous one ended, so a slow run is not followed by a burst of
+ * late runs, and fails if it did not complete or exited with a non-zero status. Commands added with
+ * {@link #addLegacyCommand} keep the behavior of the former companion recurring command: they run
+ * at a fixed rate, in the shell without exit status, and only fail if they did not complete. A
+ * command is never run concurrently with itself. The latency of every run and the number of failed
+ * runs are reported per command by {@link #getMetrics()}.
+ */
+public class WorkloadScheduler {
+
+    private static final long STOP_TIMEOUT_MS = 30 * 1000;
+
+    /** A recurring command and its measurements. */
+    private static class Workload implements Runnable {
+        private final String mName;
+        private final ITestDevice mDevice;
+        private final String mCommand;
+        private final long mIntervalMs;
+        private final boolean mLegacy;
+        private final QuantileSketch mLatencyMs = new QuantileSketch();
+        private long mFailures = 0;
+
+        Workload(
+                String name, ITestDevice device, String command, long intervalMs, boolean legacy) {
+            mName = name;
+            mDevice = device;
+            mCommand = command;
+            mIntervalMs = intervalMs;
+            mLegacy = legacy;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                if (mLegacy) {
+                    mDevice.executeShellCommand(mCommand);
+                } else {
+                    failed = !checkResult(mDevice.executeShellV2Command(mCommand));
+                }
+            } catch (DeviceNotAvailableException | RuntimeException e) {
+                // Keep the workload running, the device may come back
+                CLog.e(
+                        "Recurring command failed on %s (%s): %s",
+                        mDevice.getSerialNumber(), mCommand, e.getMessage());
+                failed = true;
+            }
+            double latencyMs = (System.nanoTime() - start) / 1000000.0;
+            synchronized (this) {
+                mLatencyMs.add(latencyMs);
+                if (failed) {
+                    mFailures++;
+                }
+            }
+        }
+
+        /** Returns {@code true} if the command completed with a zero exit status. */
+        private boolean checkResult(CommandResult result) {
+            Integer exitCode = result.getExitCode();
+            if (result.getStatus() != CommandStatus.SUCCESS
+                    || (exitCode != null && exitCode != 0)) {
+                CLog.w(
+                        "Recurring command failed on %s (%s): %s, exit code %s",
+                        mDevice.getSerialNumber(), mCommand, result.getStatus(), exitCode);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void addMetrics(Map<String, String> metrics) {
+            metrics.put(mName + "_count", Long.toString(mLatencyMs.getCount()));
+            metrics.put(mName + "_failures", Long.toString(mFailures));
+            if (mLatencyMs.getCount() == 0) {
+                return;
+            }
+            metrics.put(mName + "_latency_min_ms", String.format("%.1f", mLatencyMs.getMin()));
+            metrics.put(mName + "_latency_mean_ms", String.format("%.1f", mLatencyMs.getMean()));
+            metrics.put(
+                    mName + "_latency_p50_ms", String.format("%.1f", mLatencyMs.getQuantile(0.5)));
+            metrics.put(
+                    mName + "_latency_p90_ms", String.format("%.1f", mLatencyMs.getQuantile(0.9)));
+            metrics.put(
+                    mName + "_latency_p99_ms",
+                    String.format("%.1f", mLatencyMs.getQuantile(0.99)));
+            metrics.put(mName + "_latency_max_ms", String.format("%.1f", mLatencyMs.getMax()));
+        }
+    }
+
+    private final int mThreads;
+    private final List<Workload> mWorkloads = new ArrayList<>();
+    private ScheduledExecutorService mExecutor = null;
+
+    /** @param threads the size of the pool shared by all commands */
+    public WorkloadScheduler(int threads) {
+        mThreads = threads;
+    }
+
+    /**
+     * Add a recurring command. Must be called before {@link #start()}.
+     *
+     * @param name the name of the command in the metrics, must be unique
+     * @param device the device to run the command on
+     * @param command the shell command
+     * @param intervalMs the time from the end of a run of the command to the start of the next
+     *     one, in ms
+     */
+    public void addCommand(String name, ITestDevice device, String command, long intervalMs) {
+        add(new Workload(name, device, command, intervalMs, false));
+    }
+
+    /**
+     * Add a recurring command run at a fixed rate, without checking its exit status. Must be called
+     * before {@link #start()}.
+     *
+     * @param name the name of the command in the metrics, must be unique
+     * @param device the device to run the command on
+     * @param command the shell command
+     * @param intervalMs the time from the start of a run of the command to the start of the next
+     *     one, in ms
+     */
+    public void addLegacyCommand(String name, ITestDevice device, String command, long intervalMs) {
+        add(new Workload(name, device, command, intervalMs, true));
+    }
+
+    private void add(Workload workload) {
+        if (mExecutor != null) {
+            throw new IllegalStateException("Commands must be added before the scheduler starts");
+        }
+        mWorkloads.add(workload);
+    }
+
+    /** Returns {@code true} if no command was added. */
+    public boolean isEmpty() {
+        return mWorkloads.isEmpty();
+    }
+
+    /** Start running the commands, each first after one interval. */
+    public synchronized void start() {
+        if (mWorkloads.isEmpty() || mExecutor != null) {
+            return;
+        }
+        mExecutor = Executors.newScheduledThreadPool(Math.min(mThreads, mWorkloads.size()));
+        for (Workload workload : mWorkloads) {
+            long intervalMs = workload.mIntervalMs;
+            CLog.i(
+                    "Running '%s' on %s, %d ms %s, as %s",
+                    workload.mCommand,
+                    workload.mDevice.getSerialNumber(),
+                    intervalMs,
+                    workload.mLegacy ? "apart" : "after each run",
+                    workload.mName);
+            if (workload.mLegacy) {
+                mExecutor.scheduleAtFixedRate(
+                        workload, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+            } else {
+                mExecutor.scheduleWithFixedDelay(
+                        workload, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Stop running the commands, interrupting those in progress. Can be called more than once. */
+    public synchronized void stop() {
+        if (mExecutor == null || mExecutor.isShutdown()) {
+            return;
+        }
+        mExecutor.shutdownNow();
+        try {
+            if (!mExecutor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                CLog.e("Recurring commands did not terminate in %d ms", STOP_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            CLog.e("Interrupted while terminating recurring commands");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the run count, failure count and latency distribution of each command. */
+    public Map<String, String> getMetrics() {
+        Map<String, String> metrics = new LinkedHashMap<>();
+        for (Workload workload : mWorkloads) {
+            workload.addMetrics(metrics);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streaming quantile sketch with a fixed relative accuracy, in constant memory.
+ *
+ * <p>Values are counted in logarithmically sized buckets (like an HDR histogram), so any quantile
+ * is returned within the configured relative error of the exact value, no matter how many values
+ * were added. Min, max, mean and standard deviation are exact. Values below the lowest trackable
+ * value, including negative values, are counted in a single zero bucket; values above the highest
+ * trackable value are counted in the last bucket.
+ */
+public class QuantileSketch {
+
+    private static final double DEFAULT_LOWEST_VALUE = 0.001;
+    private static final double DEFAULT_HIGHEST_VALUE = 10000000;
+    private static final double DEFAULT_RELATIVE_ACCURACY = 0.005;
+
+    private final double mGamma;
+    private final double mLogGamma;
+    private final double mLowestValue;
+    private final int mMinIndex;
+    private final long[] mBuckets;
+    private long mZeroCount = 0;
+
+    private long mCount = 0;
+    private double mMin = Double.NaN;
+    private double mMax = Double.NaN;
+    private double mMean = 0;
+    private double mSumOfSquaredDiffs = 0;
+
+    /** Creates a sketch tracking values between 0.001 and 10^7 with 0.5% relative accuracy. */
+    public QuantileSketch() {
+        this(DEFAULT_LOWEST_VALUE, DEFAULT_HIGHEST_VALUE, DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * @param lowestValue lowest value tracked with full accuracy, must be > 0
+     * @param highestValue highest value tracked with full accuracy
+     * @param relativeAccuracy max relative error of returned quantiles, between 0 and 1
+     */
+    public QuantileSketch(double lowestValue, double highestValue, double relativeAccuracy) {
+        if (lowestValue <= 0 || highestValue <= lowestValue) {
+            throw new IllegalArgumentException("Invalid value range");
+        }
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1");
+        }
+        mGamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        mLogGamma = Math.log(mGamma);
+        mLowestValue = lowestValue;
+        mMinIndex = (int) Math.ceil(Math.log(lowestValue) / mLogGamma);
+        final int maxIndex = (int) Math.ceil(Math.log(highestValue) / mLogGamma);
+        mBuckets = new long[maxIndex - mMinIndex + 1];
+    }
+
+    /** Adds a value to the sketch. */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        if (value < mLowestValue) {
+            mZeroCount++;
+        } else {
+            mBuckets[getBucketIndex(value)]++;
+        }
+
+        if (mCount == 0) {
+            mMin = value;
+            mMax = value;
+        } else {
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        // Welford's online mean and variance
+        mCount++;
+        final double delta = value - mMean;
+        mMean += delta / mCount;
+        mSumOfSquaredDiffs += delta * (value - mMean);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /** Returns smallest added value, or NaN if the sketch is empty */
+    public double getMin() {
+        return mMin;
+    }
+
+    /** Returns largest added value, or NaN if the sketch is empty */
+    public double getMax() {
+        return mMax;
+    }
+
+    /** Returns mean of added values, or NaN if the sketch is empty */
+    public double getMean() {
+        return mCount == 0 ? Double.NaN : mMean;
+    }
+
+    /** Returns population standard deviation of added values, or NaN if the sketch is empty */
+    public double getStdDev() {
+        return mCount == 0 ? Double.NaN : Math.sqrt(mSumOfSquaredDiffs / mCount);
+    }
+
+    /**
+     * Returns the value at quantile q, within the relative accuracy of the sketch.
+     *
+     * @param q quantile between 0 and 1, e.g. 0.99 for p99
+     * @return estimated value, or NaN if the sketch is empty
+     */
+    public double getQuantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        }
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+        if (q == 0) {
+            return mMin;
+        }
+        if (q == 1) {
+            return mMax;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(q * mCount));
+        long seen = mZeroCount;
+        if (seen >= rank) {
+            return clamp(0);
+        }
+        for (int i = 0; i < mBuckets.length; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return clamp(getBucketValue(i));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Returns the counts of all non-empty buckets, in increasing order, keyed on the value
+     * representing each bucket.
+     */
+    public Map<Double, Long> getHistogram() {
+        final Map<Double, Long> histogram = new LinkedHashMap<>();
+        if (mZeroCount > 0) {
+            histogram.put(clamp(0), mZeroCount);
+        }
+        for (int i = 0; i < mBuckets.length; i++) {
+            if (mBuckets[i] > 0) {
+                histogram.put(clamp(getBucketValue(i)), mBuckets[i]);
+            }
+        }
+        return histogram;
+    }
+
+    private int getBucketIndex(double value) {
+        final int index = (int) Math.ceil(Math.log(value) / mLogGamma) - mMinIndex;
+        return Math.max(0, Math.min(mBuckets.length - 1, index));
+    }
+
+    /** Bucket i holds values in (gamma^(k-1), gamma^k]; this is the value in its middle. */
+    private double getBucketValue(int index) {
+        return 2 * Math.pow(mGamma, index + mMinIndex) / (mGamma + 1);
+    }
+
+    private double clamp(double value) {
+        return Math.max(mMin, Math.min(mMax, value));
+    }
+}
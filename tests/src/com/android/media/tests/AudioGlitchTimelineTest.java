@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.android.media.tests.AudioGlitchTimeline.EventType;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/** Unit tests for {@link AudioGlitchTimeline}. */
+@RunWith(JUnit4.class)
+public class AudioGlitchTimelineTest {
+
+    @Test
+    public void testProcess() throws Exception {
+        File glitches = createFile("Glitch times (ms)\n1000\n1050\n1100\n\n5000\n25000.5\n");
+        File playerTimes = createFile("2000 12\n");
+        try {
+            StringWriter series = new StringWriter();
+            AudioGlitchTimeline timeline =
+                    new AudioGlitchTimeline(10000, 100, 3, new PrintWriter(series));
+            // No recorder log
+            timeline.process(glitches, playerTimes, null, 30000);
+
+            assertEquals(5, timeline.getTotalCount(EventType.GLITCH));
+            assertEquals(1, timeline.getTotalCount(EventType.LATE_PLAYER_CALLBACK));
+            assertEquals(0, timeline.getTotalCount(EventType.LATE_RECORDER_CALLBACK));
+            // 1000, 1050 and 1100 are a burst, the other glitches are isolated
+            assertEquals(1, timeline.getNrOfBursts());
+            assertEquals(3, timeline.getLargestBurst());
+            assertEquals(100, timeline.getLongestBurstMs());
+            assertEquals(20000, timeline.getLongestGlitchFreeMs());
+            // 4, 0 and 1 glitches in the windows of 10s
+            assertEquals(24.0, timeline.getGlitchRate(1), 0.5);
+            assertEquals(
+                    "Window Start (ms),Glitches,Late Player Callbacks,Late Recorder Callbacks\n"
+                            + "0,4,1,0\n10000,0,0,0\n20000,1,0,0\n",
+                    series.toString().replace(System.lineSeparator(), "\n"));
+
+            Map<String, String> metrics = timeline.getMetrics("foo_");
+            assertEquals("1", metrics.get("foo_glitch_bursts"));
+            assertEquals("20000", metrics.get("foo_glitch_free_max_ms"));
+            assertEquals("1", metrics.get("foo_late_player_callbacks_total"));
+        } finally {
+            FileUtil.deleteFile(glitches);
+            FileUtil.deleteFile(playerTimes);
+        }
+    }
+
+    @Test
+    public void testFinish_partialWindow() {
+        AudioGlitchTimeline timeline = new AudioGlitchTimeline(60000, 100, 2, null);
+        timeline.addEvent(EventType.GLITCH, 10000);
+        // Events after the expected end of the test extend it
+        timeline.addEvent(EventType.GLITCH, 40000);
+        timeline.finish(30000);
+
+        // 2 glitches in a partial window of 40001ms
+        assertEquals(2 * 60000.0 / 40001, timeline.getGlitchRate(1), 0.1);
+        assertEquals(0, timeline.getNrOfBursts());
+        assertEquals(30000, timeline.getLongestGlitchFreeMs());
+        try {
+            timeline.addEvent(EventType.GLITCH, 50000);
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFinish_noEvents() {
+        AudioGlitchTimeline timeline = new AudioGlitchTimeline(10000, 100, 2, null);
+        timeline.finish(25000);
+
+        assertEquals(0.0, timeline.getGlitchRate(1), 0.0);
+        assertEquals(25000, timeline.getLongestGlitchFreeMs());
+    }
+
+    private static File createFile(String content) throws Exception {
+        File file = FileUtil.createTempFile("glitch_timeline", ".txt");
+        FileUtil.writeToFile(
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), file);
+        return file;
+    }
+}
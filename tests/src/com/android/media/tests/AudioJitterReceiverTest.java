@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/** Unit tests for {@link AudioJitterReceiver}. */
+@RunWith(JUnit4.class)
+public class AudioJitterReceiverTest {
+
+    private static final Pattern CALLBACK_PATTERN =
+            Pattern.compile(AudioJitterTest.DEFAULT_CALLBACK_TIMESTAMP_PATTERN);
+    private static final Map<String, String> METRICS_KEY_MAP =
+            Collections.singletonMap("max_jitter_ms", "max_jitter_ms");
+
+    @Test
+    public void testCallbackPattern() {
+        assertTrue(CALLBACK_PATTERN.matcher("12 1000.5").matches());
+        assertTrue(CALLBACK_PATTERN.matcher("  12\t1000 ").matches());
+        assertFalse(CALLBACK_PATTERN.matcher("max_jitter_ms 3.25").matches());
+        assertFalse(CALLBACK_PATTERN.matcher("12 1000.5 3").matches());
+        assertFalse(CALLBACK_PATTERN.matcher("1000.5").matches());
+    }
+
+    @Test
+    public void testSplitLines() {
+        AudioJitterReceiver receiver = createReceiver(1.0);
+        // Callback lines split in their timestamp, between processNewLines calls
+        addOutput(receiver, "0 1000", ".5\n1 10", "10.5\n2 1020.5\nmax_jitter_", "ms   3.25");
+        receiver.flush();
+
+        Map<String, String> metrics = receiver.getMetrics();
+        assertTrue(receiver.hasOutput());
+        assertEquals("3", metrics.get("callback_count"));
+        assertEquals(10.0, Double.parseDouble(metrics.get("callback_delta_mean_ms")), 0.0);
+        assertEquals(10.0, Double.parseDouble(metrics.get("callback_delta_max_ms")), 0.0);
+        assertEquals("3.25", metrics.get("max_jitter_ms"));
+    }
+
+    @Test
+    public void testPeriodicSpikes() {
+        AudioJitterReceiver receiver = createReceiver(1.0);
+        // A late callback every 8 callbacks, the output fed in chunks splitting lines anywhere
+        StringBuilder output = new StringBuilder("Starting jitter test\n");
+        double timestamp = 1000.5;
+        output.append(String.format("0 %.1f\n", timestamp));
+        for (int i = 1; i <= 512; i++) {
+            timestamp += i % 8 == 0 ? 30 : 10;
+            output.append(String.format("%d %.1f\n", i, timestamp));
+        }
+        for (int start = 0; start < output.length(); start += 7) {
+            addOutput(receiver, output.substring(start, Math.min(start + 7, output.length())));
+        }
+        receiver.flush();
+
+        Map<String, String> metrics = receiver.getMetrics();
+        assertEquals("513", metrics.get("callback_count"));
+        assertEquals(12.5, Double.parseDouble(metrics.get("callback_delta_mean_ms")), 0.001);
+        assertEquals(10.0, Double.parseDouble(metrics.get("callback_delta_min_ms")), 0.0);
+        assertEquals(30.0, Double.parseDouble(metrics.get("callback_delta_max_ms")), 0.0);
+        assertEquals(10.0, Double.parseDouble(metrics.get("callback_delta_p50_ms")), 0.5);
+        assertEquals("64", metrics.get("callback_spike_count"));
+        assertEquals("1", metrics.get("callback_periodic_spikes"));
+        assertEquals("8", metrics.get("callback_spike_period_callbacks"));
+        assertEquals(100.0, Double.parseDouble(metrics.get("callback_spike_period_ms")), 0.01);
+        assertTrue(Double.parseDouble(metrics.get("callback_spike_autocorrelation")) > 0.9);
+    }
+
+    @Test
+    public void testSteadyCallbacks() {
+        AudioJitterReceiver receiver = createReceiver(1.0);
+        for (int i = 0; i < 100; i++) {
+            addOutput(receiver, String.format("%d %d\n", i, 1000 + i * 10));
+        }
+        receiver.flush();
+
+        Map<String, String> metrics = receiver.getMetrics();
+        assertEquals("100", metrics.get("callback_count"));
+        assertEquals("0", metrics.get("callback_spike_count"));
+        assertEquals("0", metrics.get("callback_periodic_spikes"));
+        assertFalse(metrics.containsKey("callback_spike_period_callbacks"));
+        assertEquals(-1, receiver.getSpikePeriod());
+    }
+
+    @Test
+    public void testTimestampScale() {
+        // Timestamps in ns
+        AudioJitterReceiver receiver = createReceiver(0.000001);
+        addOutput(receiver, "0 1000000000\n1 1016000000\n");
+        receiver.flush();
+
+        assertEquals(
+                16.0,
+                Double.parseDouble(receiver.getMetrics().get("callback_delta_mean_ms")),
+                0.001);
+    }
+
+    @Test
+    public void testNoOutput() {
+        AudioJitterReceiver receiver = createReceiver(1.0);
+        addOutput(receiver, "\n\n");
+        receiver.flush();
+
+        assertFalse(receiver.hasOutput());
+        assertTrue(receiver.getMetrics().isEmpty());
+    }
+
+    private static AudioJitterReceiver createReceiver(double timestampScale) {
+        return new AudioJitterReceiver(METRICS_KEY_MAP, CALLBACK_PATTERN, timestampScale);
+    }
+
+    private static void addOutput(AudioJitterReceiver receiver, String... chunks) {
+        for (String chunk : chunks) {
+            byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+            receiver.addOutput(bytes, 0, bytes.length);
+        }
+    }
+}
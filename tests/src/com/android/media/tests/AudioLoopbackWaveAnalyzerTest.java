@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.media.tests.AudioLoopbackImageAnalyzer.Result;
+import com.android.media.tests.AudioLoopbackWaveAnalyzer.MappedSamples;
+import com.android.media.tests.AudioLoopbackWaveAnalyzer.WaveResult;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/** Unit tests for {@link AudioLoopbackWaveAnalyzer}. */
+@RunWith(JUnit4.class)
+public class AudioLoopbackWaveAnalyzerTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    // A round trip of 10ms
+    private static final int LAG = 480;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = FileUtil.createTempFile("wave", ".wav");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mFile);
+    }
+
+    @Test
+    public void testOpen_pcm16() throws Exception {
+        // Stereo, with an odd sized chunk before the data, padded to a word
+        ByteBuffer data = createBuffer(8);
+        data.putShort((short) 16384).putShort((short) 1);
+        data.putShort((short) -32768).putShort((short) 1);
+        writeWave(1, 2, 16, data.array(), true);
+        try (MappedSamples samples = MappedSamples.open(mFile, 8000)) {
+            assertEquals(SAMPLE_RATE, samples.getSampleRate());
+            // Only the first channel is read
+            assertEquals(2, samples.size());
+            assertEquals(0.5f, samples.get(0), 0.0f);
+            assertEquals(-1.0f, samples.get(1), 0.0f);
+            assertEquals(1.0f, samples.peak(0, 2), 0.0f);
+        }
+    }
+
+    @Test
+    public void testOpen_otherSampleSizes() throws Exception {
+        writeWave(1, 1, 8, new byte[] {(byte) 0xC0, 0x00}, false);
+        try (MappedSamples samples = MappedSamples.open(mFile, SAMPLE_RATE)) {
+            assertEquals(0.5f, samples.get(0), 0.0f);
+            assertEquals(-1.0f, samples.get(1), 0.0f);
+        }
+
+        writeWave(1, 1, 24, new byte[] {0x00, 0x00, 0x40, 0x00, 0x00, (byte) 0x80}, false);
+        try (MappedSamples samples = MappedSamples.open(mFile, SAMPLE_RATE)) {
+            assertEquals(0.5f, samples.get(0), 0.0f);
+            assertEquals(-1.0f, samples.get(1), 0.0f);
+        }
+
+        writeWave(3, 1, 32, createBuffer(4).putFloat(-0.25f).array(), false);
+        try (MappedSamples samples = MappedSamples.open(mFile, SAMPLE_RATE)) {
+            assertEquals(-0.25f, samples.get(0), 0.0f);
+        }
+    }
+
+    @Test
+    public void testOpen_raw() throws Exception {
+        write(createBuffer(4).putShort((short) 8192).putShort((short) -8192).array());
+        try (MappedSamples samples = MappedSamples.open(mFile, 44100)) {
+            assertEquals(44100, samples.getSampleRate());
+            assertEquals(2, samples.size());
+            assertEquals(0.25f, samples.get(0), 0.0f);
+            assertEquals(-0.25f, samples.get(1), 0.0f);
+        }
+    }
+
+    @Test
+    public void testOpen_invalidHeader() throws Exception {
+        // No sample size
+        writeWave(1, 1, 0, new byte[4], false);
+        assertInvalid();
+        // Float samples of 16 bits
+        writeWave(3, 1, 16, new byte[4], false);
+        assertInvalid();
+        // No channel
+        writeWave(1, 0, 16, new byte[4], false);
+        assertInvalid();
+        // Compressed
+        writeWave(2, 1, 16, new byte[4], false);
+        assertInvalid();
+
+        // Reported as a failure, not thrown
+        writeWave(1, 1, 0, new byte[4], false);
+        WaveResult result = AudioLoopbackWaveAnalyzer.analyze(mFile.getAbsolutePath(), SAMPLE_RATE);
+        assertEquals(Result.FAIL, result.getResult());
+    }
+
+    @Test
+    public void testFft() {
+        double[] signal = {1.0, -2.0, 0.5, 3.0, 0.0, -1.0, 2.5, 0.25};
+        double[] re = signal.clone();
+        double[] im = new double[signal.length];
+        AudioLoopbackWaveAnalyzer.fft(re, im, false);
+        // Compare with the definition of the DFT
+        for (int k = 0; k < signal.length; k++) {
+            double expectedRe = 0;
+            double expectedIm = 0;
+            for (int t = 0; t < signal.length; t++) {
+                double angle = -2 * Math.PI * k * t / signal.length;
+                expectedRe += signal[t] * Math.cos(angle);
+                expectedIm += signal[t] * Math.sin(angle);
+            }
+            assertEquals(expectedRe, re[k], 1e-9);
+            assertEquals(expectedIm, im[k], 1e-9);
+        }
+
+        AudioLoopbackWaveAnalyzer.fft(re, im, true);
+        for (int i = 0; i < signal.length; i++) {
+            assertEquals(signal[i], re[i], 1e-9);
+            assertEquals(0.0, im[i], 1e-9);
+        }
+    }
+
+    @Test
+    public void testAnalyze_decayingPulses() throws Exception {
+        writeWave(1, 1, 16, createPulseTrain(0.8), false);
+        WaveResult result = AudioLoopbackWaveAnalyzer.analyze(mFile.getAbsolutePath(), 8000);
+
+        assertEquals(result.getFailureReason(), Result.PASS, result.getResult());
+        assertEquals(SAMPLE_RATE, result.getSampleRate());
+        // The autocorrelation peaks one round trip after the zero lag
+        assertEquals(10.0f, result.getLatency(), 0.0f);
+        assertTrue(result.getConfidence() > 0.5f);
+        assertEquals(0.8f * Math.sin(0.6 * Math.PI), result.getPeakAmplitude(), 0.001f);
+        // Pulses until the peak drops below 5% of the first one: 0.8^13 > 0.05 > 0.8^14
+        assertEquals(14, result.getNrOfPulses());
+        assertEquals(0.8f, result.getDecayRatio(), 0.01f);
+    }
+
+    @Test
+    public void testAnalyze_notDecaying() throws Exception {
+        writeWave(1, 1, 16, createPulseTrain(1.0), false);
+        WaveResult result = AudioLoopbackWaveAnalyzer.analyze(mFile.getAbsolutePath(), 8000);
+
+        assertEquals(Result.FAIL, result.getResult());
+        assertEquals(10.0f, result.getLatency(), 0.0f);
+        assertTrue(result.getFailureReason().contains("Pulse peaks don't decline"));
+    }
+
+    /**
+     * Returns 1s of 16 bit samples: a pulse of 4 cycles of 4.8kHz every round trip, the first one
+     * at 0.8 of full scale, each next one smaller by ratio.
+     */
+    private static byte[] createPulseTrain(double ratio) {
+        ByteBuffer samples = createBuffer(SAMPLE_RATE * 2);
+        double amplitude = 0.8;
+        for (int start = 1000; start + 40 <= SAMPLE_RATE; start += LAG) {
+            for (int i = 0; i < 40; i++) {
+                double value = amplitude * Math.sin(2 * Math.PI * i / 10);
+                samples.putShort((start + i) * 2, (short) Math.round(value * 32767));
+            }
+            amplitude *= ratio;
+        }
+        return samples.array();
+    }
+
+    private void assertInvalid() throws Exception {
+        try (MappedSamples samples = MappedSamples.open(mFile, SAMPLE_RATE)) {
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void writeWave(int format, int channels, int bitsPerSample, byte[] data, boolean list)
+            throws IOException {
+        ByteBuffer wave = createBuffer(12 + 24 + (list ? 12 : 0) + 8 + data.length);
+        wave.put(ascii("RIFF")).putInt(wave.capacity() - 8).put(ascii("WAVE"));
+        int frameSize = channels * bitsPerSample / 8;
+        wave.put(ascii("fmt ")).putInt(16);
+        wave.putShort((short) format).putShort((short) channels);
+        wave.putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * frameSize);
+        wave.putShort((short) frameSize).putShort((short) bitsPerSample);
+        if (list) {
+            wave.put(ascii("LIST")).putInt(3).put(new byte[4]);
+        }
+        wave.put(ascii("data")).putInt(data.length).put(data);
+        write(wave.array());
+    }
+
+    private void write(byte[] content) throws IOException {
+        FileUtil.writeToFile(new ByteArrayInputStream(content), mFile);
+    }
+
+    private static ByteBuffer createBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
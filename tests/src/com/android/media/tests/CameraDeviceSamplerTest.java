@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CameraDeviceSampler}. */
+@RunWith(JUnit4.class)
+public class CameraDeviceSamplerTest {
+
+    private static final String CAMERA_APP = CameraTestBase.PROCESS_CAMERA_APP;
+    private static final String CAMERA_DAEMON = CameraTestBase.PROCESS_CAMERA_DAEMON;
+
+    @Test
+    public void testBuildScript_uptimeOnly() {
+        assertEquals(
+                "echo @@uptime; cat /proc/uptime",
+                CameraDeviceSampler.buildScript(false, false, null));
+    }
+
+    @Test
+    public void testBuildScript_meminfo() {
+        String script = CameraDeviceSampler.buildScript(true, false, null);
+        assertTrue(script.startsWith("echo @@uptime; cat /proc/uptime; echo @@meminfo; "));
+        assertTrue(
+                script.endsWith(
+                        String.format(
+                                "dumpsys meminfo -c | grep -w -e ^ram -e ^time -e %s -e %s -e %s",
+                                CAMERA_DAEMON,
+                                CAMERA_APP,
+                                CameraTestBase.PROCESS_MEDIASERVER)));
+        assertFalse(script.contains("@@pid"));
+    }
+
+    @Test
+    public void testBuildScript_threads() {
+        // The cached pid is only looked up again if it isn't the camera app anymore
+        String script = CameraDeviceSampler.buildScript(false, true, "1234");
+        assertTrue(
+                script.contains(
+                        String.format(
+                                "; p=1234; [ -n \"$p\" ] && grep -q %s /proc/$p/cmdline"
+                                        + " 2>/dev/null || { set -- $(pgrep %s); p=$1; }",
+                                CAMERA_APP,
+                                CAMERA_APP)));
+        assertTrue(
+                script.endsWith(
+                        "; echo @@pid; echo $p;"
+                                + " [ -n \"$p\" ] && echo @@threads && /system/bin/ps -t -p $p"));
+        assertFalse(script.contains("@@meminfo"));
+
+        // Without a cached pid, it is always looked up
+        script = CameraDeviceSampler.buildScript(false, true, null);
+        assertTrue(script.contains("; p=; [ -n \"$p\" ]"));
+    }
+
+    @Test
+    public void testParse() {
+        String output =
+                "@@uptime\n"
+                        + "5278.73 1866.80\n"
+                        + "@@meminfo\n"
+                        + "time,5278730,1866800\n"
+                        + "proc,native,"
+                        + CAMERA_DAEMON
+                        + ",567,12345,N/A,e\n"
+                        + "proc,native,mediaserver,432,6789,N/A,e\n"
+                        + "proc,fore,"
+                        + CAMERA_APP
+                        + ",1234,98765,N/A,e\n"
+                        + "ram,3809888,1627372,1993540\n"
+                        + "@@pid\n"
+                        + "1234\n"
+                        + "@@threads\n"
+                        + "USER      PID   PPID  VSIZE  RSS   WCHAN    PC  NAME\n"
+                        + "u0_a52    1234  520   1630120 98765 SyS_epoll_ 0 S " + CAMERA_APP + "\n"
+                        + "u0_a52    1240  1234  1630120 98765 futex_wait 0 S Jit thread pool\n"
+                        + "u0_a52    1241  1234  1630120 98765 do_sigtime 0 S Signal Catcher\n";
+        CameraDeviceSampler.Sample sample = CameraDeviceSampler.parse(output.replace("\n", "\r\n"));
+
+        assertEquals(Long.valueOf(5278730), sample.getUptimeMs());
+        assertEquals("12345", sample.mPssCameraDaemon);
+        assertEquals("98765", sample.mPssCameraApp);
+        assertEquals("3809888", sample.mRamTotal);
+        assertEquals("1627372", sample.mRamFree);
+        assertEquals("1993540", sample.mRamUsed);
+        assertEquals("1234", sample.mCameraPid);
+        // The header of ps is not a thread
+        assertEquals(Long.valueOf(3), sample.getThreadCount());
+    }
+
+    @Test
+    public void testParse_cameraAppNotRunning() {
+        // The threads section is only printed when the camera app has a pid
+        CameraDeviceSampler.Sample sample =
+                CameraDeviceSampler.parse("@@uptime\n12.5 3.0\n@@pid\n\n");
+
+        assertEquals(Long.valueOf(12500), sample.getUptimeMs());
+        assertNull(sample.mCameraPid);
+        assertNull(sample.mThreads);
+        assertNull(sample.getThreadCount());
+        assertNull(sample.mPssCameraApp);
+        assertNull(sample.mRamTotal);
+    }
+
+    @Test
+    public void testParse_noUptime() {
+        CameraDeviceSampler.Sample sample = CameraDeviceSampler.parse("@@uptime\nsh: cat: error\n");
+        assertNull(sample.getUptimeMs());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringReader;
+import java.util.Map;
+
+/** Unit tests for {@link CameraPerformanceTest}. */
+@RunWith(JUnit4.class)
+public class CameraPerformanceTestTest {
+
+    private static final String SINGLE_CAPTURE =
+            "\"test_single_capture\":{\"camera_id\":\"0\","
+                    + "\"camera_capture_latency\":[264.0,229.0],"
+                    + "\"camera_capture_result_latency\":[230.0,196.0]}";
+    private static final String CAMERA_LAUNCH =
+            "\"test_camera_launch\":{\"camera_id\":\"0\","
+                    + "\"camera_launch_time\":[300.0,310.0],"
+                    + "\"camera_start_preview_time\":[100.0,120.0]}";
+    private static final String REPROCESSING_LATENCY =
+            "\"test_reprocessing_latency\":{\"camera_id\":\"0\",\"format\":35,"
+                    + "\"reprocess_type\":\"YUV reprocessing\","
+                    + "\"capture_message\":\"shot to shot latency\","
+                    + "\"latency\":[102.0,101.0]}";
+
+    private CameraPerformanceTest.CtsJsonResultParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new CameraPerformanceTest().new CtsJsonResultParser();
+    }
+
+    @Test
+    public void testParse() {
+        Map<String, String> metrics =
+                parse(
+                        String.format(
+                                "{%s,%s,%s,%s}",
+                                SINGLE_CAPTURE,
+                                CAMERA_LAUNCH,
+                                // Streams of the same test are averaged together
+                                SINGLE_CAPTURE.replace("196.0", "200.0"),
+                                REPROCESSING_LATENCY));
+
+        assertEquals(4, metrics.size());
+        assertEquals("214.0", metrics.get("Camera 0 Camera capture result latency"));
+        assertEquals("305.0", metrics.get("Camera 0 Camera launch time"));
+        assertEquals("110.0", metrics.get("Camera 0 Camera start preview time"));
+        assertEquals(
+                "101.5",
+                metrics.get(
+                        "testReprocessingLatency_Camera 0 YUV reprocessing shot to shot latency"));
+    }
+
+    @Test
+    public void testParse_truncatedInMember() {
+        // The test crashed while writing the last stream
+        String truncated = REPROCESSING_LATENCY.substring(0, REPROCESSING_LATENCY.length() - 8);
+        Map<String, String> metrics =
+                parse(String.format("{%s,%s,%s", SINGLE_CAPTURE, CAMERA_LAUNCH, truncated));
+
+        // The complete streams are still reported
+        assertEquals(3, metrics.size());
+        assertEquals("213.0", metrics.get("Camera 0 Camera capture result latency"));
+        assertEquals("305.0", metrics.get("Camera 0 Camera launch time"));
+        assertEquals("110.0", metrics.get("Camera 0 Camera start preview time"));
+    }
+
+    @Test
+    public void testParse_malformedMember() {
+        Map<String, String> metrics =
+                parse(
+                        String.format(
+                                "{%s,%s,\"test_reprocessing_latency\" {}}",
+                                SINGLE_CAPTURE,
+                                CAMERA_LAUNCH));
+
+        assertEquals(3, metrics.size());
+        assertEquals("213.0", metrics.get("Camera 0 Camera capture result latency"));
+    }
+
+    private Map<String, String> parse(String json) {
+        return mParser.parse(new StringReader(json));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/** Unit tests for {@link H264StreamParser}. */
+@RunWith(JUnit4.class)
+public class H264StreamParserTest {
+
+    private long mTimeMs = 0;
+
+    @Test
+    public void testParse() throws Exception {
+        byte[] idrFrame =
+                bytes(
+                        // SPS, PPS
+                        0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f, 0, 0, 0, 1, 0x68, 0xce,
+                        // IDR frame, in two slices
+                        0, 0, 1, 0x65, 0x88, 0x84, 0x00, 0x00, 0x03, 0x00,
+                        0, 0, 1, 0x65, 0x40, 0x12);
+        byte[] frame = bytes(0, 0, 1, 0x41, 0x9a, 0x22);
+        // A non-reference frame, with a NAL header of 0x01
+        byte[] nonRefFrame = Arrays.copyOf(bytes(0, 0, 0, 1, 0x01, 0x80), 506);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        H264StreamParser parser =
+                new H264StreamParser(copy, 1000) {
+                    @Override
+                    long getTimeMs() {
+                        return mTimeMs;
+                    }
+                };
+        parser.write(idrFrame);
+        mTimeMs = 500;
+        // Start code split between writes
+        parser.write(frame, 0, 2);
+        parser.write(frame, 2, frame.length - 2);
+        // Nothing for a second
+        mTimeMs = 2500;
+        parser.write(nonRefFrame);
+        // The teardown of the stream is not measured
+        mTimeMs = 3000;
+        parser.close();
+
+        assertEquals(idrFrame.length + frame.length + nonRefFrame.length, copy.size());
+        assertEquals(542, parser.getBytes());
+        assertEquals(3, parser.getFrameCount());
+        assertEquals(1, parser.getKeyFrameCount());
+        assertEquals(2500, parser.getDurationMs());
+        assertEquals(542 * 8 / 2500, parser.getBitrateKbps());
+        assertArrayEquals(
+                new double[] {36 * 8 / 1000.0, 0.0, 506 * 8 / 500.0},
+                parser.getWindowBitratesKbps(),
+                0.001);
+        assertEquals(
+                "start_ms,frames,kbps\n0,2,0.3\n1000,0,0.0\n2000,1,8.1\n",
+                parser.getBitrateTimeline());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
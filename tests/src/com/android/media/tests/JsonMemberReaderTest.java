@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/** Unit tests for {@link JsonMemberReader}. */
+@RunWith(JUnit4.class)
+public class JsonMemberReaderTest {
+
+    @Test
+    public void testNext() throws Exception {
+        String json =
+                "{\"test_camera_launch\": {\"camera_id\":\"0\",\"camera_launch_time\":[1.0,2.0]},\n"
+                        + " \"test_camera_launch\":{\"camera_id\":\"1\",\"msg\":\"a}\\\"b\"},"
+                        + "\"count\" : 12 , \"name\\u0041\":\"x\", \"list\":[[1],{}]}";
+        try (JsonMemberReader reader = new JsonMemberReader(new StringReader(json))) {
+            assertTrue(reader.next());
+            assertEquals("test_camera_launch", reader.getName());
+            assertEquals(
+                    "{\"camera_id\":\"0\",\"camera_launch_time\":[1.0,2.0]}", reader.getValue());
+            assertTrue(reader.next());
+            // Duplicate names are all returned, braces in strings are not counted
+            assertEquals("test_camera_launch", reader.getName());
+            assertEquals("{\"camera_id\":\"1\",\"msg\":\"a}\\\"b\"}", reader.getValue());
+            assertTrue(reader.next());
+            assertEquals("count", reader.getName());
+            assertEquals("12", reader.getValue());
+            assertTrue(reader.next());
+            assertEquals("nameA", reader.getName());
+            assertEquals("\"x\"", reader.getValue());
+            assertTrue(reader.next());
+            assertEquals("[[1],{}]", reader.getValue());
+            assertFalse(reader.next());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void testNext_malformed() throws Exception {
+        try (JsonMemberReader reader =
+                new JsonMemberReader(new StringReader("{\"a\":{\"b\":1}"))) {
+            assertTrue(reader.next());
+            assertFalse(reader.next());
+        }
+        try (JsonMemberReader reader = new JsonMemberReader(new StringReader("{\"a\":{\"b\""))) {
+            reader.next();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/** Unit tests for {@link LatencyDistributions}. */
+@RunWith(JUnit4.class)
+public class LatencyDistributionsTest {
+
+    @Test
+    public void testGetMetrics() {
+        LatencyDistributions distributions = new LatencyDistributions();
+        assertTrue(distributions.isEmpty());
+        assertEquals(10, distributions.addAll("launch", " 1 2 3 4 5 6 7 8 9 10 "));
+        Map<String, String> metrics = distributions.getMetrics(0);
+        assertEquals("1.0", metrics.get("launch_min"));
+        assertEquals("5.5", metrics.get("launch_p50"));
+        assertEquals("9.1", metrics.get("launch_p90"));
+        assertEquals("10.0", metrics.get("launch_max"));
+        assertEquals("3.0", metrics.get("launch_stddev"));
+        assertEquals("0", metrics.get("launch_outliers"));
+    }
+
+    @Test
+    public void testGetMetrics_outliers() {
+        LatencyDistributions distributions = new LatencyDistributions();
+        // Not a number, ignored
+        assertEquals(8, distributions.addAll("launch", "100 101 102 103 104 105 106 x 5000"));
+        Map<String, String> metrics = distributions.getMetrics(3);
+        assertEquals("106.0", metrics.get("launch_max"));
+        assertEquals("1", metrics.get("launch_outliers"));
+        // Kept when not rejecting outliers
+        metrics = distributions.getMetrics(0);
+        assertEquals("5000.0", metrics.get("launch_max"));
+    }
+
+    @Test
+    public void testAddAll_merge() {
+        LatencyDistributions first = new LatencyDistributions();
+        first.add("cold", 900);
+        LatencyDistributions second = new LatencyDistributions();
+        second.add("cold", 1100);
+        first.addAll(second);
+        Map<String, String> metrics =
+                first.getMetrics(LatencyDistributions.DEFAULT_OUTLIER_IQR_FACTOR);
+        assertEquals("1000.0", metrics.get("cold_p50"));
+        assertEquals("900.0", metrics.get("cold_min"));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Unit tests for {@link Mp4BoxParser}. */
+@RunWith(JUnit4.class)
+public class Mp4BoxParserTest {
+
+    @Test
+    public void testParse() throws Exception {
+        byte[] mp4 = createMp4();
+        File file = FileUtil.createTempFile("screenrecord", ".mp4");
+        try {
+            FileUtil.writeToFile(new ByteArrayInputStream(mp4), file);
+            Mp4BoxParser parser = Mp4BoxParser.parse(file);
+            // 2s long
+            assertEquals(2000, parser.getDurationMs());
+            assertEquals(mp4.length, parser.getFileSize());
+            assertEquals(mp4.length * 8 / 2000, parser.getBitrateKbps());
+            assertEquals(4, parser.getFrameCount());
+            assertArrayEquals(new int[] {1000, 200, 300, 400}, parser.getFrameSizes());
+            // The audio track is skipped, the last frame has no interval
+            assertArrayEquals(
+                    new double[] {100.0, 100.0, 1500.0}, parser.getFrameIntervalsMs(), 0.0);
+        } finally {
+            FileUtil.deleteFile(file);
+        }
+    }
+
+    @Test
+    public void testParse_truncated() throws Exception {
+        byte[] mp4 = createMp4();
+        try {
+            new Mp4BoxParser(ByteBuffer.wrap(mp4, 0, mp4.length - 4).slice());
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new Mp4BoxParser(ByteBuffer.wrap(box("mdat", new byte[16])));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParse_invalidTables() throws Exception {
+        byte[] stts = box("stts", ints(0, 2, 2, 9000, 2, 135000));
+        byte[] stsz = box("stsz", ints(0, 0, 4, 1000, 200, 300, 400));
+        byte[] mdhd = box("mdhd", ints(0, 0, 0, 90000, 180000));
+        // More samples than bytes in the file, of a single size or in the time to sample table
+        assertInvalid(createMp4(mdhd, stts, box("stsz", ints(0, 100, 0x7fffffff))));
+        assertInvalid(createMp4(mdhd, box("stts", ints(0, 1, 0xffffffff, 9000)), stsz));
+        // Sizes past the end of the table
+        assertInvalid(createMp4(mdhd, stts, box("stsz", ints(0, 0, 0x10000000))));
+        // No media header for the timescale of the video track
+        assertInvalid(createMp4(new byte[0], stts, stsz));
+    }
+
+    private static void assertInvalid(byte[] mp4) {
+        try {
+            new Mp4BoxParser(ByteBuffer.wrap(mp4));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /** Returns a file with a movie of 2s, an audio track, and a video track of 4 frames. */
+    private static byte[] createMp4() throws IOException {
+        return createMp4(
+                // version 1 media header
+                box("mdhd", ints(0x01000000, 0, 0, 0, 0, 90000, 0, 180000)),
+                box("stts", ints(0, 2, 2, 9000, 2, 135000)),
+                box("stsz", ints(0, 0, 4, 1000, 200, 300, 400)));
+    }
+
+    /** Returns a file with a movie of 2s, an audio track, and a video track with given boxes. */
+    private static byte[] createMp4(byte[] mdhd, byte[] stts, byte[] stsz) throws IOException {
+        byte[] mvhd = box("mvhd", ints(0, 0, 0, 1000, 2000));
+        byte[] audio =
+                box("trak",
+                        box("mdia",
+                                box("mdhd", ints(0, 0, 0, 44100, 88200)),
+                                box("hdlr", ints(0, 0), ascii("soun"), ints(0, 0, 0))));
+        byte[] video =
+                box("trak",
+                        box("tkhd", ints(0, 0, 0, 1, 0, 0)),
+                        box("mdia",
+                                mdhd,
+                                box("hdlr", ints(0, 0), ascii("vide"), ints(0, 0, 0)),
+                                box("minf", box("stbl", stts, stsz))));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(box("ftyp", ascii("mp42"), ints(0), ascii("isom")));
+        out.write(box("mdat", new byte[1900]));
+        out.write(box("moov", mvhd, audio, video));
+        return out.toByteArray();
+    }
+
+    private static byte[] box(String type, byte[]... contents) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] bytes : contents) {
+            content.write(bytes);
+        }
+        ByteBuffer box = ByteBuffer.allocate(8 + content.size());
+        box.putInt(8 + content.size());
+        box.put(ascii(type));
+        box.put(content.toByteArray());
+        return box.array();
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
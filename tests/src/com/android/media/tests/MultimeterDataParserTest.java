@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link MultimeterDataParser}. */
+@RunWith(JUnit4.class)
+public class MultimeterDataParserTest {
+
+    @Test
+    public void testParse() throws Exception {
+        StringBuilder data = new StringBuilder();
+        // 30 fps: one frame every 33333us, the 4th one late by one frame
+        data.append("OK 1000; 33333; red; 0\r\n");
+        data.append("OK 2000; 33333; blue; 0\n");
+        data.append("OK 3000; 33333; red; 0\n");
+        data.append("OK 4000; 66666; blue; 1\n");
+        data.append("garbage\n");
+        data.append("OK 5000; 33333; red; 1\n");
+        data.append("OK 1000000; 33333; red; 1; 40\n");
+        data.append("OK 1100000; 33333; red; 1; 90\n");
+        // No trailing new line
+        data.append("OK 3000000; 33333; red; 1; -20");
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        MultimeterDataParser parser = new MultimeterDataParser(100, 30, true, copy);
+        byte[] bytes = data.toString().getBytes(StandardCharsets.US_ASCII);
+        // Written in chunks that split lines
+        parser.write(bytes, 0, 10);
+        parser.write(bytes, 10, bytes.length - 10);
+        parser.close();
+        assertEquals(data.toString(), copy.toString("US-ASCII"));
+
+        Map<String, String> metrics = new HashMap<>();
+        parser.addMetrics(metrics, "video_");
+        assertEquals("1", metrics.get("video_frame_drop"));
+        // One frame off by one out of 100 captured
+        assertEquals("99.0", metrics.get("video_smoothness"));
+        assertEquals("33333.0", metrics.get("video_frame_duration_p50_us"));
+        assertEquals("2", metrics.get("video_lipsync_count"));
+        assertEquals("-20", metrics.get("video_lipsync_min"));
+        assertEquals("40", metrics.get("video_lipsync_max"));
+        assertEquals("10.0", metrics.get("video_lipsync_p50"));
+        // Not trimmed
+        assertFalse(metrics.containsKey("video_frame_captured"));
+    }
+
+    @Test
+    public void testFramePacing() throws Exception {
+        StringBuilder data = new StringBuilder();
+        // 30 fps video on a 60 Hz display, in windows of 100ms
+        data.append("OK 1; 33333; red; 0\n");
+        data.append("OK 2; 33333; blue; 0\n");
+        data.append("OK 3; 33333; red; 0\n");
+        data.append("OK 4; 10000; blue; 0\n"); // early, ends the first window
+        data.append("OK 5; 50000; red; 0\n"); // 1 vsync late
+        data.append("OK 6; 66666; blue; 1\n"); // 2 vsyncs late
+        data.append("OK 7; 133333; red; 2\n"); // 6 vsyncs late
+        data.append("OK 8; 33333; blue; 2\n");
+        MultimeterDataParser parser = new MultimeterDataParser(100, 30, false, null);
+        parser.setFramePacing(60, 100);
+        parser.write(data.toString().getBytes(StandardCharsets.US_ASCII));
+        parser.close();
+
+        Map<String, String> metrics = new HashMap<>();
+        parser.addMetrics(metrics, "video_");
+        assertEquals("1", metrics.get("video_frame_pacing_early"));
+        assertEquals("4", metrics.get("video_frame_pacing_on_time"));
+        assertEquals("1", metrics.get("video_frame_pacing_late_1_vsync"));
+        assertEquals("1", metrics.get("video_frame_pacing_late_2_vsync"));
+        assertEquals("1", metrics.get("video_frame_pacing_late_3plus_vsync"));
+        assertEquals("-2:0,-1:1,0:4,1:1,2:1,3:0,4:0,5:1",
+                metrics.get("video_frame_pacing_histogram"));
+        assertEquals("133.333", metrics.get("video_longest_freeze_ms"));
+        assertEquals("2", metrics.get("video_max_consecutive_drop_frames"));
+        assertEquals("-200.0", metrics.get("video_smoothness_window_min"));
+        assertEquals("6.25", metrics.get("video_smoothness_window_mean"));
+        assertEquals(
+                "start_ms,frames,smoothness\n0,4,75.00\n100,2,50.00\n200,1,-200.00\n"
+                        + "300,1,100.00\n",
+                parser.getSmoothnessTimeline());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link PatternLineProcessor}. */
+@RunWith(JUnit4.class)
+public class PatternLineProcessorTest {
+
+    @Test
+    public void testGetLiteralPrefix() {
+        assertEquals(
+                "No of loops :", PatternLineProcessor.getLiteralPrefix("^No of loops :(\\d+)"));
+        assertEquals("loop:", PatternLineProcessor.getLiteralPrefix("^loop:.+,(\\d+)"));
+        assertEquals("Total", PatternLineProcessor.getLiteralPrefix("Total\\s*(\\d+)"));
+        // The last char is optional
+        assertEquals("ab", PatternLineProcessor.getLiteralPrefix("abc?d"));
+        assertEquals("", PatternLineProcessor.getLiteralPrefix("(.+?)\\s.*diff"));
+        assertEquals("", PatternLineProcessor.getLiteralPrefix("^abc|^def"));
+    }
+
+    @Test
+    public void testProcess() throws Exception {
+        PatternLineProcessor processor = new PatternLineProcessor();
+        processor.put("loops", "^No of loops :(\\d+)");
+        processor.put("iters", "^loop:.+,(\\d+)");
+        processor.put("pair", "(\\w+)=(\\w+)");
+        List<String> matches = new ArrayList<>();
+        List<String> unmatched = new ArrayList<>();
+        String output = "No of loops :100\r\n\nloop: ,0 ,1 ,2\nNo of loops\nkey=value\n";
+        processor.process(
+                new StringReader(output),
+                new PatternLineProcessor.LineHandler() {
+                    @Override
+                    public void onMatch(String key, List<String> captures, String line) {
+                        matches.add(key + captures);
+                    }
+
+                    @Override
+                    public void onUnmatched(String line) {
+                        unmatched.add(line);
+                    }
+                });
+        assertEquals(3, matches.size());
+        assertEquals("loops[100]", matches.get(0));
+        assertEquals("iters[2]", matches.get(1));
+        assertEquals("pair[key, value]", matches.get(2));
+        assertEquals(1, unmatched.size());
+        assertEquals("No of loops", unmatched.get(0));
+    }
+}
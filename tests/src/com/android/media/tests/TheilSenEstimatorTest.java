@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+
+/** Unit tests for {@link TheilSenEstimator}. */
+@RunWith(JUnit4.class)
+public class TheilSenEstimatorTest {
+
+    @Test
+    public void testSlopeIgnoresOutliers() {
+        TheilSenEstimator estimator = new TheilSenEstimator();
+        for (int i = 0; i < 50; i++) {
+            // A process restart drops the series for a few samples
+            double y = (i >= 20 && i < 23) ? 0 : 1000 + 2 * i;
+            estimator.add(i, y);
+        }
+        assertEquals(2.0, estimator.getSlope(), 0.001);
+        double[] interval = estimator.getSlopeInterval(TheilSenEstimator.Z_95);
+        assertTrue(interval[0] <= 2.0 && interval[1] >= 2.0);
+    }
+
+    @Test
+    public void testIntervalOfFlatNoisySeries() {
+        TheilSenEstimator estimator = new TheilSenEstimator();
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            estimator.add(i, 5000 + random.nextGaussian() * 50);
+        }
+        double[] interval = estimator.getSlopeInterval(TheilSenEstimator.Z_95);
+        assertTrue(interval[0] < 0);
+        assertTrue(interval[1] > 0);
+    }
+
+    @Test
+    public void testSampledSlopes() {
+        // Far more pairs than slopes kept
+        TheilSenEstimator estimator = new TheilSenEstimator(1000);
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            estimator.add(i, 3 * i + random.nextGaussian() * 10);
+        }
+        assertEquals(3.0, estimator.getSlope(), 0.1);
+        double[] interval = estimator.getSlopeInterval(TheilSenEstimator.Z_95);
+        assertTrue(interval[0] > 2.5 && interval[0] < 3.0);
+        assertTrue(interval[1] > 3.0 && interval[1] < 3.5);
+    }
+
+    @Test
+    public void testTooFewPoints() {
+        TheilSenEstimator estimator = new TheilSenEstimator();
+        assertTrue(Double.isNaN(estimator.getSlope()));
+        estimator.add(0, 1);
+        estimator.add(1, 2);
+        assertEquals(1.0, estimator.getSlope(), 0.001);
+        assertTrue(Double.isNaN(estimator.getSlopeInterval(TheilSenEstimator.Z_95)[0]));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.media.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Map;
+
+/** Unit tests for {@link TimeSeriesWriter}. */
+@RunWith(JUnit4.class)
+public class TimeSeriesWriterTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = FileUtil.createTempFile("series", ".csv");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mFile);
+    }
+
+    @Test
+    public void testWriteAndSummarize() throws Exception {
+        try (TimeSeriesWriter writer = new TimeSeriesWriter(mFile, "uptime", "pss", "ram")) {
+            writer.append(60000, 100L, null);
+            writer.append(120000, 110L, 5L);
+            writer.append(180000, 120L, null);
+            Map<String, String> summary = writer.getSummary("meminfo");
+            assertEquals("100", summary.get("meminfo_pss_min"));
+            assertEquals("120", summary.get("meminfo_pss_max"));
+            assertEquals("10.000", summary.get("meminfo_pss_slope"));
+            assertEquals("5", summary.get("meminfo_ram_max"));
+            // A single value has no slope
+            assertFalse(summary.containsKey("meminfo_ram_slope"));
+        }
+        assertEquals(
+                "uptime,pss,ram\n60000,100,\n120000,110,5\n180000,120,\n",
+                FileUtil.readStringFromFile(mFile));
+    }
+
+    @Test
+    public void testAppendAfterClose() throws Exception {
+        TimeSeriesWriter writer = new TimeSeriesWriter(mFile, "uptime", "pss");
+        writer.append(60000, 100L);
+        writer.close();
+        // A sample taken while stopping is dropped
+        writer.append(120000, 200L);
+
+        assertEquals("100", writer.getSummary("meminfo").get("meminfo_pss_max"));
+        assertEquals("uptime,pss\n60000,100\n", FileUtil.readStringFromFile(mFile));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.loganalysis.item.AnrItem;
+import com.android.loganalysis.item.BugreportItem;
+import com.android.loganalysis.item.LogcatItem;
+import com.android.loganalysis.item.MiscLogcatItem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+import java.util.Date;
+
+/** Unit tests for {@link AnrReportGenerator}. */
+@RunWith(JUnit4.class)
+public class AnrReportGeneratorTest {
+
+    private static final long ANR_TIME_MS = 1500000000000L;
+
+    private static final String MAIN_THREAD =
+            "\"main\" prio=5 tid=1 Blocked\n"
+                    + "  at com.foo.Bar.onClick(Bar.java:42)\n"
+                    + "  - waiting to lock <0x0a1b2c3d> (a java.lang.Object) held by thread 23\n"
+                    + "  at android.os.Handler.dispatchMessage(Handler.java:106)\n"
+                    + "\n"
+                    + "\"Binder:123_4\" prio=5 tid=23 Native\n"
+                    + "  at com.foo.Bar.sync(Bar.java:99)\n";
+
+    @Test
+    public void testWriteReport() throws Exception {
+        AnrItem anr = new AnrItem();
+        anr.setApp("com.foo");
+        anr.setPid(123);
+        anr.setReason("Input dispatching timed out");
+        anr.setEventTime(new Date(ANR_TIME_MS));
+        anr.setStack(
+                "CPU usage from 5000ms to 0ms ago:\n"
+                        + "  25% 123/com.foo: 20% user + 5% kernel\n"
+                        + "  10% 456/system_server: 8% user + 2% kernel\n"
+                        + "32% TOTAL: 26% user + 6% kernel\n");
+        anr.setTrace(MAIN_THREAD);
+
+        LogcatItem systemLog = new LogcatItem();
+        systemLog.addEvent(createEvent("LOW_MEMORY_KILLER", ANR_TIME_MS - 5000));
+        // Too long before the ANR to be shown
+        systemLog.addEvent(createEvent("WATCHDOG", ANR_TIME_MS - 5 * 60 * 1000));
+        BugreportItem bugreport = new BugreportItem();
+        bugreport.setTime(new Date(ANR_TIME_MS + 10000));
+        bugreport.setSystemLog(systemLog);
+
+        AnrReportGenerator generator =
+                new AnrReportGenerator("/tmp", "http://foo/", "anr", "1234", "foo-userdebug", "s1");
+        generator.setBugReport(bugreport);
+        StringWriter writer = new StringWriter();
+        generator.writeReport(writer, anr);
+        String report = writer.toString();
+
+        assertTrue(report.contains("<title>Monkey ANR in com.foo</title>"));
+        assertTrue(report.contains("<tr><td>Build</td><td>1234 foo-userdebug</td></tr>"));
+        // Only the per process lines of the CPU usage
+        assertTrue(report.contains("<pre>25% 123/com.foo: 20% user + 5% kernel\n10% 456/"));
+        assertFalse(report.contains("CPU usage from"));
+        // The lock the main thread waits on, with its holder's name from the thread header
+        assertTrue(
+                report.contains(
+                        "<td>0x0a1b2c3d</td><td>java.lang.Object</td><td>23</td>"
+                                + "<td>Binder:123_4</td>"));
+        assertTrue(report.contains("<td>-5.0</td><td>LOW_MEMORY_KILLER</td><td>com.bar</td>"));
+        assertFalse(report.contains("WATCHDOG"));
+        assertTrue(report.endsWith("</body></html>\n"));
+    }
+
+    @Test
+    public void testWriteReport_holderInTraces() throws Exception {
+        AnrItem anr = new AnrItem();
+        anr.setApp("com.foo");
+        anr.setPid(123);
+        anr.setTrace(
+                "\"main\" prio=5 tid=1 Blocked\n"
+                        + "  - waiting to lock <0x0a1b2c3d> (a java.lang.Object)"
+                        + " held by thread 23\n"
+                        + "  - waiting to lock <0x0e0f0a0b> (a java.lang.Object)"
+                        + " held by thread 31\n");
+
+        AnrReportGenerator generator =
+                new AnrReportGenerator("/tmp", "http://foo/", "anr", "1234", "foo-userdebug", "s1");
+        generator.setBugReport(new BugreportItem());
+        generator.setTraces(
+                "----- pid 123 at 2018-01-01 00:00:00 -----\n"
+                        + "\"main\" prio=5 tid=1 Blocked\n"
+                        + "\n"
+                        + "\"Binder:123_4\" prio=5 tid=23 Native\n"
+                        + "  at com.foo.Bar.sync(Bar.java:99)\n"
+                        + "----- end 123 -----\n");
+        StringWriter writer = new StringWriter();
+        generator.writeReport(writer, anr);
+        String report = writer.toString();
+
+        // The holder's name from its thread header in the traces of the process
+        assertTrue(
+                report.contains(
+                        "<td>0x0a1b2c3d</td><td>java.lang.Object</td><td>23</td>"
+                                + "<td>Binder:123_4</td>"));
+        // A holder missing from the traces is still listed, without a name
+        assertTrue(
+                report.contains(
+                        "<td>0x0e0f0a0b</td><td>java.lang.Object</td><td>31</td><td></td>"));
+
+        // Traces of another process are not used
+        anr.setPid(456);
+        writer = new StringWriter();
+        generator.writeReport(writer, anr);
+        assertFalse(writer.toString().contains("Binder:123_4"));
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals("", AnrReportGenerator.escape(null));
+        assertEquals(
+                "&lt;a href=&quot;x&quot;&gt;&amp;&lt;/a&gt;",
+                AnrReportGenerator.escape("<a href=\"x\">&</a>"));
+    }
+
+    private static MiscLogcatItem createEvent(String category, long timeMs) {
+        MiscLogcatItem event = new MiscLogcatItem();
+        event.setCategory(category);
+        event.setEventTime(new Date(timeMs));
+        event.setApp("com.bar");
+        event.setPid(456);
+        return event;
+    }
+}
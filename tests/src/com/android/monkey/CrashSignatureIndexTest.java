@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+
+/** Unit tests for {@link CrashSignatureIndex}. */
+@RunWith(JUnit4.class)
+public class CrashSignatureIndexTest {
+
+    private File mFile;
+    private CrashSignatureIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("crash_index", ".bin");
+        mFile.delete();
+        mIndex = new CrashSignatureIndex(mFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mIndex.close();
+        mFile.delete();
+    }
+
+    private static CrashSignature crash(int i) {
+        return CrashSignature.create(
+                "java_crash", "com.foo", String.format("\tat com.foo.Bar.method%d(Bar.java:1)", i));
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        assertNull(mIndex.lookup(crash(0)));
+
+        CrashSignatureIndex.Entry entry = mIndex.record(crash(0), "1000");
+        assertTrue(entry.isNew());
+        assertEquals("1000", entry.getFirstBuild());
+
+        // Still new when seen again in the same run
+        entry = mIndex.record(crash(0), "1001");
+        assertTrue(entry.isNew());
+        assertEquals(2, entry.getHitCount());
+        assertEquals("1000", entry.getFirstBuild());
+        assertEquals("1001", entry.getLastBuild());
+        assertEquals(1, mIndex.size());
+
+        // Known in the next run
+        mIndex.close();
+        mIndex = new CrashSignatureIndex(mFile);
+        entry = mIndex.record(crash(0), "1002");
+        assertFalse(entry.isNew());
+        assertEquals(3, entry.getHitCount());
+    }
+
+    @Test
+    public void testSharedInProcess() throws Exception {
+        // Another instance on the same file, through another path, as concurrent invocations
+        File otherPath = new File(mFile.getParentFile(), "." + File.separator + mFile.getName());
+        try (CrashSignatureIndex other = new CrashSignatureIndex(otherPath)) {
+            assertTrue(mIndex.record(crash(0), "1000").isNew());
+            CrashSignatureIndex.Entry entry = other.record(crash(0), "1000");
+            assertFalse(entry.isNew());
+            assertEquals(2, entry.getHitCount());
+            assertEquals(1, mIndex.size());
+        }
+        // Still usable once the other instance is closed
+        assertEquals(2, mIndex.lookup(crash(0)).getHitCount());
+    }
+
+    @Test
+    public void testPersisted() throws Exception {
+        mIndex.record(crash(0), "1000");
+        mIndex.record(crash(1), "1000");
+        mIndex.close();
+
+        mIndex = new CrashSignatureIndex(mFile);
+        assertEquals(2, mIndex.size());
+        assertEquals(1, mIndex.lookup(crash(0)).getHitCount());
+        assertEquals("1000", mIndex.lookup(crash(1)).getLastBuild());
+        assertNull(mIndex.lookup(crash(2)));
+    }
+
+    @Test
+    public void testGrow() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(mIndex.record(crash(i), Integer.toString(i)).isNew());
+        }
+        assertEquals(3000, mIndex.size());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(Integer.toString(i), mIndex.lookup(crash(i)).getFirstBuild());
+        }
+        mIndex.close();
+        mIndex = new CrashSignatureIndex(mFile);
+        assertEquals(3000, mIndex.size());
+        assertEquals(1, mIndex.lookup(crash(2999)).getHitCount());
+    }
+
+    @Test
+    public void testLongBuildIdTruncated() throws Exception {
+        String buildId = "build_id_which_is_longer_than_the_forty_bytes_of_a_slot";
+        assertEquals(
+                buildId.substring(0, 40), mIndex.record(crash(0), buildId).getFirstBuild());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CrashSignature}. */
+@RunWith(JUnit4.class)
+public class CrashSignatureTest {
+
+    private static final String JAVA_STACK =
+            "java.lang.NullPointerException: Attempt to invoke virtual method on object %d\n"
+                    + "\tat com.android.foo.Bar$%d.onClick(Bar.java:%d)\n"
+                    + "\tat android.view.View.performClick(View.java:6294)\n"
+                    + "\tat android.os.Handler.dispatchMessage(Handler.java:106)\n";
+
+    private static final String NATIVE_STACK =
+            "pid: %d, tid: %d, name: foo  >>> /system/bin/foo <<<\n"
+                    + "    #00 pc %016x  /system/lib64/libc.so (abort+%d)\n"
+                    + "    #01 pc 0000000000001234  /system/bin/foo\n";
+
+    @Test
+    public void testNormalizeJavaStack() {
+        assertEquals(
+                "java.lang.NullPointerException\n"
+                        + "com.android.foo.Bar$.onClick\n"
+                        + "android.view.View.performClick\n"
+                        + "android.os.Handler.dispatchMessage",
+                CrashSignature.normalize(String.format(JAVA_STACK, 1, 2, 3)));
+    }
+
+    @Test
+    public void testNormalizeNativeStack() {
+        assertEquals(
+                "/system/lib64/libc.so abort\n/system/bin/foo",
+                CrashSignature.normalize(String.format(NATIVE_STACK, 1, 2, 0x1d6e8, 124)));
+    }
+
+    @Test
+    public void testNormalizeWithoutFrames() {
+        String reason = "Reason: Input dispatching timed out (Waiting for 5000ms)";
+        assertEquals(
+                "Reason: Input dispatching timed out (Waiting for #ms)",
+                CrashSignature.normalize(reason));
+        assertEquals("", CrashSignature.normalize(null));
+    }
+
+    @Test
+    public void testNormalizeMaxFrames() {
+        StringBuilder stack = new StringBuilder();
+        for (int i = 0; i < CrashSignature.MAX_FRAMES * 2; i++) {
+            stack.append(String.format("\tat com.android.Foo.method%c(Foo.java:1)\n", 'a' + i));
+        }
+        assertEquals(
+                CrashSignature.MAX_FRAMES,
+                CrashSignature.normalize(stack.toString()).split("\n").length);
+    }
+
+    @Test
+    public void testSameCrashSameSignature() {
+        CrashSignature first =
+                CrashSignature.create("java_crash", "com.foo", String.format(JAVA_STACK, 1, 2, 3));
+        CrashSignature second =
+                CrashSignature.create("java_crash", "com.foo", String.format(JAVA_STACK, 4, 5, 6));
+        assertEquals(first, second);
+        assertEquals(first.getHash(), second.getHash());
+
+        CrashSignature native1 =
+                CrashSignature.create(
+                        "native_crash", "foo", String.format(NATIVE_STACK, 1, 2, 0x1d6e8, 124));
+        CrashSignature native2 =
+                CrashSignature.create(
+                        "native_crash", "foo", String.format(NATIVE_STACK, 3, 4, 0x2e7f9, 64));
+        assertEquals(native1, native2);
+    }
+
+    @Test
+    public void testDifferentCrashDifferentSignature() {
+        String stack = String.format(JAVA_STACK, 1, 2, 3);
+        CrashSignature crash = CrashSignature.create("java_crash", "com.foo", stack);
+        assertNotEquals(crash, CrashSignature.create("java_crash", "com.bar", stack));
+        assertNotEquals(crash, CrashSignature.create("anr", "com.foo", stack));
+        assertNotEquals(
+                crash,
+                CrashSignature.create(
+                        "java_crash",
+                        "com.foo",
+                        stack.replace("performClick", "performLongClick")));
+    }
+}
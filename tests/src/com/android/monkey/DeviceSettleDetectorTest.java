@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DeviceSettleDetector}. */
+@RunWith(JUnit4.class)
+public class DeviceSettleDetectorTest {
+
+    private static final String CPU_LINE =
+            "cpu  79242 24060 77081 1041224 2104 0 1379 0 0 0\n";
+
+    // dumpsys activity broadcasts, with a broadcast still being dispatched by each queue
+    private static final String BROADCASTS =
+            "ACTIVITY MANAGER BROADCAST STATE (dumpsys activity broadcasts)\n"
+                    + "  Registered Receivers:\n"
+                    + "  * ReceiverList{8e1c7a2 1105 com.android.systemui/10024/u0}\n"
+                    + "    app=1105:com.android.systemui/u0a24 pid=1105 uid=10024 user=0\n"
+                    + "    curBroadcast=BroadcastRecord{77a2f0e u-1 TIME_TICK}\n"
+                    + "    Filter #0: BroadcastFilter{a5c66de u0 ReceiverList{8e1c7a2 1105}}\n"
+                    + "      Action: \"android.intent.action.TIME_TICK\"\n"
+                    + "\n"
+                    + "  Receiver Resolver Table:\n"
+                    + "    Non-Data Actions:\n"
+                    + "        android.intent.action.TIME_TICK:\n"
+                    + "          BroadcastFilter{a5c66de u0 ReceiverList{8e1c7a2 1105}}\n"
+                    + "\n"
+                    + "  Active ordered broadcasts [foreground]:\n"
+                    + "  Active Ordered Broadcast foreground #0:\n"
+                    + "    BroadcastRecord{77a2f0e u-1 android.intent.action.TIME_TICK}\n"
+                    + "    act=android.intent.action.TIME_TICK flg=0x50200014 (has extras)\n"
+                    + "    dispatchTime=-12ms (+0ms since enq) receivers=12\n"
+                    + "\n"
+                    + "  Historical broadcasts [foreground]:\n"
+                    + "  Historical Broadcast foreground #0:\n"
+                    + "    BroadcastRecord{1f0dd4b u-1 android.intent.action.TIME_TICK}\n"
+                    + "    act=android.intent.action.TIME_TICK flg=0x50200014 (has extras)\n"
+                    + "  Historical Broadcast foreground #1:\n"
+                    + "    BroadcastRecord{c0a2e7d u-1 android.intent.action.SCREEN_ON}\n"
+                    + "    act=android.intent.action.SCREEN_ON flg=0x50200010\n"
+                    + "\n"
+                    + "  Historical broadcasts summary [foreground]:\n"
+                    + "  #0: act=android.intent.action.TIME_TICK flg=0x50200014 (has extras)\n"
+                    + "    +1ms dispatch +3ms finish\n"
+                    + "\n"
+                    + "  Active broadcasts [background]:\n"
+                    + "  Active Broadcast background #0:\n"
+                    + "    BroadcastRecord{5d41e26 u0 android.intent.action.PACKAGE_ADDED}\n"
+                    + "    act=android.intent.action.PACKAGE_ADDED flg=0x4000010\n"
+                    + "\n"
+                    + "  Pending broadcast [background]:\n"
+                    + "    BroadcastRecord{9b6a7c3 u0 android.intent.action.BOOT_COMPLETED}\n"
+                    + "\n"
+                    + "  Historical broadcasts [background]:\n"
+                    + "  Historical Broadcast background #0:\n"
+                    + "    BroadcastRecord{e3c79a1 u0 android.intent.action.PACKAGE_REMOVED}\n"
+                    + "    act=android.intent.action.PACKAGE_REMOVED dat=package:com.foo\n"
+                    + "\n"
+                    + "  Historical broadcasts summary [background]:\n"
+                    + "  #0: act=android.intent.action.PACKAGE_REMOVED dat=package:com.foo\n"
+                    + "\n"
+                    + "  Sticky broadcasts for user -1:\n"
+                    + "  * Sticky action android.intent.action.BATTERY_CHANGED:\n"
+                    + "    Intent: act=android.intent.action.BATTERY_CHANGED flg=0x60000010\n";
+
+    private static final String IDLE_BROADCASTS =
+            "ACTIVITY MANAGER BROADCAST STATE (dumpsys activity broadcasts)\n"
+                    + "  Historical broadcasts [foreground]:\n"
+                    + "  Historical Broadcast foreground #0:\n"
+                    + "    BroadcastRecord{1f0dd4b u-1 android.intent.action.TIME_TICK}\n"
+                    + "\n"
+                    + "  Historical broadcasts [background]:\n"
+                    + "  Historical Broadcast background #0:\n"
+                    + "    BroadcastRecord{e3c79a1 u0 android.intent.action.PACKAGE_REMOVED}\n";
+
+    @Test
+    public void testParse() {
+        DeviceSettleDetector.Sample sample =
+                DeviceSettleDetector.parse(CPU_LINE + "--\n" + BROADCASTS);
+        assertEquals(79242 + 24060 + 77081 + 1041224 + 2104 + 1379, sample.mTotalTicks);
+        assertEquals(79242 + 24060 + 77081 + 1379, sample.mBusyTicks);
+        // The active and pending broadcasts of both queues, none of the historical ones
+        assertEquals(3, sample.mActiveBroadcasts);
+    }
+
+    @Test
+    public void testParse_filtered() {
+        // Only the section headers and the broadcast records are read from the device
+        StringBuilder filtered = new StringBuilder();
+        for (String line : BROADCASTS.split("\n")) {
+            if (line.matches("^ *(Active|Pending|Historical)[A-Za-z ]* \\[.*")
+                    || line.contains("BroadcastRecord{")) {
+                filtered.append(line).append('\n');
+            }
+        }
+        assertEquals(
+                3, DeviceSettleDetector.parse(CPU_LINE + "--\n" + filtered).mActiveBroadcasts);
+    }
+
+    @Test
+    public void testParse_idle() {
+        assertEquals(
+                0,
+                DeviceSettleDetector.parse(CPU_LINE + "--\n" + IDLE_BROADCASTS).mActiveBroadcasts);
+        assertEquals(0, DeviceSettleDetector.parse(CPU_LINE + "--\n").mActiveBroadcasts);
+    }
+
+    @Test
+    public void testParse_invalid() {
+        assertNull(DeviceSettleDetector.parse(null));
+        assertNull(DeviceSettleDetector.parse(CPU_LINE));
+        assertNull(DeviceSettleDetector.parse("cpu 1 2 3\n--\n" + BROADCASTS));
+        assertNull(DeviceSettleDetector.parse("cpu 1 2 3 a 5 6 7 8\n--\n"));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link MonkeyOutputReceiver}. */
+@RunWith(JUnit4.class)
+public class MonkeyOutputReceiverTest {
+
+    private static final String OUTPUT =
+            ":Monkey: seed=1 count=1000\n"
+                    + ":Switch: #Intent;component=com.foo/.Main;end\n"
+                    + "    // Allowing start of Intent { cmp=com.foo/.Main } in package com.foo\n"
+                    + "// CRASH: com.foo (pid 1234)\n"
+                    + "// Short Msg: java.lang.NullPointerException\n"
+                    + "    // CRASH: com.indented (pid 1)\n"
+                    + "// NOT RESPONDING: com.bar (pid 5678)\n"
+                    + "ANR in com.bar (com.bar/.Main)\n"
+                    + "** New native crash detected.\n"
+                    + "** Monkey aborted due to error.\n";
+
+    private File mLogFile;
+    private List<String> mCrashes;
+    private MonkeyOutputReceiver mReceiver;
+
+    @Before
+    public void setUp() throws Exception {
+        mLogFile = FileUtil.createTempFile("monkey", ".txt");
+        mCrashes = new ArrayList<>();
+        mReceiver =
+                new MonkeyOutputReceiver(
+                        mLogFile, (type, app, timestamp) -> mCrashes.add(type + " " + app));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mReceiver.close();
+        FileUtil.deleteFile(mLogFile);
+    }
+
+    @Test
+    public void testCrashMarkers() throws Exception {
+        addOutput(OUTPUT);
+        mReceiver.flush();
+        mReceiver.close();
+
+        assertEquals(
+                Arrays.asList("JAVA_CRASH com.foo", "ANR com.bar", "NATIVE_CRASH null"), mCrashes);
+        assertEquals(1, mReceiver.getJavaCrashCount());
+        assertEquals(1, mReceiver.getAnrCount());
+        assertEquals(1, mReceiver.getNativeCrashCount());
+        // The output is logged as is, indentation included
+        assertEquals(OUTPUT, FileUtil.readStringFromFile(mLogFile));
+    }
+
+    @Test
+    public void testSplitLines() throws Exception {
+        // The markers split across processNewLines calls, some at a chunk boundary
+        for (int start = 0; start < OUTPUT.length(); start += 5) {
+            addOutput(OUTPUT.substring(start, Math.min(start + 5, OUTPUT.length())));
+        }
+        mReceiver.flush();
+        mReceiver.close();
+
+        assertEquals(
+                Arrays.asList("JAVA_CRASH com.foo", "ANR com.bar", "NATIVE_CRASH null"), mCrashes);
+        assertEquals(OUTPUT, FileUtil.readStringFromFile(mLogFile));
+    }
+
+    @Test
+    public void testUnterminatedLastLine() throws Exception {
+        addOutput("// CRASH: com.foo (pid 12", "34)");
+        assertEquals(0, mReceiver.getJavaCrashCount());
+        // The last line is only complete when the command ends
+        mReceiver.flush();
+
+        assertEquals(1, mReceiver.getJavaCrashCount());
+        assertEquals(Arrays.asList("JAVA_CRASH com.foo"), mCrashes);
+    }
+
+    @Test
+    public void testListenerFailure() throws Exception {
+        mReceiver.close();
+        mReceiver =
+                new MonkeyOutputReceiver(
+                        mLogFile,
+                        (type, app, timestamp) -> {
+                            throw new IllegalStateException("upload failed");
+                        });
+        addOutput(OUTPUT);
+        mReceiver.flush();
+        mReceiver.close();
+
+        assertEquals(1, mReceiver.getJavaCrashCount());
+        assertEquals(1, mReceiver.getAnrCount());
+        assertEquals(OUTPUT, FileUtil.readStringFromFile(mLogFile));
+    }
+
+    @Test
+    public void testAnrTraces() throws Exception {
+        String process =
+                "----- pid 5678 at 2018-01-01 00:00:00 -----\n"
+                        + "\"main\" prio=5 tid=1 Blocked\n"
+                        + "\"Binder:5678_4\" prio=5 tid=23 Native\n"
+                        + "----- end 5678 -----\n";
+        addOutput(
+                "// NOT RESPONDING: com.bar (pid 5678)\n",
+                "anr traces:\n",
+                "----- pid 1000 at 2018-01-01 00:00:00 -----\n",
+                "\"main\" prio=5 tid=1 Native\n",
+                "----- end 1000 -----\n",
+                process,
+                "// anr traces status was 0\n",
+                // Only the traces of the first ANR are kept
+                "// NOT RESPONDING: com.baz (pid 9012)\n",
+                "anr traces:\n",
+                "----- pid 9012 at 2018-01-01 00:01:00 -----\n",
+                "// anr traces status was 0\n");
+        mReceiver.flush();
+
+        assertEquals(process, mReceiver.getAnrTraces());
+    }
+
+    @Test
+    public void testAnrTraces_none() throws Exception {
+        addOutput(OUTPUT, "anr traces:\n", "// anr traces status was 1\n");
+        mReceiver.flush();
+
+        assertNull(mReceiver.getAnrTraces());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        mReceiver.append("# header\n");
+        addOutput("// CRASH: com.foo (pid 1234)\n");
+        mReceiver.close();
+        addOutput("after close\n");
+        mReceiver.append("after close\n");
+
+        // Closed before the end of the output, the newline of the last line is never written
+        assertEquals(
+                "# header\n// CRASH: com.foo (pid 1234)", FileUtil.readStringFromFile(mLogFile));
+    }
+
+    private void addOutput(String... chunks) {
+        for (String chunk : chunks) {
+            byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+            mReceiver.addOutput(bytes, 0, bytes.length);
+        }
+    }
+}
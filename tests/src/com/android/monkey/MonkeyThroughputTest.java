@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link MonkeyThroughput}. */
+@RunWith(JUnit4.class)
+public class MonkeyThroughputTest {
+
+    private static final String CHECKPOINT =
+            "    //[calendar_time:2018-05-04 10:11:12.345  system_uptime:%d]\n"
+                    + "    // Sending event #%d\n";
+    private static final String SENDING = ":Sending Touch (ACTION_DOWN): 0:(100.0,200.0)\n";
+
+    /** Builds a log with one checkpoint per uptime, and 10 events in between. */
+    private static MonkeyThroughput parse(long... uptimes) throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < uptimes.length; i++) {
+            log.append(String.format(CHECKPOINT, uptimes[i], i * 10));
+            for (int j = 0; j < 10; j++) {
+                log.append(SENDING);
+            }
+        }
+        return MonkeyThroughput.parse(new BufferedReader(new StringReader(log.toString())));
+    }
+
+    @Test
+    public void testTimeline() throws Exception {
+        MonkeyThroughput throughput = parse(1000, 2000, 3000);
+        List<MonkeyThroughput.Interval> timeline = throughput.getTimeline();
+        assertEquals(2, timeline.size());
+        assertEquals(1000, timeline.get(0).getStartUptimeMs());
+        assertEquals(2000, timeline.get(0).getEndUptimeMs());
+        assertEquals(10, timeline.get(0).getEvents());
+        assertEquals(10.0, throughput.getMedianRate(), 0.001);
+        assertTrue(throughput.getStalls().isEmpty());
+    }
+
+    @Test
+    public void testStalls() throws Exception {
+        // Two consecutive slow intervals make one stall, a third one is separate
+        MonkeyThroughput throughput = parse(0, 1000, 2000, 12000, 22000, 23000, 24000, 29000);
+        List<MonkeyThroughput.Interval> stalls = throughput.getStalls();
+        assertEquals(2, stalls.size());
+        assertEquals(2000, stalls.get(0).getStartUptimeMs());
+        assertEquals(22000, stalls.get(0).getEndUptimeMs());
+        assertEquals(20, stalls.get(0).getEvents());
+
+        Map<String, String> metrics = throughput.getMetrics();
+        assertEquals("2", metrics.get("stall_count"));
+        assertEquals("25000", metrics.get("stall_total_ms"));
+        assertEquals("20000", metrics.get("stall_worst_ms"));
+        assertEquals("2000", metrics.get("stall_worst_start_uptime_ms"));
+    }
+
+    @Test
+    public void testEventNumbersWithoutSendingLines() throws Exception {
+        String log = String.format(CHECKPOINT, 1000, 100) + String.format(CHECKPOINT, 3000, 300);
+        MonkeyThroughput throughput =
+                MonkeyThroughput.parse(new BufferedReader(new StringReader(log)));
+        assertEquals(1, throughput.getTimeline().size());
+        assertEquals(200, throughput.getTimeline().get(0).getEvents());
+        assertEquals(100.0, throughput.getMedianRate(), 0.001);
+    }
+}
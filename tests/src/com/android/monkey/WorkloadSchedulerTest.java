@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.monkey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/** Unit tests for {@link WorkloadScheduler}. */
+@RunWith(JUnit4.class)
+public class WorkloadSchedulerTest {
+
+    private static final long WAIT_TIMEOUT_MS = 10 * 1000;
+
+    @Test
+    public void testRun() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(device.executeShellV2Command("true"))
+                .andStubReturn(createResult(CommandStatus.SUCCESS, 0));
+        EasyMock.expect(device.executeShellV2Command("false"))
+                .andStubReturn(createResult(CommandStatus.FAILED, 1));
+        EasyMock.expect(device.executeShellV2Command("offline"))
+                .andStubThrow(new DeviceNotAvailableException("offline", "serial"));
+        EasyMock.replay(device);
+
+        WorkloadScheduler scheduler = new WorkloadScheduler(2);
+        assertTrue(scheduler.isEmpty());
+        scheduler.addCommand("ok", device, "true", 1);
+        scheduler.addCommand("exit", device, "false", 1);
+        scheduler.addCommand("offline", device, "offline", 1);
+        assertFalse(scheduler.isEmpty());
+        try {
+            scheduler.start();
+            waitForRuns(scheduler, 3, "ok", "exit", "offline");
+        } finally {
+            scheduler.stop();
+        }
+        // Stopping twice is fine
+        scheduler.stop();
+
+        Map<String, String> metrics = scheduler.getMetrics();
+        assertEquals("0", metrics.get("ok_failures"));
+        // A non-zero exit and a device not available are both failures
+        assertEquals(metrics.get("exit_count"), metrics.get("exit_failures"));
+        assertEquals(metrics.get("offline_count"), metrics.get("offline_failures"));
+        for (String name : new String[] {"ok", "exit", "offline"}) {
+            for (String latency : new String[] {"min", "mean", "p50", "p90", "p99", "max"}) {
+                String key = String.format("%s_latency_%s_ms", name, latency);
+                assertTrue(key, metrics.containsKey(key));
+            }
+        }
+        // Nothing runs once stopped
+        Thread.sleep(50);
+        assertEquals(metrics, scheduler.getMetrics());
+    }
+
+    @Test
+    public void testRun_legacy() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        // The exit status is not available in the legacy shell, only the output
+        EasyMock.expect(device.executeShellCommand("false")).andStubReturn("");
+        EasyMock.expect(device.executeShellCommand("offline"))
+                .andStubThrow(new DeviceNotAvailableException("offline", "serial"));
+        EasyMock.replay(device);
+
+        WorkloadScheduler scheduler = new WorkloadScheduler(2);
+        scheduler.addLegacyCommand("exit", device, "false", 1);
+        scheduler.addLegacyCommand("offline", device, "offline", 1);
+        try {
+            scheduler.start();
+            waitForRuns(scheduler, 3, "exit", "offline");
+        } finally {
+            scheduler.stop();
+        }
+
+        Map<String, String> metrics = scheduler.getMetrics();
+        assertEquals("0", metrics.get("exit_failures"));
+        assertEquals(metrics.get("offline_count"), metrics.get("offline_failures"));
+    }
+
+    @Test
+    public void testGetMetrics_notStarted() {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.replay(device);
+        WorkloadScheduler scheduler = new WorkloadScheduler(1);
+        scheduler.addCommand("ok", device, "true", 1000);
+
+        Map<String, String> metrics = scheduler.getMetrics();
+        assertEquals("0", metrics.get("ok_count"));
+        assertEquals("0", metrics.get("ok_failures"));
+        assertNull(metrics.get("ok_latency_p50_ms"));
+    }
+
+    @Test
+    public void testAddCommand_started() {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.replay(device);
+        WorkloadScheduler scheduler = new WorkloadScheduler(1);
+        scheduler.addCommand("ok", device, "true", 1000);
+        scheduler.start();
+        try {
+            scheduler.addCommand("late", device, "true", 1000);
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    private static CommandResult createResult(CommandStatus status, int exitCode) {
+        CommandResult result = new CommandResult(status);
+        result.setExitCode(exitCode);
+        return result;
+    }
+
+    /** Wait until each command ran at least count times. */
+    private static void waitForRuns(WorkloadScheduler scheduler, int count, String... names)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        for (String name : names) {
+            while (Long.parseLong(scheduler.getMetrics().get(name + "_count")) < count) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail(String.format("%s did not run %d times", name, count));
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+}
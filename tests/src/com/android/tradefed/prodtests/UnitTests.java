@@ -17,11 +17,32 @@ package com.android.tradefed.prodtests;
 
 import com.android.build.tests.ImageStatsTest;
 import com.android.continuous.SmokeTestTest;
+import com.android.media.tests.AudioGlitchTimelineTest;
+import com.android.media.tests.AudioJitterReceiverTest;
+import com.android.media.tests.AudioLoopbackWaveAnalyzerTest;
+import com.android.media.tests.CameraDeviceSamplerTest;
+import com.android.media.tests.CameraPerformanceTestTest;
+import com.android.media.tests.H264StreamParserTest;
+import com.android.media.tests.JsonMemberReaderTest;
+import com.android.media.tests.LatencyDistributionsTest;
+import com.android.media.tests.Mp4BoxParserTest;
+import com.android.media.tests.MultimeterDataParserTest;
+import com.android.media.tests.PatternLineProcessorTest;
+import com.android.media.tests.TheilSenEstimatorTest;
+import com.android.media.tests.TimeSeriesWriterTest;
+import com.android.monkey.AnrReportGeneratorTest;
+import com.android.monkey.CrashSignatureIndexTest;
+import com.android.monkey.CrashSignatureTest;
+import com.android.monkey.DeviceSettleDetectorTest;
 import com.android.monkey.MonkeyBaseTest;
+import com.android.monkey.MonkeyOutputReceiverTest;
+import com.android.monkey.MonkeyThroughputTest;
+import com.android.monkey.WorkloadSchedulerTest;
 import com.android.regression.tests.DetectRegressionTest;
 import com.android.regression.tests.MetricsTest;
 import com.android.regression.tests.MetricsXmlParserTest;
 import com.android.scenario.AppSetupTest;
+import com.android.tradefed.util.QuantileSketchTest;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -41,8 +62,30 @@ import org.junit.runners.Suite.SuiteClasses;
     // continuous
     SmokeTestTest.class,
 
+    // media.tests
+    AudioGlitchTimelineTest.class,
+    AudioJitterReceiverTest.class,
+    AudioLoopbackWaveAnalyzerTest.class,
+    CameraDeviceSamplerTest.class,
+    CameraPerformanceTestTest.class,
+    H264StreamParserTest.class,
+    JsonMemberReaderTest.class,
+    LatencyDistributionsTest.class,
+    Mp4BoxParserTest.class,
+    MultimeterDataParserTest.class,
+    PatternLineProcessorTest.class,
+    TheilSenEstimatorTest.class,
+    TimeSeriesWriterTest.class,
+
     // monkey
+    AnrReportGeneratorTest.class,
+    CrashSignatureIndexTest.class,
+    CrashSignatureTest.class,
+    DeviceSettleDetectorTest.class,
     MonkeyBaseTest.class,
+    MonkeyOutputReceiverTest.class,
+    MonkeyThroughputTest.class,
+    WorkloadSchedulerTest.class,
 
     // regression
     DetectRegressionTest.class,
@@ -51,6 +94,9 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // scenario
     AppSetupTest.class,
+
+    // tradefed.util
+    QuantileSketchTest.class,
 })
 public class UnitTests {
     // empty of purpose
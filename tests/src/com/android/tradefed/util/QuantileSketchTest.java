@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/** Unit tests for {@link QuantileSketch}. */
+@RunWith(JUnit4.class)
+public class QuantileSketchTest {
+
+    private static final double RELATIVE_ACCURACY = 0.005;
+
+    private QuantileSketch mSketch;
+
+    @Before
+    public void setUp() throws Exception {
+        mSketch = new QuantileSketch(0.001, 100000, RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, mSketch.getCount());
+        assertTrue(Double.isNaN(mSketch.getQuantile(0.5)));
+        assertTrue(Double.isNaN(mSketch.getMean()));
+        assertTrue(mSketch.getHistogram().isEmpty());
+    }
+
+    @Test
+    public void testQuantiles() {
+        // 1.00, 1.01, ... 100.99 ms
+        for (int i = 0; i < 10000; i++) {
+            mSketch.add(1 + i / 100.0);
+        }
+        assertEquals(10000, mSketch.getCount());
+        assertEquals(1.0, mSketch.getMin(), 0);
+        assertEquals(100.99, mSketch.getMax(), 0);
+        assertEquals(50.995, mSketch.getMean(), 0.0001);
+        assertQuantile(50.99, mSketch.getQuantile(0.5));
+        assertQuantile(90.99, mSketch.getQuantile(0.9));
+        assertQuantile(99.99, mSketch.getQuantile(0.99));
+        assertQuantile(100.89, mSketch.getQuantile(0.999));
+        assertEquals(1.0, mSketch.getQuantile(0), 0);
+        assertEquals(100.99, mSketch.getQuantile(1), 0);
+    }
+
+    @Test
+    public void testSubMillisecondResolution() {
+        mSketch.add(17.2);
+        mSketch.add(17.6);
+        mSketch.add(17.6);
+        Map<Double, Long> histogram = mSketch.getHistogram();
+        assertEquals(2, histogram.size());
+        assertQuantile(17.6, mSketch.getQuantile(0.5));
+    }
+
+    @Test
+    public void testValuesOutsideRange() {
+        mSketch.add(-1);
+        mSketch.add(0);
+        mSketch.add(1000000);
+        assertEquals(-1, mSketch.getMin(), 0);
+        assertEquals(1000000, mSketch.getMax(), 0);
+        assertEquals(0, mSketch.getQuantile(0.5), 0);
+        // Values above the highest trackable value are counted in the last bucket
+        assertQuantile(100000, mSketch.getQuantile(0.99));
+    }
+
+    @Test
+    public void testStdDev() {
+        mSketch.add(2);
+        mSketch.add(4);
+        mSketch.add(4);
+        mSketch.add(4);
+        mSketch.add(5);
+        mSketch.add(5);
+        mSketch.add(7);
+        mSketch.add(9);
+        assertEquals(5, mSketch.getMean(), 0.000001);
+        assertEquals(2, mSketch.getStdDev(), 0.000001);
+    }
+
+    private void assertQuantile(double expected, double actual) {
+        assertEquals(expected, actual, expected * RELATIVE_ACCURACY * 2);
+    }
+}